@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.benchmarks;
+
+import com.orange.cepheus.broker.LocalRegistrations;
+import com.orange.cepheus.broker.Patterns;
+import com.orange.cepheus.broker.RemoteRegistrations;
+import com.orange.cepheus.broker.Subscriptions;
+import com.orange.cepheus.broker.model.Registration;
+import com.orange.cepheus.broker.model.Subscription;
+import com.orange.cepheus.broker.persistence.RegistrationsRepository;
+import com.orange.cepheus.broker.persistence.SubscriptionsRepository;
+import com.orange.ngsi.model.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup of the subscriptions and of the providing applications matching an updated entity,
+ * as the number of subscriptions and registrations grows.
+ * One entry out of 100 is a pattern, the others are entity ids.
+ * Persistence and remote broker are stubbed out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityLookupBenchmark {
+
+    /**
+     * Number of subscriptions and of registrations
+     */
+    @Param({"10", "10000", "100000"})
+    public int entries;
+
+    private Subscriptions subscriptions;
+
+    private LocalRegistrations localRegistrations;
+
+    private List<EntityId> searchedEntityIds;
+
+    private Set<String> searchedAttributes;
+
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        Patterns patterns = new Patterns();
+        Instant expirationDate = Instant.now().plus(1, ChronoUnit.DAYS);
+        URI reference = new URI("http://subscriber:8080/notify");
+        URI providingApplication = new URI("http://iotagent:8080");
+
+        Map<String, Subscription> storedSubscriptions = new HashMap<>();
+        List<RegisterContext> registerContexts = new ArrayList<>();
+        for (int i = 0; i < entries; i++) {
+            EntityId entityId = i % 100 == 99 ? new EntityId("Sensor" + i + ".*", "TempSensor", true) : new EntityId("Sensor" + i, "TempSensor", false);
+
+            SubscribeContext subscribeContext = new SubscribeContext();
+            subscribeContext.setEntityIdList(Collections.singletonList(entityId));
+            subscribeContext.setAttributeList(Collections.singletonList("temp"));
+            subscribeContext.setReference(reference);
+            String subscriptionId = UUID.randomUUID().toString();
+            storedSubscriptions.put(subscriptionId, new Subscription(subscriptionId, expirationDate, subscribeContext));
+
+            ContextRegistration contextRegistration = new ContextRegistration();
+            contextRegistration.setEntityIdList(Collections.singletonList(entityId));
+            contextRegistration.setContextRegistrationAttributeList(Collections.singletonList(new ContextRegistrationAttribute("temp", false)));
+            contextRegistration.setProvidingApplication(providingApplication);
+            RegisterContext registerContext = new RegisterContext();
+            registerContext.setDuration("PT24H");
+            registerContext.setContextRegistrationList(Collections.singletonList(contextRegistration));
+            registerContexts.add(registerContext);
+        }
+
+        subscriptions = new Subscriptions();
+        set(subscriptions, "patterns", patterns);
+        set(subscriptions, "subscriptionsRepository", new SubscriptionsRepository() {
+            @Override
+            public Map<String, Subscription> getAllSubscriptions() {
+                return storedSubscriptions;
+            }
+        });
+        invoke(subscriptions, "loadSubscriptionsOnStartup");
+
+        localRegistrations = new LocalRegistrations();
+        set(localRegistrations, "patterns", patterns);
+        set(localRegistrations, "registrationsRepository", new RegistrationsRepository() {
+            @Override
+            public void saveOrUpdateRegistration(Registration registration) {
+            }
+        });
+        set(localRegistrations, "remoteRegistrations", new RemoteRegistrations() {
+            @Override
+            public void registerContext(RegisterContext registerContext, String localRegistrationId) {
+            }
+        });
+        invoke(localRegistrations, "init");
+        for (RegisterContext registerContext : registerContexts) {
+            localRegistrations.updateRegistrationContext(registerContext);
+        }
+
+        // Searched entities spread over the entries
+        searchedEntityIds = new ArrayList<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 1024; i++) {
+            searchedEntityIds.add(new EntityId("Sensor" + random.nextInt(entries), "TempSensor", false));
+        }
+        searchedAttributes = Collections.singleton("temp");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        invoke(subscriptions, "shutdown");
+        invoke(localRegistrations, "shutdown");
+    }
+
+    @Benchmark
+    public void findSubscriptions(Blackhole blackhole) {
+        Iterator<Subscription> matches = subscriptions.findSubscriptions(nextEntityId(), searchedAttributes);
+        while (matches.hasNext()) {
+            blackhole.consume(matches.next());
+        }
+    }
+
+    @Benchmark
+    public void findProvidingApplication(Blackhole blackhole) {
+        Iterator<URI> matches = localRegistrations.findProvidingApplication(nextEntityId(), searchedAttributes);
+        while (matches.hasNext()) {
+            blackhole.consume(matches.next());
+        }
+    }
+
+    private EntityId nextEntityId() {
+        next = (next + 1) & 1023;
+        return searchedEntityIds.get(next);
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static void invoke(Object target, String name) throws Exception {
+        Method method = target.getClass().getDeclaredMethod(name);
+        method.setAccessible(true);
+        method.invoke(target);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.benchmarks;
+
+import com.orange.cepheus.cep.Application;
+import com.orange.cepheus.cep.EsperEventProcessor;
+import com.orange.cepheus.cep.model.*;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processing of incoming events by the Esper engine, under representative statements:
+ * a filter, a time window aggregated by entity, and a pattern correlating successive events of an entity.
+ * The engine runs in the CEP application context (without web server), the output events are mapped
+ * to context elements but not sent (no broker).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EsperEventProcessorBenchmark {
+
+    private static final Map<String, String> STATEMENTS = new HashMap<>();
+    static {
+        STATEMENTS.put("filter", "insert into TempSensorAvg select id, temp as avgTemp from TempSensor where temp > 30");
+        STATEMENTS.put("window", "insert into TempSensorAvg select id, avg(temp) as avgTemp from TempSensor.win:time(10 seconds) group by id");
+        STATEMENTS.put("pattern", "insert into TempSensorAvg select a.id as id, b.temp - a.temp as avgTemp from pattern " +
+                "[every a=TempSensor(temp > 30) -> (b=TempSensor(id = a.id, temp <= 30) where timer:within(10 seconds))]");
+    }
+
+    /**
+     * Statement processing the events
+     */
+    @Param({"filter", "window", "pattern"})
+    public String statement;
+
+    /**
+     * Number of distinct entities sending events
+     */
+    @Param({"1000"})
+    public int entities;
+
+    private File dataPath;
+
+    private ConfigurableApplicationContext applicationContext;
+
+    private EsperEventProcessor esperEventProcessor;
+
+    private long counter;
+
+    @Setup
+    public void setup() throws Exception {
+        dataPath = Files.createTempDirectory("cepheus-benchmark").toFile();
+        applicationContext = new SpringApplicationBuilder(Application.class)
+                .web(false)
+                .showBanner(false)
+                .run("--data.path=" + dataPath.getPath() + "/", "--logging.level.com.orange.cepheus.cep=WARN");
+        esperEventProcessor = applicationContext.getBean(EsperEventProcessor.class);
+
+        EventTypeIn eventTypeIn = new EventTypeIn("S.*", "TempSensor", true);
+        eventTypeIn.addAttribute(new Attribute("temp", "double"));
+        EventTypeOut eventTypeOut = new EventTypeOut("OUT1", "TempSensorAvg", false);
+        eventTypeOut.addAttribute(new Attribute("avgTemp", "double"));
+
+        Configuration configuration = new Configuration();
+        configuration.setHost(new URI("http://localhost:8080"));
+        configuration.setEventTypeIns(Collections.singletonList(eventTypeIn));
+        configuration.setEventTypeOuts(Collections.singletonList(eventTypeOut));
+        configuration.setStatements(Collections.singletonList(STATEMENTS.get(statement)));
+        esperEventProcessor.setConfiguration(configuration);
+    }
+
+    @TearDown
+    public void tearDown() {
+        applicationContext.close();
+        File[] files = dataPath.listFiles();
+        if (files != null) {
+            Arrays.stream(files).forEach(File::delete);
+        }
+        dataPath.delete();
+    }
+
+    /**
+     * Process the next event, each entity alternating temperatures above and below 30
+     */
+    @Benchmark
+    public void processEvent() throws Exception {
+        long n = counter++;
+        Event event = new Event("TempSensor");
+        event.addValue("id", "S" + (n % entities));
+        event.addValue("temp", (n / entities) % 2 == 0 ? 35.5 : 20.5);
+        esperEventProcessor.processEvent(event);
+    }
+}
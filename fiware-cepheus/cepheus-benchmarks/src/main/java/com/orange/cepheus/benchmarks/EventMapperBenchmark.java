@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.benchmarks;
+
+import com.espertech.esper.client.EPServiceProvider;
+import com.espertech.esper.client.EPServiceProviderManager;
+import com.espertech.esper.client.EPStatement;
+import com.espertech.esper.client.EventBean;
+import com.orange.cepheus.cep.EventMapper;
+import com.orange.cepheus.cep.model.Attribute;
+import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.cep.model.Event;
+import com.orange.cepheus.cep.model.EventTypeIn;
+import com.orange.cepheus.cep.model.EventTypeOut;
+import com.orange.cepheus.cep.model.Metadata;
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.ContextMetadata;
+import com.orange.ngsi.model.EntityId;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of a NGSI ContextElement to an Esper event:
+ * compiled mapping plan of EventMapper versus the previous two-pass mapper.
+ * And conversion of an outgoing Esper event back to a ContextElement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventMapperBenchmark {
+
+    /**
+     * Number of attributes of the incoming context element
+     */
+    @Param({"4", "16"})
+    public int attributes;
+
+    private EventMapper eventMapper;
+
+    private LegacyEventMapper legacyEventMapper;
+
+    private ContextElement contextElement;
+
+    private EPServiceProvider epServiceProvider;
+
+    private EventTypeOut eventTypeOut;
+
+    private EventBean eventBean;
+
+    @Setup
+    public void setup() throws Exception {
+        Set<Attribute> attributeSet = new HashSet<>();
+        List<ContextAttribute> contextAttributes = new ArrayList<>();
+        for (int i = 0; i < attributes; i++) {
+            Attribute attribute = new Attribute("temp" + i, "double");
+            Metadata unit = new Metadata("unit", "string");
+            Metadata accuracy = new Metadata("accuracy", "float");
+            attribute.setMetadata(new HashSet<>(Arrays.asList(unit, accuracy)));
+            attributeSet.add(attribute);
+
+            ContextAttribute contextAttribute = new ContextAttribute("temp" + i, "double", "21." + i);
+            contextAttribute.setMetadata(Arrays.asList(new ContextMetadata("unit", "string", "celsius"),
+                    new ContextMetadata("accuracy", "float", "0.5")));
+            contextAttributes.add(contextAttribute);
+        }
+
+        EventTypeIn eventTypeIn = new EventTypeIn("S.*", "TempSensor", true);
+        eventTypeIn.setAttributes(attributeSet);
+        Configuration configuration = new Configuration();
+        configuration.setEventTypeIns(Collections.singletonList(eventTypeIn));
+
+        eventMapper = new EventMapper();
+        eventMapper.setConfiguration(configuration);
+        legacyEventMapper = new LegacyEventMapper();
+        legacyEventMapper.setConfiguration(configuration);
+
+        contextElement = new ContextElement();
+        contextElement.setEntityId(new EntityId("S1", "TempSensor", false));
+        contextElement.setContextAttributeList(contextAttributes);
+
+        // Outgoing event with the same attributes, produced by a standalone Esper engine
+        eventTypeOut = new EventTypeOut("OUT1", "TempSensorAvg", false);
+        eventTypeOut.setAttributes(attributeSet);
+        com.espertech.esper.client.Configuration esperConfiguration = new com.espertech.esper.client.Configuration();
+        esperConfiguration.addEventType("TempSensorAvg", eventMapper.esperTypeFromEventType(eventTypeOut));
+        epServiceProvider = EPServiceProviderManager.getProvider("EventMapperBenchmark", esperConfiguration);
+        EPStatement statement = epServiceProvider.getEPAdministrator().createEPL("select * from TempSensorAvg.std:lastevent()");
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("id", "OUT1");
+        for (int i = 0; i < attributes; i++) {
+            properties.put("temp" + i, 21.0 + i);
+            properties.put("temp" + i + "_unit", "celsius");
+            properties.put("temp" + i + "_accuracy", 0.5f);
+        }
+        epServiceProvider.getEPRuntime().sendEvent(properties, "TempSensorAvg");
+        eventBean = statement.iterator().next();
+    }
+
+    @TearDown
+    public void tearDown() {
+        epServiceProvider.destroy();
+    }
+
+    @Benchmark
+    public Event mappingPlan() throws Exception {
+        return eventMapper.eventFromContextElement(contextElement);
+    }
+
+    @Benchmark
+    public Event legacy() throws Exception {
+        return legacyEventMapper.eventFromContextElement(contextElement);
+    }
+
+    @Benchmark
+    public ContextElement contextElementFromEvent() {
+        return eventMapper.contextElementFromEvent(eventBean, eventTypeOut);
+    }
+}
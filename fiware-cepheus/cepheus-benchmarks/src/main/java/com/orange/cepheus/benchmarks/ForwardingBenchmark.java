@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.benchmarks;
+
+import com.orange.cepheus.broker.EntityCache;
+import com.orange.cepheus.broker.LocalRegistrations;
+import com.orange.cepheus.broker.controller.NgsiController;
+import com.orange.ngsi.client.NgsiClient;
+import com.orange.ngsi.model.*;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Concurrent queryContext forwarded to a slow providing application, served by a fixed pool of request threads
+ * (as the servlet container pool): blocking until the response (synchronous mode)
+ * versus releasing the thread until the response is received (ngsi.async.enabled).
+ * With blocking requests, the time to serve all the requests grows with requests / threads * latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ForwardingBenchmark {
+
+    /**
+     * Number of concurrent queries
+     */
+    @Param({"100", "1000"})
+    public int requests;
+
+    /**
+     * Number of request threads
+     */
+    @Param({"20"})
+    public int threads;
+
+    /**
+     * Response time (ms) of the providing application
+     */
+    @Param({"50"})
+    public int latency;
+
+    private ExecutorService requestThreads;
+
+    private ScheduledExecutorService provider;
+
+    private NgsiController ngsiController;
+
+    private QueryContext query;
+
+    private QueryContextResponse response;
+
+    @Setup
+    public void setup() throws Exception {
+        requestThreads = Executors.newFixedThreadPool(threads);
+        provider = Executors.newSingleThreadScheduledExecutor();
+
+        query = new QueryContext();
+        query.setEntityIdList(Collections.singletonList(new EntityId("Sensor1", "TempSensor", false)));
+        query.setAttributeList(Collections.singletonList("temp"));
+        ContextElement contextElement = new ContextElement();
+        contextElement.setEntityId(new EntityId("Sensor1", "TempSensor", false));
+        contextElement.setContextAttributeList(Collections.singletonList(new ContextAttribute("temp", "float", "20.5")));
+        response = new QueryContextResponse();
+        response.setContextElementResponses(Collections.singletonList(new ContextElementResponse(contextElement, new StatusCode(CodeEnum.CODE_200))));
+
+        URI providingApplication = new URI("http://iotagent:8080");
+        ngsiController = new NgsiController();
+        set(ngsiController, "localRegistrations", new LocalRegistrations() {
+            @Override
+            public Iterator<URI> findProvidingApplication(EntityId searchEntityId, Set<String> searchAttributes) {
+                return Collections.singletonList(providingApplication).iterator();
+            }
+        });
+        set(ngsiController, "entityCache", new EntityCache());
+        set(ngsiController, "ngsiClient", new SlowProvider());
+    }
+
+    @TearDown
+    public void tearDown() {
+        requestThreads.shutdownNow();
+        provider.shutdownNow();
+    }
+
+    @Benchmark
+    public void blocking() throws Exception {
+        CountDownLatch served = new CountDownLatch(requests);
+        for (int i = 0; i < requests; i++) {
+            requestThreads.execute(() -> {
+                try {
+                    ngsiController.queryContext(query);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    served.countDown();
+                }
+            });
+        }
+        served.await();
+    }
+
+    @Benchmark
+    public void deferred() throws Exception {
+        CountDownLatch served = new CountDownLatch(requests);
+        for (int i = 0; i < requests; i++) {
+            requestThreads.execute(() -> {
+                try {
+                    ngsiController.queryContextAsync(query).addCallback(queryContextResponse -> served.countDown(), throwable -> served.countDown());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        served.await();
+    }
+
+    /**
+     * Providing application answering after the latency, without holding a thread meanwhile (as a NIO HTTP client)
+     */
+    private class SlowProvider extends NgsiClient {
+
+        @Override
+        public HttpHeaders getRequestHeaders(String url) {
+            return new HttpHeaders();
+        }
+
+        @Override
+        public ListenableFuture<QueryContextResponse> queryContext(String url, HttpHeaders httpHeaders, QueryContext queryContext) {
+            SettableListenableFuture<QueryContextResponse> future = new SettableListenableFuture<>();
+            provider.schedule(() -> future.set(response), latency, TimeUnit.MILLISECONDS);
+            return future;
+        }
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
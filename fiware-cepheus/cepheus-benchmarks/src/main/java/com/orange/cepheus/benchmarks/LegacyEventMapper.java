@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.benchmarks;
+
+import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
+import com.jayway.jsonpath.JsonPath;
+import com.orange.cepheus.cep.model.Attribute;
+import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.cep.model.Event;
+import com.orange.cepheus.cep.model.EventTypeIn;
+import com.orange.cepheus.cep.model.Metadata;
+import com.orange.cepheus.geo.GeoUtil;
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.ContextMetadata;
+
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Baseline for the EventMapper benchmark: the map conversion as done before the compiled mapping plans
+ * (two passes over the attributes, jsonpath lookup by concatenated key, conversion by string switch).
+ */
+class LegacyEventMapper {
+
+    private Map<String, JsonPath> jsonpaths = new HashMap<>();
+
+    private ISO8601DateFormat iso8691DateFormat = new ISO8601DateFormat();
+
+    public void setConfiguration(Configuration configuration) {
+        Map<String, JsonPath> jsonpaths = new HashMap<>();
+        for (EventTypeIn eventTypeIn : configuration.getEventTypeIns()) {
+            for (Attribute attribute : eventTypeIn.getAttributes()) {
+                if (attribute.getJsonpath() != null) {
+                    jsonpaths.put(eventTypeIn.getType() + "/" + attribute.getName(), JsonPath.compile(attribute.getJsonpath()));
+                }
+                for (Metadata metadata : attribute.getMetadata()) {
+                    if (metadata.getJsonpath() != null) {
+                        jsonpaths.put(eventTypeIn.getType() + "/" + attribute.getName() + "/" + metadata.getName(), JsonPath.compile(metadata.getJsonpath()));
+                    }
+                }
+            }
+        }
+        this.jsonpaths = jsonpaths;
+    }
+
+    public Event eventFromContextElement(ContextElement contextElement) throws ParseException {
+        String eventId = contextElement.getEntityId().getId();
+        String eventType = contextElement.getEntityId().getType();
+        Event event = new Event(eventType);
+
+        for (ContextAttribute contextAttribute : contextElement.getContextAttributeList()) {
+            String attrName = contextAttribute.getName();
+            for (ContextMetadata contextMetada : contextAttribute.getMetadata()) {
+                Object value = contextMetada.getValue();
+                JsonPath jsonPath = jsonpaths.get(eventType + "/" + attrName + "/" + contextMetada.getName());
+                if (jsonPath != null) {
+                    value = jsonPath.read(value);
+                }
+                event.addValue(attrName + "_" + contextMetada.getName(), valueForType(value, contextMetada.getType()));
+            }
+        }
+
+        for (ContextAttribute contextAttribute : contextElement.getContextAttributeList()) {
+            Object value = contextAttribute.getValue();
+            JsonPath jsonPath = jsonpaths.get(eventType + "/" + contextAttribute.getName());
+            if (jsonPath != null) {
+                value = jsonPath.read(value);
+            }
+            event.addValue(contextAttribute.getName(), valueForType(value, contextAttribute.getType()));
+        }
+
+        event.addValue("id", eventId);
+        return event;
+    }
+
+    private Object valueForType(Object value, String type) throws ParseException {
+        if (type == null || !(value instanceof String)) {
+            return value;
+        }
+        String string = (String) value;
+        switch (type) {
+            case "string":
+                return string;
+            case "boolean":
+                return Boolean.valueOf(string);
+            case "int":
+                return Integer.valueOf(string);
+            case "long":
+                return Long.valueOf(string);
+            case "float":
+                return Float.valueOf(string);
+            case "double":
+                return Double.valueOf(string);
+            case "date":
+                return iso8691DateFormat.parse(string);
+            case "geo:point":
+                return GeoUtil.parseNGSIString(string);
+            default:
+                return string;
+        }
+    }
+}
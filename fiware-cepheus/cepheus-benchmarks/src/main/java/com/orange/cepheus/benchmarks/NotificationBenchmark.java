@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.benchmarks;
+
+import com.orange.cepheus.broker.NotificationPayload;
+import com.orange.ngsi.model.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the notifications of an update matching several subscriptions:
+ * payload encoded once and shared by the subscriptions versus one encoding per subscription.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationBenchmark {
+
+    /**
+     * Number of subscriptions matching the update
+     */
+    @Param({"1", "10", "1000"})
+    public int subscriptions;
+
+    private MappingJackson2HttpMessageConverter converter;
+
+    private URI originator;
+
+    private List<ContextElementResponse> contextElementResponses;
+
+    private List<String> subscriptionIds;
+
+    @Setup
+    public void setup() throws Exception {
+        converter = new MappingJackson2HttpMessageConverter();
+        originator = new URI("http://localhost:8081");
+
+        List<ContextAttribute> contextAttributes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ContextAttribute contextAttribute = new ContextAttribute("temp" + i, "double", "21." + i);
+            contextAttribute.setMetadata(Collections.singletonList(new ContextMetadata("unit", "string", "celsius")));
+            contextAttributes.add(contextAttribute);
+        }
+        ContextElement contextElement = new ContextElement();
+        contextElement.setEntityId(new EntityId("S1", "TempSensor", false));
+        contextElement.setContextAttributeList(contextAttributes);
+        contextElementResponses = Collections.singletonList(new ContextElementResponse(contextElement, new StatusCode(CodeEnum.CODE_200)));
+
+        subscriptionIds = new ArrayList<>();
+        for (int i = 0; i < subscriptions; i++) {
+            subscriptionIds.add(UUID.randomUUID().toString());
+        }
+    }
+
+    @Benchmark
+    public void sharedPayload(Blackhole blackhole) throws Exception {
+        NotificationPayload payload = new NotificationPayload(originator, contextElementResponses);
+        for (String subscriptionId : subscriptionIds) {
+            blackhole.consume(payload.encode(subscriptionId, MediaType.APPLICATION_JSON, converter));
+        }
+    }
+
+    @Benchmark
+    public void perSubscription(Blackhole blackhole) throws Exception {
+        for (String subscriptionId : subscriptionIds) {
+            NotifyContext notifyContext = new NotifyContext(subscriptionId, originator);
+            notifyContext.setContextElementResponseList(contextElementResponses);
+            ByteArrayOutputMessage outputMessage = new ByteArrayOutputMessage();
+            converter.write(notifyContext, MediaType.APPLICATION_JSON, outputMessage);
+            blackhole.consume(outputMessage.body.toByteArray());
+        }
+    }
+
+    private static class ByteArrayOutputMessage implements HttpOutputMessage {
+        private final HttpHeaders headers = new HttpHeaders();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+
+        @Override
+        public OutputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.benchmarks;
+
+import com.orange.cepheus.broker.Patterns;
+import com.orange.ngsi.model.EntityId;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Filtering entity ids with the predicate of Patterns.getFilterEntityId,
+ * for a searched entity id or a searched pattern, over entity ids mixing ids and patterns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatternsBenchmark {
+
+    /**
+     * Whether the searched entity id is a pattern
+     */
+    @Param({"false", "true"})
+    public boolean pattern;
+
+    /**
+     * Number of filtered entity ids
+     */
+    @Param({"16"})
+    public int candidates;
+
+    private Patterns patterns;
+
+    private EntityId searchEntityId;
+
+    private List<EntityId> entityIds;
+
+    @Setup
+    public void setup() {
+        patterns = new Patterns();
+        searchEntityId = pattern ? new EntityId("Sensor1.*", "TempSensor", true) : new EntityId("Sensor12", "TempSensor", false);
+        entityIds = new ArrayList<>();
+        for (int i = 0; i < candidates; i++) {
+            entityIds.add(i % 4 == 3 ? new EntityId("Sensor" + i + ".*", "TempSensor", true) : new EntityId("Sensor" + i, "TempSensor", false));
+        }
+    }
+
+    @Benchmark
+    public int getFilterEntityId() {
+        Predicate<EntityId> filter = patterns.getFilterEntityId(searchEntityId);
+        int matches = 0;
+        for (EntityId entityId : entityIds) {
+            if (filter.test(entityId)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
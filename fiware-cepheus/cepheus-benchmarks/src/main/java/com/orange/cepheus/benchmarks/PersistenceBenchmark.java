@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.cepheus.broker.model.Registration;
+import com.orange.cepheus.broker.persistence.BatchWriter;
+import com.orange.cepheus.broker.persistence.RegistrationsRepository;
+import com.orange.cepheus.broker.persistence.SnapshotStore;
+import com.orange.ngsi.model.*;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registration storm (e.g. after an IoT agent restart) persisted in SQLite:
+ * each registration committed on its own (sync) versus batched transactions (writeBehind).
+ * sync with the DELETE journal mode is the former behavior, to compare with writeBehind and WAL:
+ *
+ *     mvn -o verify -Pbenchmark -Dbenchmarks=PersistenceBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    @Param({"sync", "writeBehind"})
+    public String mode;
+
+    @Param({"DELETE", "WAL"})
+    public String journalMode;
+
+    /**
+     * Number of registrations of the storm
+     */
+    @Param({"1000"})
+    public int registrations;
+
+    private File database;
+
+    private SingleConnectionDataSource dataSource;
+
+    private BatchWriter batchWriter;
+
+    private RegistrationsRepository registrationsRepository;
+
+    private List<RegisterContext> registerContexts;
+
+    @Setup
+    public void setup() throws Exception {
+        database = File.createTempFile("cepheus-benchmark", ".db");
+        dataSource = new SingleConnectionDataSource("jdbc:sqlite:" + database.getPath(), true);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        ObjectMapper mapper = new ObjectMapper();
+
+        batchWriter = new BatchWriter();
+        set(batchWriter, "mode", BatchWriter.Mode.valueOf(mode));
+        set(batchWriter, "flushInterval", 100L);
+        set(batchWriter, "maxPending", 10000);
+        set(batchWriter, "journalMode", journalMode);
+        set(batchWriter, "jdbcTemplate", jdbcTemplate);
+        invoke(batchWriter, "init");
+
+        registrationsRepository = new RegistrationsRepository();
+        set(registrationsRepository, "jdbcTemplate", jdbcTemplate);
+        set(registrationsRepository, "mapper", mapper);
+        set(registrationsRepository, "batchWriter", batchWriter);
+        // The snapshot backend is disabled, registrations are written to SQLite
+        set(registrationsRepository, "snapshotStore", new SnapshotStore());
+        invoke(registrationsRepository, "createTableOnStartup");
+
+        registerContexts = new ArrayList<>();
+        for (int i = 0; i < registrations; i++) {
+            ContextRegistration contextRegistration = new ContextRegistration();
+            contextRegistration.setEntityIdList(Collections.singletonList(new EntityId("Sensor" + i, "TempSensor", false)));
+            contextRegistration.setContextRegistrationAttributeList(Collections.singletonList(new ContextRegistrationAttribute("temp", false)));
+            contextRegistration.setProvidingApplication(new URI("http://iotagent:8080"));
+            RegisterContext registerContext = new RegisterContext();
+            registerContext.setDuration("PT1H");
+            registerContext.setRegistrationId("registration-" + i);
+            registerContext.setContextRegistrationList(Collections.singletonList(contextRegistration));
+            registerContexts.add(registerContext);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        invoke(batchWriter, "shutdown");
+        dataSource.destroy();
+        database.delete();
+        new File(database.getPath() + "-wal").delete();
+        new File(database.getPath() + "-shm").delete();
+    }
+
+    /**
+     * Persist all the registrations of the storm, until they are written to the database
+     */
+    @Benchmark
+    public void registrationStorm() throws Exception {
+        Instant expirationDate = Instant.now().plus(1, ChronoUnit.HOURS);
+        for (RegisterContext registerContext : registerContexts) {
+            registrationsRepository.saveOrUpdateRegistration(new Registration(expirationDate, registerContext));
+        }
+        batchWriter.flush();
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static void invoke(Object target, String name) throws Exception {
+        Method method = target.getClass().getDeclaredMethod(name);
+        method.setAccessible(true);
+        method.invoke(target);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.cepheus.broker.model.Registration;
+import com.orange.cepheus.broker.persistence.BatchWriter;
+import com.orange.cepheus.broker.persistence.PayloadCodec;
+import com.orange.cepheus.broker.persistence.RegistrationsRepository;
+import com.orange.cepheus.broker.persistence.SnapshotStore;
+import com.orange.ngsi.model.*;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the persisted registrations at startup: SQLite rows decoded from JSON (sqlite backend)
+ * versus the snapshot and journal files replayed and decoded from Smile in parallel (snapshot backend).
+ *
+ *     mvn -o verify -Pbenchmark -Dbenchmarks=PersistenceLoadBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceLoadBenchmark {
+
+    @Param({"sqlite", "snapshot"})
+    public String backend;
+
+    /**
+     * Number of persisted registrations
+     */
+    @Param({"10000"})
+    public int registrations;
+
+    private File database;
+
+    private File directory;
+
+    private SingleConnectionDataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private ObjectMapper mapper;
+
+    private PayloadCodec payloadCodec;
+
+    private BatchWriter batchWriter;
+
+    @Setup
+    public void setup() throws Exception {
+        database = File.createTempFile("cepheus-benchmark", ".db");
+        directory = Files.createTempDirectory("cepheus-benchmark").toFile();
+        dataSource = new SingleConnectionDataSource("jdbc:sqlite:" + database.getPath(), true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        mapper = new ObjectMapper();
+        payloadCodec = new PayloadCodec();
+
+        batchWriter = new BatchWriter();
+        set(batchWriter, "mode", BatchWriter.Mode.writeBehind);
+        set(batchWriter, "flushInterval", 100L);
+        set(batchWriter, "maxPending", 10000);
+        set(batchWriter, "journalMode", "WAL");
+        set(batchWriter, "jdbcTemplate", jdbcTemplate);
+        invoke(batchWriter, "init");
+
+        // Persist the registrations with the benchmarked backend
+        SnapshotStore snapshotStore = snapshotStore();
+        RegistrationsRepository registrationsRepository = registrationsRepository(snapshotStore);
+        invoke(registrationsRepository, "createTableOnStartup");
+        Instant expirationDate = Instant.now().plus(1, ChronoUnit.HOURS);
+        for (int i = 0; i < registrations; i++) {
+            ContextRegistration contextRegistration = new ContextRegistration();
+            contextRegistration.setEntityIdList(Collections.singletonList(new EntityId("Sensor" + i, "TempSensor", false)));
+            contextRegistration.setContextRegistrationAttributeList(Collections.singletonList(new ContextRegistrationAttribute("temp", false)));
+            contextRegistration.setProvidingApplication(new URI("http://iotagent:8080"));
+            RegisterContext registerContext = new RegisterContext();
+            registerContext.setDuration("PT1H");
+            registerContext.setRegistrationId("registration-" + i);
+            registerContext.setContextRegistrationList(Collections.singletonList(contextRegistration));
+            registrationsRepository.saveOrUpdateRegistration(new Registration(expirationDate, registerContext));
+        }
+        batchWriter.flush();
+        invoke(snapshotStore, "shutdown");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        invoke(batchWriter, "shutdown");
+        dataSource.destroy();
+        database.delete();
+        new File(database.getPath() + "-wal").delete();
+        new File(database.getPath() + "-shm").delete();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Load all the registrations, as on startup
+     */
+    @Benchmark
+    public Map<String, Registration> loadRegistrations() throws Exception {
+        SnapshotStore snapshotStore = snapshotStore();
+        try {
+            return registrationsRepository(snapshotStore).getAllRegistrations();
+        } finally {
+            invoke(snapshotStore, "shutdown");
+        }
+    }
+
+    /**
+     * @return a started store, replaying the snapshot and journal files with the snapshot backend
+     */
+    private SnapshotStore snapshotStore() throws Exception {
+        SnapshotStore snapshotStore = new SnapshotStore();
+        set(snapshotStore, "backend", SnapshotStore.Backend.valueOf(backend));
+        set(snapshotStore, "directory", directory.getPath());
+        set(snapshotStore, "compactionThreshold", registrations * 2);
+        invoke(snapshotStore, "init");
+        return snapshotStore;
+    }
+
+    private RegistrationsRepository registrationsRepository(SnapshotStore snapshotStore) throws Exception {
+        RegistrationsRepository registrationsRepository = new RegistrationsRepository();
+        set(registrationsRepository, "jdbcTemplate", jdbcTemplate);
+        set(registrationsRepository, "mapper", mapper);
+        set(registrationsRepository, "batchWriter", batchWriter);
+        set(registrationsRepository, "snapshotStore", snapshotStore);
+        set(registrationsRepository, "payloadCodec", payloadCodec);
+        return registrationsRepository;
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static void invoke(Object target, String name) throws Exception {
+        Method method = target.getClass().getDeclaredMethod(name);
+        method.setAccessible(true);
+        method.invoke(target);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.ngsi.model.*;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Last known values of the entities updated through this broker, used to answer queryContext requests locally.
+ *
+ * The cache is bounded: the least recently used entities are evicted.
+ * Each attribute value expires after a time-to-live, a query is only answered
+ * when all the requested entities and attributes are known and fresh.
+ * Queries with a restriction or without an attribute list are never answered:
+ * the cache cannot evaluate scopes and only knows the attributes updated through this broker.
+ */
+@Component
+public class EntityCache {
+
+    /**
+     * Answer queryContext requests from the cache
+     */
+    @Value("${cache.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Maximum number of entities kept in cache
+     */
+    @Value("${cache.maxEntities:10000}")
+    private int maxEntities = 10000;
+
+    /**
+     * Time-to-live of an attribute value (ms)
+     */
+    @Value("${cache.ttl:60000}")
+    private long ttl = 60000;
+
+    /**
+     * Last known value of an attribute
+     */
+    private static class CachedAttribute {
+        private final ContextAttribute contextAttribute;
+        private final long timestamp;
+
+        CachedAttribute(ContextAttribute contextAttribute, long timestamp) {
+            this.contextAttribute = contextAttribute;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Last known attributes of an entity
+     */
+    private static class CachedEntity {
+        private final EntityId entityId;
+        private final Map<String, CachedAttribute> attributes = new LinkedHashMap<>();
+
+        CachedEntity(EntityId entityId) {
+            this.entityId = entityId;
+        }
+    }
+
+    /**
+     * Entities by id and type, the least recently used entities are evicted
+     */
+    private final Map<String, CachedEntity> entities = new LinkedHashMap<String, CachedEntity>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedEntity> eldest) {
+            return size() > maxEntities;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Update the cache with the context elements of an update
+     * @param updateAction the action of the update
+     * @param contextElements the context elements
+     */
+    public void update(UpdateAction updateAction, List<ContextElement> contextElements) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (entities) {
+            for (ContextElement contextElement : contextElements) {
+                EntityId entityId = contextElement.getEntityId();
+                if (entityId.getIsPattern()) {
+                    continue;
+                }
+                String key = key(entityId);
+                if (updateAction == UpdateAction.DELETE) {
+                    entities.remove(key);
+                    continue;
+                }
+                CachedEntity cachedEntity = entities.computeIfAbsent(key, k -> new CachedEntity(entityId));
+                for (ContextAttribute contextAttribute : contextElement.getContextAttributeList()) {
+                    cachedEntity.attributes.put(contextAttribute.getName(), new CachedAttribute(contextAttribute, now));
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer a query from the cache
+     * @param query the query
+     * @return the response, or null if the cache cannot answer the whole query
+     */
+    public QueryContextResponse query(QueryContext query) {
+        if (!enabled || query.getEntityIdList() == null || query.getEntityIdList().isEmpty()
+                || query.getAttributeList() == null || query.getAttributeList().isEmpty()
+                || query.getRestriction() != null) {
+            return null;
+        }
+        long oldest = System.currentTimeMillis() - ttl;
+        List<String> attributeNames = query.getAttributeList();
+        List<ContextElementResponse> contextElementResponses = new ArrayList<>();
+        synchronized (entities) {
+            for (EntityId entityId : query.getEntityIdList()) {
+                CachedEntity cachedEntity = entityId.getIsPattern() ? null : entities.get(key(entityId));
+                List<ContextAttribute> contextAttributes = cachedEntity == null ? null : freshAttributes(cachedEntity, attributeNames, oldest);
+                if (contextAttributes == null) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+                ContextElement contextElement = new ContextElement();
+                contextElement.setEntityId(cachedEntity.entityId);
+                contextElement.setContextAttributeList(contextAttributes);
+                contextElementResponses.add(new ContextElementResponse(contextElement, new StatusCode(CodeEnum.CODE_200)));
+            }
+        }
+        hits.incrementAndGet();
+        QueryContextResponse queryContextResponse = new QueryContextResponse();
+        queryContextResponse.setContextElementResponses(contextElementResponses);
+        return queryContextResponse;
+    }
+
+    /**
+     * @return the number of entities in cache
+     */
+    public int size() {
+        synchronized (entities) {
+            return entities.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the requested attributes, or null if one of them is unknown or stale
+     */
+    private List<ContextAttribute> freshAttributes(CachedEntity cachedEntity, List<String> attributeNames, long oldest) {
+        List<ContextAttribute> contextAttributes = new ArrayList<>(attributeNames.size());
+        for (String name : attributeNames) {
+            CachedAttribute cachedAttribute = cachedEntity.attributes.get(name);
+            if (cachedAttribute == null || cachedAttribute.timestamp < oldest) {
+                return null;
+            }
+            contextAttributes.add(cachedAttribute.contextAttribute);
+        }
+        return contextAttributes;
+    }
+
+    private static String key(EntityId entityId) {
+        return entityId.getId() + '|' + entityId.getType();
+    }
+}
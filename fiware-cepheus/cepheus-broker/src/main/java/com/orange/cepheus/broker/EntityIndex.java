@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.ngsi.model.EntityId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Index of values by entity type, then by exact entity id or by entity id pattern.
+ * The matching rules are the same as Patterns.getFilterEntityId().
+ * @param <T> the type of the indexed values (compared by identity)
+ */
+class EntityIndex<T> {
+
+    /**
+     * Values of an entity type
+     */
+    private class TypeBucket {
+        private final Map<String, Set<T>> byId = new ConcurrentHashMap<>();
+        private final Map<String, Set<T>> byPattern = new ConcurrentHashMap<>();
+        private final PatternMatcher patternMatcher = new PatternMatcher(patterns);
+    }
+
+    private final Patterns patterns;
+
+    /**
+     * Buckets by entity type, the empty string for entities without type
+     */
+    private final Map<String, TypeBucket> byType = new ConcurrentHashMap<>();
+
+    EntityIndex(Patterns patterns) {
+        this.patterns = patterns;
+    }
+
+    public void add(EntityId entityId, T value) {
+        TypeBucket bucket = byType.computeIfAbsent(typeKey(entityId), k -> new TypeBucket());
+        if (entityId.getIsPattern()) {
+            bucket.byPattern.compute(entityId.getId(), (id, set) -> {
+                if (set == null) {
+                    set = ConcurrentHashMap.newKeySet();
+                    bucket.patternMatcher.add(id);
+                }
+                set.add(value);
+                return set;
+            });
+        } else {
+            addTo(bucket.byId, entityId.getId(), value);
+        }
+    }
+
+    public void remove(EntityId entityId, T value) {
+        TypeBucket bucket = byType.get(typeKey(entityId));
+        if (bucket == null) {
+            return;
+        }
+        if (entityId.getIsPattern()) {
+            bucket.byPattern.computeIfPresent(entityId.getId(), (id, set) -> {
+                set.remove(value);
+                if (set.isEmpty()) {
+                    bucket.patternMatcher.remove(id);
+                    return null;
+                }
+                return set;
+            });
+        } else {
+            removeFrom(bucket.byId, entityId.getId(), value);
+        }
+    }
+
+    /**
+     * @param searchEntityId the entity id to search
+     * @return the distinct values of the entities matching the entity id
+     */
+    public Set<T> find(EntityId searchEntityId) {
+        TypeBucket bucket = byType.get(typeKey(searchEntityId));
+        if (bucket == null) {
+            return Collections.emptySet();
+        }
+
+        // A value may be indexed by several matching entities
+        Set<T> values = Collections.newSetFromMap(new IdentityHashMap<>());
+        String searchId = searchEntityId.getId();
+        Pattern searchPattern = patterns.getPattern(searchEntityId);
+        if (searchPattern == null) {
+            values.addAll(bucket.byId.getOrDefault(searchId, Collections.emptySet()));
+            bucket.patternMatcher.match(searchId,
+                    id -> values.addAll(bucket.byPattern.getOrDefault(id, Collections.emptySet())));
+        } else {
+            // Two patterns only match by equality
+            values.addAll(bucket.byPattern.getOrDefault(searchId, Collections.emptySet()));
+            bucket.byId.forEach((id, idValues) -> {
+                if (searchPattern.matcher(id).find()) {
+                    values.addAll(idValues);
+                }
+            });
+        }
+        return values;
+    }
+
+    public void clear() {
+        byType.clear();
+    }
+
+    private String typeKey(EntityId entityId) {
+        return patterns.hasType(entityId) ? entityId.getType() : "";
+    }
+
+    static <K, V> void addTo(Map<K, Set<V>> map, K key, V value) {
+        map.compute(key, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(value);
+            return set;
+        });
+    }
+
+    static <K, V> void removeFrom(Map<K, Set<V>> map, K key, V value) {
+        map.computeIfPresent(key, (k, set) -> {
+            set.remove(value);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
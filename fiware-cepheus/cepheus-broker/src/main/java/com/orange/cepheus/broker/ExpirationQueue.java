@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Expire keys at their expiration date, using an index ordered by expiration date
+ * consumed by a dedicated thread. The keys expiring at the same time are handed over in a single batch.
+ * @param <K> the type of the keys
+ */
+class ExpirationQueue<K> {
+
+    private static Logger logger = LoggerFactory.getLogger(ExpirationQueue.class);
+
+    /**
+     * Maximum number of keys in a batch
+     */
+    private final static int MAX_BATCH = 500;
+
+    private static class Expiration<K> implements Comparable<Expiration<K>> {
+        private final K key;
+        private final long expirationTime;
+        private final long sequence;
+
+        Expiration(K key, long expirationTime, long sequence) {
+            this.key = key;
+            this.expirationTime = expirationTime;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Expiration<K> o) {
+            int result = Long.compare(expirationTime, o.expirationTime);
+            return result != 0 ? result : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private final String name;
+
+    private final Consumer<List<K>> onExpired;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * Expirations ordered by expiration date
+     */
+    private final TreeSet<Expiration<K>> expirations = new TreeSet<>();
+
+    /**
+     * Expiration of each key
+     */
+    private final Map<K, Expiration<K>> expirationsByKey = new HashMap<>();
+
+    private long sequence;
+
+    private Thread thread;
+
+    /**
+     * @param name the name of the expiration thread
+     * @param onExpired called with each batch of expired keys, on the expiration thread
+     */
+    ExpirationQueue(String name, Consumer<List<K>> onExpired) {
+        this.name = name;
+        this.onExpired = onExpired;
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Schedule (or reschedule) the expiration of a key
+     */
+    public void schedule(K key, Instant expirationDate) {
+        lock.lock();
+        try {
+            Expiration<K> expiration = new Expiration<>(key, expirationDate.toEpochMilli(), sequence++);
+            Expiration<K> previous = expirationsByKey.put(key, expiration);
+            if (previous != null) {
+                expirations.remove(previous);
+            }
+            expirations.add(expiration);
+            // Wake up the thread if the next expiration changed
+            if (expirations.first() == expiration) {
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancel the expiration of a key
+     */
+    public void cancel(K key) {
+        lock.lock();
+        try {
+            Expiration<K> previous = expirationsByKey.remove(key);
+            if (previous != null) {
+                expirations.remove(previous);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of scheduled expirations
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return expirations.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<K> batch = new ArrayList<>();
+            lock.lock();
+            try {
+                while (batch.isEmpty()) {
+                    long now = System.currentTimeMillis();
+                    if (expirations.isEmpty()) {
+                        changed.await();
+                    } else if (expirations.first().expirationTime > now) {
+                        changed.await(expirations.first().expirationTime - now, TimeUnit.MILLISECONDS);
+                    } else {
+                        while (!expirations.isEmpty() && expirations.first().expirationTime <= now && batch.size() < MAX_BATCH) {
+                            Expiration<K> expiration = expirations.pollFirst();
+                            expirationsByKey.remove(expiration.key);
+                            batch.add(expiration.key);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                onExpired.accept(batch);
+            } catch (RuntimeException e) {
+                logger.error("Failed to expire {}", batch, e);
+            }
+        }
+    }
+}
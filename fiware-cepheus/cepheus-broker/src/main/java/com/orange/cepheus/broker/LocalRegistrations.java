@@ -16,17 +16,16 @@ import com.orange.ngsi.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.xml.datatype.DatatypeFactory;
 import java.net.URI;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Predicate;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
@@ -55,6 +54,74 @@ public class LocalRegistrations {
      */
     Map<String, Registration> registrations = new ConcurrentHashMap<>();
 
+    /**
+     * A context registration with its precomputed attribute names
+     */
+    private static class IndexedContextRegistration {
+        private final URI providingApplication;
+        private final List<EntityId> entityIds;
+        private final Set<String> attributes;
+
+        IndexedContextRegistration(ContextRegistration contextRegistration) {
+            this.providingApplication = contextRegistration.getProvidingApplication();
+            this.entityIds = new ArrayList<>(contextRegistration.getEntityIdList());
+            List<ContextRegistrationAttribute> attributeList = contextRegistration.getContextRegistrationAttributeList();
+            this.attributes = attributeList == null ? Collections.emptySet() :
+                    attributeList.stream().map(ContextRegistrationAttribute::getName).collect(Collectors.toSet());
+        }
+    }
+
+    /**
+     * Index of the context registrations by entity
+     */
+    private EntityIndex<IndexedContextRegistration> registrationsIndex;
+
+    /**
+     * Indexed context registrations by registration id, to update the index
+     */
+    private final Map<String, List<IndexedContextRegistration>> indexedByRegistrationId = new ConcurrentHashMap<>();
+
+    /**
+     * Remove each registration at its expiration date
+     */
+    private final ExpirationQueue<String> expirationQueue = new ExpirationQueue<>("registrations-expiration", this::expireRegistrations);
+
+    @PostConstruct
+    protected void init() {
+        registrationsIndex = new EntityIndex<>(patterns);
+        loadRegistrationsOnStartup();
+        expirationQueue.start();
+    }
+
+    @PreDestroy
+    protected void shutdown() {
+        expirationQueue.stop();
+    }
+
+    /**
+     * Restore the persisted registrations, the ones which expired while the broker was stopped are removed
+     */
+    private void loadRegistrationsOnStartup() {
+        try {
+            Instant now = Instant.now();
+            List<String> expired = new ArrayList<>();
+            registrationsRepository.getAllRegistrations().forEach((registrationId, registration) -> {
+                if (registration.getExpirationDate().isBefore(now)) {
+                    expired.add(registrationId);
+                } else {
+                    registrations.put(registrationId, registration);
+                    indexRegistration(registrationId, registration);
+                    expirationQueue.schedule(registrationId, registration.getExpirationDate());
+                }
+            });
+            if (!expired.isEmpty()) {
+                registrationsRepository.removeRegistrations(expired);
+            }
+        } catch (RegistrationPersistenceException e) {
+            logger.error("Failed to load registrations from database", e);
+        }
+    }
+
     /**
      * Add or update a new context registration.
      * When the duration of the context is set to zero, this is handled as a remove.
@@ -69,6 +136,8 @@ public class LocalRegistrations {
         if (duration.isZero() && registrationId != null) {
             registrationsRepository.removeRegistration(registrationId);
             registrations.remove(registrationId);
+            unindexRegistration(registrationId);
+            expirationQueue.cancel(registrationId);
             remoteRegistrations.removeRegistration(registrationId);
             return registrationId;
         }
@@ -86,23 +155,15 @@ public class LocalRegistrations {
             registerContext.setRegistrationId(registrationId);
         }
 
-        // Exists in database
+        // Create or replace the registration and set the expiration date
         Instant expirationDate = Instant.now().plus(duration);
-        Registration registration;
-        //TODO: instead of use insert or update, use replace instruction of sqlite
-        try {
-            registration = registrationsRepository.getRegistration(registerContext.getRegistrationId());
-            // update registration
-            registration.setExpirationDate(expirationDate);
-            registration.setRegisterContext(registerContext);
-            registrationsRepository.updateRegistration(registration);
-        } catch (EmptyResultDataAccessException e) {
-            // Create registration and set the expiration date
-            registration = new Registration(expirationDate, registerContext);
-            registrationsRepository.saveRegistration(registration);
-        }
+        Registration registration = new Registration(expirationDate, registerContext);
+        registrationsRepository.saveOrUpdateRegistration(registration);
 
         registrations.put(registrationId, registration);
+        unindexRegistration(registrationId);
+        indexRegistration(registrationId, registration);
+        expirationQueue.schedule(registrationId, expirationDate);
 
         // Forward to remote broker
         remoteRegistrations.registerContext(registerContext, registrationId);
@@ -127,50 +188,87 @@ public class LocalRegistrations {
      */
     public Iterator<URI> findProvidingApplication(EntityId searchEntityId, Set<String> searchAttributes) {
 
-        // Filter out expired registrations
-        Predicate<Registration> filterExpired = registration -> registration.getExpirationDate().isAfter(Instant.now());
-
-        // Filter only matching entity ids
-        Predicate<EntityId> filterEntityId = patterns.getFilterEntityId(searchEntityId);
-
         // Only filter by attributes if search is looking for them
         final boolean noAttributes = searchAttributes == null || searchAttributes.size() == 0;
 
-        // Filter each registration (remove expired) and return its providing application
-        // if at least one of its listed entities matches the searched context element
-        // and if all searched attributes are defined in the registration (if any)
-        return registrations.values().stream()
-                .filter(filterExpired).map(registration -> registration.getRegisterContext().getContextRegistrationList())
-                .flatMap(List::stream)
-                .filter(c -> c.getEntityIdList().stream().filter(filterEntityId).findFirst().isPresent()
-                        && (noAttributes || allContextRegistrationAttributes(c).containsAll(searchAttributes)))
-                .map(ContextRegistration::getProvidingApplication).iterator();
+        // Return the providing application of each context registration
+        // where at least one of its listed entities matches the searched context element
+        // and all searched attributes are defined in the context registration (if any).
+        // Expired registrations are removed from the index at their expiration date.
+        return registrationsIndex.find(searchEntityId).stream()
+                .filter(c -> noAttributes || c.attributes.containsAll(searchAttributes))
+                .map(c -> c.providingApplication).iterator();
     }
 
     /**
-     * @return all the names of the attributes of a context registration
+     * Index all the context registrations of a registration
      */
-    private Collection<String> allContextRegistrationAttributes(ContextRegistration contextRegistration) {
-        return contextRegistration.getContextRegistrationAttributeList().stream().map(ContextRegistrationAttribute::getName).collect(Collectors.toList());
+    private void indexRegistration(String registrationId, Registration registration) {
+        List<IndexedContextRegistration> indexed = new ArrayList<>();
+        for (ContextRegistration contextRegistration : registration.getRegisterContext().getContextRegistrationList()) {
+            IndexedContextRegistration indexedContextRegistration = new IndexedContextRegistration(contextRegistration);
+            indexedContextRegistration.entityIds.forEach(entityId -> registrationsIndex.add(entityId, indexedContextRegistration));
+            indexed.add(indexedContextRegistration);
+        }
+        indexedByRegistrationId.put(registrationId, indexed);
     }
 
     /**
-     * Removed expired registrations every min
+     * Remove all the context registrations of a registration from the index
+     */
+    private void unindexRegistration(String registrationId) {
+        List<IndexedContextRegistration> indexed = indexedByRegistrationId.remove(registrationId);
+        if (indexed == null) {
+            return;
+        }
+        for (IndexedContextRegistration indexedContextRegistration : indexed) {
+            indexedContextRegistration.entityIds.forEach(entityId -> registrationsIndex.remove(entityId, indexedContextRegistration));
+        }
+    }
+
+    /**
+     * Remove all expired registrations now, without waiting for their expiration to be triggered.
      */
-    @Scheduled(fixedDelay = 60000)
     public void purgeExpiredContextRegistrations() {
         final Instant now = Instant.now();
+        List<String> expired = new ArrayList<>();
         registrations.forEach((registrationId, registration) -> {
             if (registration.getExpirationDate().isBefore(now)) {
-                registrations.remove(registrationId);
-                remoteRegistrations.removeRegistration(registrationId);
-                try {
-                    registrationsRepository.removeRegistration(registrationId);
-                } catch (RegistrationPersistenceException e) {
-                    logger.error("Failed to remove registration from database", e);
-                }
+                expirationQueue.cancel(registrationId);
+                expired.add(registrationId);
             }
         });
+        if (!expired.isEmpty()) {
+            expireRegistrations(expired);
+        }
+    }
+
+    /**
+     * Remove expired registrations from memory and from the remote broker, then from the database in a single batch.
+     * A registration renewed since its expiration was triggered is kept.
+     */
+    private void expireRegistrations(List<String> registrationIds) {
+        final Instant now = Instant.now();
+        List<String> expired = new ArrayList<>(registrationIds.size());
+        for (String registrationId : registrationIds) {
+            // Only remove the expired instance, not the one of a concurrent renewal
+            Registration registration = registrations.get(registrationId);
+            if (registration == null || registration.getExpirationDate().isAfter(now)
+                    || !registrations.remove(registrationId, registration)) {
+                continue;
+            }
+            unindexRegistration(registrationId);
+            remoteRegistrations.removeRegistration(registrationId);
+            expired.add(registrationId);
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+        try {
+            registrationsRepository.removeRegistrations(expired);
+        } catch (RegistrationPersistenceException e) {
+            logger.error("Failed to remove registrations from database", e);
+        }
     }
 
     /**
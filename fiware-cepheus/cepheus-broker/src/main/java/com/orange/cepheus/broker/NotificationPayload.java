@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.ngsi.model.ContextElementResponse;
+import com.orange.ngsi.model.NotifyContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Context element responses notified to several subscriptions.
+ *
+ * The NotifyContext requests of the subscriptions only differ by their subscription id:
+ * the request is encoded once per content type with a placeholder as subscription id,
+ * then the id of each subscription is spliced in place of the placeholder.
+ */
+public class NotificationPayload {
+
+    /**
+     * Subscription id of the encoded templates
+     */
+    private final static String PLACEHOLDER = "cepheus-subscription-" + UUID.randomUUID();
+
+    /**
+     * Subscription ids that are encoded as is by any content type
+     */
+    private final static Pattern SPLICEABLE = Pattern.compile("[A-Za-z0-9_.:-]*");
+
+    /**
+     * A request encoded around the placeholder, or a request without placeholder (never spliced)
+     */
+    private static class Template {
+        private final byte[] prefix;
+        private final byte[] suffix;
+
+        Template(byte[] prefix, byte[] suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+    }
+
+    private final URI originator;
+
+    private final List<ContextElementResponse> contextElementResponses;
+
+    private final Map<MediaType, Template> templates = new ConcurrentHashMap<>();
+
+    public NotificationPayload(URI originator, List<ContextElementResponse> contextElementResponses) {
+        this.originator = originator;
+        this.contextElementResponses = contextElementResponses;
+    }
+
+    public URI getOriginator() {
+        return originator;
+    }
+
+    public List<ContextElementResponse> getContextElementResponses() {
+        return contextElementResponses;
+    }
+
+    /**
+     * @return a new NotifyContext request for a subscription
+     */
+    public NotifyContext notifyContext(String subscriptionId) {
+        NotifyContext notifyContext = new NotifyContext(subscriptionId, originator);
+        notifyContext.setContextElementResponseList(contextElementResponses);
+        return notifyContext;
+    }
+
+    /**
+     * Encode the NotifyContext request of a subscription
+     * @param subscriptionId the id of the subscription
+     * @param mediaType the content type of the request
+     * @param converter the converter writing NotifyContext requests to the content type
+     * @return the encoded request
+     * @throws IOException if the request cannot be written
+     */
+    public byte[] encode(String subscriptionId, MediaType mediaType, HttpMessageConverter<Object> converter) throws IOException {
+        if (!SPLICEABLE.matcher(subscriptionId).matches()) {
+            return write(subscriptionId, mediaType, converter);
+        }
+
+        Template template = templates.get(mediaType);
+        if (template == null) {
+            template = template(mediaType, converter);
+            templates.put(mediaType, template);
+        }
+        if (template.suffix == null) {
+            return write(subscriptionId, mediaType, converter);
+        }
+
+        byte[] id = subscriptionId.getBytes(StandardCharsets.US_ASCII);
+        byte[] body = new byte[template.prefix.length + id.length + template.suffix.length];
+        System.arraycopy(template.prefix, 0, body, 0, template.prefix.length);
+        System.arraycopy(id, 0, body, template.prefix.length, id.length);
+        System.arraycopy(template.suffix, 0, body, template.prefix.length + id.length, template.suffix.length);
+        return body;
+    }
+
+    private Template template(MediaType mediaType, HttpMessageConverter<Object> converter) throws IOException {
+        byte[] encoded = write(PLACEHOLDER, mediaType, converter);
+        byte[] placeholder = PLACEHOLDER.getBytes(StandardCharsets.US_ASCII);
+        int index = indexOf(encoded, placeholder, 0);
+        // Splice only when the placeholder was written verbatim, exactly once
+        if (index < 0 || indexOf(encoded, placeholder, index + 1) >= 0) {
+            return new Template(null, null);
+        }
+        return new Template(Arrays.copyOfRange(encoded, 0, index), Arrays.copyOfRange(encoded, index + placeholder.length, encoded.length));
+    }
+
+    private byte[] write(String subscriptionId, MediaType mediaType, HttpMessageConverter<Object> converter) throws IOException {
+        ByteArrayOutputMessage outputMessage = new ByteArrayOutputMessage();
+        converter.write(notifyContext(subscriptionId), mediaType, outputMessage);
+        return outputMessage.body.toByteArray();
+    }
+
+    private static int indexOf(byte[] array, byte[] target, int from) {
+        outer:
+        for (int i = from; i <= array.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (array[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static class ByteArrayOutputMessage implements HttpOutputMessage {
+        private final HttpHeaders headers = new HttpHeaders();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+
+        @Override
+        public OutputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.cepheus.broker.model.Subscription;
+import com.orange.ngsi.client.NgsiClient;
+import com.orange.ngsi.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.HttpClientErrorException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fan-out of the notifications to the subscribers.
+ *
+ * Each subscriber (reference URL) has its own bounded queue and a limited number of concurrent requests,
+ * the queues are drained by a shared pool of sender threads.
+ * Transient failures are retried with an exponential backoff, the queue of the subscriber being held meanwhile
+ * to keep the order of the notifications. The entities of a retry already notified by a newer notification are not sent again.
+ * The queue of a subscriber is evicted when it goes idle.
+ * When the queue of a subscriber is full, the pending notifications are either coalesced
+ * (the latest values of each entity of a subscription are kept), or the oldest is dropped.
+ * The requests of an update are encoded once per content type and shared by all its subscribers
+ * (see NotificationPayload).
+ */
+@Component
+public class Notifier {
+
+    private static Logger logger = LoggerFactory.getLogger(Notifier.class);
+
+    /**
+     * Policy when the queue of a subscriber is full
+     */
+    public enum OverflowPolicy {
+        coalesce, dropOldest
+    }
+
+    @Autowired
+    NgsiClient ngsiClient;
+
+    @Autowired
+    AsyncRestTemplate asyncRestTemplate;
+
+    /**
+     * Number of threads sending the notifications
+     */
+    @Value("${notification.threads:4}")
+    private int threads;
+
+    /**
+     * Maximum number of pending notifications of a subscriber
+     */
+    @Value("${notification.queueSize:100}")
+    private int queueSize;
+
+    /**
+     * Maximum number of concurrent notifications to a subscriber
+     */
+    @Value("${notification.maxInFlight:1}")
+    private int maxInFlight;
+
+    @Value("${notification.overflowPolicy:coalesce}")
+    private OverflowPolicy overflowPolicy;
+
+    @Value("${notification.retry.maxAttempts:3}")
+    private int retryMaxAttempts;
+
+    @Value("${notification.retry.initialBackoff:500}")
+    private long retryInitialBackoff;
+
+    @Value("${notification.retry.maxBackoff:30000}")
+    private long retryMaxBackoff;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Queues by subscriber reference, removed when idle
+     */
+    private final Map<String, SubscriberQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * A notification waiting to be sent
+     */
+    private static class Notification {
+        private final String subscriptionId;
+        /**
+         * Shared between the notifications of an update, replaced (never modified) when coalesced
+         */
+        private NotificationPayload payload;
+        private long sequence;
+        private int attempts;
+
+        Notification(String subscriptionId, NotificationPayload payload) {
+            this.subscriptionId = subscriptionId;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Pending notifications of a subscriber
+     */
+    private class SubscriberQueue {
+        private final String reference;
+        private final Deque<Notification> pending = new ArrayDeque<>();
+        private int inFlight;
+        private long sequence;
+
+        /**
+         * Number of failed notifications waiting for their backoff, nothing is sent meanwhile
+         */
+        private int retrying;
+
+        /**
+         * Sequence of the last notification sent for each subscription and entity,
+         * cleared when nothing is in flight or waiting for a retry
+         */
+        private final Map<String, Long> lastSent = new HashMap<>();
+
+        /**
+         * Set when the idle queue is removed, the notifications are then added to a new queue
+         */
+        private boolean evicted;
+
+        SubscriberQueue(String reference) {
+            this.reference = reference;
+        }
+
+        /**
+         * @return false if the queue was evicted
+         */
+        boolean add(Notification notification) {
+            synchronized (this) {
+                if (evicted) {
+                    return false;
+                }
+                notification.sequence = ++sequence;
+                if (pending.size() < queueSize) {
+                    pending.addLast(notification);
+                } else if (overflowPolicy != OverflowPolicy.coalesce || !coalesce(notification)) {
+                    pending.pollFirst();
+                    pending.addLast(notification);
+                    dropped.incrementAndGet();
+                    logger.warn("Notification queue full for {}, dropped oldest notification", reference);
+                }
+            }
+            dispatch();
+            return true;
+        }
+
+        /**
+         * Merge the notification in a pending notification of the same subscription, the latest values of each entity winning
+         * @return true if merged
+         */
+        private boolean coalesce(Notification notification) {
+            for (Notification previous : pending) {
+                if (previous.subscriptionId.equals(notification.subscriptionId)) {
+                    Map<String, ContextElementResponse> byEntity = new LinkedHashMap<>();
+                    previous.payload.getContextElementResponses().forEach(c -> byEntity.put(entityKey(c), c));
+                    notification.payload.getContextElementResponses().forEach(c -> byEntity.put(entityKey(c), c));
+                    previous.payload = new NotificationPayload(notification.payload.getOriginator(), new ArrayList<>(byEntity.values()));
+                    previous.sequence = notification.sequence;
+                    coalesced.incrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void dispatch() {
+            List<Notification> toSend = new ArrayList<>();
+            synchronized (this) {
+                while (retrying == 0 && inFlight < maxInFlight && !pending.isEmpty()) {
+                    Notification notification = pending.pollFirst();
+                    for (ContextElementResponse contextElementResponse : notification.payload.getContextElementResponses()) {
+                        lastSent.put(notification.subscriptionId + '|' + entityKey(contextElementResponse), notification.sequence);
+                    }
+                    toSend.add(notification);
+                    inFlight++;
+                }
+                if (inFlight == 0 && retrying == 0) {
+                    lastSent.clear();
+                    if (pending.isEmpty()) {
+                        evicted = true;
+                        queues.remove(reference, this);
+                    }
+                }
+            }
+            for (Notification notification : toSend) {
+                executor.execute(() -> send(this, notification));
+            }
+        }
+
+        void retry(Notification notification) {
+            synchronized (this) {
+                retrying--;
+                if (pruneReplaced(notification)) {
+                    // Retries go first to keep the order of the notifications
+                    pending.addFirst(notification);
+                } else {
+                    logger.debug("Retried notification replaced by newer notifications for {}", reference);
+                }
+            }
+            dispatch();
+        }
+
+        /**
+         * Remove the entities of a retried notification already sent by a newer notification
+         * (when several notifications are in flight)
+         * @return false if nothing remains to retry
+         */
+        private boolean pruneReplaced(Notification notification) {
+            List<ContextElementResponse> contextElementResponses = notification.payload.getContextElementResponses();
+            List<ContextElementResponse> remaining = new ArrayList<>(contextElementResponses.size());
+            for (ContextElementResponse contextElementResponse : contextElementResponses) {
+                Long sent = lastSent.get(notification.subscriptionId + '|' + entityKey(contextElementResponse));
+                if (sent == null || sent <= notification.sequence) {
+                    remaining.add(contextElementResponse);
+                }
+            }
+            if (remaining.size() == contextElementResponses.size()) {
+                return true;
+            }
+            if (remaining.isEmpty()) {
+                return false;
+            }
+            notification.payload = new NotificationPayload(notification.payload.getOriginator(), remaining);
+            return true;
+        }
+
+        void completed(boolean retry) {
+            synchronized (this) {
+                inFlight--;
+                if (retry) {
+                    retrying++;
+                }
+            }
+            dispatch();
+        }
+    }
+
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final AtomicInteger coalesced = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newScheduledThreadPool(threads);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Queue the notification of context elements to matching subscriptions, returns without waiting for the notifications to be sent
+     * @param subscriptions the matching subscriptions
+     * @param originator the originator of the notifications
+     * @param contextElementResponses the context elements to notify
+     */
+    public void notifySubscriptions(Collection<Subscription> subscriptions, URI originator, List<ContextElementResponse> contextElementResponses) {
+        NotificationPayload payload = new NotificationPayload(originator, contextElementResponses);
+        for (Subscription subscription : subscriptions) {
+            String reference = subscription.getSubscribeContext().getReference().toString();
+            Notification notification = new Notification(subscription.getSubscriptionId(), payload);
+            // An idle queue evicted meanwhile is replaced by a new queue
+            while (!queues.computeIfAbsent(reference, SubscriberQueue::new).add(notification)) {
+                logger.debug("Notification queue evicted for {}, retrying with a new queue", reference);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pending notifications of all subscribers
+     */
+    public int getPending() {
+        int count = 0;
+        for (SubscriberQueue queue : queues.values()) {
+            synchronized (queue) {
+                count += queue.pending.size();
+            }
+        }
+        return count;
+    }
+
+    public int getDropped() {
+        return dropped.get();
+    }
+
+    public int getCoalesced() {
+        return coalesced.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    private void send(SubscriberQueue queue, Notification notification) {
+        final String reference = queue.reference;
+        notification.attempts++;
+        try {
+            HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(reference);
+            MediaType contentType = httpHeaders.getContentType();
+            logger.debug("=> notifyContext to {} with Content-Type {}", reference, contentType);
+
+            HttpMessageConverter<Object> converter = converterFor(contentType);
+            if (converter == null) {
+                ngsiClient.notifyContextCustomURL(reference, httpHeaders, notification.payload.notifyContext(notification.subscriptionId)).addCallback(
+                        notifyContextResponse -> {
+                            logNotifyContextResponse(notifyContextResponse, reference);
+                            queue.completed(false);
+                        },
+                        throwable -> failed(queue, notification, throwable));
+                return;
+            }
+
+            // Send the pre-encoded request as is
+            byte[] body = notification.payload.encode(notification.subscriptionId, contentType, converter);
+            asyncRestTemplate.exchange(reference, HttpMethod.POST, new HttpEntity<>(body, httpHeaders), NotifyContextResponse.class).addCallback(
+                    responseEntity -> {
+                        logNotifyContextResponse(responseEntity.getBody(), reference);
+                        queue.completed(false);
+                    },
+                    throwable -> failed(queue, notification, throwable));
+        } catch (IOException | RuntimeException e) {
+            failed(queue, notification, e);
+        }
+    }
+
+    /**
+     * @return the converter writing NotifyContext requests to the content type, or null if the requests cannot be sent as bytes
+     */
+    @SuppressWarnings("unchecked")
+    private HttpMessageConverter<Object> converterFor(MediaType contentType) {
+        List<HttpMessageConverter<?>> converters = asyncRestTemplate.getMessageConverters();
+        if (converters.stream().noneMatch(c -> c.canWrite(byte[].class, contentType))) {
+            return null;
+        }
+        for (HttpMessageConverter<?> converter : converters) {
+            if (converter.canWrite(NotifyContext.class, contentType)) {
+                return (HttpMessageConverter<Object>) converter;
+            }
+        }
+        return null;
+    }
+
+    private void failed(SubscriberQueue queue, Notification notification, Throwable throwable) {
+        failed.incrementAndGet();
+        // Client errors (4xx) will fail the same way when retried
+        boolean retry = !(throwable instanceof HttpClientErrorException) && notification.attempts < retryMaxAttempts;
+        // Hold the queue before the retry is scheduled
+        queue.completed(retry);
+        if (retry) {
+            long backoff = Math.min(retryInitialBackoff << (notification.attempts - 1), retryMaxBackoff);
+            logger.debug("NotifyContext failed for {}, retry in {} ms", queue.reference, backoff, throwable);
+            executor.schedule(() -> queue.retry(notification), backoff, TimeUnit.MILLISECONDS);
+        } else {
+            logger.warn("NotifyContext failed for {}", queue.reference, throwable);
+        }
+    }
+
+    private void logNotifyContextResponse(NotifyContextResponse notifyContextResponse, String providerUrl) {
+        if (notifyContextResponse == null || notifyContextResponse.getResponseCode() == null) {
+            logger.debug("NotifyContext completed for {} without response code", providerUrl);
+        } else if (notifyContextResponse.getResponseCode().getCode().equals(CodeEnum.CODE_200.getLabel())) {
+            logger.debug("NotifyContext completed for {} ", providerUrl);
+        } else {
+            logger.warn("NotifyContext failed for {}: {}", providerUrl, notifyContextResponse.getResponseCode().toString());
+        }
+    }
+
+    private static String entityKey(ContextElementResponse contextElementResponse) {
+        EntityId entityId = contextElementResponse.getContextElement().getEntityId();
+        return entityId.getId() + '|' + entityId.getType();
+    }
+}
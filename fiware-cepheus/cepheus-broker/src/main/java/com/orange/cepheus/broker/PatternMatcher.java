@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Match an entity id against a set of entity id patterns at once.
+ *
+ * Patterns starting with a literal prefix (like "^Room.*", "^Room1$" or "^Room[0-9]+") are stored in a trie
+ * walked once along the entity id: pure prefixes and exact matches never evaluate a regular expression,
+ * the others are only evaluated when their prefix matches.
+ * Patterns matching everything (".*") and unanchored literals ("Room") use fast paths,
+ * only the remaining patterns are evaluated for each entity id.
+ * The matching semantic is the one of Matcher.find().
+ */
+class PatternMatcher {
+
+    private final static String META = "\\^$.|?*+()[]{}";
+
+    /**
+     * A node of the trie of the anchored literal prefixes
+     */
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        /**
+         * Patterns matching any id starting with the prefix of the node
+         */
+        private final Set<String> prefixes = new HashSet<>();
+        /**
+         * Patterns matching only the prefix of the node
+         */
+        private final Set<String> exacts = new HashSet<>();
+        /**
+         * Patterns to evaluate for any id starting with the prefix of the node
+         */
+        private final Map<String, Pattern> regexps = new HashMap<>();
+
+        private boolean isEmpty() {
+            return children.isEmpty() && prefixes.isEmpty() && exacts.isEmpty() && regexps.isEmpty();
+        }
+    }
+
+    private final Patterns patterns;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Node root = new Node();
+
+    private final Set<String> matchAll = new HashSet<>();
+
+    private final Map<String, String> contains = new HashMap<>();
+
+    private final Map<String, Pattern> regexps = new HashMap<>();
+
+    PatternMatcher(Patterns patterns) {
+        this.patterns = patterns;
+    }
+
+    /**
+     * Add a pattern
+     * @param patternId the pattern
+     */
+    public void add(String patternId) {
+        Pattern pattern = patterns.compile(patternId);
+        lock.writeLock().lock();
+        try {
+            Analysis analysis = new Analysis(patternId);
+            switch (analysis.kind) {
+                case ALL:
+                    matchAll.add(patternId);
+                    break;
+                case CONTAINS:
+                    contains.put(patternId, analysis.literal);
+                    break;
+                case PREFIX:
+                    nodeFor(analysis.literal).prefixes.add(patternId);
+                    break;
+                case EXACT:
+                    nodeFor(analysis.literal).exacts.add(patternId);
+                    break;
+                case PREFIXED_REGEXP:
+                    nodeFor(analysis.literal).regexps.put(patternId, pattern);
+                    break;
+                default:
+                    regexps.put(patternId, pattern);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a pattern
+     * @param patternId the pattern
+     */
+    public void remove(String patternId) {
+        lock.writeLock().lock();
+        try {
+            Analysis analysis = new Analysis(patternId);
+            switch (analysis.kind) {
+                case ALL:
+                    matchAll.remove(patternId);
+                    break;
+                case CONTAINS:
+                    contains.remove(patternId);
+                    break;
+                case REGEXP:
+                    regexps.remove(patternId);
+                    break;
+                default:
+                    removeFromTrie(root, analysis.literal, 0, patternId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find all the patterns matching an entity id
+     * @param id the entity id
+     * @param consumer called once for each matching pattern
+     */
+    public void match(String id, Consumer<String> consumer) {
+        lock.readLock().lock();
+        try {
+            matchAll.forEach(consumer);
+            contains.forEach((patternId, literal) -> {
+                if (id.contains(literal)) {
+                    consumer.accept(patternId);
+                }
+            });
+            regexps.forEach((patternId, pattern) -> {
+                if (pattern.matcher(id).find()) {
+                    consumer.accept(patternId);
+                }
+            });
+
+            // Single walk of the trie along the id
+            Node node = root;
+            int i = 0;
+            while (node != null) {
+                node.prefixes.forEach(consumer);
+                for (Map.Entry<String, Pattern> entry : node.regexps.entrySet()) {
+                    if (entry.getValue().matcher(id).find()) {
+                        consumer.accept(entry.getKey());
+                    }
+                }
+                if (i == id.length()) {
+                    node.exacts.forEach(consumer);
+                    break;
+                }
+                node = node.children.get(id.charAt(i++));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Node nodeFor(String literal) {
+        Node node = root;
+        for (int i = 0; i < literal.length(); i++) {
+            node = node.children.computeIfAbsent(literal.charAt(i), c -> new Node());
+        }
+        return node;
+    }
+
+    /**
+     * Remove the pattern from the node of the literal, and prune the empty nodes
+     */
+    private void removeFromTrie(Node node, String literal, int depth, String patternId) {
+        if (depth == literal.length()) {
+            node.prefixes.remove(patternId);
+            node.exacts.remove(patternId);
+            node.regexps.remove(patternId);
+            return;
+        }
+        Character c = literal.charAt(depth);
+        Node child = node.children.get(c);
+        if (child != null) {
+            removeFromTrie(child, literal, depth + 1, patternId);
+            if (child.isEmpty()) {
+                node.children.remove(c);
+            }
+        }
+    }
+
+    private enum Kind {
+        ALL, CONTAINS, PREFIX, EXACT, PREFIXED_REGEXP, REGEXP
+    }
+
+    /**
+     * Extract the literal prefix of a pattern and how the rest of the pattern must be matched
+     */
+    private static class Analysis {
+        private Kind kind;
+        private String literal;
+
+        Analysis(String patternId) {
+            boolean anchored = patternId.startsWith("^");
+            String body = anchored ? patternId.substring(1) : patternId;
+
+            int i = 0;
+            while (i < body.length() && META.indexOf(body.charAt(i)) < 0) {
+                i++;
+            }
+            // A quantifier applies to the last literal character
+            if (i > 0 && i < body.length() && "?*+{".indexOf(body.charAt(i)) >= 0) {
+                i--;
+            }
+            literal = body.substring(0, i);
+            String rest = body.substring(i);
+
+            if (rest.indexOf('|') >= 0) {
+                // An alternative escapes the anchor and the prefix
+                kind = Kind.REGEXP;
+            } else if (rest.isEmpty() || ".*".equals(rest)) {
+                kind = anchored ? Kind.PREFIX : (literal.isEmpty() ? Kind.ALL : Kind.CONTAINS);
+            } else if (anchored && ("$".equals(rest))) {
+                kind = Kind.EXACT;
+            } else if (anchored && ".*$".equals(rest)) {
+                kind = Kind.PREFIX;
+            } else if (anchored) {
+                kind = Kind.PREFIXED_REGEXP;
+            } else {
+                kind = Kind.REGEXP;
+            }
+        }
+    }
+}
@@ -9,10 +9,12 @@
 package com.orange.cepheus.broker;
 
 import com.orange.ngsi.model.EntityId;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -24,9 +26,20 @@ import java.util.regex.PatternSyntaxException;
 public class Patterns {
 
     /**
-     * Cache of compiled patterns
+     * Maximum number of compiled patterns kept in cache
      */
-    private Map<String, Pattern> cachedPatterns = new ConcurrentHashMap<>();
+    @Value("${patterns.cacheSize:1000}")
+    private int cacheSize = 1000;
+
+    /**
+     * Cache of compiled patterns, the least recently used patterns are evicted
+     */
+    private final Map<String, Pattern> cachedPatterns = Collections.synchronizedMap(new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > cacheSize;
+        }
+    });
 
     /**
      * Compile (or get from cache) the patter corresponding to the entity id
@@ -38,15 +51,31 @@ public class Patterns {
         if (!entityId.getIsPattern()) {
             return null;
         }
-        String id = entityId.getId();
-        Pattern pattern = cachedPatterns.get(id);
+        return compile(entityId.getId());
+    }
+
+    /**
+     * Compile (or get from cache) a pattern
+     * @param regex the pattern
+     * @return the compiled pattern
+     * @throws PatternSyntaxException
+     */
+    public Pattern compile(final String regex) throws PatternSyntaxException {
+        Pattern pattern = cachedPatterns.get(regex);
         if (pattern == null) {
-            pattern = Pattern.compile(id);
-            cachedPatterns.put(id, pattern);
+            pattern = Pattern.compile(regex);
+            cachedPatterns.put(regex, pattern);
         }
         return pattern;
     }
 
+    /**
+     * @return the number of compiled patterns in cache
+     */
+    public int cacheSize() {
+        return cachedPatterns.size();
+    }
+
     /**
      * @return TRUE if the type is not null or empty
      */
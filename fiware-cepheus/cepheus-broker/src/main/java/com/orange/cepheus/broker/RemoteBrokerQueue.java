@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.cepheus.broker.persistence.SegmentedLog;
+import com.orange.ngsi.client.NgsiClient;
+import com.orange.ngsi.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Store-and-forward queue of the updateContext requests forwarded to the remote broker.
+ *
+ * The requests are appended to a log on disk and sent by a dedicated thread, several requests being
+ * merged in a single updateContext. When the remote broker is unreachable, the requests are kept
+ * on disk (up to a maximum size) and sent again once it is back, even after a restart.
+ * Requests are sent at least once.
+ */
+@Component
+public class RemoteBrokerQueue {
+
+    private static Logger logger = LoggerFactory.getLogger(RemoteBrokerQueue.class);
+
+    /**
+     * When disabled, the requests are forwarded directly to the remote broker
+     */
+    @Value("${remote.queue.enabled:false}")
+    private boolean enabled;
+
+    @Value("${remote.queue.directory:${java.io.tmpdir}/cepheus-broker-queue}")
+    private String directory;
+
+    /**
+     * Size (bytes) of a segment file of the queue
+     */
+    @Value("${remote.queue.segmentSize:16777216}")
+    private long segmentSize;
+
+    /**
+     * Maximum size (bytes) of the queue on disk, the oldest requests are dropped beyond
+     */
+    @Value("${remote.queue.maxSize:268435456}")
+    private long maxSize;
+
+    /**
+     * Force each request to the disk
+     */
+    @Value("${remote.queue.sync:false}")
+    private boolean sync;
+
+    /**
+     * Maximum number of queued requests merged in a single updateContext
+     */
+    @Value("${remote.queue.batchSize:100}")
+    private int batchSize;
+
+    /**
+     * Merge the updates of the same entity in a batch, keeping the latest value of each attribute
+     */
+    @Value("${remote.queue.coalesce:false}")
+    private boolean coalesce;
+
+    /**
+     * Maximum duration (ms) of an updateContext request
+     */
+    @Value("${remote.queue.requestTimeout:30000}")
+    private long requestTimeout;
+
+    /**
+     * Delay (ms) before sending again after a failure, doubled on each consecutive failure
+     */
+    @Value("${remote.queue.retryDelay:1000}")
+    private long retryDelay;
+
+    @Value("${remote.queue.maxRetryDelay:60000}")
+    private long maxRetryDelay;
+
+    /**
+     * Publish the queue metrics when the Spring Boot metrics are enabled
+     */
+    @Value("${endpoints.metrics.enabled:${endpoints.enabled:false}}")
+    private boolean collectMetrics;
+
+    @Autowired
+    Configuration configuration;
+
+    @Autowired
+    NgsiClient ngsiClient;
+
+    @Autowired
+    ObjectMapper mapper;
+
+    @Autowired
+    GaugeService gaugeService;
+
+    private SegmentedLog log;
+
+    private Thread sender;
+
+    private volatile boolean running;
+
+    private final Object signal = new Object();
+
+    /**
+     * Age (ms) of the oldest request not yet sent
+     */
+    private volatile long lag;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        log = new SegmentedLog(new File(directory), segmentSize, maxSize, sync);
+        running = true;
+        sender = new Thread(this::run, "remote-broker-queue");
+        sender.setDaemon(true);
+        sender.start();
+        logger.info("Store-and-forward to remote broker enabled in {} ({} bytes pending)", directory, log.pendingBytes());
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException, InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        running = false;
+        sender.interrupt();
+        sender.join(requestTimeout);
+        log.close();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queue an update for the remote broker
+     * @param update the update
+     * @return false if the update could not be queued
+     */
+    public boolean add(UpdateContext update) {
+        try {
+            if (!log.append(mapper.writeValueAsBytes(update))) {
+                logger.warn("Maximum size of the remote broker queue reached, update dropped");
+                return false;
+            }
+        } catch (IOException e) {
+            logger.error("Failed to queue update for the remote broker", e);
+            return false;
+        }
+        synchronized (signal) {
+            signal.notify();
+        }
+        return true;
+    }
+
+    /**
+     * @return the size (bytes) of the updates not yet sent
+     */
+    public long getPendingBytes() {
+        return log.pendingBytes();
+    }
+
+    /**
+     * @return the size (bytes) of the updates dropped as the queue was full
+     */
+    public long getDroppedBytes() {
+        return log.droppedBytes();
+    }
+
+    /**
+     * @return the age (ms) of the oldest update not yet sent
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    private void run() {
+        long delay = retryDelay;
+        while (running) {
+            try {
+                SegmentedLog.Batch batch = log.read(batchSize);
+                if (batch.getRecords().isEmpty()) {
+                    lag = 0;
+                    publishMetrics();
+                    synchronized (signal) {
+                        signal.wait(1000);
+                    }
+                    continue;
+                }
+                lag = System.currentTimeMillis() - batch.getRecords().get(0).getTimestamp();
+                publishMetrics();
+
+                if (send(batch)) {
+                    log.commit(batch);
+                    delay = retryDelay;
+                } else {
+                    Thread.sleep(delay);
+                    delay = Math.min(delay * 2, maxRetryDelay);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                logger.error("Failed to read the remote broker queue", e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e1) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the batch was handled, false if it must be sent again
+     */
+    private boolean send(SegmentedLog.Batch batch) throws InterruptedException {
+        String brokerUrl = configuration.getRemoteUrl();
+        if (brokerUrl == null || brokerUrl.isEmpty()) {
+            logger.warn("No remote.url parameter defined to forward updateContext");
+            return false;
+        }
+
+        for (UpdateContext update : merge(batch.getRecords())) {
+            HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(brokerUrl);
+            configuration.addRemoteHeaders(httpHeaders);
+            logger.debug("=> updateContext forwarded to remote broker {} with {} context elements", brokerUrl, update.getContextElements().size());
+            try {
+                UpdateContextResponse updateContextResponse = ngsiClient.updateContext(brokerUrl, httpHeaders, update).get(requestTimeout, TimeUnit.MILLISECONDS);
+                if (updateContextResponse.getErrorCode() != null) {
+                    logger.warn("UpdateContext failed for {}: {}", brokerUrl, updateContextResponse.getErrorCode().toString());
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof HttpClientErrorException) {
+                    // Would be rejected again
+                    logger.warn("UpdateContext rejected by {}, dropping {} context elements: {}", brokerUrl, update.getContextElements().size(), e.getCause().getMessage());
+                } else {
+                    logger.warn("UpdateContext failed for {}, will retry: {}", brokerUrl, e.getCause().getMessage());
+                    return false;
+                }
+            } catch (TimeoutException e) {
+                logger.warn("UpdateContext timed out for {}, will retry", brokerUrl);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merge the consecutive queued updates having the same action
+     */
+    private List<UpdateContext> merge(List<SegmentedLog.Record> records) {
+        List<UpdateContext> updates = new ArrayList<>();
+        UpdateContext current = null;
+        for (SegmentedLog.Record record : records) {
+            UpdateContext update;
+            try {
+                update = mapper.readValue(record.getPayload(), UpdateContext.class);
+            } catch (IOException e) {
+                logger.error("Dropping unreadable update of the remote broker queue", e);
+                continue;
+            }
+            if (current == null || current.getUpdateAction() != update.getUpdateAction()) {
+                current = new UpdateContext(update.getUpdateAction());
+                current.setContextElements(new ArrayList<>());
+                updates.add(current);
+            }
+            current.getContextElements().addAll(update.getContextElements());
+        }
+        if (coalesce) {
+            updates.stream().filter(update -> update.getUpdateAction() != UpdateAction.DELETE)
+                    .forEach(update -> update.setContextElements(coalesce(update.getContextElements())));
+        }
+        return updates;
+    }
+
+    /**
+     * Merge the context elements of the same entity, the latest value of each attribute winning
+     */
+    private List<ContextElement> coalesce(List<ContextElement> contextElements) {
+        Map<String, ContextElement> byEntity = new LinkedHashMap<>();
+        for (ContextElement contextElement : contextElements) {
+            EntityId entityId = contextElement.getEntityId();
+            byEntity.merge(entityId.getId() + '|' + entityId.getType(), contextElement, (previous, next) -> {
+                Map<String, ContextAttribute> attributes = new LinkedHashMap<>();
+                previous.getContextAttributeList().forEach(attribute -> attributes.put(attribute.getName(), attribute));
+                next.getContextAttributeList().forEach(attribute -> attributes.put(attribute.getName(), attribute));
+                ContextElement merged = new ContextElement();
+                merged.setEntityId(previous.getEntityId());
+                merged.setContextAttributeList(new ArrayList<>(attributes.values()));
+                return merged;
+            });
+        }
+        return new ArrayList<>(byEntity.values());
+    }
+
+    private void publishMetrics() {
+        if (collectMetrics) {
+            gaugeService.submit("cepheus.broker.remoteQueue.lag", lag);
+            gaugeService.submit("cepheus.broker.remoteQueue.pendingBytes", log.pendingBytes());
+            gaugeService.submit("cepheus.broker.remoteQueue.droppedBytes", log.droppedBytes());
+        }
+    }
+}
@@ -17,16 +17,15 @@ import com.orange.ngsi.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.xml.datatype.DatatypeFactory;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Predicate;
 import java.util.regex.PatternSyntaxException;
 
 /**
@@ -39,6 +38,16 @@ public class Subscriptions {
 
     private Map<String, Subscription> subscriptions;
 
+    /**
+     * Index of the subscriptions by entity and attributes, so that the cost of matching depends on the number of matches
+     */
+    private SubscriptionsIndex subscriptionsIndex;
+
+    /**
+     * Remove each subscription at its expiration date
+     */
+    private final ExpirationQueue<String> expirationQueue = new ExpirationQueue<>("subscriptions-expiration", this::expireSubscriptions);
+
     @Autowired
     private Patterns patterns;
 
@@ -47,11 +56,22 @@ public class Subscriptions {
 
     @PostConstruct
     protected void loadSubscriptionsOnStartup() {
+        subscriptionsIndex = new SubscriptionsIndex(patterns);
         try {
             subscriptions = subscriptionsRepository.getAllSubscriptions();
+            subscriptions.values().forEach(subscription -> {
+                subscriptionsIndex.add(subscription);
+                expirationQueue.schedule(subscription.getSubscriptionId(), subscription.getExpirationDate());
+            });
         } catch (SubscriptionPersistenceException e) {
             logger.error("Failed to load subscriptions from database", e);
         }
+        expirationQueue.start();
+    }
+
+    @PreDestroy
+    protected void shutdown() {
+        expirationQueue.stop();
     }
 
     /**
@@ -86,6 +106,8 @@ public class Subscriptions {
         //save subscription
         subscriptionsRepository.saveSubscription(subscription);
         subscriptions.put(subscriptionId, subscription);
+        subscriptionsIndex.add(subscription);
+        expirationQueue.schedule(subscriptionId, subscription.getExpirationDate());
 
         return subscriptionId;
     }
@@ -100,6 +122,10 @@ public class Subscriptions {
         String subscriptionId = unsubscribeContext.getSubscriptionId();
         subscriptionsRepository.removeSubscription(subscriptionId);
         Subscription subscription = subscriptions.remove(subscriptionId);
+        if (subscription != null) {
+            subscriptionsIndex.remove(subscription);
+            expirationQueue.cancel(subscriptionId);
+        }
 
         return (subscription != null);
     }
@@ -112,41 +138,44 @@ public class Subscriptions {
      */
     public Iterator<Subscription> findSubscriptions(EntityId searchEntityId, Set<String> searchAttributes) {
 
-        // Filter out expired subscriptions
-        Predicate<Subscription> filterExpired = subscription -> subscription.getExpirationDate().isAfter(Instant.now());
-
-        // Filter only matching entity ids
-        Predicate<EntityId> filterEntityId = patterns.getFilterEntityId(searchEntityId);
-
-        // Only filter by attributes if search is looking for them
-        final boolean noAttributes = searchAttributes == null || searchAttributes.size() == 0;
-
-        // Filter each subscription (remove expired) and return its providing application
-        // if at least one of its listed entities matches the searched context element
-        // and if all searched attributes are defined in the subscription (if any)
-        return subscriptions.values().stream()
-                .filter(filterExpired)
-                .filter(subscription -> subscription.getSubscribeContext().getEntityIdList().stream().filter(filterEntityId).findFirst().isPresent()
-                        && (noAttributes || !Collections.disjoint(subscription.getSubscribeContext().getAttributeList(), searchAttributes))).iterator();
-
+        // Return the subscriptions where at least one of the listed entities matches the searched context element
+        // and at least one of the searched attributes is defined in the subscription (if any).
+        // Expired subscriptions are removed from the index at their expiration date.
+        return subscriptionsIndex.find(searchEntityId, searchAttributes).iterator();
     }
 
     /**
-     * Removed all expired subscriptions every minute.
+     * Remove all expired subscriptions now, without waiting for their expiration to be triggered.
      */
-    @Scheduled(fixedDelay = 60000)
     public void purgeExpiredSubscriptions() {
         final Instant now = Instant.now();
-        subscriptions.forEach((subscriptionId, subscribeContext) -> {
-            if (subscribeContext.getExpirationDate().isBefore(now)) {
-                subscriptions.remove(subscriptionId);
-                try {
-                    subscriptionsRepository.removeSubscription(subscriptionId);
-                } catch (SubscriptionPersistenceException e) {
-                    logger.error("Failed to remove subscription from database", e);
-                }
+        List<String> expired = new ArrayList<>();
+        subscriptions.forEach((subscriptionId, subscription) -> {
+            if (subscription.getExpirationDate().isBefore(now)) {
+                expirationQueue.cancel(subscriptionId);
+                expired.add(subscriptionId);
             }
         });
+        if (!expired.isEmpty()) {
+            expireSubscriptions(expired);
+        }
+    }
+
+    /**
+     * Remove expired subscriptions from memory, then from the database in a single batch
+     */
+    private void expireSubscriptions(List<String> subscriptionIds) {
+        for (String subscriptionId : subscriptionIds) {
+            Subscription subscription = subscriptions.remove(subscriptionId);
+            if (subscription != null) {
+                subscriptionsIndex.remove(subscription);
+            }
+        }
+        try {
+            subscriptionsRepository.removeSubscriptions(subscriptionIds);
+        } catch (SubscriptionPersistenceException e) {
+            logger.error("Failed to remove subscriptions from database", e);
+        }
     }
 
     /**
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.cepheus.broker.model.Subscription;
+import com.orange.ngsi.model.EntityId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the subscriptions by entity, with a posting list of the subscriptions of each attribute.
+ */
+class SubscriptionsIndex {
+
+    private final EntityIndex<Subscription> byEntity;
+
+    /**
+     * Subscriptions by attribute name
+     */
+    private final Map<String, Set<Subscription>> byAttribute = new ConcurrentHashMap<>();
+
+    SubscriptionsIndex(Patterns patterns) {
+        this.byEntity = new EntityIndex<>(patterns);
+    }
+
+    public void add(Subscription subscription) {
+        subscription.getSubscribeContext().getEntityIdList().forEach(entityId -> byEntity.add(entityId, subscription));
+        List<String> attributes = subscription.getSubscribeContext().getAttributeList();
+        if (attributes != null) {
+            attributes.forEach(attribute -> EntityIndex.addTo(byAttribute, attribute, subscription));
+        }
+    }
+
+    public void remove(Subscription subscription) {
+        subscription.getSubscribeContext().getEntityIdList().forEach(entityId -> byEntity.remove(entityId, subscription));
+        List<String> attributes = subscription.getSubscribeContext().getAttributeList();
+        if (attributes != null) {
+            attributes.forEach(attribute -> EntityIndex.removeFrom(byAttribute, attribute, subscription));
+        }
+    }
+
+    /**
+     * @param searchEntityId the entity id to search
+     * @param searchAttributes the attributes to search, null or empty to ignore attributes
+     * @return the subscriptions having an entity matching the entity id, and at least one of the attributes (if any)
+     */
+    public Set<Subscription> find(EntityId searchEntityId, Set<String> searchAttributes) {
+        Set<Subscription> candidates = byEntity.find(searchEntityId);
+        if (searchAttributes == null || searchAttributes.isEmpty() || candidates.isEmpty()) {
+            return candidates;
+        }
+
+        // Union of the posting lists of the searched attributes, intersected with the candidates
+        Set<Subscription> withAttributes = new HashSet<>();
+        for (String attribute : searchAttributes) {
+            withAttributes.addAll(byAttribute.getOrDefault(attribute, Collections.emptySet()));
+        }
+        if (withAttributes.size() < candidates.size()) {
+            withAttributes.retainAll(candidates);
+            return withAttributes;
+        }
+        candidates.retainAll(withAttributes);
+        return candidates;
+    }
+
+    public void clear() {
+        byEntity.clear();
+        byAttribute.clear();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.controller;
+
+import com.orange.cepheus.broker.exception.MissingRemoteBrokerException;
+import com.orange.ngsi.exception.MissingRequestParameterException;
+import com.orange.ngsi.model.*;
+import com.orange.ngsi.server.NgsiValidation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.net.URISyntaxException;
+import java.util.function.Function;
+
+/**
+ * Asynchronous queryContext and updateContext operations:
+ * the servlet thread is released while the request is forwarded to a providing application or to the remote broker.
+ * The response is written when received, or an error after ngsi.async.timeout ms.
+ *
+ * This controller is only mapped by NgsiAsyncHandlerMapping (when ngsi.async.enabled is set),
+ * before the synchronous operations of NgsiController.
+ */
+@Component
+public class NgsiAsyncController {
+
+    private static Logger logger = LoggerFactory.getLogger(NgsiAsyncController.class);
+
+    /**
+     * Maximum delay (ms) to wait for the response of a providing application or of the remote broker
+     */
+    @Value("${ngsi.async.timeout:30000}")
+    private long timeout;
+
+    @Autowired
+    NgsiController ngsiController;
+
+    /**
+     * Checks of the requests also applied by NgsiBaseController to the synchronous operations
+     */
+    @Autowired
+    NgsiValidation ngsiValidation;
+
+    @RequestMapping(value = {"/v1/queryContext", "/v1/registry/queryContext", "/ngsi9/queryContext", "/NGSI9/queryContext", "/ngsi10/queryContext", "/NGSI10/queryContext"},
+            method = RequestMethod.POST, consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_XML_VALUE})
+    public DeferredResult<ResponseEntity<QueryContextResponse>> queryContext(@RequestBody final QueryContext query) {
+        try {
+            ngsiValidation.checkQueryContext(query);
+        } catch (MissingRequestParameterException e) {
+            return immediateResult(queryContextError(missingParameter(e)));
+        }
+        try {
+            return deferredResult(ngsiController.queryContextAsync(query), this::queryContextError);
+        } catch (MissingRemoteBrokerException e) {
+            logger.error("MissingRemoteBrokerException error: {}", e.getMessage());
+            StatusCode statusCode = new StatusCode();
+            statusCode.setCode("500");
+            statusCode.setReasonPhrase("missing remote broker error");
+            statusCode.setDetail(e.getMessage());
+            return immediateResult(queryContextError(statusCode));
+        }
+    }
+
+    @RequestMapping(value = {"/v1/updateContext", "/v1/registry/updateContext", "/ngsi9/updateContext", "/NGSI9/updateContext", "/ngsi10/updateContext", "/NGSI10/updateContext"},
+            method = RequestMethod.POST, consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_XML_VALUE})
+    public DeferredResult<ResponseEntity<UpdateContextResponse>> updateContext(@RequestBody final UpdateContext update) {
+        try {
+            ngsiValidation.checkUpdateContext(update);
+        } catch (MissingRequestParameterException e) {
+            return immediateResult(updateContextError(missingParameter(e)));
+        }
+        try {
+            return deferredResult(ngsiController.updateContextAsync(update), this::updateContextError);
+        } catch (URISyntaxException e) {
+            logger.error("Invalid URI: {}", e.getMessage());
+            return immediateResult(updateContextError(new StatusCode(CodeEnum.CODE_500)));
+        }
+    }
+
+    /**
+     * @return a result set when the future completes, or an error after the timeout
+     */
+    private <T> DeferredResult<ResponseEntity<T>> deferredResult(ListenableFuture<T> future, Function<StatusCode, T> errorResponse) {
+        StatusCode timeoutCode = new StatusCode(CodeEnum.CODE_500);
+        timeoutCode.setDetail("No response received within " + timeout + " ms");
+        DeferredResult<ResponseEntity<T>> deferredResult = new DeferredResult<>(timeout, new ResponseEntity<>(errorResponse.apply(timeoutCode), HttpStatus.OK));
+        deferredResult.onTimeout(() -> {
+            logger.warn("No response received within {} ms, request abandoned", timeout);
+            future.cancel(true);
+        });
+
+        future.addCallback(response -> deferredResult.setResult(new ResponseEntity<>(response, HttpStatus.OK)),
+                throwable -> {
+                    if (!deferredResult.isSetOrExpired()) {
+                        logger.warn("Forwarded request failed: {}", throwable.getMessage());
+                        deferredResult.setResult(new ResponseEntity<>(errorResponse.apply(new StatusCode(CodeEnum.CODE_500)), HttpStatus.OK));
+                    }
+                });
+        return deferredResult;
+    }
+
+    private <T> DeferredResult<ResponseEntity<T>> immediateResult(T response) {
+        DeferredResult<ResponseEntity<T>> deferredResult = new DeferredResult<>();
+        deferredResult.setResult(new ResponseEntity<>(response, HttpStatus.OK));
+        return deferredResult;
+    }
+
+    private QueryContextResponse queryContextError(StatusCode statusCode) {
+        QueryContextResponse queryContextResponse = new QueryContextResponse();
+        queryContextResponse.setErrorCode(statusCode);
+        return queryContextResponse;
+    }
+
+    private UpdateContextResponse updateContextError(StatusCode statusCode) {
+        UpdateContextResponse updateContextResponse = new UpdateContextResponse();
+        updateContextResponse.setErrorCode(statusCode);
+        return updateContextResponse;
+    }
+
+    /**
+     * @return the error reported by the synchronous operations for a missing parameter
+     */
+    private StatusCode missingParameter(MissingRequestParameterException e) {
+        logger.error("Missing parameter: {}", e.getMessage());
+        return new StatusCode(CodeEnum.CODE_471, e.getParameterName(), e.getParameterType());
+    }
+}
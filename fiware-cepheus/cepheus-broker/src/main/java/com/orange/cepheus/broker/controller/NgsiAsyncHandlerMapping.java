@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.controller;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+/**
+ * Maps the operations of NgsiAsyncController when ngsi.async.enabled is set.
+ * The mappings of NgsiBaseController being final, the asynchronous operations must be looked up first
+ * to take precedence over the synchronous ones of NgsiController.
+ */
+@Component
+public class NgsiAsyncHandlerMapping extends RequestMappingHandlerMapping {
+
+    @Value("${ngsi.async.enabled:false}")
+    private boolean enabled;
+
+    public NgsiAsyncHandlerMapping() {
+        setOrder(Ordered.HIGHEST_PRECEDENCE);
+    }
+
+    @Override
+    protected boolean isHandler(Class<?> beanType) {
+        return enabled && NgsiAsyncController.class.isAssignableFrom(beanType);
+    }
+}
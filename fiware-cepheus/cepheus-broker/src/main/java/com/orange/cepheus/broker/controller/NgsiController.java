@@ -9,7 +9,10 @@
 package com.orange.cepheus.broker.controller;
 
 import com.orange.cepheus.broker.Configuration;
+import com.orange.cepheus.broker.EntityCache;
 import com.orange.cepheus.broker.LocalRegistrations;
+import com.orange.cepheus.broker.Notifier;
+import com.orange.cepheus.broker.RemoteBrokerQueue;
 import com.orange.cepheus.broker.Subscriptions;
 import com.orange.cepheus.broker.exception.*;
 import com.orange.cepheus.broker.model.Subscription;
@@ -21,6 +24,9 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -29,7 +35,9 @@ import javax.servlet.http.HttpServletRequest;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -55,6 +63,15 @@ public class NgsiController extends NgsiBaseController {
     @Autowired
     Configuration configuration;
 
+    @Autowired
+    Notifier notifier;
+
+    @Autowired
+    EntityCache entityCache;
+
+    @Autowired
+    RemoteBrokerQueue remoteBrokerQueue;
+
     @Override
     public RegisterContextResponse registerContext(final RegisterContext register) throws RegistrationException, RegistrationPersistenceException {
         RegisterContextResponse registerContextLocalResponse = new RegisterContextResponse();
@@ -67,97 +84,131 @@ public class NgsiController extends NgsiBaseController {
     @Override
     public UpdateContextResponse updateContext(final UpdateContext update) throws ExecutionException, InterruptedException, URISyntaxException {
 
-        //TODO : search providingApplication for all contextElement of updateContext
-        ContextElement contextElement = update.getContextElements().get(0);
-        Set<String> attributesName = contextElement.getContextAttributeList().stream().map(ContextAttribute::getName).collect(Collectors.toSet());
-
-        logger.debug("<= updateContext with entityId: {} and attributes: {} ", contextElement.getEntityId().toString(), attributesName);
-
-        /*
-         * If a registration matches the updateContext, the updateContext is forwarded to the corresponding providingURL.
-         * Else, the update is forwarded to the remote broker and the subscribers are notified.
-         */
-
-        // Search registrations to forward updateContext
-        Iterator<URI> providingApplication = localRegistrations.findProvidingApplication(contextElement.getEntityId(), attributesName);
-        if (providingApplication.hasNext()) {
-            // Forward the update to the first providing Application (command)
-            final String providerUrl = providingApplication.next().toString();
-            HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(providerUrl);
-            logger.debug("=> updateContext forwarded to {} with Content-Type {}", providerUrl, httpHeaders.getContentType());
-            return ngsiClient.updateContext(providerUrl, httpHeaders, update).get();
+        ForwardedUpdate forwardedUpdate = forwardUpdate(update);
+        if (forwardedUpdate.isHandledBySingleProvider()) {
+            // A single providing application handles the whole update
+            return forwardedUpdate.providerResponses.values().iterator().next().get();
         }
 
-        // Forward the update to the remote broker
-        if (configuration.isRemoteForwardUpdateContext()) {
-            final String brokerUrl = configuration.getRemoteUrl();
-            if (brokerUrl == null || brokerUrl.isEmpty()) {
-                logger.warn("No remote.url parameter defined to forward updateContext");
-            } else {
-                HttpHeaders httpHeaders = getRemoteBrokerHeaders(brokerUrl);
-                logger.debug("=> updateContext forwarded to remote broker {} with Content-Type {}", brokerUrl, httpHeaders.getContentType());
-                ngsiClient.updateContext(brokerUrl, httpHeaders, update)
-                        .addCallback(updateContextResponse -> logUpdateContextResponse(updateContextResponse, brokerUrl),
-                                throwable -> logger.warn("UpdateContext failed for {}: {}", brokerUrl, throwable.getMessage(), throwable));
+        // Merge the responses of the providing applications
+        List<ContextElementResponse> contextElementResponseList = new ArrayList<>(forwardedUpdate.localResponses);
+        for (Map.Entry<String, ListenableFuture<UpdateContextResponse>> entry : forwardedUpdate.providerResponses.entrySet()) {
+            List<ContextElement> contextElements = forwardedUpdate.elementsByProvider.get(entry.getKey());
+            try {
+                contextElementResponseList.addAll(providerResponse(entry.getValue().get(), contextElements));
+            } catch (ExecutionException e) {
+                contextElementResponseList.addAll(providerErrorResponse(entry.getKey(), e.getCause(), contextElements));
             }
         }
+        return updateContextResponse(contextElementResponseList);
+    }
 
-        List<ContextElementResponse> contextElementResponseList = new ArrayList<>();
-        StatusCode statusCode = new StatusCode(CodeEnum.CODE_200);
-        for (ContextElement c : update.getContextElements()) {
-            contextElementResponseList.add(new ContextElementResponse(c, statusCode));
-        }
-
-        String originator = configuration.getLocalUrl();
-        if (originator == null || originator.isEmpty()) {
-            logger.warn("No local.url parameter defined to use as originator for sending notifyContext");
-        } else {
-            // Send notifications to matching subscriptions
-            Iterator<Subscription> matchingSubscriptions = subscriptions.findSubscriptions(contextElement.getEntityId(), attributesName);
-            while (matchingSubscriptions.hasNext()) {
-                Subscription subscription = matchingSubscriptions.next();
-                NotifyContext notifyContext = new NotifyContext(subscription.getSubscriptionId(), new URI(originator));
-                notifyContext.setContextElementResponseList(contextElementResponseList);
-                String providerUrl = subscription.getSubscribeContext().getReference().toString();
-
-                HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(providerUrl);
-                logger.debug("=> notifyContext to {} with Content-Type {}", providerUrl, httpHeaders.getContentType());
+    /**
+     * Same as updateContext, without waiting for the responses of the providing applications
+     * @return the future response to the update
+     */
+    public ListenableFuture<UpdateContextResponse> updateContextAsync(final UpdateContext update) throws URISyntaxException {
 
-                ngsiClient.notifyContextCustomURL(providerUrl, httpHeaders, notifyContext).addCallback(
-                                notifyContextResponse -> logNotifyContextResponse(notifyContextResponse, providerUrl),
-                        throwable -> logger.warn("NotifyContext failed for {}", providerUrl, throwable));
-            }
+        ForwardedUpdate forwardedUpdate = forwardUpdate(update);
+        if (forwardedUpdate.isHandledBySingleProvider()) {
+            return forwardedUpdate.providerResponses.values().iterator().next();
+        }
+        if (forwardedUpdate.providerResponses.isEmpty()) {
+            return new AsyncResult<>(updateContextResponse(forwardedUpdate.localResponses));
         }
 
-        UpdateContextResponse updateContextResponse = new UpdateContextResponse();
-        updateContextResponse.setContextElementResponses(contextElementResponseList);
-        return updateContextResponse;
+        // Merge the responses of the providing applications, in the order of the providers, once all received
+        SettableListenableFuture<UpdateContextResponse> response = new SettableListenableFuture<>();
+        Map<String, List<ContextElementResponse>> responsesByProvider = new ConcurrentHashMap<>();
+        AtomicInteger pendingProviders = new AtomicInteger(forwardedUpdate.providerResponses.size());
+        Runnable providerCompleted = () -> {
+            if (pendingProviders.decrementAndGet() == 0) {
+                response.set(mergeProviderResponses(forwardedUpdate, responsesByProvider));
+            }
+        };
+        forwardedUpdate.providerResponses.forEach((providerUrl, future) -> {
+            List<ContextElement> contextElements = forwardedUpdate.elementsByProvider.get(providerUrl);
+            future.addCallback(
+                    updateContextResponse -> {
+                        responsesByProvider.put(providerUrl, providerResponse(updateContextResponse, contextElements));
+                        providerCompleted.run();
+                    },
+                    throwable -> {
+                        responsesByProvider.put(providerUrl, providerErrorResponse(providerUrl, throwable, contextElements));
+                        providerCompleted.run();
+                    });
+        });
+        return response;
     }
 
     @Override
     public QueryContextResponse queryContext(final QueryContext query) throws ExecutionException, InterruptedException, MissingRemoteBrokerException {
+        return queryContextAsync(query).get();
+    }
+
+    /**
+     * Same as queryContext, without waiting for the response of the providing applications or of the remote broker.
+     * The entities matching a registration are queried from the corresponding providingURL,
+     * with a single queryContext for each providing application.
+     * The other entities are answered from the cache when fresh, or by the remote broker.
+     * @return the future response to the query
+     */
+    public ListenableFuture<QueryContextResponse> queryContextAsync(final QueryContext query) throws MissingRemoteBrokerException {
 
         Set<String> attributes = new HashSet<>();
         if (query.getAttributeList() != null) {
             attributes.addAll(query.getAttributeList());
         }
 
-        //TODO : search providingApplication for all entities of queryContext
-        Iterator<URI> providingApplication = localRegistrations.findProvidingApplication(query.getEntityIdList().get(0), attributes);
-        if (providingApplication.hasNext()) {
+        // Search registrations to group the entities by providing application
+        Map<String, List<EntityId>> entitiesByProvider = new LinkedHashMap<>();
+        List<EntityId> localEntities = new ArrayList<>();
+        for (EntityId entityId : query.getEntityIdList()) {
+            Iterator<URI> providingApplication = localRegistrations.findProvidingApplication(entityId, attributes);
+            if (providingApplication.hasNext()) {
+                entitiesByProvider.computeIfAbsent(providingApplication.next().toString(), k -> new ArrayList<>()).add(entityId);
+            } else {
+                localEntities.add(entityId);
+            }
+        }
+
+        List<ListenableFuture<QueryContextResponse>> responses = new ArrayList<>();
+        for (Map.Entry<String, List<EntityId>> entry : entitiesByProvider.entrySet()) {
             // forward to providing application
-            final String providerUrl = providingApplication.next().toString();
+            String providerUrl = entry.getKey();
             HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(providerUrl);
-            return ngsiClient.queryContext(providerUrl, httpHeaders, query).get();
+            logger.debug("=> queryContext forwarded to {} with Content-Type {}", providerUrl, httpHeaders.getContentType());
+            List<EntityId> entityIds = entry.getValue();
+            responses.add(ngsiClient.queryContext(providerUrl, httpHeaders, entityIds.size() == query.getEntityIdList().size() ? query : partialQuery(query, entityIds)));
+        }
+        if (!localEntities.isEmpty()) {
+            responses.add(queryLocalEntities(localEntities.size() == query.getEntityIdList().size() ? query : partialQuery(query, localEntities)));
+        }
+        if (responses.size() == 1) {
+            return responses.get(0);
         }
 
-        String brokerUrl = configuration.getRemoteUrl();
-        if (brokerUrl == null || brokerUrl.isEmpty()) {
-            throw new MissingRemoteBrokerException("No remote.url parameter defined to forward queryContext");
+        // Merge the responses, in the order of the queries, once all received
+        SettableListenableFuture<QueryContextResponse> response = new SettableListenableFuture<>();
+        QueryContextResponse[] partialResponses = new QueryContextResponse[responses.size()];
+        AtomicInteger pendingResponses = new AtomicInteger(responses.size());
+        for (int i = 0; i < responses.size(); i++) {
+            final int index = i;
+            responses.get(i).addCallback(
+                    queryContextResponse -> {
+                        partialResponses[index] = queryContextResponse;
+                        if (pendingResponses.decrementAndGet() == 0) {
+                            response.set(mergeQueryResponses(partialResponses));
+                        }
+                    },
+                    throwable -> {
+                        logger.warn("Partial queryContext failed: {}", throwable.getMessage());
+                        if (pendingResponses.decrementAndGet() == 0) {
+                            response.set(mergeQueryResponses(partialResponses));
+                        }
+                    });
         }
-        // forward query to remote broker
-        HttpHeaders httpHeaders = getRemoteBrokerHeaders(brokerUrl);
-        return ngsiClient.queryContext(brokerUrl, httpHeaders, query).get();
+        return response;
     }
 
     @Override
@@ -261,6 +312,207 @@ public class NgsiController extends NgsiBaseController {
         return httpHeaders;
     }
 
+    /**
+     * Answer a query from the last known values when fresh, or forward it to the remote broker
+     */
+    private ListenableFuture<QueryContextResponse> queryLocalEntities(QueryContext query) throws MissingRemoteBrokerException {
+        QueryContextResponse cachedResponse = entityCache.query(query);
+        if (cachedResponse != null) {
+            logger.debug("queryContext answered from cache");
+            return new AsyncResult<>(cachedResponse);
+        }
+
+        String brokerUrl = configuration.getRemoteUrl();
+        if (brokerUrl == null || brokerUrl.isEmpty()) {
+            throw new MissingRemoteBrokerException("No remote.url parameter defined to forward queryContext");
+        }
+        // forward query to remote broker
+        HttpHeaders httpHeaders = getRemoteBrokerHeaders(brokerUrl);
+        return ngsiClient.queryContext(brokerUrl, httpHeaders, query);
+    }
+
+    private QueryContext partialQuery(QueryContext query, List<EntityId> entityIds) {
+        QueryContext partialQuery = new QueryContext();
+        partialQuery.setEntityIdList(entityIds);
+        partialQuery.setAttributeList(query.getAttributeList());
+        partialQuery.setRestriction(query.getRestriction());
+        return partialQuery;
+    }
+
+    /**
+     * @return the context elements of all the partial responses, or a 404 error when none is found
+     */
+    private QueryContextResponse mergeQueryResponses(QueryContextResponse[] partialResponses) {
+        List<ContextElementResponse> contextElementResponseList = new ArrayList<>();
+        for (QueryContextResponse partialResponse : partialResponses) {
+            if (partialResponse != null && partialResponse.getContextElementResponses() != null) {
+                contextElementResponseList.addAll(partialResponse.getContextElementResponses());
+            }
+        }
+        QueryContextResponse queryContextResponse = new QueryContextResponse();
+        if (contextElementResponseList.isEmpty()) {
+            queryContextResponse.setErrorCode(new StatusCode(CodeEnum.CODE_404));
+        } else {
+            queryContextResponse.setContextElementResponses(contextElementResponseList);
+        }
+        return queryContextResponse;
+    }
+
+    private UpdateContext partialUpdate(UpdateContext update, List<ContextElement> contextElements) {
+        UpdateContext partialUpdate = new UpdateContext(update.getUpdateAction());
+        partialUpdate.setContextElements(contextElements);
+        return partialUpdate;
+    }
+
+    private void forwardToRemoteBroker(UpdateContext update) {
+        if (!configuration.isRemoteForwardUpdateContext()) {
+            return;
+        }
+        final String brokerUrl = configuration.getRemoteUrl();
+        if (brokerUrl == null || brokerUrl.isEmpty()) {
+            logger.warn("No remote.url parameter defined to forward updateContext");
+        } else if (remoteBrokerQueue.isEnabled() && remoteBrokerQueue.add(update)) {
+            logger.debug("=> updateContext queued for remote broker {}", brokerUrl);
+        } else {
+            HttpHeaders httpHeaders = getRemoteBrokerHeaders(brokerUrl);
+            logger.debug("=> updateContext forwarded to remote broker {} with Content-Type {}", brokerUrl, httpHeaders.getContentType());
+            ngsiClient.updateContext(brokerUrl, httpHeaders, update)
+                    .addCallback(updateContextResponse -> logUpdateContextResponse(updateContextResponse, brokerUrl),
+                            throwable -> logger.warn("UpdateContext failed for {}: {}", brokerUrl, throwable.getMessage(), throwable));
+        }
+    }
+
+    /**
+     * Notify the subscribers of the context elements they subscribed to.
+     * The subscriptions matching the same context elements share the same notification.
+     */
+    private void notifySubscribers(List<ContextElementResponse> contextElementResponseList) throws URISyntaxException {
+        String originator = configuration.getLocalUrl();
+        if (originator == null || originator.isEmpty()) {
+            logger.warn("No local.url parameter defined to use as originator for sending notifyContext");
+            return;
+        }
+
+        // Context elements matched by each subscription
+        Map<Subscription, BitSet> matchedElements = new LinkedHashMap<>();
+        for (int i = 0; i < contextElementResponseList.size(); i++) {
+            ContextElement contextElement = contextElementResponseList.get(i).getContextElement();
+            Set<String> attributesName = contextElement.getContextAttributeList().stream().map(ContextAttribute::getName).collect(Collectors.toSet());
+            Iterator<Subscription> matchingSubscriptions = subscriptions.findSubscriptions(contextElement.getEntityId(), attributesName);
+            while (matchingSubscriptions.hasNext()) {
+                matchedElements.computeIfAbsent(matchingSubscriptions.next(), k -> new BitSet()).set(i);
+            }
+        }
+
+        // Subscriptions grouped by matched context elements
+        Map<BitSet, List<Subscription>> subscriptionsByElements = new LinkedHashMap<>();
+        matchedElements.forEach((subscription, elements) -> subscriptionsByElements.computeIfAbsent(elements, k -> new ArrayList<>()).add(subscription));
+
+        URI originatorURI = new URI(originator);
+        subscriptionsByElements.forEach((elements, matchingSubscriptions) -> {
+            List<ContextElementResponse> notified = elements.cardinality() == contextElementResponseList.size() ? contextElementResponseList :
+                    elements.stream().mapToObj(contextElementResponseList::get).collect(Collectors.toList());
+            notifier.notifySubscriptions(matchingSubscriptions, originatorURI, notified);
+        });
+    }
+
+    /**
+     * Context elements of an update forwarded to the providing applications, and responses of the other ones handled locally
+     */
+    private static class ForwardedUpdate {
+        private final Map<String, List<ContextElement>> elementsByProvider = new LinkedHashMap<>();
+        private final Map<String, ListenableFuture<UpdateContextResponse>> providerResponses = new LinkedHashMap<>();
+        private final List<ContextElementResponse> localResponses = new ArrayList<>();
+
+        boolean isHandledBySingleProvider() {
+            return localResponses.isEmpty() && providerResponses.size() == 1;
+        }
+    }
+
+    /**
+     * The context elements matching a registration are forwarded to the corresponding providingURL,
+     * with a single updateContext for each providing application.
+     * The other context elements are forwarded to the remote broker and the subscribers are notified.
+     */
+    private ForwardedUpdate forwardUpdate(UpdateContext update) throws URISyntaxException {
+        ForwardedUpdate forwardedUpdate = new ForwardedUpdate();
+
+        // Search registrations to group the context elements by providing application
+        List<ContextElement> localElements = new ArrayList<>();
+        for (ContextElement contextElement : update.getContextElements()) {
+            Set<String> attributesName = contextElement.getContextAttributeList().stream().map(ContextAttribute::getName).collect(Collectors.toSet());
+            logger.debug("<= updateContext with entityId: {} and attributes: {} ", contextElement.getEntityId().toString(), attributesName);
+
+            Iterator<URI> providingApplication = localRegistrations.findProvidingApplication(contextElement.getEntityId(), attributesName);
+            if (providingApplication.hasNext()) {
+                // Forward to the first providing Application (command)
+                forwardedUpdate.elementsByProvider.computeIfAbsent(providingApplication.next().toString(), k -> new ArrayList<>()).add(contextElement);
+            } else {
+                localElements.add(contextElement);
+            }
+        }
+
+        // Forward the updates to the providing applications, in parallel
+        forwardedUpdate.elementsByProvider.forEach((providerUrl, contextElements) -> {
+            HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(providerUrl);
+            logger.debug("=> updateContext forwarded to {} with Content-Type {}", providerUrl, httpHeaders.getContentType());
+            UpdateContext providerUpdate = contextElements.size() == update.getContextElements().size() ? update : partialUpdate(update, contextElements);
+            forwardedUpdate.providerResponses.put(providerUrl, ngsiClient.updateContext(providerUrl, httpHeaders, providerUpdate));
+        });
+
+        if (!localElements.isEmpty()) {
+            forwardToRemoteBroker(localElements.size() == update.getContextElements().size() ? update : partialUpdate(update, localElements));
+            entityCache.update(update.getUpdateAction(), localElements);
+
+            StatusCode statusCode = new StatusCode(CodeEnum.CODE_200);
+            for (ContextElement c : localElements) {
+                forwardedUpdate.localResponses.add(new ContextElementResponse(c, statusCode));
+            }
+            notifySubscribers(forwardedUpdate.localResponses);
+        }
+        return forwardedUpdate;
+    }
+
+    private UpdateContextResponse mergeProviderResponses(ForwardedUpdate forwardedUpdate, Map<String, List<ContextElementResponse>> responsesByProvider) {
+        List<ContextElementResponse> contextElementResponseList = new ArrayList<>(forwardedUpdate.localResponses);
+        forwardedUpdate.providerResponses.keySet().forEach(providerUrl -> contextElementResponseList.addAll(responsesByProvider.get(providerUrl)));
+        return updateContextResponse(contextElementResponseList);
+    }
+
+    private UpdateContextResponse updateContextResponse(List<ContextElementResponse> contextElementResponseList) {
+        UpdateContextResponse updateContextResponse = new UpdateContextResponse();
+        updateContextResponse.setContextElementResponses(contextElementResponseList);
+        return updateContextResponse;
+    }
+
+    /**
+     * @return the responses of a providing application for its context elements
+     */
+    private List<ContextElementResponse> providerResponse(UpdateContextResponse updateContextResponse, List<ContextElement> contextElements) {
+        if (updateContextResponse.getErrorCode() == null) {
+            return updateContextResponse.getContextElementResponses() == null ? Collections.emptyList() : updateContextResponse.getContextElementResponses();
+        }
+        return errorResponses(updateContextResponse.getErrorCode(), contextElements);
+    }
+
+    /**
+     * @return the responses for the context elements of a failed providing application
+     */
+    private List<ContextElementResponse> providerErrorResponse(String providerUrl, Throwable throwable, List<ContextElement> contextElements) {
+        logger.warn("UpdateContext failed for {}: {}", providerUrl, throwable.getMessage());
+        StatusCode errorCode = new StatusCode(CodeEnum.CODE_500);
+        errorCode.setDetail(throwable.getMessage());
+        return errorResponses(errorCode, contextElements);
+    }
+
+    private List<ContextElementResponse> errorResponses(StatusCode errorCode, List<ContextElement> contextElements) {
+        List<ContextElementResponse> contextElementResponses = new ArrayList<>();
+        for (ContextElement contextElement : contextElements) {
+            contextElementResponses.add(new ContextElementResponse(contextElement, errorCode));
+        }
+        return contextElementResponses;
+    }
+
     private void logUpdateContextResponse(UpdateContextResponse updateContextResponse, String brokerUrl) {
         if (updateContextResponse.getErrorCode() != null) {
             logger.warn("UpdateContext failed for {}: {}", brokerUrl, updateContextResponse.getErrorCode().toString());
@@ -275,12 +527,4 @@ public class NgsiController extends NgsiBaseController {
             });
         }
     }
-
-    private void logNotifyContextResponse(NotifyContextResponse notifyContextResponse, String providerUrl) {
-        if (notifyContextResponse.getResponseCode().getCode().equals(CodeEnum.CODE_200.getLabel())) {
-            logger.debug("NotifyContext completed for {} ", providerUrl);
-        } else {
-            logger.warn("NotifyContext failed for {}: {}", providerUrl, notifyContextResponse.getResponseCode().toString());
-        }
-    }
 }
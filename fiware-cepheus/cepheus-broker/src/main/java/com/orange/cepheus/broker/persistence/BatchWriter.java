@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes the statements changing the rows of the repositories.
+ *
+ * In sync mode, each statement is executed (and committed) before returning.
+ * In writeBehind mode, the statements are queued and executed periodically in a single transaction,
+ * as JDBC batches of prepared statements. Only the latest pending statement of a row is kept.
+ * The statements pending when the process crashes are lost.
+ */
+@Component
+public class BatchWriter {
+
+    private static Logger logger = LoggerFactory.getLogger(BatchWriter.class);
+
+    public enum Mode {
+        sync, writeBehind
+    }
+
+    @Value("${persistence.mode:sync}")
+    private Mode mode;
+
+    /**
+     * Delay (ms) between two executions of the pending statements in writeBehind mode
+     */
+    @Value("${persistence.flushInterval:100}")
+    private long flushInterval;
+
+    /**
+     * Maximum number of pending statements, beyond the caller executes them
+     */
+    @Value("${persistence.maxPending:10000}")
+    private int maxPending;
+
+    /**
+     * SQLite journal mode, WAL allows reads concurrent to the writes
+     */
+    @Value("${persistence.journalMode:WAL}")
+    private String journalMode;
+
+    @Autowired
+    protected JdbcTemplate jdbcTemplate;
+
+    /**
+     * A statement and its arguments
+     */
+    private static class Statement {
+        private final String sql;
+        private final Object[] args;
+
+        Statement(String sql, Object[] args) {
+            this.sql = sql;
+            this.args = args;
+        }
+    }
+
+    /**
+     * Pending statements by row
+     */
+    private final Map<String, Statement> pending = new LinkedHashMap<>();
+
+    private final Object flushLock = new Object();
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    protected void init() {
+        if (journalMode != null && !journalMode.isEmpty()) {
+            jdbcTemplate.execute("pragma journal_mode=" + journalMode);
+        }
+        if (mode == Mode.writeBehind) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "persistence-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::flushPending, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    protected void shutdown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(flushInterval * 10, TimeUnit.MILLISECONDS);
+            flushPending();
+        }
+    }
+
+    /**
+     * Execute a statement changing a row
+     * @param key the table and id of the row
+     * @param sql the statement
+     * @param args the arguments of the statement
+     * @throws DataAccessException if the statement fails (sync mode only)
+     */
+    public void update(String key, String sql, Object... args) throws DataAccessException {
+        update(sql, Collections.singletonMap(key, args));
+    }
+
+    /**
+     * Execute a statement changing several rows
+     * @param sql the statement
+     * @param argsByKey the arguments of the statement by table and id of the row
+     * @throws DataAccessException if the statement fails (sync mode only)
+     */
+    public void update(String sql, Map<String, Object[]> argsByKey) throws DataAccessException {
+        if (mode == Mode.sync) {
+            if (argsByKey.size() == 1) {
+                jdbcTemplate.update(sql, argsByKey.values().iterator().next());
+            } else if (!argsByKey.isEmpty()) {
+                jdbcTemplate.batchUpdate(sql, new ArrayList<>(argsByKey.values()));
+            }
+            return;
+        }
+
+        boolean full;
+        synchronized (pending) {
+            argsByKey.forEach((key, args) -> pending.put(key, new Statement(sql, args)));
+            full = pending.size() >= maxPending;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Execute the pending statements
+     * @throws DataAccessException if the statements fail, they are kept pending
+     */
+    public void flush() throws DataAccessException {
+        synchronized (flushLock) {
+            Map<String, Statement> statements;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                statements = new LinkedHashMap<>(pending);
+                pending.clear();
+            }
+            try {
+                execute(statements.values());
+            } catch (DataAccessException e) {
+                // Keep the statements not replaced in the meantime
+                synchronized (pending) {
+                    statements.putAll(pending);
+                    pending.clear();
+                    pending.putAll(statements);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the number of pending statements
+     */
+    public int getPending() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    private void flushPending() {
+        try {
+            flush();
+        } catch (DataAccessException e) {
+            logger.error("Failed to persist {} changes, will retry", getPending(), e);
+        }
+    }
+
+    private void execute(Collection<Statement> statements) throws DataAccessException {
+        // Group the statements sharing the same sql, the rows being distinct their order does not matter
+        Map<String, List<Object[]>> argsBySql = new LinkedHashMap<>();
+        statements.forEach(statement -> argsBySql.computeIfAbsent(statement.sql, sql -> new ArrayList<>()).add(statement.args));
+
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                for (Map.Entry<String, List<Object[]>> entry : argsBySql.entrySet()) {
+                    try (PreparedStatement preparedStatement = connection.prepareStatement(entry.getKey())) {
+                        for (Object[] args : entry.getValue()) {
+                            for (int i = 0; i < args.length; i++) {
+                                preparedStatement.setObject(i + 1, args[i]);
+                            }
+                            preparedStatement.addBatch();
+                        }
+                        preparedStatement.executeBatch();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+        logger.debug("Persisted {} changes", statements.size());
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * Binary encoding of the payloads of the SnapshotStore.
+ * The payloads are encoded in Smile (the binary format of Jackson) with the same mapping as the NGSI requests,
+ * which avoids the text parsing of JSON when loading and follows the changes of the NGSI model classes.
+ */
+@Component
+public class PayloadCodec {
+
+    private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory())
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    public byte[] encode(Object value) throws IOException {
+        return smileMapper.writeValueAsBytes(value);
+    }
+
+    public <T> T decode(byte[] payload, Class<T> type) throws IOException {
+        return smileMapper.readValue(payload, type);
+    }
+}
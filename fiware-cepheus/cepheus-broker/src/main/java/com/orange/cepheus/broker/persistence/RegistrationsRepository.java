@@ -30,9 +30,13 @@ import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 /**
  * Repository for registrations
@@ -48,10 +52,22 @@ public class RegistrationsRepository {
     @Autowired
     private ObjectMapper mapper;
 
+    @Autowired
+    private BatchWriter batchWriter;
+
+    @Autowired
+    private SnapshotStore snapshotStore;
+
+    @Autowired
+    private PayloadCodec payloadCodec;
+
     @PostConstruct
     protected void createTableOnStartup() {
         jdbcTemplate.execute("create table if not exists t_registrations (id varchar primary key, expirationDate varchar not null, registerContext varchar not null)");
         jdbcTemplate.execute("create unique index if not exists index_registrationId on t_registrations (id)");
+        if (snapshotStore.isEnabled() && snapshotStore.isCreated()) {
+            importIntoSnapshot();
+        }
     }
 
     /**
@@ -61,12 +77,17 @@ public class RegistrationsRepository {
      */
     public void saveRegistration(Registration registration) throws RegistrationPersistenceException {
         try {
+            if (snapshotStore.isEnabled()) {
+                putInSnapshot(registration);
+                return;
+            }
             //Mapping from model to database model
             ObjectWriter writer = mapper.writer();
             RegisterContext registerContext = registration.getRegisterContext();
             String registerContextString = writer.writeValueAsString(registerContext);
             String expirationDate = registration.getExpirationDate().toString();
             //insert into database
+            batchWriter.flush();
             jdbcTemplate.update("insert into t_registrations(id,expirationDate,registerContext) values(?,?,?)", registerContext.getRegistrationId(), expirationDate, registerContextString);
         } catch (Exception e) {
             throw new RegistrationPersistenceException(e);
@@ -80,17 +101,45 @@ public class RegistrationsRepository {
      */
     public void updateRegistration(Registration registration) throws RegistrationPersistenceException {
         try {
+            if (snapshotStore.isEnabled()) {
+                putInSnapshot(registration);
+                return;
+            }
             //serialization
             ObjectWriter writer = mapper.writer();
             RegisterContext registerContext = registration.getRegisterContext();
             String registerContextString = writer.writeValueAsString(registerContext);
             String expirationDate = registration.getExpirationDate().toString();
+            batchWriter.flush();
             jdbcTemplate.update("update t_registrations set expirationDate=? , registerContext=? where id=?", expirationDate, registerContextString, registerContext.getRegistrationId());
         } catch (Exception e) {
             throw new RegistrationPersistenceException(e);
         }
     }
 
+    /**
+     * Save a new or updated registration, replacing any saved registration with the same id.
+     * @param registration
+     * @throws RegistrationPersistenceException
+     */
+    public void saveOrUpdateRegistration(Registration registration) throws RegistrationPersistenceException {
+        try {
+            if (snapshotStore.isEnabled()) {
+                putInSnapshot(registration);
+                return;
+            }
+            //serialization
+            ObjectWriter writer = mapper.writer();
+            RegisterContext registerContext = registration.getRegisterContext();
+            String registerContextString = writer.writeValueAsString(registerContext);
+            String expirationDate = registration.getExpirationDate().toString();
+            batchWriter.update(key(registerContext.getRegistrationId()), "insert or replace into t_registrations(id,expirationDate,registerContext) values(?,?,?)",
+                    registerContext.getRegistrationId(), expirationDate, registerContextString);
+        } catch (Exception e) {
+            throw new RegistrationPersistenceException(e);
+        }
+    }
+
     /**
      * Get all saved registrations
      * @return registrations map
@@ -98,23 +147,16 @@ public class RegistrationsRepository {
      */
     public Map<String, Registration> getAllRegistrations() throws RegistrationPersistenceException {
         Map<String, Registration> registrations = new ConcurrentHashMap<>();
-        try {
-            List<Registration> registrationList = jdbcTemplate.query("select id, expirationDate, registerContext from t_registrations",
-                    (ResultSet rs, int rowNum) ->  {
-                        Registration registration = new Registration();
-                        try {
-                            registration.setExpirationDate(Instant.parse(rs.getString("expirationDate")));
-                            registration.setRegisterContext(mapper.readValue(rs.getString("registerContext"), RegisterContext.class));
-                        } catch (IOException e) {
-                            throw new SQLException(e);
-                        }
-                        return registration;
-                    });
-            registrationList.forEach(registration -> registrations.put(registration.getRegisterContext().getRegistrationId(), registration));
-        } catch (DataAccessException e) {
-            throw new RegistrationPersistenceException(e);
+        if (snapshotStore.isEnabled()) {
+            try {
+                snapshotStore.decodeAll(SnapshotStore.Kind.REGISTRATION, this::decode)
+                        .forEach(registration -> registrations.put(registration.getRegisterContext().getRegistrationId(), registration));
+            } catch (IOException e) {
+                throw new RegistrationPersistenceException(e);
+            }
+            return registrations;
         }
-        return registrations;
+        return getAllRegistrationsFromDatabase();
     }
 
     /**
@@ -124,7 +166,20 @@ public class RegistrationsRepository {
      * @throws RegistrationPersistenceException, EmptyResultDataAccessException
      */
     public Registration getRegistration(String registrationId) throws RegistrationPersistenceException, EmptyResultDataAccessException {
+        if (snapshotStore.isEnabled()) {
+            Registration registration;
+            try {
+                registration = snapshotStore.decode(SnapshotStore.Kind.REGISTRATION, registrationId, this::decode);
+            } catch (IOException e) {
+                throw new RegistrationPersistenceException(e);
+            }
+            if (registration == null) {
+                throw new EmptyResultDataAccessException(1);
+            }
+            return registration;
+        }
         try {
+            batchWriter.flush();
             return jdbcTemplate.queryForObject("select expirationDate, registerContext from t_registrations where id=?", new Object[]{registrationId},
                     (ResultSet rs, int rowNum) ->  {
                             Registration registration = new Registration();
@@ -150,9 +205,87 @@ public class RegistrationsRepository {
      */
     public void removeRegistration(String registrationId) throws RegistrationPersistenceException {
         try {
-            jdbcTemplate.update("delete from t_registrations where id=?", registrationId);
+            if (snapshotStore.isEnabled()) {
+                snapshotStore.remove(SnapshotStore.Kind.REGISTRATION, Collections.singletonList(registrationId));
+                return;
+            }
+            batchWriter.update(key(registrationId), "delete from t_registrations where id=?", registrationId);
+        } catch (DataAccessException | IOException e) {
+            throw new RegistrationPersistenceException(e);
+        }
+    }
+
+    /**
+     * Remove several registrations in a single batch.
+     * @param registrationIds
+     * @throws RegistrationPersistenceException
+     */
+    public void removeRegistrations(Collection<String> registrationIds) throws RegistrationPersistenceException {
+        try {
+            if (snapshotStore.isEnabled()) {
+                snapshotStore.remove(SnapshotStore.Kind.REGISTRATION, registrationIds);
+                return;
+            }
+            batchWriter.update("delete from t_registrations where id=?",
+                    registrationIds.stream().collect(Collectors.toMap(this::key, id -> new Object[] { id }, (a, b) -> a, LinkedHashMap::new)));
+        } catch (DataAccessException | IOException e) {
+            throw new RegistrationPersistenceException(e);
+        }
+    }
+
+    /**
+     * Get all the registrations of the database
+     * @return registrations map
+     * @throws RegistrationPersistenceException
+     */
+    private Map<String, Registration> getAllRegistrationsFromDatabase() throws RegistrationPersistenceException {
+        Map<String, Registration> registrations = new ConcurrentHashMap<>();
+        try {
+            batchWriter.flush();
+            List<Registration> registrationList = jdbcTemplate.query("select id, expirationDate, registerContext from t_registrations",
+                    (ResultSet rs, int rowNum) ->  {
+                        Registration registration = new Registration();
+                        try {
+                            registration.setExpirationDate(Instant.parse(rs.getString("expirationDate")));
+                            registration.setRegisterContext(mapper.readValue(rs.getString("registerContext"), RegisterContext.class));
+                        } catch (IOException e) {
+                            throw new SQLException(e);
+                        }
+                        return registration;
+                    });
+            registrationList.forEach(registration -> registrations.put(registration.getRegisterContext().getRegistrationId(), registration));
         } catch (DataAccessException e) {
             throw new RegistrationPersistenceException(e);
         }
+        return registrations;
+    }
+
+    /**
+     * Copy the registrations of the database into a new snapshot store, so that switching from the sqlite backend keeps them
+     */
+    private void importIntoSnapshot() {
+        try {
+            Map<String, Registration> registrations = getAllRegistrationsFromDatabase();
+            for (Registration registration : registrations.values()) {
+                putInSnapshot(registration);
+            }
+            logger.info("Imported {} registrations from the database into the snapshot store", registrations.size());
+        } catch (RegistrationPersistenceException | IOException e) {
+            throw new IllegalStateException("Failed to import the registrations from the database into the snapshot store", e);
+        }
+    }
+
+    private void putInSnapshot(Registration registration) throws IOException {
+        RegisterContext registerContext = registration.getRegisterContext();
+        snapshotStore.put(SnapshotStore.Kind.REGISTRATION, registerContext.getRegistrationId(), registration.getExpirationDate(),
+                payloadCodec.encode(registerContext));
+    }
+
+    private Registration decode(String registrationId, Instant expirationDate, byte[] payload) throws IOException {
+        return new Registration(expirationDate, payloadCodec.decode(payload, RegisterContext.class));
+    }
+
+    private String key(String registrationId) {
+        return "t_registrations:" + registrationId;
     }
 }
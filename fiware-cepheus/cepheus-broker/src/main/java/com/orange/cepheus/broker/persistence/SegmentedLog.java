@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Append-only log of records stored in segment files of a directory, consumed in order by a single reader.
+ *
+ * Each record is stored as its length, its append date and its payload.
+ * The read position is persisted on commit and the fully consumed segments are deleted.
+ * When the maximum size of the log is reached, the oldest segments are dropped.
+ * A record partially written when the process stopped is discarded on reopening.
+ */
+public class SegmentedLog implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(SegmentedLog.class);
+
+    private final static int HEADER_SIZE = 12;
+
+    private final static String SEGMENT_SUFFIX = ".log";
+
+    private final static String POSITION_FILE = "position";
+
+    /**
+     * A record of the log
+     */
+    public static class Record {
+        private final long timestamp;
+        private final byte[] payload;
+
+        Record(long timestamp, byte[] payload) {
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+
+        /**
+         * @return the append date (ms)
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    /**
+     * Records read from the log, and the read position following them
+     */
+    public static class Batch {
+        private final List<Record> records;
+        private final long segment;
+        private final long offset;
+
+        Batch(List<Record> records, long segment, long offset) {
+            this.records = records;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        public List<Record> getRecords() {
+            return records;
+        }
+    }
+
+    private final File directory;
+
+    private final long segmentSize;
+
+    private final long maxSize;
+
+    private final boolean sync;
+
+    /**
+     * Size of the segments by segment number
+     */
+    private final TreeMap<Long, Long> segments = new TreeMap<>();
+
+    private long totalSize;
+
+    private long writeSegment;
+
+    private FileChannel writer;
+
+    private long readSegment;
+
+    private long readOffset;
+
+    private long droppedBytes;
+
+    /**
+     * Open (or create) a log
+     * @param directory the directory of the segments
+     * @param segmentSize the size (bytes) of a segment before starting a new one
+     * @param maxSize the maximum size (bytes) of all the segments
+     * @param sync force each record to the disk
+     * @throws IOException if the log cannot be opened
+     */
+    public SegmentedLog(File directory, long segmentSize, long maxSize, boolean sync) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.sync = sync;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file.length());
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unknown file {}", file);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, 0L);
+        }
+        writeSegment = segments.lastKey();
+        truncatePartialRecord(writeSegment);
+        totalSize = segments.values().stream().mapToLong(Long::longValue).sum();
+        writer = openWriter(writeSegment);
+        loadPosition();
+    }
+
+    /**
+     * Append a record
+     * @param payload the payload of the record
+     * @return false if the record was dropped as the maximum size is reached
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized boolean append(byte[] payload) throws IOException {
+        int recordSize = HEADER_SIZE + payload.length;
+        if (segments.get(writeSegment) > 0 && segments.get(writeSegment) + recordSize > segmentSize) {
+            roll();
+        }
+        while (totalSize + recordSize > maxSize && segments.firstKey() != writeSegment) {
+            dropOldestSegment();
+        }
+        if (totalSize + recordSize > maxSize) {
+            droppedBytes += recordSize;
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        buffer.putInt(payload.length).putLong(System.currentTimeMillis()).put(payload);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            writer.write(buffer);
+        }
+        if (sync) {
+            writer.force(false);
+        }
+        segments.put(writeSegment, segments.get(writeSegment) + recordSize);
+        totalSize += recordSize;
+        return true;
+    }
+
+    /**
+     * Read the records following the read position, without moving the read position
+     * @param maxRecords the maximum number of records to read
+     * @return the records, empty if none
+     * @throws IOException if the segments cannot be read
+     */
+    public synchronized Batch read(int maxRecords) throws IOException {
+        List<Record> records = new ArrayList<>();
+        long segment = readSegment;
+        long offset = readOffset;
+        while (true) {
+            long size = segments.get(segment);
+            if (offset >= size) {
+                // Move to the next segment when the current one is fully read
+                Long next = segments.higherKey(segment);
+                if (next == null) {
+                    break;
+                }
+                segment = next;
+                offset = 0;
+            } else if (records.size() < maxRecords) {
+                offset = readRecords(segment, offset, size, maxRecords, records);
+            } else {
+                break;
+            }
+        }
+        return new Batch(records, segment, offset);
+    }
+
+    /**
+     * Move the read position after a batch, and delete the fully consumed segments
+     * @param batch the batch
+     * @throws IOException if the position cannot be saved
+     */
+    public synchronized void commit(Batch batch) throws IOException {
+        if (batch.segment < segments.firstKey()) {
+            // The segments of the batch were dropped in the meantime
+            return;
+        }
+        readSegment = batch.segment;
+        readOffset = batch.offset;
+        savePosition();
+        while (segments.firstKey() < readSegment) {
+            deleteSegment(segments.firstKey());
+        }
+    }
+
+    /**
+     * @return the size (bytes) of the records not yet consumed
+     */
+    public synchronized long pendingBytes() {
+        long pending = -readOffset;
+        for (long size : segments.tailMap(readSegment, true).values()) {
+            pending += size;
+        }
+        return pending;
+    }
+
+    /**
+     * @return the size (bytes) of the records dropped as the maximum size was reached
+     */
+    public synchronized long droppedBytes() {
+        return droppedBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private long readRecords(long segment, long offset, long size, int maxRecords, List<Record> records) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (records.size() < maxRecords && offset + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, offset);
+                header.flip();
+                int length = header.getInt();
+                long timestamp = header.getLong();
+                if (length < 0 || offset + HEADER_SIZE + length > size) {
+                    logger.warn("Skipping corrupted end of segment {}", segmentFile(segment));
+                    return size;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, offset + HEADER_SIZE);
+                records.add(new Record(timestamp, payload.array()));
+                offset += HEADER_SIZE + length;
+            }
+        }
+        return offset;
+    }
+
+    private void roll() throws IOException {
+        writer.close();
+        writeSegment++;
+        segments.put(writeSegment, 0L);
+        writer = openWriter(writeSegment);
+    }
+
+    private void dropOldestSegment() throws IOException {
+        long segment = segments.firstKey();
+        long size = segments.get(segment);
+        if (segment == readSegment) {
+            droppedBytes += size - readOffset;
+            readSegment = segments.higherKey(segment);
+            readOffset = 0;
+        }
+        logger.warn("Maximum size of {} reached, dropping segment {}", directory, segment);
+        deleteSegment(segment);
+    }
+
+    private void deleteSegment(long segment) throws IOException {
+        totalSize -= segments.remove(segment);
+        Files.deleteIfExists(segmentFile(segment).toPath());
+    }
+
+    /**
+     * Discard a record partially written at the end of a segment
+     */
+    private void truncatePartialRecord(long segment) throws IOException {
+        File file = segmentFile(segment);
+        if (!file.exists()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long offset = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (offset + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, offset);
+                header.flip();
+                int length = header.getInt();
+                if (length < 0 || offset + HEADER_SIZE + length > size) {
+                    break;
+                }
+                offset += HEADER_SIZE + length;
+            }
+            if (offset < size) {
+                logger.warn("Discarding partial record at the end of {}", file);
+                channel.truncate(offset);
+            }
+            segments.put(segment, offset);
+        }
+    }
+
+    private void loadPosition() throws IOException {
+        readSegment = segments.firstKey();
+        readOffset = 0;
+        File file = new File(directory, POSITION_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            long segment = input.readLong();
+            long offset = input.readLong();
+            if (segments.containsKey(segment)) {
+                readSegment = segment;
+                readOffset = Math.min(offset, segments.get(segment));
+            }
+        } catch (EOFException e) {
+            logger.warn("Ignoring corrupted position of {}", directory);
+        }
+    }
+
+    private void savePosition() throws IOException {
+        File tmp = new File(directory, POSITION_FILE + ".tmp");
+        try (FileOutputStream fileOutput = new FileOutputStream(tmp);
+             DataOutputStream output = new DataOutputStream(fileOutput)) {
+            output.writeLong(readSegment);
+            output.writeLong(readOffset);
+            output.flush();
+            if (sync) {
+                fileOutput.getFD().sync();
+            }
+        }
+        Files.move(tmp.toPath(), new File(directory, POSITION_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private FileChannel openWriter(long segment) throws IOException {
+        return FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%020d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Persistence of the subscriptions and registrations as a binary snapshot and a journal of the changes.
+ *
+ * The entries are kept encoded in memory. Each change is appended to the journal, and when the journal
+ * is large enough a new snapshot of all the entries is written in background, starting a new journal.
+ * Snapshots and journals are numbered by generation: the state is the latest snapshot followed
+ * by the journals of the same or later generations.
+ * Each record is framed with its length and checksum, a record partially written when stopped is discarded.
+ * A store started without any file is new: the repositories then import the content of the SQLite database.
+ */
+@Component
+public class SnapshotStore {
+
+    private static Logger logger = LoggerFactory.getLogger(SnapshotStore.class);
+
+    public enum Backend {
+        sqlite, snapshot
+    }
+
+    /**
+     * Kind of the entries, stored by ordinal
+     */
+    public enum Kind {
+        SUBSCRIPTION, REGISTRATION
+    }
+
+    /**
+     * Decodes the payload of an entry
+     */
+    @FunctionalInterface
+    public interface Decoder<T> {
+        T decode(String id, Instant expirationDate, byte[] payload) throws IOException;
+    }
+
+    private final static byte PUT = 1;
+
+    private final static byte REMOVE = 2;
+
+    private final static String SNAPSHOT = "snapshot-";
+
+    private final static String JOURNAL = "journal-";
+
+    private final static String SUFFIX = ".bin";
+
+    @Value("${persistence.backend:sqlite}")
+    private Backend backend;
+
+    @Value("${persistence.snapshot.directory:${java.io.tmpdir}/cepheus-broker-state}")
+    private String directory;
+
+    /**
+     * Number of journal records before writing a new snapshot
+     */
+    @Value("${persistence.snapshot.compactionThreshold:10000}")
+    private int compactionThreshold;
+
+    /**
+     * Force each change to the disk
+     */
+    @Value("${persistence.snapshot.sync:false}")
+    private boolean sync;
+
+    /**
+     * An encoded entry
+     */
+    private static class Entry {
+        private final Kind kind;
+        private final String id;
+        private final Instant expirationDate;
+        private final byte[] payload;
+
+        Entry(Kind kind, String id, Instant expirationDate, byte[] payload) {
+            this.kind = kind;
+            this.id = id;
+            this.expirationDate = expirationDate;
+            this.payload = payload;
+        }
+    }
+
+    private final Map<Kind, Map<String, Entry>> entries = new EnumMap<>(Kind.class);
+
+    private long generation;
+
+    private FileChannel journal;
+
+    private int journalRecords;
+
+    private boolean compacting;
+
+    /**
+     * No snapshot nor journal when started
+     */
+    private boolean created;
+
+    private ExecutorService compactor;
+
+    @PostConstruct
+    protected void init() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        for (Kind kind : Kind.values()) {
+            entries.put(kind, new HashMap<>());
+        }
+
+        long start = System.currentTimeMillis();
+        long snapshot = latestGeneration(SNAPSHOT);
+        generation = Math.max(snapshot, latestGeneration(JOURNAL));
+        created = generation < 0;
+        if (snapshot >= 0) {
+            replay(file(SNAPSHOT, snapshot));
+        }
+        for (long journalGeneration : generations(JOURNAL)) {
+            if (journalGeneration >= snapshot) {
+                journalRecords += replay(file(JOURNAL, journalGeneration));
+            }
+        }
+        generation = Math.max(generation, 0);
+        journal = openJournal(generation);
+        logger.info("Loaded {} subscriptions and {} registrations from {} in {} ms", entries.get(Kind.SUBSCRIPTION).size(),
+                entries.get(Kind.REGISTRATION).size(), directory, System.currentTimeMillis() - start);
+
+        compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    protected void shutdown() throws IOException, InterruptedException {
+        if (!isEnabled()) {
+            return;
+        }
+        compactor.shutdown();
+        compactor.awaitTermination(1, TimeUnit.MINUTES);
+        synchronized (this) {
+            journal.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return backend == Backend.snapshot;
+    }
+
+    /**
+     * @return true if the directory had no snapshot nor journal when the store was started
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * Add or replace an entry
+     * @param kind the kind of entry
+     * @param id the id of the entry
+     * @param expirationDate the expiration date of the entry
+     * @param payload the encoded entry
+     * @throws IOException if the change cannot be written
+     */
+    public synchronized void put(Kind kind, String id, Instant expirationDate, byte[] payload) throws IOException {
+        Entry entry = new Entry(kind, id, expirationDate, payload);
+        append(encode(PUT, entry));
+        entries.get(kind).put(id, entry);
+    }
+
+    /**
+     * Remove entries
+     * @param kind the kind of the entries
+     * @param ids the ids of the entries
+     * @throws IOException if the change cannot be written
+     */
+    public synchronized void remove(Kind kind, Collection<String> ids) throws IOException {
+        for (String id : ids) {
+            append(encode(REMOVE, new Entry(kind, id, null, null)));
+            entries.get(kind).remove(id);
+        }
+    }
+
+    /**
+     * Decode an entry
+     * @return the decoded entry, or null if none
+     * @throws IOException if the entry cannot be decoded
+     */
+    public <T> T decode(Kind kind, String id, Decoder<T> decoder) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(kind).get(id);
+        }
+        return entry == null ? null : decoder.decode(entry.id, entry.expirationDate, entry.payload);
+    }
+
+    /**
+     * Decode all the entries of a kind, in parallel
+     * @return the decoded entries
+     * @throws IOException if an entry cannot be decoded
+     */
+    public <T> List<T> decodeAll(Kind kind, Decoder<T> decoder) throws IOException {
+        List<Entry> kindEntries;
+        synchronized (this) {
+            kindEntries = new ArrayList<>(entries.get(kind).values());
+        }
+        try {
+            return kindEntries.parallelStream().map(entry -> {
+                try {
+                    return decoder.decode(entry.id, entry.expirationDate, entry.payload);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        long size = journal.size();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+            if (sync) {
+                journal.force(false);
+            }
+        } catch (IOException e) {
+            // Do not leave a partial record before the next ones
+            journal.truncate(size);
+            throw e;
+        }
+        if (++journalRecords >= compactionThreshold && !compacting && !compactor.isShutdown()) {
+            compacting = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Write a snapshot of all the entries and start a new journal
+     */
+    private void compact() {
+        long snapshotGeneration;
+        List<Entry> state;
+        try {
+            synchronized (this) {
+                state = entries.values().stream().flatMap(kindEntries -> kindEntries.values().stream()).collect(Collectors.toList());
+                journal.close();
+                snapshotGeneration = ++generation;
+                journal = openJournal(snapshotGeneration);
+                journalRecords = 0;
+            }
+
+            File tmp = new File(directory, SNAPSHOT + "tmp");
+            try (FileOutputStream output = new FileOutputStream(tmp)) {
+                for (Entry entry : state) {
+                    output.write(encode(PUT, entry));
+                }
+                output.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file(SNAPSHOT, snapshotGeneration).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // The older snapshots and journals are included in the new snapshot
+            for (String prefix : new String[] { SNAPSHOT, JOURNAL }) {
+                for (long olderGeneration : generations(prefix)) {
+                    if (olderGeneration < snapshotGeneration) {
+                        Files.deleteIfExists(file(prefix, olderGeneration).toPath());
+                    }
+                }
+            }
+            logger.debug("Wrote snapshot {} of {} entries", snapshotGeneration, state.size());
+        } catch (IOException e) {
+            logger.error("Failed to write snapshot in {}", directory, e);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Apply the records of a file
+     * @return the number of records
+     */
+    private int replay(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        int records = 0;
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + 4);
+            if (length < 0 || length > buffer.remaining() - 8 || checksum(buffer.array(), buffer.position() + 8, length) != checksum) {
+                break;
+            }
+            buffer.position(buffer.position() + 8);
+            apply(buffer, buffer.position() + length);
+            records++;
+        }
+        if (buffer.hasRemaining()) {
+            logger.warn("Discarding partial record at the end of {}", file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(buffer.position());
+            }
+        }
+        return records;
+    }
+
+    private void apply(ByteBuffer buffer, int end) {
+        byte operation = buffer.get();
+        Kind kind = Kind.values()[buffer.get()];
+        byte[] id = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(id);
+        String entryId = new String(id, StandardCharsets.UTF_8);
+        if (operation == PUT) {
+            Instant expirationDate = Instant.ofEpochSecond(buffer.getLong(), buffer.getInt());
+            byte[] payload = new byte[end - buffer.position()];
+            buffer.get(payload);
+            entries.get(kind).put(entryId, new Entry(kind, entryId, expirationDate, payload));
+        } else {
+            entries.get(kind).remove(entryId);
+        }
+        buffer.position(end);
+    }
+
+    /**
+     * Encode a record: length, checksum, operation, kind, id, and for a PUT the expiration date and payload
+     */
+    private static byte[] encode(byte operation, Entry entry) {
+        byte[] id = entry.id.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + id.length + (operation == PUT ? 12 + entry.payload.length : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + length);
+        buffer.putInt(length).putInt(0);
+        buffer.put(operation).put((byte) entry.kind.ordinal()).putShort((short) id.length).put(id);
+        if (operation == PUT) {
+            buffer.putLong(entry.expirationDate.getEpochSecond()).putInt(entry.expirationDate.getNano()).put(entry.payload);
+        }
+        buffer.putInt(4, checksum(buffer.array(), 8, length));
+        return buffer.array();
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private long latestGeneration(String prefix) {
+        List<Long> generations = generations(prefix);
+        return generations.isEmpty() ? -1 : generations.get(generations.size() - 1);
+    }
+
+    /**
+     * @return the generations of the files of a prefix, in order
+     */
+    private List<Long> generations(String prefix) {
+        List<Long> generations = new ArrayList<>();
+        String[] names = new File(directory).list((dir, name) -> name.startsWith(prefix) && name.endsWith(SUFFIX));
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    generations.add(Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unknown file {}", name);
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private FileChannel openJournal(long generation) throws IOException {
+        return FileChannel.open(file(JOURNAL, generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private File file(String prefix, long generation) {
+        return new File(directory, String.format("%s%020d%s", prefix, generation, SUFFIX));
+    }
+}
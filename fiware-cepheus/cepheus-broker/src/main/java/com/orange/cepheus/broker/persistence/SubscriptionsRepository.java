@@ -25,9 +25,13 @@ import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 /**
  * Repository for Subscriptions
@@ -42,10 +46,22 @@ public class SubscriptionsRepository {
     @Autowired
     private ObjectMapper mapper;
 
+    @Autowired
+    private BatchWriter batchWriter;
+
+    @Autowired
+    private SnapshotStore snapshotStore;
+
+    @Autowired
+    private PayloadCodec payloadCodec;
+
     @PostConstruct
     protected void createTableOnStartup() {
         jdbcTemplate.execute("create table if not exists t_subscriptions (id varchar primary key, expirationDate varchar not null, subscribeContext varchar not null)");
         jdbcTemplate.execute("create unique index if not exists index_subscriptionId on t_subscriptions (id)");
+        if (snapshotStore.isEnabled() && snapshotStore.isCreated()) {
+            importIntoSnapshot();
+        }
     }
 
     /**
@@ -56,12 +72,18 @@ public class SubscriptionsRepository {
     public void saveSubscription(Subscription subscription) throws SubscriptionPersistenceException {
 
         try {
+            if (snapshotStore.isEnabled()) {
+                snapshotStore.put(SnapshotStore.Kind.SUBSCRIPTION, subscription.getSubscriptionId(), subscription.getExpirationDate(),
+                        payloadCodec.encode(subscription.getSubscribeContext()));
+                return;
+            }
             //Mapping from model to database model
             ObjectWriter writer = mapper.writer();
             String susbcribeContextString = writer.writeValueAsString(subscription.getSubscribeContext());
             String expirationDate = subscription.getExpirationDate().toString();
             //insert into database
-            jdbcTemplate.update("insert into t_subscriptions(id,expirationDate,subscribeContext) values(?,?,?)", subscription.getSubscriptionId(), expirationDate, susbcribeContextString);
+            batchWriter.update(key(subscription.getSubscriptionId()), "insert into t_subscriptions(id,expirationDate,subscribeContext) values(?,?,?)",
+                    subscription.getSubscriptionId(), expirationDate, susbcribeContextString);
         } catch (Exception e) {
             throw new SubscriptionPersistenceException(e);
         }
@@ -75,10 +97,16 @@ public class SubscriptionsRepository {
     public void updateSubscription(Subscription subscription) throws SubscriptionPersistenceException {
 
         try {
+        if (snapshotStore.isEnabled()) {
+            snapshotStore.put(SnapshotStore.Kind.SUBSCRIPTION, subscription.getSubscriptionId(), subscription.getExpirationDate(),
+                    payloadCodec.encode(subscription.getSubscribeContext()));
+            return;
+        }
         //serialization
         ObjectWriter writer = mapper.writer();
         String susbcribeContextString = writer.writeValueAsString(subscription.getSubscribeContext());
         String expirationDate = subscription.getExpirationDate().toString();
+        batchWriter.flush();
         jdbcTemplate.update("update t_subscriptions set expirationDate=? , subscribeContext=? where id=?", expirationDate, susbcribeContextString, subscription.getSubscriptionId());
         } catch (Exception e) {
             throw new SubscriptionPersistenceException(e);
@@ -91,8 +119,64 @@ public class SubscriptionsRepository {
      * @throws SubscriptionPersistenceException
      */
     public Map<String, Subscription> getAllSubscriptions() throws SubscriptionPersistenceException {
+        Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+        if (snapshotStore.isEnabled()) {
+            try {
+                snapshotStore.decodeAll(SnapshotStore.Kind.SUBSCRIPTION, (id, expirationDate, payload) ->
+                        new Subscription(id, expirationDate, payloadCodec.decode(payload, SubscribeContext.class)))
+                        .forEach(subscription -> subscriptions.put(subscription.getSubscriptionId(), subscription));
+            } catch (IOException e) {
+                throw new SubscriptionPersistenceException(e);
+            }
+            return subscriptions;
+        }
+        return getAllSubscriptionsFromDatabase();
+    }
+
+    /**
+     * Remove a subscription.
+     * @param subscriptionId
+     * @throws SubscriptionPersistenceException
+     */
+    public void removeSubscription(String subscriptionId) throws SubscriptionPersistenceException {
+        try {
+            if (snapshotStore.isEnabled()) {
+                snapshotStore.remove(SnapshotStore.Kind.SUBSCRIPTION, Collections.singletonList(subscriptionId));
+                return;
+            }
+            batchWriter.update(key(subscriptionId), "delete from t_subscriptions where id=?", subscriptionId);
+        } catch (DataAccessException | IOException e) {
+            throw new SubscriptionPersistenceException(e);
+        }
+    }
+
+    /**
+     * Remove several subscriptions in a single batch.
+     * @param subscriptionIds
+     * @throws SubscriptionPersistenceException
+     */
+    public void removeSubscriptions(Collection<String> subscriptionIds) throws SubscriptionPersistenceException {
+        try {
+            if (snapshotStore.isEnabled()) {
+                snapshotStore.remove(SnapshotStore.Kind.SUBSCRIPTION, subscriptionIds);
+                return;
+            }
+            batchWriter.update("delete from t_subscriptions where id=?",
+                    subscriptionIds.stream().collect(Collectors.toMap(this::key, id -> new Object[] { id }, (a, b) -> a, LinkedHashMap::new)));
+        } catch (DataAccessException | IOException e) {
+            throw new SubscriptionPersistenceException(e);
+        }
+    }
+
+    /**
+     * Get all the subscriptions of the database
+     * @return subscriptions map
+     * @throws SubscriptionPersistenceException
+     */
+    private Map<String, Subscription> getAllSubscriptionsFromDatabase() throws SubscriptionPersistenceException {
         Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
         try {
+            batchWriter.flush();
             List<Subscription> subscriptionList = jdbcTemplate.query("select id, expirationDate, subscribeContext from t_subscriptions",
                     (ResultSet rs, int rowNum) ->  {
                             Subscription subscription = new Subscription();
@@ -114,16 +198,22 @@ public class SubscriptionsRepository {
     }
 
     /**
-     * Remove a subscription.
-     * @param subscriptionId
-     * @throws SubscriptionPersistenceException
+     * Copy the subscriptions of the database into a new snapshot store, so that switching from the sqlite backend keeps them
      */
-    public void removeSubscription(String subscriptionId) throws SubscriptionPersistenceException {
+    private void importIntoSnapshot() {
         try {
-            jdbcTemplate.update("delete from t_subscriptions where id=?", subscriptionId);
-        } catch (DataAccessException e) {
-            throw new SubscriptionPersistenceException(e);
+            Map<String, Subscription> subscriptions = getAllSubscriptionsFromDatabase();
+            for (Subscription subscription : subscriptions.values()) {
+                snapshotStore.put(SnapshotStore.Kind.SUBSCRIPTION, subscription.getSubscriptionId(), subscription.getExpirationDate(),
+                        payloadCodec.encode(subscription.getSubscribeContext()));
+            }
+            logger.info("Imported {} subscriptions from the database into the snapshot store", subscriptions.size());
+        } catch (SubscriptionPersistenceException | IOException e) {
+            throw new IllegalStateException("Failed to import the subscriptions from the database into the snapshot store", e);
         }
     }
 
+    private String key(String subscriptionId) {
+        return "t_subscriptions:" + subscriptionId;
+    }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.ngsi.model.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.orange.cepheus.broker.Util.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the EntityCache
+ */
+public class EntityCacheTest {
+
+    private EntityCache entityCache;
+
+    @Before
+    public void setUp() {
+        entityCache = new EntityCache();
+        ReflectionTestUtils.setField(entityCache, "enabled", true);
+        ReflectionTestUtils.setField(entityCache, "maxEntities", 2);
+        ReflectionTestUtils.setField(entityCache, "ttl", 200);
+    }
+
+    @Test
+    public void queryFromCache() {
+        entityCache.update(UpdateAction.UPDATE, Collections.singletonList(createTemperaturePressureContextElement()));
+
+        QueryContextResponse response = entityCache.query(query(new EntityId("S1", "TempSensor", false), "temp"));
+        assertNotNull(response);
+        assertEquals(1, response.getContextElementResponses().size());
+        ContextElement contextElement = response.getContextElementResponses().get(0).getContextElement();
+        assertEquals("S1", contextElement.getEntityId().getId());
+        assertEquals(1, contextElement.getContextAttributeList().size());
+        assertEquals("temp", contextElement.getContextAttributeList().get(0).getName());
+        assertEquals("200", response.getContextElementResponses().get(0).getStatusCode().getCode());
+
+        response = entityCache.query(query(new EntityId("S1", "TempSensor", false), "temp", "pressure"));
+        assertEquals(2, response.getContextElementResponses().get(0).getContextElement().getContextAttributeList().size());
+        assertEquals(2, entityCache.getHits());
+    }
+
+    @Test
+    public void skipQueryWithoutAttributes() {
+        entityCache.update(UpdateAction.UPDATE, Collections.singletonList(createTemperaturePressureContextElement()));
+
+        // The remote broker may know more attributes than the ones updated through this broker
+        assertNull(entityCache.query(query(new EntityId("S1", "TempSensor", false))));
+        QueryContext queryContext = query(new EntityId("S1", "TempSensor", false));
+        queryContext.setAttributeList(null);
+        assertNull(entityCache.query(queryContext));
+        assertEquals(0, entityCache.getHits());
+        assertEquals(0, entityCache.getMisses());
+    }
+
+    @Test
+    public void skipQueryWithRestriction() {
+        entityCache.update(UpdateAction.UPDATE, Collections.singletonList(createTemperaturePressureContextElement()));
+
+        QueryContext queryContext = query(new EntityId("S1", "TempSensor", false), "temp");
+        queryContext.setRestriction(new Restriction());
+        assertNull(entityCache.query(queryContext));
+        assertEquals(0, entityCache.getHits());
+        assertEquals(0, entityCache.getMisses());
+    }
+
+    @Test
+    public void latestValuesAreMerged() {
+        entityCache.update(UpdateAction.APPEND, Collections.singletonList(createTemperatureContextElement(0)));
+        entityCache.update(UpdateAction.APPEND, Collections.singletonList(createTemperatureContextElement(1)));
+
+        QueryContextResponse response = entityCache.query(query(new EntityId("S1", "TempSensor", false), "temp"));
+        assertEquals(16.5, response.getContextElementResponses().get(0).getContextElement().getContextAttributeList().get(0).getValue());
+    }
+
+    @Test
+    public void missOnUnknownEntityOrAttribute() {
+        entityCache.update(UpdateAction.UPDATE, Collections.singletonList(createTemperatureContextElement(0)));
+
+        assertNull(entityCache.query(query(new EntityId("S2", "TempSensor", false), "temp")));
+        assertNull(entityCache.query(query(new EntityId("S1", "TempSensor", false), "pressure")));
+        assertNull(entityCache.query(query(new EntityId("S.*", "TempSensor", true), "temp")));
+        // All entities must be known
+        QueryContext queryContext = new QueryContext();
+        queryContext.setEntityIdList(Arrays.asList(new EntityId("S1", "TempSensor", false), new EntityId("P1", "PressureSensor", false)));
+        queryContext.setAttributeList(Collections.singletonList("temp"));
+        assertNull(entityCache.query(queryContext));
+        assertEquals(4, entityCache.getMisses());
+    }
+
+    @Test
+    public void missOnStaleValue() throws Exception {
+        entityCache.update(UpdateAction.UPDATE, Collections.singletonList(createTemperatureContextElement(0)));
+        Thread.sleep(300);
+        assertNull(entityCache.query(query(new EntityId("S1", "TempSensor", false), "temp")));
+    }
+
+    @Test
+    public void deleteRemovesEntity() {
+        entityCache.update(UpdateAction.UPDATE, Collections.singletonList(createTemperatureContextElement(0)));
+        entityCache.update(UpdateAction.DELETE, Collections.singletonList(createTemperatureContextElement(0)));
+        assertEquals(0, entityCache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntitiesAreEvicted() {
+        entityCache.update(UpdateAction.UPDATE, Collections.singletonList(createTemperatureContextElement(0)));
+        entityCache.update(UpdateAction.UPDATE, Collections.singletonList(createPressureContextElement()));
+        // S1 is used again, P1 is evicted
+        assertNotNull(entityCache.query(query(new EntityId("S1", "TempSensor", false), "temp")));
+        ContextElement contextElement = new ContextElement();
+        contextElement.setEntityId(new EntityId("S2", "TempSensor", false));
+        contextElement.setContextAttributeList(Collections.singletonList(new ContextAttribute("temp", "float", 20)));
+        entityCache.update(UpdateAction.UPDATE, Collections.singletonList(contextElement));
+
+        assertEquals(2, entityCache.size());
+        assertNotNull(entityCache.query(query(new EntityId("S1", "TempSensor", false), "temp")));
+        assertNull(entityCache.query(query(new EntityId("P1", "PressureSensor", false), "pressure")));
+    }
+
+    @Test
+    public void disabledCacheNeverAnswers() {
+        ReflectionTestUtils.setField(entityCache, "enabled", false);
+        entityCache.update(UpdateAction.UPDATE, Collections.singletonList(createTemperatureContextElement(0)));
+        assertNull(entityCache.query(query(new EntityId("S1", "TempSensor", false), "temp")));
+        assertEquals(0, entityCache.size());
+    }
+
+    private QueryContext query(EntityId entityId, String... attributes) {
+        QueryContext queryContext = new QueryContext();
+        queryContext.setEntityIdList(Collections.singletonList(entityId));
+        queryContext.setAttributeList(Arrays.asList(attributes));
+        return queryContext;
+    }
+}
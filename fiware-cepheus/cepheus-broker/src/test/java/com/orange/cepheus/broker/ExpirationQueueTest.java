@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.broker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ExpirationQueue
+ */
+public class ExpirationQueueTest {
+
+    private final List<String> expired = Collections.synchronizedList(new ArrayList<>());
+
+    private ExpirationQueue<String> expirationQueue;
+
+    @Before
+    public void setUp() {
+        expirationQueue = new ExpirationQueue<>("test-expiration", expired::addAll);
+        expirationQueue.start();
+    }
+
+    @After
+    public void tearDown() {
+        expirationQueue.stop();
+    }
+
+    @Test
+    public void expireInOrder() throws Exception {
+        Instant now = Instant.now();
+        expirationQueue.schedule("B", now.plus(200, ChronoUnit.MILLIS));
+        expirationQueue.schedule("A", now.plus(100, ChronoUnit.MILLIS));
+        expirationQueue.schedule("C", now.plus(1, ChronoUnit.HOURS));
+
+        Thread.sleep(500);
+
+        assertEquals(Arrays.asList("A", "B"), expired);
+        assertEquals(1, expirationQueue.size());
+    }
+
+    @Test
+    public void rescheduleAndCancel() throws Exception {
+        Instant now = Instant.now();
+        expirationQueue.schedule("A", now.plus(100, ChronoUnit.MILLIS));
+        expirationQueue.schedule("B", now.plus(100, ChronoUnit.MILLIS));
+        expirationQueue.schedule("A", now.plus(1, ChronoUnit.HOURS));
+        expirationQueue.cancel("B");
+
+        Thread.sleep(300);
+
+        assertTrue(expired.isEmpty());
+        assertEquals(1, expirationQueue.size());
+    }
+}
@@ -27,14 +27,13 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.SpringApplicationConfiguration;
-import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.util.Assert;
 
 import java.net.URI;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
 
 import static com.orange.cepheus.broker.Util.*;
@@ -59,6 +58,9 @@ public class LocalRegistrationsTest {
     @Mock
     protected RegistrationsRepository registrationsRepository;
 
+    @Autowired
+    private Patterns patterns;
+
     @Autowired
     @InjectMocks
     protected LocalRegistrations localRegistrations;
@@ -66,9 +68,6 @@ public class LocalRegistrationsTest {
     @Before
     public void setup() throws Exception {
         MockitoAnnotations.initMocks(this);
-
-        //setup registrationsRepository mock to respond the registration not exists in to the database
-        when(registrationsRepository.getRegistration(any())).thenThrow(EmptyResultDataAccessException.class);
     }
 
     @After
@@ -88,15 +87,15 @@ public class LocalRegistrationsTest {
         assertNotNull(registration.getExpirationDate());
 
         verify(remoteRegistrations).registerContext(eq(registerContext), eq(registrationId));
-        verify(registrationsRepository).getRegistration(eq(registrationId));
-        verify(registrationsRepository).saveRegistration(eq(registration));
+        verify(registrationsRepository).saveOrUpdateRegistration(eq(registration));
+        verify(registrationsRepository, never()).getRegistration(any());
     }
 
     @Test
     public void testRegistrationWithPersistenceException() throws Exception {
 
         thrown.expect(RegistrationPersistenceException.class);
-        doThrow(RegistrationPersistenceException.class).when(registrationsRepository).saveRegistration(any());
+        doThrow(RegistrationPersistenceException.class).when(registrationsRepository).saveOrUpdateRegistration(any());
 
         RegisterContext registerContext = createRegistrationContext();
         String registrationId = localRegistrations.updateRegistrationContext(registerContext);
@@ -106,31 +105,31 @@ public class LocalRegistrationsTest {
         assertNotNull(registration.getExpirationDate());
 
         verify(remoteRegistrations, never()).registerContext(eq(registerContext), eq(registrationId));
-        verify(registrationsRepository).getRegistration(eq(registrationId));
-        verify(registrationsRepository).saveRegistration(eq(registration));
+        verify(registrationsRepository).saveOrUpdateRegistration(eq(registration));
     }
 
     @Test
     public void testUpdateRegistration() throws Exception {
 
         RegisterContext registerContext = createRegistrationContext();
-        registerContext.setRegistrationId("12345");
-
-        Registration registration = new Registration(Instant.now().plus(1, ChronoUnit.DAYS), registerContext);
-
-        reset(registrationsRepository);
-        when(registrationsRepository.getRegistration(any())).thenReturn(registration);
-
         String registrationId = localRegistrations.updateRegistrationContext(registerContext);
-        Assert.hasLength(registrationId);
-        assertNotEquals("12345", registrationId);
+        Registration registration = localRegistrations.getRegistration(registrationId);
+
+        // Update the existing registration
+        RegisterContext registerContext2 = createRegistrationContext();
+        registerContext2.setRegistrationId(registrationId);
+        registerContext2.setDuration("PT20S");
+        String registrationId2 = localRegistrations.updateRegistrationContext(registerContext2);
+        assertEquals(registrationId, registrationId2);
         Registration registration2 = localRegistrations.getRegistration(registrationId);
         assertNotNull(registration2);
-        assertNotNull(registration2.getExpirationDate());
+        assertEquals(registerContext2, registration2.getRegisterContext());
+        assertTrue(registration2.getExpirationDate().isAfter(registration.getExpirationDate()));
 
-        verify(remoteRegistrations).registerContext(eq(registerContext), eq(registrationId));
-        verify(registrationsRepository).getRegistration(eq(registrationId));
-        verify(registrationsRepository).updateRegistration(eq(registration));
+        verify(remoteRegistrations).registerContext(eq(registerContext2), eq(registrationId));
+        verify(registrationsRepository).saveOrUpdateRegistration(eq(registration));
+        verify(registrationsRepository).saveOrUpdateRegistration(eq(registration2));
+        verify(registrationsRepository, never()).getRegistration(any());
     }
 
     @Test
@@ -237,7 +236,7 @@ public class LocalRegistrationsTest {
     @Test
     public void testRegistrationPurgeWithPersistenceException() throws Exception {
 
-        doThrow(RegistrationPersistenceException.class).when(registrationsRepository).removeRegistration(any());
+        doThrow(RegistrationPersistenceException.class).when(registrationsRepository).removeRegistrations(any());
 
         RegisterContext registerContext = createRegistrationContext();
         registerContext.setDuration("PT1S"); // 1 s only
@@ -252,7 +251,22 @@ public class LocalRegistrationsTest {
         assertNull(localRegistrations.getRegistration(registrationId));
 
         verify(remoteRegistrations).removeRegistration(registrationId);
-        verify(registrationsRepository).removeRegistration(registrationId);
+        verify(registrationsRepository).removeRegistrations(Collections.singletonList(registrationId));
+    }
+
+    @Test
+    public void testRenewedRegistrationNotExpired() throws Exception {
+        RegisterContext registerContext = createRegistrationContext();
+        registerContext.setDuration("PT1H");
+        String registrationId = localRegistrations.updateRegistrationContext(registerContext);
+
+        // Expiration of the previous instance triggered while the registration was renewed
+        ReflectionTestUtils.invokeMethod(localRegistrations, "expireRegistrations", Collections.singletonList(registrationId));
+
+        assertNotNull(localRegistrations.getRegistration(registrationId));
+        assertTrue(localRegistrations.findProvidingApplication(new EntityId("SENSOR1", "string", false), null).hasNext());
+        verify(remoteRegistrations, never()).removeRegistration(registrationId);
+        verify(registrationsRepository, never()).removeRegistrations(any());
     }
 
     @Test
@@ -398,4 +412,59 @@ public class LocalRegistrationsTest {
         it = localRegistrations.findProvidingApplication(searchedEntityId, null);
         assertFalse(it.hasNext());
     }
+
+    @Test
+    public void testFindAfterUpdateAndRemove() throws Exception {
+        String registrationId = localRegistrations.updateRegistrationContext(createRegistrationContext("A", "string", false, "http://A", "temp"));
+
+        // Update the registration with another entity
+        RegisterContext registerContext = createRegistrationContext("B", "string", false, "http://A", "temp");
+        registerContext.setRegistrationId(registrationId);
+        assertEquals(registrationId, localRegistrations.updateRegistrationContext(registerContext));
+
+        assertFalse(localRegistrations.findProvidingApplication(new EntityId("A", "string", false), null).hasNext());
+        Iterator<URI> it = localRegistrations.findProvidingApplication(new EntityId("B", "string", false), Collections.singleton("temp"));
+        assertTrue(it.hasNext());
+        assertEquals("http://A", it.next().toString());
+        assertFalse(it.hasNext());
+
+        // Remove the registration using a zero duration
+        RegisterContext zeroDuration = createRegistrationContext("B", "string", false, "http://A", "temp");
+        zeroDuration.setRegistrationId(registrationId);
+        zeroDuration.setDuration("PT0S");
+        localRegistrations.updateRegistrationContext(zeroDuration);
+
+        assertFalse(localRegistrations.findProvidingApplication(new EntityId("B", "string", false), null).hasNext());
+    }
+
+    @Test
+    public void testRegistrationsRestoredOnStartup() throws Exception {
+        RegisterContext registerContext = createRegistrationContext("A", "string", false, "http://A", "temp");
+        registerContext.setRegistrationId("restored");
+        RegisterContext expiredContext = createRegistrationContext("B", "string", false, "http://B", "temp");
+        expiredContext.setRegistrationId("expired");
+        Map<String, Registration> savedRegistrations = new HashMap<>();
+        savedRegistrations.put("restored", new Registration(Instant.now().plusSeconds(60), registerContext));
+        savedRegistrations.put("expired", new Registration(Instant.now().minusSeconds(60), expiredContext));
+        when(registrationsRepository.getAllRegistrations()).thenReturn(savedRegistrations);
+
+        LocalRegistrations restoredRegistrations = new LocalRegistrations();
+        ReflectionTestUtils.setField(restoredRegistrations, "patterns", patterns);
+        restoredRegistrations.remoteRegistrations = remoteRegistrations;
+        restoredRegistrations.registrationsRepository = registrationsRepository;
+        restoredRegistrations.init();
+        try {
+            assertNotNull(restoredRegistrations.getRegistration("restored"));
+            Iterator<URI> it = restoredRegistrations.findProvidingApplication(new EntityId("A", "string", false), null);
+            assertTrue(it.hasNext());
+            assertEquals("http://A", it.next().toString());
+
+            // Expired while stopped
+            assertNull(restoredRegistrations.getRegistration("expired"));
+            assertFalse(restoredRegistrations.findProvidingApplication(new EntityId("B", "string", false), null).hasNext());
+            verify(registrationsRepository).removeRegistrations(Collections.singletonList("expired"));
+        } finally {
+            restoredRegistrations.shutdown();
+        }
+    }
 }
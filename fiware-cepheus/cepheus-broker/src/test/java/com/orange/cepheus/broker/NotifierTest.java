@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.cepheus.broker.model.Subscription;
+import com.orange.ngsi.client.NgsiClient;
+import com.orange.ngsi.model.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.*;
+import org.springframework.http.converter.ByteArrayHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.orange.cepheus.broker.Util.*;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the Notifier
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class NotifierTest {
+
+    @Mock
+    NgsiClient ngsiClient;
+
+    @Mock
+    AsyncRestTemplate asyncRestTemplate;
+
+    @InjectMocks
+    Notifier notifier;
+
+    private final MappingJackson2HttpMessageConverter jsonConverter = new MappingJackson2HttpMessageConverter();
+
+    private final AtomicInteger writes = new AtomicInteger();
+
+    private final List<SettableListenableFuture<ResponseEntity<NotifyContextResponse>>> requests = Collections.synchronizedList(new ArrayList<>());
+
+    private URI originator;
+
+    @Before
+    public void setUp() throws Exception {
+        ReflectionTestUtils.setField(notifier, "threads", 1);
+        ReflectionTestUtils.setField(notifier, "queueSize", 1);
+        ReflectionTestUtils.setField(notifier, "maxInFlight", 1);
+        ReflectionTestUtils.setField(notifier, "overflowPolicy", Notifier.OverflowPolicy.coalesce);
+        ReflectionTestUtils.setField(notifier, "retryMaxAttempts", 2);
+        ReflectionTestUtils.setField(notifier, "retryInitialBackoff", 10);
+        ReflectionTestUtils.setField(notifier, "retryMaxBackoff", 100);
+        notifier.init();
+
+        originator = new URI("http://localhost:8081");
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+        when(ngsiClient.getRequestHeaders(any())).thenReturn(httpHeaders);
+        when(asyncRestTemplate.getMessageConverters()).thenReturn(Arrays.<HttpMessageConverter<?>>asList(new ByteArrayHttpMessageConverter(), new CountingConverter()));
+        when(asyncRestTemplate.exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class))).then(invocation -> {
+            SettableListenableFuture<ResponseEntity<NotifyContextResponse>> future = new SettableListenableFuture<>();
+            requests.add(future);
+            return future;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        notifier.shutdown();
+    }
+
+    @Test
+    public void checkInFlightLimit() throws Exception {
+        Subscription subscription = createSubscription("1");
+        notifier.notifySubscriptions(Collections.singleton(subscription), originator, responses(createTemperatureContextElement(1)));
+        verify(asyncRestTemplate, timeout(1000)).exchange(eq("http://localhost:1028/accumulate"), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class));
+
+        // Second notification waits for the first one to complete
+        notifier.notifySubscriptions(Collections.singleton(subscription), originator, responses(createPressureContextElement()));
+        assertEquals(1, notifier.getPending());
+
+        awaitRequests(1);
+        requests.get(0).set(new ResponseEntity<>(notifyContextResponse(), HttpStatus.OK));
+        verify(asyncRestTemplate, timeout(1000).times(2)).exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class));
+        assertEquals(0, notifier.getPending());
+    }
+
+    @Test
+    public void coalesceWhenQueueIsFull() throws Exception {
+        Subscription subscription = createSubscription("1");
+        notifier.notifySubscriptions(Collections.singleton(subscription), originator, responses(createTemperatureContextElement(1)));
+        verify(asyncRestTemplate, timeout(1000)).exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class));
+
+        notifier.notifySubscriptions(Collections.singleton(subscription), originator, responses(createTemperatureContextElement(2)));
+        notifier.notifySubscriptions(Collections.singleton(subscription), originator, responses(createPressureContextElement()));
+        notifier.notifySubscriptions(Collections.singleton(subscription), originator, responses(createTemperatureContextElement(3)));
+        assertEquals(1, notifier.getPending());
+        assertEquals(2, notifier.getCoalesced());
+        assertEquals(0, notifier.getDropped());
+
+        // Latest value of each entity is notified
+        awaitRequests(1);
+        requests.get(0).set(new ResponseEntity<>(notifyContextResponse(), HttpStatus.OK));
+        ArgumentCaptor<HttpEntity> httpEntityArg = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(asyncRestTemplate, timeout(1000).times(2)).exchange(anyString(), eq(HttpMethod.POST), httpEntityArg.capture(), eq(NotifyContextResponse.class));
+        List<ContextElementResponse> contextElementResponses = notifyContext(httpEntityArg.getValue()).getContextElementResponseList();
+        assertEquals(2, contextElementResponses.size());
+        assertEquals("S1", contextElementResponses.get(0).getContextElement().getEntityId().getId());
+        assertEquals(18.5, contextElementResponses.get(0).getContextElement().getContextAttributeList().get(0).getValue());
+        assertEquals("P1", contextElementResponses.get(1).getContextElement().getEntityId().getId());
+    }
+
+    @Test
+    public void dropOldestWhenQueueIsFull() throws Exception {
+        ReflectionTestUtils.setField(notifier, "overflowPolicy", Notifier.OverflowPolicy.dropOldest);
+
+        notifier.notifySubscriptions(Collections.singleton(createSubscription("1")), originator, responses(createTemperatureContextElement(1)));
+        verify(asyncRestTemplate, timeout(1000)).exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class));
+
+        notifier.notifySubscriptions(Collections.singleton(createSubscription("2")), originator, responses(createTemperatureContextElement(2)));
+        notifier.notifySubscriptions(Collections.singleton(createSubscription("3")), originator, responses(createTemperatureContextElement(3)));
+        assertEquals(1, notifier.getPending());
+        assertEquals(1, notifier.getDropped());
+
+        awaitRequests(1);
+        requests.get(0).set(new ResponseEntity<>(notifyContextResponse(), HttpStatus.OK));
+        ArgumentCaptor<HttpEntity> httpEntityArg = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(asyncRestTemplate, timeout(1000).times(2)).exchange(anyString(), eq(HttpMethod.POST), httpEntityArg.capture(), eq(NotifyContextResponse.class));
+        assertEquals("3", notifyContext(httpEntityArg.getValue()).getSubscriptionId());
+    }
+
+    @Test
+    public void encodeOncePerContentType() throws Exception {
+        List<Subscription> subscriptions = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Subscription subscription = createSubscription(String.valueOf(i));
+            subscription.getSubscribeContext().setReference(new URI("http://localhost:1028/accumulate" + i));
+            subscriptions.add(subscription);
+        }
+        notifier.notifySubscriptions(subscriptions, originator, responses(createTemperatureContextElement(1)));
+
+        ArgumentCaptor<HttpEntity> httpEntityArg = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(asyncRestTemplate, timeout(1000).times(3)).exchange(anyString(), eq(HttpMethod.POST), httpEntityArg.capture(), eq(NotifyContextResponse.class));
+        assertEquals(1, writes.get());
+
+        Set<String> subscriptionIds = new HashSet<>();
+        for (HttpEntity httpEntity : httpEntityArg.getAllValues()) {
+            NotifyContext notifyContext = notifyContext(httpEntity);
+            subscriptionIds.add(notifyContext.getSubscriptionId());
+            assertEquals(originator, notifyContext.getOriginator());
+            assertEquals("S1", notifyContext.getContextElementResponseList().get(0).getContextElement().getEntityId().getId());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("0", "1", "2")), subscriptionIds);
+    }
+
+    @Test
+    public void retryOnTransientFailure() throws Exception {
+        notifier.notifySubscriptions(Collections.singleton(createSubscription("1")), originator, responses(createTemperatureContextElement(1)));
+        verify(asyncRestTemplate, timeout(1000)).exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class));
+
+        awaitRequests(1);
+        requests.get(0).setException(new ResourceAccessException("connection refused"));
+        verify(asyncRestTemplate, timeout(1000).times(2)).exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class));
+
+        // Give up after the maximum number of attempts
+        awaitRequests(2);
+        requests.get(1).setException(new ResourceAccessException("connection refused"));
+        Thread.sleep(200);
+        verify(asyncRestTemplate, times(2)).exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class));
+        assertEquals(2, notifier.getFailed());
+    }
+
+    @Test
+    public void holdQueueDuringRetry() throws Exception {
+        ReflectionTestUtils.setField(notifier, "queueSize", 10);
+        Subscription subscription = createSubscription("1");
+        notifier.notifySubscriptions(Collections.singleton(subscription), originator, responses(createTemperatureContextElement(1)));
+        awaitRequests(1);
+        notifier.notifySubscriptions(Collections.singleton(subscription), originator, responses(createTemperatureContextElement(2)));
+        requests.get(0).setException(new ResourceAccessException("connection refused"));
+
+        // The failed notification is retried before the newer one
+        awaitRequests(2);
+        requests.get(1).set(new ResponseEntity<>(notifyContextResponse(), HttpStatus.OK));
+        ArgumentCaptor<HttpEntity> httpEntityArg = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(asyncRestTemplate, timeout(1000).times(3)).exchange(anyString(), eq(HttpMethod.POST), httpEntityArg.capture(), eq(NotifyContextResponse.class));
+        List<HttpEntity> httpEntities = httpEntityArg.getAllValues();
+        assertEquals(16.5, notifyContext(httpEntities.get(1)).getContextElementResponseList().get(0).getContextElement().getContextAttributeList().get(0).getValue());
+        assertEquals(17.5, notifyContext(httpEntities.get(2)).getContextElementResponseList().get(0).getContextElement().getContextAttributeList().get(0).getValue());
+    }
+
+    @Test
+    public void evictIdleQueues() throws Exception {
+        notifier.notifySubscriptions(Collections.singleton(createSubscription("1")), originator, responses(createTemperatureContextElement(1)));
+        awaitRequests(1);
+        Map<String, ?> queues = (Map<String, ?>) ReflectionTestUtils.getField(notifier, "queues");
+        assertEquals(1, queues.size());
+
+        requests.get(0).set(new ResponseEntity<>(notifyContextResponse(), HttpStatus.OK));
+        assertEquals(0, queues.size());
+
+        // A new queue is created for the next notification
+        notifier.notifySubscriptions(Collections.singleton(createSubscription("1")), originator, responses(createTemperatureContextElement(2)));
+        verify(asyncRestTemplate, timeout(1000).times(2)).exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class));
+    }
+
+    @Test
+    public void noRetryOnClientError() throws Exception {
+        notifier.notifySubscriptions(Collections.singleton(createSubscription("1")), originator, responses(createTemperatureContextElement(1)));
+        verify(asyncRestTemplate, timeout(1000)).exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class));
+
+        awaitRequests(1);
+        requests.get(0).setException(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+        Thread.sleep(200);
+        verify(asyncRestTemplate, times(1)).exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(NotifyContextResponse.class));
+        assertEquals(1, notifier.getFailed());
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && requests.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private Subscription createSubscription(String subscriptionId) throws Exception {
+        return new Subscription(subscriptionId, Instant.now().plus(1, ChronoUnit.DAYS), createSubscribeContextTemperature());
+    }
+
+    private List<ContextElementResponse> responses(ContextElement contextElement) {
+        return Collections.singletonList(new ContextElementResponse(contextElement, new StatusCode(CodeEnum.CODE_200)));
+    }
+
+    /**
+     * JSON converter counting the encoded requests
+     */
+    private class CountingConverter implements HttpMessageConverter<Object> {
+
+        @Override
+        public boolean canRead(Class<?> clazz, MediaType mediaType) {
+            return jsonConverter.canRead(clazz, mediaType);
+        }
+
+        @Override
+        public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+            return jsonConverter.canWrite(clazz, mediaType);
+        }
+
+        @Override
+        public List<MediaType> getSupportedMediaTypes() {
+            return jsonConverter.getSupportedMediaTypes();
+        }
+
+        @Override
+        public Object read(Class<?> clazz, HttpInputMessage inputMessage) throws IOException {
+            return jsonConverter.read(clazz, inputMessage);
+        }
+
+        @Override
+        public void write(Object o, MediaType contentType, HttpOutputMessage outputMessage) throws IOException {
+            writes.incrementAndGet();
+            jsonConverter.write(o, contentType, outputMessage);
+        }
+    }
+
+    private NotifyContext notifyContext(HttpEntity httpEntity) throws Exception {
+        return jsonConverter.getObjectMapper().readValue((byte[]) httpEntity.getBody(), NotifyContext.class);
+    }
+
+    private NotifyContextResponse notifyContextResponse() {
+        NotifyContextResponse notifyContextResponse = new NotifyContextResponse();
+        notifyContextResponse.setResponseCode(new StatusCode(CodeEnum.CODE_200));
+        return notifyContextResponse;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.broker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the PatternMatcher
+ */
+public class PatternMatcherTest {
+
+    private static final String[] PATTERNS = {
+            ".*", "Room", "Room.*", "^Room", "^Room.*", "^Room1$", "^Room1.*$", "^Room[0-9]+$", "^Ro+m",
+            "^Room|Hall", "[0-9]$", "^$", "^Room\\.1", "(?i)^room"
+    };
+
+    private static final String[] IDS = {
+            "", "Room", "Room1", "Room12", "MyRoom1", "Hall", "Rm", "Room.1", "ROOM2", "Roooom"
+    };
+
+    private PatternMatcher patternMatcher;
+
+    @Before
+    public void setUp() {
+        patternMatcher = new PatternMatcher(new Patterns());
+        for (String pattern : PATTERNS) {
+            patternMatcher.add(pattern);
+        }
+    }
+
+    @Test
+    public void sameResultsAsFind() {
+        for (String id : IDS) {
+            assertEquals("matching " + id, expected(id, PATTERNS), match(id));
+        }
+    }
+
+    @Test
+    public void removePatterns() {
+        patternMatcher.remove("^Room1$");
+        patternMatcher.remove("^Room.*");
+        patternMatcher.remove(".*");
+
+        Set<String> remaining = new HashSet<>(Arrays.asList(PATTERNS));
+        remaining.removeAll(Arrays.asList("^Room1$", "^Room.*", ".*"));
+        for (String id : IDS) {
+            assertEquals("matching " + id, expected(id, remaining.toArray(new String[remaining.size()])), match(id));
+        }
+    }
+
+    private Set<String> match(String id) {
+        Set<String> results = new HashSet<>();
+        patternMatcher.match(id, results::add);
+        return results;
+    }
+
+    private Set<String> expected(String id, String[] patterns) {
+        Set<String> results = new HashSet<>();
+        for (String pattern : patterns) {
+            if (Pattern.compile(pattern).matcher(id).find()) {
+                results.add(pattern);
+            }
+        }
+        return results;
+    }
+}
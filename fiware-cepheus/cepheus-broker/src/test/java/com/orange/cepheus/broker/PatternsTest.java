@@ -188,4 +188,13 @@ public class PatternsTest {
         Predicate<EntityId> entityIdPredicate = patterns.getFilterEntityId(entityIdsearch);
         assertFalse(entityIdPredicate.test(entityIdRegisterOrSubscribe));
     }
+
+    @Test
+    public void cacheIsBoundedTest() {
+        Patterns patterns = new Patterns();
+        for (int i = 0; i < 2000; i++) {
+            patterns.getPattern(new EntityId("A" + i + ".*", "string", true));
+        }
+        assertEquals(1000, patterns.cacheSize());
+    }
 }
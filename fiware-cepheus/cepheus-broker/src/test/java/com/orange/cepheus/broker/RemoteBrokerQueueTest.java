@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.ngsi.client.NgsiClient;
+import com.orange.ngsi.model.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.orange.cepheus.broker.Util.*;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the RemoteBrokerQueue
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class RemoteBrokerQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    NgsiClient ngsiClient;
+
+    @Mock
+    Configuration configuration;
+
+    private RemoteBrokerQueue remoteBrokerQueue;
+
+    private final AtomicBoolean available = new AtomicBoolean();
+
+    private final AtomicBoolean rejecting = new AtomicBoolean();
+
+    private final List<UpdateContext> requests = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        when(configuration.getRemoteUrl()).thenReturn("http://orionhost:9999");
+        when(ngsiClient.getRequestHeaders(any())).thenAnswer(invocation -> new HttpHeaders());
+        when(ngsiClient.updateContext(any(), any(), any())).thenAnswer(invocation -> {
+            SettableListenableFuture<UpdateContextResponse> future = new SettableListenableFuture<>();
+            if (rejecting.get()) {
+                future.setException(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+            } else if (available.get()) {
+                requests.add((UpdateContext) invocation.getArguments()[2]);
+                future.set(new UpdateContextResponse());
+            } else {
+                future.setException(new ResourceAccessException("Connection refused"));
+            }
+            return future;
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        remoteBrokerQueue.shutdown();
+    }
+
+    @Test
+    public void sendQueuedUpdatesAfterRestart() throws Exception {
+        remoteBrokerQueue = start(false);
+        remoteBrokerQueue.add(createUpdateContextTempSensor(0));
+        remoteBrokerQueue.add(createUpdateContextPressureSensor());
+        UpdateContext delete = new UpdateContext(UpdateAction.DELETE);
+        delete.setContextElements(Collections.singletonList(createTemperatureContextElement(0)));
+        remoteBrokerQueue.add(delete);
+        remoteBrokerQueue.shutdown();
+
+        available.set(true);
+        remoteBrokerQueue = start(false);
+        awaitPendingBytes(0);
+
+        // One request per consecutive updates of the same action
+        assertEquals(2, requests.size());
+        assertEquals(UpdateAction.UPDATE, requests.get(0).getUpdateAction());
+        assertEquals(2, requests.get(0).getContextElements().size());
+        assertEquals("S1", requests.get(0).getContextElements().get(0).getEntityId().getId());
+        assertEquals("P1", requests.get(0).getContextElements().get(1).getEntityId().getId());
+        assertEquals(UpdateAction.DELETE, requests.get(1).getUpdateAction());
+        assertEquals(1, requests.get(1).getContextElements().size());
+    }
+
+    @Test
+    public void coalesceUpdatesOfTheSameEntity() throws Exception {
+        remoteBrokerQueue = start(true);
+        remoteBrokerQueue.add(createUpdateContextTempSensorAndPressure());
+        remoteBrokerQueue.add(createUpdateContextPressureSensor());
+        remoteBrokerQueue.add(createUpdateContextTempSensor(1));
+        remoteBrokerQueue.shutdown();
+
+        available.set(true);
+        remoteBrokerQueue = start(true);
+        awaitPendingBytes(0);
+
+        assertEquals(1, requests.size());
+        List<ContextElement> contextElements = requests.get(0).getContextElements();
+        assertEquals(2, contextElements.size());
+        assertEquals("S1", contextElements.get(0).getEntityId().getId());
+        assertEquals(2, contextElements.get(0).getContextAttributeList().size());
+        assertEquals("temp", contextElements.get(0).getContextAttributeList().get(0).getName());
+        assertEquals(16.5, contextElements.get(0).getContextAttributeList().get(0).getValue());
+        assertEquals("pressure", contextElements.get(0).getContextAttributeList().get(1).getName());
+        assertEquals("P1", contextElements.get(1).getEntityId().getId());
+    }
+
+    @Test
+    public void dropRejectedUpdates() throws Exception {
+        rejecting.set(true);
+        remoteBrokerQueue = start(false);
+        remoteBrokerQueue.add(createUpdateContextTempSensor(0));
+        awaitPendingBytes(0);
+
+        assertEquals(0, remoteBrokerQueue.getPendingBytes());
+        assertEquals(0, requests.size());
+    }
+
+    private RemoteBrokerQueue start(boolean coalesce) throws Exception {
+        RemoteBrokerQueue queue = new RemoteBrokerQueue();
+        ReflectionTestUtils.setField(queue, "enabled", true);
+        ReflectionTestUtils.setField(queue, "directory", folder.getRoot().getPath());
+        ReflectionTestUtils.setField(queue, "segmentSize", 1024);
+        ReflectionTestUtils.setField(queue, "maxSize", 1024 * 1024);
+        ReflectionTestUtils.setField(queue, "batchSize", 10);
+        ReflectionTestUtils.setField(queue, "coalesce", coalesce);
+        ReflectionTestUtils.setField(queue, "requestTimeout", 1000);
+        ReflectionTestUtils.setField(queue, "retryDelay", 10);
+        ReflectionTestUtils.setField(queue, "maxRetryDelay", 10);
+        ReflectionTestUtils.setField(queue, "configuration", configuration);
+        ReflectionTestUtils.setField(queue, "ngsiClient", ngsiClient);
+        ReflectionTestUtils.setField(queue, "mapper", Jackson2ObjectMapperBuilder.json().build());
+        queue.init();
+        return queue;
+    }
+
+    private void awaitPendingBytes(long pendingBytes) throws InterruptedException {
+        for (int i = 0; i < 100 && remoteBrokerQueue.getPendingBytes() != pendingBytes; i++) {
+            Thread.sleep(10);
+        }
+    }
+}
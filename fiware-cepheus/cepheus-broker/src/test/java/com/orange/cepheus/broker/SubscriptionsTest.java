@@ -294,4 +294,46 @@ public class SubscriptionsTest {
         it = subscriptions.findSubscriptions(searchedEntityId, null);
         assertFalse(it.hasNext());
     }
+
+    @Test
+    public void testFindAfterDelete() throws Exception {
+        String subscriptionId = subscriptions.addSubscription(createSubscribeContext("A", "string", false, "http://A", "temp"));
+        subscriptions.addSubscription(createSubscribeContext("A", "string", false, "http://A2", "temp"));
+
+        subscriptions.deleteSubscription(new UnsubscribeContext(subscriptionId));
+
+        Iterator<Subscription> it = subscriptions.findSubscriptions(new EntityId("A", "string", false), new HashSet<>(Arrays.asList("temp")));
+        assertTrue(it.hasNext());
+        assertEquals("http://A2", it.next().getSubscribeContext().getReference().toString());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testFindSubscriptionMatchingSeveralEntities() throws Exception {
+        SubscribeContext subscribeContext = createSubscribeContext("A", "string", false, "http://A", "temp");
+        subscribeContext.setEntityIdList(Arrays.asList(new EntityId("A", "string", false), new EntityId("A.*", "string", true)));
+        subscriptions.addSubscription(subscribeContext);
+
+        // Subscription is only returned once
+        Iterator<Subscription> it = subscriptions.findSubscriptions(new EntityId("A", "string", false), null);
+        assertTrue(it.hasNext());
+        it.next();
+        assertFalse(it.hasNext());
+
+        // Entities without type only match searches without type
+        it = subscriptions.findSubscriptions(new EntityId("A", null, false), null);
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void expiredSubscriptionsRemovedWithoutPurgeTest() throws Exception {
+        SubscribeContext subscribeContext = createSubscribeContextTemperature();
+        subscribeContext.setDuration("PT1S"); // 1s only
+        String subscriptionId = subscriptions.addSubscription(subscribeContext);
+
+        Thread.sleep(1500);
+
+        assertNull(subscriptions.getSubscription(subscriptionId));
+        Assert.isTrue(subscriptionsRepository.getAllSubscriptions().size()==0);
+    }
 }
@@ -17,6 +17,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -193,6 +194,12 @@ public class Util {
         return updateContext;
     }
 
+    static public UpdateContext createUpdateContextTempSensorAndPressureSensor() throws URISyntaxException {
+        UpdateContext updateContext = new UpdateContext(UpdateAction.UPDATE);
+        updateContext.setContextElements(Arrays.asList(createTemperatureContextElement(0), createPressureContextElement()));
+        return updateContext;
+    }
+
     static public UpdateContextResponse createUpdateContextResponseTempSensorAndPressure() throws URISyntaxException {
         ContextElementResponse contextElementResponse = new ContextElementResponse();
         contextElementResponse.setContextElement(createTemperaturePressureContextElement());
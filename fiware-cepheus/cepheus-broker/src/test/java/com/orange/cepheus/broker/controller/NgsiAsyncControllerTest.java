@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.controller;
+
+import com.orange.cepheus.broker.Application;
+import com.orange.cepheus.broker.Configuration;
+import com.orange.cepheus.broker.EntityCache;
+import com.orange.cepheus.broker.LocalRegistrations;
+import com.orange.cepheus.broker.Notifier;
+import com.orange.cepheus.broker.RemoteBrokerQueue;
+import com.orange.cepheus.broker.Subscriptions;
+import com.orange.ngsi.client.NgsiClient;
+import com.orange.ngsi.model.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.context.WebApplicationContext;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.net.URI;
+import java.util.Collections;
+
+import static com.orange.cepheus.broker.Util.*;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+/**
+ * Tests for the asynchronous NGSI operations
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@TestPropertySource(properties = { "ngsi.async.enabled=true", "ngsi.async.timeout=1000" })
+public class NgsiAsyncControllerTest {
+
+    private MockMvc mockMvc;
+
+    @Mock
+    LocalRegistrations localRegistrations;
+
+    @Mock
+    Subscriptions subscriptions;
+
+    @Mock
+    NgsiClient ngsiClient;
+
+    @Mock
+    Configuration configuration;
+
+    @Mock
+    Notifier notifier;
+
+    @Mock
+    EntityCache entityCache;
+
+    @Mock
+    RemoteBrokerQueue remoteBrokerQueue;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private MappingJackson2HttpMessageConverter mapper;
+
+    @InjectMocks
+    @Autowired
+    private NgsiController ngsiController;
+
+    private HttpHeaders httpHeaders = new HttpHeaders();
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        this.mockMvc = webAppContextSetup(webApplicationContext).build();
+        when(configuration.getLocalUrl()).thenReturn("http://localhost:8081");
+        when(configuration.getRemoteUrl()).thenReturn("http://orionhost:9999");
+        when(configuration.isRemoteForwardUpdateContext()).thenReturn(true);
+        when(subscriptions.findSubscriptions(any(), any())).thenReturn(Collections.emptyIterator());
+        httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+        httpHeaders.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+        when(ngsiClient.getRequestHeaders(any())).thenReturn(httpHeaders);
+    }
+
+    @After
+    public void resetMocks() {
+        reset(localRegistrations);
+        reset(subscriptions);
+        reset(ngsiClient);
+        reset(configuration);
+        reset(notifier);
+        reset(entityCache);
+        reset(remoteBrokerQueue);
+    }
+
+    @Test
+    public void postQueryContextWithProvidingApplication() throws Exception {
+        when(localRegistrations.findProvidingApplication(any(), any())).thenReturn(Collections.singletonList(new URI("http://iotagent:1234")).iterator());
+        SettableListenableFuture<QueryContextResponse> queryContextResponse = new SettableListenableFuture<>();
+        when(ngsiClient.queryContext(any(), any(), any())).thenReturn(queryContextResponse);
+
+        MvcResult mvcResult = mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, createQueryContextTemperature()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        // The request thread is released before the providing application answers
+        verify(ngsiClient).queryContext(eq("http://iotagent:1234"), any(), any());
+        queryContextResponse.set(createQueryContextResponseTemperature());
+
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].statusCode.code").value("200"));
+    }
+
+    @Test
+    public void postQueryContextWithTimeout() throws Exception {
+        when(localRegistrations.findProvidingApplication(any(), any())).thenReturn(Collections.emptyIterator());
+        SettableListenableFuture<QueryContextResponse> queryContextResponse = new SettableListenableFuture<>();
+        when(ngsiClient.queryContext(any(), any(), any())).thenReturn(queryContextResponse);
+
+        MvcResult mvcResult = mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, createQueryContextTemperature()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        // Simulate the timeout of the servlet container
+        MockAsyncContext asyncContext = (MockAsyncContext) mvcResult.getRequest().getAsyncContext();
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onTimeout(new AsyncEvent(asyncContext));
+        }
+
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode.code").value("500"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode.details").value("No response received within 1000 ms"));
+
+        // The pending request to the remote broker is abandoned
+        assertTrue(queryContextResponse.isCancelled());
+    }
+
+    @Test
+    public void postQueryContextWithMissingEntities() throws Exception {
+        MvcResult mvcResult = mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, new QueryContext()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode.code").value(CodeEnum.CODE_471.getLabel()))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode.details")
+                        .value("The parameter entities of type List<EntityId> is missing in the request"));
+
+        verify(ngsiClient, never()).queryContext(any(), any(), any());
+    }
+
+    @Test
+    public void postUpdateContextToSeveralProvidingApplications() throws Exception {
+        when(localRegistrations.findProvidingApplication(any(), any())).thenAnswer(invocation -> {
+            EntityId entityId = (EntityId) invocation.getArguments()[0];
+            return Collections.singletonList(new URI("http://iotagent-" + entityId.getId() + ":1234")).iterator();
+        });
+        SettableListenableFuture<UpdateContextResponse> temperatureResponse = new SettableListenableFuture<>();
+        SettableListenableFuture<UpdateContextResponse> pressureResponse = new SettableListenableFuture<>();
+        when(ngsiClient.updateContext(eq("http://iotagent-S1:1234"), any(), any())).thenReturn(temperatureResponse);
+        when(ngsiClient.updateContext(eq("http://iotagent-P1:1234"), any(), any())).thenReturn(pressureResponse);
+
+        UpdateContext updateContext = createUpdateContextTempSensorAndPressureSensor();
+        MvcResult mvcResult = mockMvc.perform(post("/v1/updateContext")
+                .content(json(mapper, updateContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        // The providing applications answer in any order, one of them failing
+        pressureResponse.setException(new RuntimeException("connection refused"));
+        UpdateContextResponse updateContextResponse = new UpdateContextResponse();
+        updateContextResponse.setContextElementResponses(Collections.singletonList(
+                new ContextElementResponse(updateContext.getContextElements().get(0), new StatusCode(CodeEnum.CODE_200))));
+        temperatureResponse.set(updateContextResponse);
+
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].statusCode.code").value("200"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].contextElement.id").value("P1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].statusCode.code").value("500"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].statusCode.details").value("connection refused"));
+    }
+}
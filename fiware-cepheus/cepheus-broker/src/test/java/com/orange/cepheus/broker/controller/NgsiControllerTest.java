@@ -10,7 +10,10 @@ package com.orange.cepheus.broker.controller;
 
 import com.orange.cepheus.broker.Application;
 import com.orange.cepheus.broker.Configuration;
+import com.orange.cepheus.broker.EntityCache;
 import com.orange.cepheus.broker.LocalRegistrations;
+import com.orange.cepheus.broker.Notifier;
+import com.orange.cepheus.broker.RemoteBrokerQueue;
 import com.orange.cepheus.broker.Subscriptions;
 import com.orange.cepheus.broker.exception.RegistrationException;
 import com.orange.cepheus.broker.exception.RegistrationPersistenceException;
@@ -30,6 +33,7 @@ import org.springframework.dao.DataAccessException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
@@ -40,8 +44,12 @@ import org.springframework.web.context.WebApplicationContext;
 import java.net.URI;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
@@ -81,6 +89,15 @@ public class NgsiControllerTest {
     @Mock
     Configuration configuration;
 
+    @Mock
+    Notifier notifier;
+
+    @Mock
+    EntityCache entityCache;
+
+    @Mock
+    RemoteBrokerQueue remoteBrokerQueue;
+
     @Mock
     Iterator<URI> providingApplication;
 
@@ -108,6 +125,12 @@ public class NgsiControllerTest {
     @Captor
     private ArgumentCaptor<EntityId> entityIdArgumentCaptor;
 
+    @Captor
+    private ArgumentCaptor<Collection<Subscription>> subscriptionsArgumentCaptor;
+
+    @Captor
+    private ArgumentCaptor<List<ContextElementResponse>> contextElementResponsesArgumentCaptor;
+
     @InjectMocks
     @Autowired
     private NgsiController ngsiController;
@@ -139,6 +162,9 @@ public class NgsiControllerTest {
         reset(subscriptions);
         reset(ngsiClient);
         reset(configuration);
+        reset(notifier);
+        reset(entityCache);
+        reset(remoteBrokerQueue);
         reset(providingApplication);
         reset(matchedSubscriptions);
         reset(updateContextResponseListenableFuture);
@@ -282,6 +308,129 @@ public class NgsiControllerTest {
         verify(ngsiClient, never()).notifyContext(any(), any(), any());
     }
 
+    @Test
+    public void postUpdateContextWithoutProvidingApplicationQueuedForRemoteBroker() throws Exception {
+
+        when(providingApplication.hasNext()).thenReturn(false);
+        when(localRegistrations.findProvidingApplication(any(), any())).thenReturn(providingApplication);
+        when(matchedSubscriptions.hasNext()).thenReturn(false);
+        when(subscriptions.findSubscriptions(any(), any())).thenReturn(matchedSubscriptions);
+
+        //remoteBrokerQueue mock accepts all updates
+        when(remoteBrokerQueue.isEnabled()).thenReturn(true);
+        when(remoteBrokerQueue.add(any())).thenReturn(true);
+
+        mockMvc.perform(post("/v1/updateContext")
+                .content(json(mapper, createUpdateContextTempSensorAndPressure()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].statusCode.code").value("200"));
+
+        //check the update is queued instead of sent
+        ArgumentCaptor<UpdateContext> updateContextArg = ArgumentCaptor.forClass(UpdateContext.class);
+        verify(remoteBrokerQueue).add(updateContextArg.capture());
+        assertEquals("S1", updateContextArg.getValue().getContextElements().get(0).getEntityId().getId());
+        verify(ngsiClient, never()).updateContext(any(), any(), any());
+    }
+
+    @Test
+    public void postUpdateContextWithSeveralContextElements() throws Exception {
+
+        //localRegistrations mock return a providingApplication for S1 only
+        when(localRegistrations.findProvidingApplication(any(), any())).then(invocation -> {
+            EntityId entityId = (EntityId) invocation.getArguments()[0];
+            if ("S1".equals(entityId.getId())) {
+                return Collections.singletonList(new URI("http://iotagent:1234")).iterator();
+            }
+            return Collections.emptyIterator();
+        });
+        when(subscriptions.findSubscriptions(any(), any())).thenReturn(Collections.emptyIterator());
+        when(ngsiClient.updateContext(any(), any(), any())).thenReturn(updateContextResponseListenableFuture);
+
+        mockMvc.perform(post("/v1/updateContext")
+                .content(json(mapper, createUpdateContextTempSensorAndPressureSensor()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("P1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].statusCode.code").value("200"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].statusCode.code").value("200"));
+
+        verify(localRegistrations, times(2)).findProvidingApplication(any(), any());
+
+        // S1 is forwarded to the providing application only
+        ArgumentCaptor<UpdateContext> providerUpdateArg = ArgumentCaptor.forClass(UpdateContext.class);
+        verify(ngsiClient).updateContext(eq("http://iotagent:1234"), any(), providerUpdateArg.capture());
+        assertEquals(1, providerUpdateArg.getValue().getContextElements().size());
+        assertEquals("S1", providerUpdateArg.getValue().getContextElements().get(0).getEntityId().getId());
+        assertEquals(UpdateAction.UPDATE, providerUpdateArg.getValue().getUpdateAction());
+
+        // P1 is forwarded to the remote broker only
+        ArgumentCaptor<UpdateContext> remoteUpdateArg = ArgumentCaptor.forClass(UpdateContext.class);
+        verify(ngsiClient).updateContext(eq("http://orionhost:9999"), any(), remoteUpdateArg.capture());
+        assertEquals(1, remoteUpdateArg.getValue().getContextElements().size());
+        assertEquals("P1", remoteUpdateArg.getValue().getContextElements().get(0).getEntityId().getId());
+
+        // Only P1 is cached
+        ArgumentCaptor<List> cachedElementsArg = ArgumentCaptor.forClass(List.class);
+        verify(entityCache).update(eq(UpdateAction.UPDATE), cachedElementsArg.capture());
+        assertEquals(1, cachedElementsArg.getValue().size());
+        assertEquals("P1", ((ContextElement) cachedElementsArg.getValue().get(0)).getEntityId().getId());
+
+        // Only P1 is searched in subscriptions
+        verify(subscriptions).findSubscriptions(entityIdArgumentCaptor.capture(), any());
+        assertEquals("P1", entityIdArgumentCaptor.getValue().getId());
+        verify(notifier, never()).notifySubscriptions(any(), any(), any());
+    }
+
+    @Test
+    public void postUpdateContextWithSeveralContextElementsMergesNotifications() throws Exception {
+
+        //localRegistrations mock return always without providingApplication
+        when(providingApplication.hasNext()).thenReturn(false);
+        when(localRegistrations.findProvidingApplication(any(), any())).thenReturn(providingApplication);
+        when(ngsiClient.updateContext(any(), any(), any())).thenReturn(updateContextResponseListenableFuture);
+
+        // subscription1 and subscription3 match S1 and P1, subscription2 only P1
+        Subscription subscription1 = new Subscription("1", Instant.now().plus(1, ChronoUnit.DAYS), createSubscribeContextTemperature());
+        Subscription subscription2 = new Subscription("2", Instant.now().plus(1, ChronoUnit.DAYS), createSubscribeContextTemperature());
+        Subscription subscription3 = new Subscription("3", Instant.now().plus(1, ChronoUnit.DAYS), createSubscribeContextTemperature());
+        when(subscriptions.findSubscriptions(any(), any())).then(invocation -> {
+            EntityId entityId = (EntityId) invocation.getArguments()[0];
+            if ("S1".equals(entityId.getId())) {
+                return Arrays.asList(subscription1, subscription3).iterator();
+            }
+            return Arrays.asList(subscription2, subscription3, subscription1).iterator();
+        });
+
+        mockMvc.perform(post("/v1/updateContext")
+                .content(json(mapper, createUpdateContextTempSensorAndPressureSensor()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].contextElement.id").value("P1"));
+
+        // The whole update is forwarded to the remote broker
+        ArgumentCaptor<UpdateContext> remoteUpdateArg = ArgumentCaptor.forClass(UpdateContext.class);
+        verify(ngsiClient).updateContext(eq("http://orionhost:9999"), any(), remoteUpdateArg.capture());
+        assertEquals(2, remoteUpdateArg.getValue().getContextElements().size());
+
+        // One notification for each distinct set of matched context elements
+        verify(notifier, times(2)).notifySubscriptions(subscriptionsArgumentCaptor.capture(), eq(new URI("http://localhost:8081")), contextElementResponsesArgumentCaptor.capture());
+
+        List<Subscription> bothElements = new ArrayList<>(subscriptionsArgumentCaptor.getAllValues().get(0));
+        assertEquals(Arrays.asList(subscription1, subscription3), bothElements);
+        assertEquals(2, contextElementResponsesArgumentCaptor.getAllValues().get(0).size());
+
+        List<Subscription> pressureOnly = new ArrayList<>(subscriptionsArgumentCaptor.getAllValues().get(1));
+        assertEquals(Collections.singletonList(subscription2), pressureOnly);
+        assertEquals(1, contextElementResponsesArgumentCaptor.getAllValues().get(1).size());
+        assertEquals("P1", contextElementResponsesArgumentCaptor.getAllValues().get(1).get(0).getContextElement().getEntityId().getId());
+    }
+
     @Test
     public void checkRemoteBrokerNotCalledWhenForwardIsDisabled() throws Exception {
         // Disable updateContext forwarding to remote broker
@@ -363,15 +512,13 @@ public class NgsiControllerTest {
         //verify ngsiClient.updateContext is never called
         verify(ngsiClient, never()).updateContext(any(), any(), any());
 
-        //check ngsiClient.notify is called at least once
-        // Capture notifyContext when postNotifyContextRequest is called on updateContextRequest,
-        ArgumentCaptor<NotifyContext> notifyContextArg = ArgumentCaptor.forClass(NotifyContext.class);
-        verify(notifyContextResponseListenableFuture, atLeastOnce()).addCallback(any(), any());
-        String urlReference = subscribeContext.getReference().toString();
-        verify(ngsiClient, atLeastOnce()).notifyContextCustomURL(eq(urlReference), any(), notifyContextArg.capture());
+        //check the notification is queued to the matching subscription
+        verify(notifier).notifySubscriptions(subscriptionsArgumentCaptor.capture(), eq(new URI("http://localhost:8081")), contextElementResponsesArgumentCaptor.capture());
+        assertEquals(1, subscriptionsArgumentCaptor.getValue().size());
+        assertEquals("999999", subscriptionsArgumentCaptor.getValue().iterator().next().getSubscriptionId());
         // Check id and status correspond to the required
-        assertEquals(1, notifyContextArg.getValue().getContextElementResponseList().size());
-        ContextElementResponse contextElementResponse = notifyContextArg.getValue().getContextElementResponseList().get(0);
+        assertEquals(1, contextElementResponsesArgumentCaptor.getValue().size());
+        ContextElementResponse contextElementResponse = contextElementResponsesArgumentCaptor.getValue().get(0);
         assertEquals("S1", contextElementResponse.getContextElement().getEntityId().getId());
         assertEquals("200", contextElementResponse.getStatusCode().getCode());
     }
@@ -432,15 +579,13 @@ public class NgsiControllerTest {
         //verify ngsiClient.updateContext is never called
         verify(ngsiClient, never()).updateContext(any(), any(), any());
 
-        //check ngsiClient.notify is called at least once
-        // Capture notifyContext when postNotifyContextRequest is called on updateContextRequest,
-        ArgumentCaptor<NotifyContext> notifyContextArg = ArgumentCaptor.forClass(NotifyContext.class);
-        verify(notifyContextResponseListenableFuture, atLeastOnce()).addCallback(any(), any());
-        String urlReference = subscribeContext.getReference().toString();
-        verify(ngsiClient, atLeastOnce()).notifyContextCustomURL(eq(urlReference), any(), notifyContextArg.capture());
+        //check the notification is queued to the matching subscription
+        verify(notifier).notifySubscriptions(subscriptionsArgumentCaptor.capture(), eq(new URI("http://localhost:8081")), contextElementResponsesArgumentCaptor.capture());
+        assertEquals(1, subscriptionsArgumentCaptor.getValue().size());
+        assertEquals("999999", subscriptionsArgumentCaptor.getValue().iterator().next().getSubscriptionId());
         // Check id and status correspond to the required
-        assertEquals(1, notifyContextArg.getValue().getContextElementResponseList().size());
-        ContextElementResponse contextElementResponse = notifyContextArg.getValue().getContextElementResponseList().get(0);
+        assertEquals(1, contextElementResponsesArgumentCaptor.getValue().size());
+        ContextElementResponse contextElementResponse = contextElementResponsesArgumentCaptor.getValue().get(0);
         assertEquals("S1", contextElementResponse.getContextElement().getEntityId().getId());
         assertEquals("200", contextElementResponse.getStatusCode().getCode());
     }
@@ -501,15 +646,13 @@ public class NgsiControllerTest {
         //verify ngsiClient.updateContext is never called
         verify(ngsiClient, never()).updateContext(any(), any(), any());
 
-        //check ngsiClient.notify is called at least once
-        // Capture notifyContext when postNotifyContextRequest is called on updateContextRequest,
-        ArgumentCaptor<NotifyContext> notifyContextArg = ArgumentCaptor.forClass(NotifyContext.class);
-        verify(notifyContextResponseListenableFuture, atLeastOnce()).addCallback(any(), any());
-        String urlReference = subscribeContext.getReference().toString();
-        verify(ngsiClient, atLeastOnce()).notifyContextCustomURL(eq(urlReference), any(), notifyContextArg.capture());
+        //check the notification is queued to the matching subscription
+        verify(notifier).notifySubscriptions(subscriptionsArgumentCaptor.capture(), eq(new URI("http://localhost:8081")), contextElementResponsesArgumentCaptor.capture());
+        assertEquals(1, subscriptionsArgumentCaptor.getValue().size());
+        assertEquals("999999", subscriptionsArgumentCaptor.getValue().iterator().next().getSubscriptionId());
         // Check id and status correspond to the required
-        assertEquals(1, notifyContextArg.getValue().getContextElementResponseList().size());
-        ContextElementResponse contextElementResponse = notifyContextArg.getValue().getContextElementResponseList().get(0);
+        assertEquals(1, contextElementResponsesArgumentCaptor.getValue().size());
+        ContextElementResponse contextElementResponse = contextElementResponsesArgumentCaptor.getValue().get(0);
         assertEquals("S1", contextElementResponse.getContextElement().getEntityId().getId());
         assertEquals("200", contextElementResponse.getStatusCode().getCode());
     }
@@ -574,6 +717,7 @@ public class NgsiControllerTest {
         //check ngsiClient.notify is never called
         verify(notifyContextResponseListenableFuture, never()).addCallback(any(), any());
         verify(ngsiClient, never()).notifyContext(any(), any(), any());
+        verify(notifier, never()).notifySubscriptions(any(), any(), any());
     }
 
     @Test
@@ -636,6 +780,7 @@ public class NgsiControllerTest {
         //check ngsiClient.notify is never called
         verify(notifyContextResponseListenableFuture, never()).addCallback(any(), any());
         verify(ngsiClient, never()).notifyContext(any(), any(), any());
+        verify(notifier, never()).notifySubscriptions(any(), any(), any());
     }
 
     @Test
@@ -868,6 +1013,48 @@ public class NgsiControllerTest {
         assertEquals("S*", queryContextArg.getValue().getEntityIdList().get(0).getId());
     }
 
+    @Test
+    public void postQueryContextWithSeveralEntities() throws Exception {
+
+        //localRegistrations mock return a providingApplication for S1 only
+        when(localRegistrations.findProvidingApplication(any(), any())).then(invocation -> {
+            EntityId entityId = (EntityId) invocation.getArguments()[0];
+            if ("S1".equals(entityId.getId())) {
+                return Collections.singletonList(new URI("http://iotagent:1234")).iterator();
+            }
+            return Collections.emptyIterator();
+        });
+        when(ngsiClient.queryContext(eq("http://iotagent:1234"), any(), any())).thenReturn(new AsyncResult<>(createQueryContextResponseTemperature()));
+        QueryContextResponse remoteResponse = new QueryContextResponse();
+        remoteResponse.setContextElementResponses(Collections.singletonList(new ContextElementResponse(createPressureContextElement(), new StatusCode(CodeEnum.CODE_200))));
+        when(ngsiClient.queryContext(eq("http://orionhost:9999"), any(), any())).thenReturn(new AsyncResult<>(remoteResponse));
+
+        QueryContext queryContext = createQueryContextTemperature();
+        queryContext.setEntityIdList(Arrays.asList(new EntityId("S1", "TempSensor", false), new EntityId("P1", "PressureSensor", false)));
+
+        mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, queryContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].contextElement.id").value("P1"));
+
+        verify(localRegistrations, times(2)).findProvidingApplication(any(), any());
+
+        // Each entity is only queried from its own source
+        ArgumentCaptor<QueryContext> providerQueryArg = ArgumentCaptor.forClass(QueryContext.class);
+        verify(ngsiClient).queryContext(eq("http://iotagent:1234"), any(), providerQueryArg.capture());
+        assertEquals(1, providerQueryArg.getValue().getEntityIdList().size());
+        assertEquals("S1", providerQueryArg.getValue().getEntityIdList().get(0).getId());
+        assertEquals("temp", providerQueryArg.getValue().getAttributeList().get(0));
+
+        ArgumentCaptor<QueryContext> remoteQueryArg = ArgumentCaptor.forClass(QueryContext.class);
+        verify(ngsiClient).queryContext(eq("http://orionhost:9999"), any(), remoteQueryArg.capture());
+        assertEquals(1, remoteQueryArg.getValue().getEntityIdList().size());
+        assertEquals("P1", remoteQueryArg.getValue().getEntityIdList().get(0).getId());
+    }
+
     @Test
     public void postQueryContextWithProvidingApplicationWithNullAttributes() throws Exception {
 
@@ -979,6 +1166,29 @@ public class NgsiControllerTest {
         assertEquals("S*", queryContextArg.getValue().getEntityIdList().get(0).getId());
     }
 
+    @Test
+    public void postQueryContextFromCache() throws Exception {
+
+        //localRegistrations mock return always without providingApplication
+        when(providingApplication.hasNext()).thenReturn(false);
+        when(localRegistrations.findProvidingApplication(any(), any())).thenReturn(providingApplication);
+
+        //entityCache mock answers the query
+        when(entityCache.query(any())).thenReturn(createQueryContextResponseTemperature());
+
+        mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, createQueryContextTemperature()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].statusCode.code").value("200"));
+
+        //verify the query is not forwarded to the remote broker
+        verify(entityCache).query(any());
+        verify(ngsiClient, never()).queryContext(any(), any(), any());
+    }
+
     @Test
     public void postQueryContextWithNullRemoteBroker() throws Exception {
 
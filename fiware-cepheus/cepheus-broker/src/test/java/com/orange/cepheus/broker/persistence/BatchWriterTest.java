@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+import com.orange.cepheus.broker.Application;
+import com.orange.cepheus.broker.model.Subscription;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import static com.orange.cepheus.broker.Util.createSubscribeContextTemperature;
+
+/**
+ * Tests for BatchWriter in writeBehind mode
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@TestPropertySource(locations = "classpath:test.properties",
+        properties = { "persistence.mode=writeBehind", "persistence.flushInterval=60000", "persistence.maxPending=3" })
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class BatchWriterTest {
+
+    @Autowired
+    BatchWriter batchWriter;
+
+    @Autowired
+    SubscriptionsRepository subscriptionsRepository;
+
+    @Autowired
+    protected JdbcTemplate jdbcTemplate;
+
+    @Before
+    public void init() {
+        jdbcTemplate.execute("delete from t_subscriptions");
+    }
+
+    @Test
+    public void changesArePendingUntilFlushed() throws Exception {
+        subscriptionsRepository.saveSubscription(subscription("12345"));
+        subscriptionsRepository.saveSubscription(subscription("12346"));
+        Assert.assertEquals(2, batchWriter.getPending());
+        Assert.assertEquals(0, count());
+
+        batchWriter.flush();
+        Assert.assertEquals(0, batchWriter.getPending());
+        Assert.assertEquals(2, count());
+    }
+
+    @Test
+    public void latestChangeOfARowWins() throws Exception {
+        subscriptionsRepository.saveSubscription(subscription("12345"));
+        subscriptionsRepository.removeSubscription("12345");
+        Assert.assertEquals(1, batchWriter.getPending());
+
+        // Reads see the pending changes
+        Assert.assertEquals(0, subscriptionsRepository.getAllSubscriptions().size());
+        Assert.assertEquals(0, batchWriter.getPending());
+    }
+
+    @Test
+    public void flushWhenMaxPendingReached() throws Exception {
+        for (String id : new String[] { "12345", "12346", "12347" }) {
+            subscriptionsRepository.saveSubscription(subscription(id));
+        }
+        Assert.assertEquals(0, batchWriter.getPending());
+        Assert.assertEquals(3, count());
+    }
+
+    @Test
+    public void failedChangesAreKeptPending() throws Exception {
+        batchWriter.update("t_unknown:1", "insert into t_unknown(id) values(?)", "1");
+        try {
+            batchWriter.flush();
+            Assert.fail("flush should fail");
+        } catch (DataAccessException e) {
+            Assert.assertEquals(1, batchWriter.getPending());
+        }
+    }
+
+    private Subscription subscription(String subscriptionId) throws Exception {
+        return new Subscription(subscriptionId, Instant.now().plus(1, ChronoUnit.DAYS), createSubscribeContextTemperature());
+    }
+
+    private int count() {
+        return jdbcTemplate.queryForObject("select count(*) from t_subscriptions", Integer.class);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.ngsi.model.RegisterContext;
+import org.junit.Test;
+
+import static com.orange.cepheus.broker.Util.createRegistrationContext;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the PayloadCodec
+ */
+public class PayloadCodecTest {
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private PayloadCodec payloadCodec = new PayloadCodec();
+
+    @Test
+    public void encodeInBinary() throws Exception {
+        RegisterContext registerContext = createRegistrationContext();
+        registerContext.setRegistrationId("12345");
+
+        byte[] payload = payloadCodec.encode(registerContext);
+        assertTrue(payload.length < mapper.writeValueAsBytes(registerContext).length);
+        RegisterContext decoded = payloadCodec.decode(payload, RegisterContext.class);
+        assertEquals("12345", decoded.getRegistrationId());
+        assertEquals(registerContext.getDuration(), decoded.getDuration());
+        assertEquals("http://providingApplication", decoded.getContextRegistrationList().get(0).getProvidingApplication().toString());
+        assertEquals("SENSOR1", decoded.getContextRegistrationList().get(0).getEntityIdList().get(0).getId());
+    }
+}
@@ -8,6 +8,7 @@
 
 package com.orange.cepheus.broker.persistence;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.orange.cepheus.broker.Application;
 import com.orange.cepheus.broker.exception.RegistrationPersistenceException;
 import com.orange.cepheus.broker.exception.SubscriptionPersistenceException;
@@ -20,6 +21,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.SpringApplicationConfiguration;
@@ -28,6 +30,7 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.net.URISyntaxException;
 import java.sql.SQLException;
@@ -53,9 +56,21 @@ public class RegistrationsRepositoryTest {
     @Autowired
     RegistrationsRepository registrationsRepository;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Autowired
     protected JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private ObjectMapper mapper;
+
+    @Autowired
+    private BatchWriter batchWriter;
+
+    @Autowired
+    private PayloadCodec payloadCodec;
+
     @Before
     public void init() throws SQLException {
         jdbcTemplate.execute("delete from t_registrations");
@@ -147,6 +162,24 @@ public class RegistrationsRepositoryTest {
         Map<String, Registration> registrations = registrationsRepository.getAllRegistrations();
     }
 
+    @Test
+    public void saveOrUpdateRegistrationTest() throws URISyntaxException, RegistrationPersistenceException {
+        RegisterContext registerContext = createRegisterContextTemperature();
+        registerContext.setRegistrationId("12345");
+        Registration registration = new Registration(Instant.now().plus(1, ChronoUnit.DAYS), registerContext);
+        registrationsRepository.saveOrUpdateRegistration(registration);
+
+        // Replaces the saved registration
+        registerContext.setDuration("PT1D");
+        registration.setExpirationDate(Instant.now().plus(2, ChronoUnit.DAYS));
+        registrationsRepository.saveOrUpdateRegistration(registration);
+
+        Map<String, Registration> registrations = registrationsRepository.getAllRegistrations();
+        Assert.assertEquals(1, registrations.size());
+        Assert.assertEquals("PT1D", registrations.get("12345").getRegisterContext().getDuration());
+        Assert.assertEquals(registration.getExpirationDate(), registrations.get("12345").getExpirationDate());
+    }
+
     @Test
     public void getAllRegistrationsEmptyTest() throws URISyntaxException, RegistrationPersistenceException {
         Assert.assertEquals(0, registrationsRepository.getAllRegistrations().size());
@@ -177,4 +210,33 @@ public class RegistrationsRepositoryTest {
         jdbcTemplate.update("insert into t_registrations(id,expirationDate,registerContext) values(?,?,?)", "12345", expirationDate.toString(), "aaaaaa");
         Registration foundRegistration = registrationsRepository.getRegistration("12345");
     }
+
+    @Test
+    public void importIntoNewSnapshotStoreTest() throws Exception {
+        RegisterContext registerContext = createRegisterContextTemperature();
+        registerContext.setRegistrationId("12345");
+        registrationsRepository.saveRegistration(new Registration(Instant.now().plus(1, ChronoUnit.DAYS), registerContext));
+
+        // Switch to the snapshot backend
+        SnapshotStore snapshotStore = new SnapshotStore();
+        ReflectionTestUtils.setField(snapshotStore, "backend", SnapshotStore.Backend.snapshot);
+        ReflectionTestUtils.setField(snapshotStore, "directory", folder.getRoot().getPath());
+        ReflectionTestUtils.setField(snapshotStore, "compactionThreshold", 1000);
+        snapshotStore.init();
+        try {
+            RegistrationsRepository snapshotRepository = new RegistrationsRepository();
+            snapshotRepository.jdbcTemplate = jdbcTemplate;
+            ReflectionTestUtils.setField(snapshotRepository, "mapper", mapper);
+            ReflectionTestUtils.setField(snapshotRepository, "batchWriter", batchWriter);
+            ReflectionTestUtils.setField(snapshotRepository, "snapshotStore", snapshotStore);
+            ReflectionTestUtils.setField(snapshotRepository, "payloadCodec", payloadCodec);
+            snapshotRepository.createTableOnStartup();
+
+            Map<String, Registration> registrations = snapshotRepository.getAllRegistrations();
+            Assert.assertEquals(1, registrations.size());
+            Assert.assertEquals("PT10S", registrations.get("12345").getRegisterContext().getDuration());
+        } finally {
+            snapshotStore.shutdown();
+        }
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the SegmentedLog
+ */
+public class SegmentedLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readAndCommit() throws Exception {
+        try (SegmentedLog log = new SegmentedLog(folder.getRoot(), 1024, 1024 * 1024, false)) {
+            for (int i = 0; i < 5; i++) {
+                assertTrue(log.append(record(i)));
+            }
+
+            SegmentedLog.Batch batch = log.read(3);
+            assertEquals(3, batch.getRecords().size());
+            assertEquals("record-0", payload(batch.getRecords().get(0)));
+            assertEquals("record-2", payload(batch.getRecords().get(2)));
+
+            // Reading does not move the read position
+            assertEquals("record-0", payload(log.read(3).getRecords().get(0)));
+
+            log.commit(batch);
+            batch = log.read(10);
+            assertEquals(2, batch.getRecords().size());
+            assertEquals("record-3", payload(batch.getRecords().get(0)));
+
+            log.commit(batch);
+            assertEquals(0, log.read(10).getRecords().size());
+            assertEquals(0, log.pendingBytes());
+        }
+    }
+
+    @Test
+    public void consumedSegmentsAreDeleted() throws Exception {
+        // One record per segment
+        try (SegmentedLog log = new SegmentedLog(folder.getRoot(), 20, 1024 * 1024, false)) {
+            for (int i = 0; i < 10; i++) {
+                log.append(record(i));
+            }
+            assertEquals(10, segmentCount());
+
+            log.commit(log.read(5));
+            assertEquals(5, segmentCount());
+        }
+    }
+
+    @Test
+    public void resumeAfterReopen() throws Exception {
+        try (SegmentedLog log = new SegmentedLog(folder.getRoot(), 1024, 1024 * 1024, false)) {
+            for (int i = 0; i < 3; i++) {
+                log.append(record(i));
+            }
+            log.commit(log.read(1));
+        }
+
+        // Simulate a record partially written when stopped
+        File segment = folder.getRoot().listFiles((dir, name) -> name.endsWith(".log"))[0];
+        try (FileOutputStream output = new FileOutputStream(segment, true)) {
+            output.write(new byte[] { 0, 0, 0, 100, 0, 0 });
+        }
+
+        try (SegmentedLog log = new SegmentedLog(folder.getRoot(), 1024, 1024 * 1024, false)) {
+            SegmentedLog.Batch batch = log.read(10);
+            assertEquals(2, batch.getRecords().size());
+            assertEquals("record-1", payload(batch.getRecords().get(0)));
+            assertEquals("record-2", payload(batch.getRecords().get(1)));
+
+            // New records follow the recovered ones
+            log.append(record(3));
+            assertEquals(3, log.read(10).getRecords().size());
+        }
+    }
+
+    @Test
+    public void oldestSegmentsAreDroppedWhenFull() throws Exception {
+        try (SegmentedLog log = new SegmentedLog(folder.getRoot(), 64, 256, false)) {
+            for (int i = 0; i < 20; i++) {
+                assertTrue(log.append(record(i)));
+            }
+
+            assertTrue(log.droppedBytes() > 0);
+            assertTrue(log.pendingBytes() <= 256);
+            SegmentedLog.Batch batch = log.read(20);
+            assertEquals("record-19", payload(batch.getRecords().get(batch.getRecords().size() - 1)));
+            assertNotEquals("record-0", payload(batch.getRecords().get(0)));
+
+            // A record larger than the log is rejected
+            assertFalse(log.append(new byte[512]));
+        }
+    }
+
+    private int segmentCount() {
+        return folder.getRoot().listFiles((dir, name) -> name.endsWith(".log")).length;
+    }
+
+    private static byte[] record(int i) {
+        return ("record-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String payload(SegmentedLog.Record record) {
+        return new String(record.getPayload(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the SnapshotStore
+ */
+public class SnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SnapshotStore snapshotStore;
+
+    private final Instant expirationDate = Instant.now().plus(1, ChronoUnit.DAYS);
+
+    @After
+    public void tearDown() throws Exception {
+        snapshotStore.shutdown();
+    }
+
+    @Test
+    public void reloadAfterRestart() throws Exception {
+        snapshotStore = open(1000);
+        put(SnapshotStore.Kind.SUBSCRIPTION, "1", "subscription1");
+        put(SnapshotStore.Kind.SUBSCRIPTION, "2", "subscription2");
+        put(SnapshotStore.Kind.SUBSCRIPTION, "2", "subscription2bis");
+        put(SnapshotStore.Kind.REGISTRATION, "1", "registration1");
+        snapshotStore.remove(SnapshotStore.Kind.SUBSCRIPTION, Collections.singletonList("1"));
+        snapshotStore.shutdown();
+
+        snapshotStore = open(1000);
+        List<String> subscriptions = decodeAll(SnapshotStore.Kind.SUBSCRIPTION);
+        assertEquals(Collections.singletonList("2=subscription2bis"), subscriptions);
+        assertEquals("registration1", snapshotStore.decode(SnapshotStore.Kind.REGISTRATION, "1", (id, date, payload) -> payload(payload)));
+        assertEquals(expirationDate, snapshotStore.decode(SnapshotStore.Kind.REGISTRATION, "1", (id, date, payload) -> date));
+        assertNull(snapshotStore.decode(SnapshotStore.Kind.SUBSCRIPTION, "1", (id, date, payload) -> id));
+    }
+
+    @Test
+    public void compactInBackground() throws Exception {
+        snapshotStore = open(5);
+        for (int i = 0; i < 6; i++) {
+            put(SnapshotStore.Kind.SUBSCRIPTION, String.valueOf(i), "subscription" + i);
+        }
+        snapshotStore.remove(SnapshotStore.Kind.SUBSCRIPTION, Arrays.asList("0", "1"));
+
+        // Wait for the new snapshot
+        for (int i = 0; i < 100 && files("snapshot-").length == 0; i++) {
+            Thread.sleep(10);
+        }
+        snapshotStore.shutdown();
+        assertEquals(1, files("snapshot-").length);
+        assertEquals(1, files("journal-").length);
+
+        snapshotStore = open(1000);
+        assertEquals(4, decodeAll(SnapshotStore.Kind.SUBSCRIPTION).size());
+    }
+
+    @Test
+    public void discardPartialRecord() throws Exception {
+        snapshotStore = open(1000);
+        put(SnapshotStore.Kind.SUBSCRIPTION, "1", "subscription1");
+        snapshotStore.shutdown();
+
+        // Simulate a record partially written when stopped
+        try (FileOutputStream output = new FileOutputStream(files("journal-")[0], true)) {
+            output.write(new byte[] { 0, 0, 0, 50, 1, 2, 3 });
+        }
+
+        snapshotStore = open(1000);
+        put(SnapshotStore.Kind.SUBSCRIPTION, "2", "subscription2");
+        snapshotStore.shutdown();
+
+        snapshotStore = open(1000);
+        assertEquals(Arrays.asList("1=subscription1", "2=subscription2"), decodeAll(SnapshotStore.Kind.SUBSCRIPTION));
+    }
+
+    @Test
+    public void createdWithoutFiles() throws Exception {
+        snapshotStore = open(1000);
+        assertTrue(snapshotStore.isCreated());
+        snapshotStore.shutdown();
+
+        // Even empty, an existing journal is not a new store
+        snapshotStore = open(1000);
+        assertFalse(snapshotStore.isCreated());
+    }
+
+    private SnapshotStore open(int compactionThreshold) throws Exception {
+        SnapshotStore store = new SnapshotStore();
+        ReflectionTestUtils.setField(store, "backend", SnapshotStore.Backend.snapshot);
+        ReflectionTestUtils.setField(store, "directory", folder.getRoot().getPath());
+        ReflectionTestUtils.setField(store, "compactionThreshold", compactionThreshold);
+        store.init();
+        return store;
+    }
+
+    private void put(SnapshotStore.Kind kind, String id, String payload) throws Exception {
+        snapshotStore.put(kind, id, expirationDate, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<String> decodeAll(SnapshotStore.Kind kind) throws Exception {
+        List<String> entries = snapshotStore.decodeAll(kind, (id, date, payload) -> id + "=" + payload(payload));
+        Collections.sort(entries);
+        return entries;
+    }
+
+    private File[] files(String prefix) {
+        return folder.getRoot().listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".bin"));
+    }
+
+    private static String payload(byte[] payload) {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
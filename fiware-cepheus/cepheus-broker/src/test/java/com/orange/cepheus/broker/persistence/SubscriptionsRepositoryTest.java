@@ -33,6 +33,7 @@ import java.net.URISyntaxException;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
 import java.util.Map;
 
 import static com.orange.cepheus.broker.Util.createSubscribeContextTemperature;
@@ -124,6 +125,17 @@ public class SubscriptionsRepositoryTest {
         Assert.assertEquals(0, subscriptionsRepository.getAllSubscriptions().size());
     }
 
+    @Test
+    public void removeSubscriptionsTest() throws URISyntaxException, SubscriptionPersistenceException {
+        for (String id : new String[] { "12345", "12346", "12347" }) {
+            subscriptionsRepository.saveSubscription(new Subscription(id, Instant.now().plus(1, ChronoUnit.DAYS), createSubscribeContextTemperature()));
+        }
+        subscriptionsRepository.removeSubscriptions(Arrays.asList("12345", "12347"));
+        Map<String, Subscription> subscriptions = subscriptionsRepository.getAllSubscriptions();
+        Assert.assertEquals(1, subscriptions.size());
+        Assert.assertNotNull(subscriptions.get("12346"));
+    }
+
     @Test
     public void getAllSubscriptionsTest() throws URISyntaxException, SubscriptionPersistenceException {
         SubscribeContext subscribeContext = createSubscribeContextTemperature();
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.EntityId;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+
+/**
+ * Accumulate the outgoing context elements of a broker, and hand them over as a single batch
+ * after a linger time or when the maximum batch size is reached.
+ * Repeated updates of the same entity within a batch are collapsed, the latest values winning.
+ */
+class BrokerBatcher {
+
+    private final long linger;
+
+    private final int maxSize;
+
+    private final TaskScheduler taskScheduler;
+
+    private final Consumer<List<ContextElement>> sender;
+
+    /**
+     * Pending context elements by entity, in order of first update
+     */
+    private final Map<String, ContextElement> pending = new LinkedHashMap<>();
+
+    private ScheduledFuture scheduledFlush;
+
+    /**
+     * @param linger maximum time (ms) a context element waits before being sent
+     * @param maxSize number of distinct entities triggering an immediate send
+     * @param taskScheduler the scheduler of the linger timeouts
+     * @param sender called with each batch, outside of any lock
+     */
+    BrokerBatcher(long linger, int maxSize, TaskScheduler taskScheduler, Consumer<List<ContextElement>> sender) {
+        this.linger = linger;
+        this.maxSize = maxSize;
+        this.taskScheduler = taskScheduler;
+        this.sender = sender;
+    }
+
+    /**
+     * Add a context element to the current batch
+     */
+    public void add(ContextElement contextElement) {
+        List<ContextElement> batch = null;
+        synchronized (this) {
+            String key = entityKey(contextElement.getEntityId());
+            ContextElement previous = pending.get(key);
+            pending.put(key, previous == null ? contextElement : merge(previous, contextElement));
+
+            if (pending.size() >= maxSize) {
+                batch = drain();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = taskScheduler.schedule(this::flush, new Date(System.currentTimeMillis() + linger));
+            }
+        }
+        if (batch != null) {
+            sender.accept(batch);
+        }
+    }
+
+    /**
+     * Send the current batch if not empty
+     */
+    public void flush() {
+        List<ContextElement> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        if (!batch.isEmpty()) {
+            sender.accept(batch);
+        }
+    }
+
+    /**
+     * @return the number of pending context elements
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    private List<ContextElement> drain() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        List<ContextElement> batch = new ArrayList<>(pending.values());
+        pending.clear();
+        return batch;
+    }
+
+    /**
+     * Merge two updates of the same entity. The context elements are shared between the brokers,
+     * so a new context element is built instead of modifying the previous one.
+     */
+    private ContextElement merge(ContextElement previous, ContextElement latest) {
+        Map<String, ContextAttribute> attributes = new LinkedHashMap<>();
+        for (ContextAttribute attribute : previous.getContextAttributeList()) {
+            attributes.put(attribute.getName(), attribute);
+        }
+        for (ContextAttribute attribute : latest.getContextAttributeList()) {
+            attributes.put(attribute.getName(), attribute);
+        }
+        ContextElement contextElement = new ContextElement();
+        contextElement.setEntityId(latest.getEntityId());
+        contextElement.setContextAttributeList(new ArrayList<>(attributes.values()));
+        return contextElement;
+    }
+
+    private String entityKey(EntityId entityId) {
+        return entityId.getId() + '|' + entityId.getType();
+    }
+}
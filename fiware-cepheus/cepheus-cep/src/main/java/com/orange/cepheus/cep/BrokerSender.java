@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.UpdateContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Send the updateContext requests of a single broker through a bounded queue,
+ * so that a slow or dead broker cannot degrade the output to the other brokers.
+ *
+ * At most maxInFlight requests are pending at the same time, the others wait in the queue (the oldest being dropped when full).
+ * Transient failures (network errors, 5xx) are retried with an exponential backoff.
+ * To keep the order of the updates, the queue is held while a retry is pending,
+ * and the context elements of a retry already replaced by a newer request sent in the meantime are dropped.
+ * After failureThreshold consecutive failures, a circuit breaker stops sending for openDuration,
+ * then lets a single trial request go through to decide if the broker is back.
+ */
+class BrokerSender {
+
+    private static Logger logger = LoggerFactory.getLogger(BrokerSender.class);
+
+    /**
+     * State of the circuit breaker
+     */
+    public enum BreakerState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Settings shared by all the senders
+     */
+    static class Policy {
+        int queueSize = 1000;
+        int maxInFlight = 2;
+        int maxAttempts = 3;
+        long initialBackoff = 500;
+        long maxBackoff = 30000;
+        int failureThreshold = 5;
+        long openDuration = 30000;
+    }
+
+    /**
+     * A request waiting to be sent
+     */
+    private static class Pending {
+        private UpdateContext updateContext;
+        private final long sequence;
+        private int attempts;
+
+        Pending(UpdateContext updateContext, long sequence) {
+            this.updateContext = updateContext;
+            this.sequence = sequence;
+        }
+    }
+
+    private final String name;
+
+    private final Policy policy;
+
+    private final TaskScheduler taskScheduler;
+
+    private final Function<UpdateContext, ListenableFuture<?>> transport;
+
+    /**
+     * Null when metrics are not collected
+     */
+    private final GaugeService gaugeService;
+
+    private final String metricsPrefix;
+
+    private final Deque<Pending> queue = new ArrayDeque<>();
+
+    private long sequence;
+
+    /**
+     * Sequence of the last request sent for each entity, cleared when nothing is in flight or waiting for a retry
+     */
+    private final Map<String, Long> lastSent = new HashMap<>();
+
+    /**
+     * Number of failed requests waiting for their backoff, the queue is held meanwhile
+     */
+    private int retriesPending;
+
+    private int inFlight;
+
+    private long failures;
+
+    private long dropped;
+
+    private int consecutiveFailures;
+
+    private BreakerState breakerState = BreakerState.CLOSED;
+
+    private long openUntil;
+
+    private boolean dispatchScheduled;
+
+    /**
+     * @param name the name of the broker (for logs)
+     * @param policy the queue, retry and breaker settings
+     * @param taskScheduler the scheduler of the retries
+     * @param transport sends a request asynchronously
+     * @param gaugeService submit the metrics if not null
+     * @param metricsPrefix the prefix of the metrics
+     */
+    BrokerSender(String name, Policy policy, TaskScheduler taskScheduler, Function<UpdateContext, ListenableFuture<?>> transport,
+            GaugeService gaugeService, String metricsPrefix) {
+        this.name = name;
+        this.policy = policy;
+        this.taskScheduler = taskScheduler;
+        this.transport = transport;
+        this.gaugeService = gaugeService;
+        this.metricsPrefix = metricsPrefix;
+    }
+
+    /**
+     * Queue a request, it is sent immediately if the broker has room for it
+     */
+    public void send(UpdateContext updateContext) {
+        synchronized (this) {
+            if (queue.size() >= policy.queueSize) {
+                queue.pollFirst();
+                dropped++;
+                logger.warn("Outbound queue full for {}, dropped oldest updateContext", name);
+            }
+            queue.addLast(new Pending(updateContext, ++sequence));
+        }
+        dispatch();
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized BreakerState getBreakerState() {
+        return breakerState;
+    }
+
+    /**
+     * Send as many queued requests as allowed by the in-flight limit and the circuit breaker
+     */
+    private void dispatch() {
+        List<Pending> toSend = new ArrayList<>();
+        synchronized (this) {
+            if (breakerState == BreakerState.OPEN) {
+                long now = System.currentTimeMillis();
+                if (now < openUntil) {
+                    if (!dispatchScheduled && !queue.isEmpty()) {
+                        dispatchScheduled = true;
+                        taskScheduler.schedule(this::scheduledDispatch, new Date(openUntil));
+                    }
+                    return;
+                }
+                breakerState = BreakerState.HALF_OPEN;
+                logger.info("Circuit breaker half-open for {}", name);
+            }
+            // Only a single trial request when half-open
+            int limit = breakerState == BreakerState.HALF_OPEN ? 1 : policy.maxInFlight;
+            while (retriesPending == 0 && inFlight < limit && !queue.isEmpty()) {
+                Pending pending = queue.pollFirst();
+                for (ContextElement contextElement : contextElements(pending)) {
+                    lastSent.put(entityKey(contextElement), pending.sequence);
+                }
+                toSend.add(pending);
+                inFlight++;
+            }
+            if (inFlight == 0 && retriesPending == 0) {
+                lastSent.clear();
+            }
+        }
+        toSend.forEach(this::transmit);
+        publishMetrics();
+    }
+
+    private void scheduledDispatch() {
+        synchronized (this) {
+            dispatchScheduled = false;
+        }
+        dispatch();
+    }
+
+    private void transmit(Pending pending) {
+        pending.attempts++;
+        try {
+            transport.apply(pending.updateContext).addCallback(
+                    result -> onSuccess(),
+                    throwable -> onFailure(pending, throwable));
+        } catch (RuntimeException e) {
+            onFailure(pending, e);
+        }
+    }
+
+    private void onSuccess() {
+        synchronized (this) {
+            inFlight--;
+            consecutiveFailures = 0;
+            if (breakerState != BreakerState.CLOSED) {
+                breakerState = BreakerState.CLOSED;
+                logger.info("Circuit breaker closed for {}", name);
+            }
+        }
+        logger.debug("UpdateContext completed for {}", name);
+        dispatch();
+    }
+
+    private void onFailure(Pending pending, Throwable throwable) {
+        boolean retry;
+        synchronized (this) {
+            inFlight--;
+            failures++;
+            consecutiveFailures++;
+            if (breakerState == BreakerState.HALF_OPEN || consecutiveFailures >= policy.failureThreshold) {
+                if (breakerState != BreakerState.OPEN) {
+                    logger.warn("Circuit breaker open for {} after {} consecutive failures", name, consecutiveFailures);
+                }
+                breakerState = BreakerState.OPEN;
+                openUntil = System.currentTimeMillis() + policy.openDuration;
+            }
+            retry = isTransient(throwable) && pending.attempts < policy.maxAttempts;
+            if (retry) {
+                retriesPending++;
+            }
+        }
+
+        if (retry) {
+            long backoff = Math.min(policy.initialBackoff << (pending.attempts - 1), policy.maxBackoff);
+            logger.debug("UpdateContext failed for {}, retry in {} ms", name, backoff, throwable);
+            taskScheduler.schedule(() -> retry(pending), new Date(System.currentTimeMillis() + backoff));
+        } else {
+            logger.warn("UpdateContext failed for {}", name, throwable);
+        }
+        dispatch();
+    }
+
+    private void retry(Pending pending) {
+        synchronized (this) {
+            retriesPending--;
+            if (pruneReplaced(pending)) {
+                // Retries go first to keep the order of the updates
+                queue.addFirst(pending);
+            } else {
+                logger.debug("Retried updateContext replaced by newer updates for {}", name);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Remove the context elements of a retried request already updated by a newer request
+     * (sent while the retry was waiting for its backoff, for instance when several requests are in flight)
+     * @return false if nothing remains to retry
+     */
+    private boolean pruneReplaced(Pending pending) {
+        List<ContextElement> contextElements = contextElements(pending);
+        List<ContextElement> remaining = new ArrayList<>(contextElements.size());
+        for (ContextElement contextElement : contextElements) {
+            Long sent = lastSent.get(entityKey(contextElement));
+            if (sent == null || sent <= pending.sequence) {
+                remaining.add(contextElement);
+            }
+        }
+        if (remaining.size() == contextElements.size()) {
+            return true;
+        }
+        if (remaining.isEmpty()) {
+            return false;
+        }
+        UpdateContext updateContext = new UpdateContext(pending.updateContext.getUpdateAction());
+        updateContext.setContextElements(remaining);
+        pending.updateContext = updateContext;
+        return true;
+    }
+
+    private static List<ContextElement> contextElements(Pending pending) {
+        List<ContextElement> contextElements = pending.updateContext.getContextElements();
+        return contextElements == null ? Collections.emptyList() : contextElements;
+    }
+
+    private static String entityKey(ContextElement contextElement) {
+        return contextElement.getEntityId().getId() + '|' + contextElement.getEntityId().getType();
+    }
+
+    /**
+     * Client errors (4xx) will fail the same way when retried
+     */
+    private boolean isTransient(Throwable throwable) {
+        return !(throwable instanceof HttpClientErrorException);
+    }
+
+    private void publishMetrics() {
+        if (gaugeService == null) {
+            return;
+        }
+        int queueSize;
+        int pendingRequests;
+        long failed;
+        BreakerState state;
+        synchronized (this) {
+            queueSize = queue.size();
+            pendingRequests = inFlight;
+            failed = failures;
+            state = breakerState;
+        }
+        gaugeService.submit(metricsPrefix + ".queueSize", queueSize);
+        gaugeService.submit(metricsPrefix + ".inFlight", pendingRequests);
+        gaugeService.submit(metricsPrefix + ".failures", failed);
+        gaugeService.submit(metricsPrefix + ".breaker", state.ordinal());
+    }
+}
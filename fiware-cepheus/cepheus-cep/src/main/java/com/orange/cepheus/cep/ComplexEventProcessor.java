@@ -10,10 +10,12 @@ package com.orange.cepheus.cep;
 
 import com.orange.cepheus.cep.exception.ConfigurationException;
 import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.model.EngineState;
 import com.orange.cepheus.cep.model.Event;
 import com.orange.cepheus.cep.model.Configuration;
 import com.orange.cepheus.cep.model.Statement;
 
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -50,6 +52,20 @@ public interface ComplexEventProcessor {
      */
     List<Statement> getStatements();
 
+    /**
+     * @return a copy of the state of the CEP (content of the named windows and tables, values of the variables)
+     */
+    EngineState getState();
+
+    /**
+     * Restore a state of the CEP, after the configuration it was taken from was applied,
+     * then replay at full speed the events journaled after it, using the time of each event as the engine time.
+     * Outgoing events triggered by the replay are not sent.
+     * @param state the state to restore, null if none
+     * @param entries the events to replay, in time order
+     */
+    void restoreState(EngineState state, Iterator<EventJournal.Entry> entries);
+
     /**
      * Supply an event to the CEP
      * @param event
@@ -38,8 +38,28 @@ public class DefaultConfiguration {
         return new EventSinkListener();
     }
 
+    @Bean
+    IngestionQueue ingestionQueue() {
+        return new IngestionQueue();
+    }
+
+    @Bean
+    SnapshotManager snapshotManager() {
+        return new SnapshotManager();
+    }
+
+    @Bean
+    EventJournal eventJournal() {
+        return new EventJournal();
+    }
+
     @Bean
     SubscriptionManager subscriptionManager() {
         return new SubscriptionManager();
     }
+
+    @Bean
+    StageStatistics stageStatistics() {
+        return new StageStatistics();
+    }
 }
@@ -10,6 +10,8 @@ package com.orange.cepheus.cep;
 
 import com.espertech.esper.client.*;
 import com.espertech.esper.client.soda.EPStatementObjectModel;
+import com.espertech.esper.client.time.CurrentTimeEvent;
+import com.espertech.esper.client.time.TimerControlEvent;
 import com.orange.cepheus.cep.exception.ConfigurationException;
 import com.orange.cepheus.cep.exception.EventProcessingException;
 import com.orange.cepheus.cep.exception.EventTypeNotFoundException;
@@ -29,6 +31,10 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * ComplexEventProcessor implementation using EsperTech Esper CEP
@@ -37,21 +43,78 @@ public class EsperEventProcessor implements ComplexEventProcessor {
 
     private static Logger logger = LoggerFactory.getLogger(EsperEventProcessor.class);
 
-    private EPServiceProvider epServiceProvider;
+    /**
+     * The live engine, replaced by a new engine on a blue/green configuration swap
+     */
+    private volatile EPServiceProvider epServiceProvider;
     private Configuration configuration;
 
+    /**
+     * Events are sent under the read lock, the engine is replaced or reset under the write lock:
+     * an event is either processed by the previous engine before its state is copied, or by the new engine.
+     */
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+    /**
+     * Layouts of the incoming object-array event types registered in the engine, by event type.
+     * They are installed with the mapping plans of the EventMapper under the swap lock.
+     */
+    private volatile Map<String, EventLayout> layouts = Collections.emptyMap();
+
+    /**
+     * Esper configuration and base URI used to create the engines
+     */
+    private com.espertech.esper.client.Configuration esperConfiguration;
+    private String providerURI;
+
     /**
      * Keep a list of statements that declare a variable (create variable),
      * required to properly remove them on updates as Esper does not provide this.
      */
     private HashMap<String, String> variablesByStatementName = new HashMap<>();
 
+    /**
+     * Keep a list of statements that declare a named window (create window) or a table (create table),
+     * required to migrate or snapshot their content.
+     */
+    private HashMap<String, String> windowsByStatementName = new HashMap<>();
+
+    /**
+     * When enabled, a new configuration is built in a shadow engine and swapped with the live engine
+     * once ready, instead of being applied statement by statement to the live engine.
+     */
+    @Value("${blueGreen.enabled:false}")
+    private boolean blueGreen;
+
+    /**
+     * Copy the content of the named windows kept by the new configuration to the new engine on a swap
+     */
+    @Value("${blueGreen.migrateNamedWindows:true}")
+    private boolean migrateNamedWindows;
+
     /**
      * Collect Esper metrics when the Spring Boot metrics are enabled
      */
     @Value("${endpoints.metrics.enabled:${endpoints.enabled:false}}")
     private boolean collectMetrics;
 
+    /**
+     * Maximum number of pending events for each lane in multi-lane mode
+     */
+    @Value("${lanes.queueSize:10000}")
+    private int lanesQueueSize;
+
+    /**
+     * Processing lanes when the configuration enables the multi-lane mode, null otherwise
+     */
+    private volatile EventLanes lanes;
+
+    /**
+     * Events are dispatched under the read lock, the lanes are replaced under the write lock once the previous lanes are drained,
+     * so that the events of an entity are never processed by two lanes at the same time.
+     */
+    private final ReadWriteLock lanesLock = new ReentrantReadWriteLock();
+
     /**
      * This bean is only injected in multi tenant mode.
      */
@@ -64,6 +127,12 @@ public class EsperEventProcessor implements ComplexEventProcessor {
     @Autowired
     private EventSinkListener eventSinkListener;
 
+    @Autowired
+    private EventJournal eventJournal;
+
+    @Autowired
+    private StageStatistics stageStatistics;
+
     /**
      * Expose Esper statement metrics as Spring Boot metrics
      */
@@ -86,17 +155,44 @@ public class EsperEventProcessor implements ComplexEventProcessor {
         } else {
             epServiceProvider = EPServiceProviderManager.getDefaultProvider(configuration);
         }
+        esperConfiguration = configuration;
+        providerURI = epServiceProvider.getURI();
     }
 
     /**
-     * Apply a new configuration to the Esper CEP.
+     * Apply a new configuration to the Esper CEP, and the mapping plans of the incoming events to the EventMapper.
      * @param configuration the new configuration to apply
      */
     public void setConfiguration(Configuration configuration) throws ConfigurationException {
+        if (blueGreen) {
+            swapConfiguration(configuration);
+            return;
+        }
+
         logger.info("Apply configuration");
 
+        // The event types are updated with the mapping plans, events are blocked meanwhile
+        Lock lock = swapLock.writeLock();
+        lock.lock();
+        try {
+            installConfiguration(configuration);
+        } finally {
+            lock.unlock();
+        }
+
+        // Update the processing lanes
+        this.updateLanes(configuration);
+    }
+
+    /**
+     * Apply a new configuration to the live engine statement by statement
+     * @param configuration the new configuration to apply
+     */
+    private void installConfiguration(Configuration configuration) throws ConfigurationException {
+        eventMapper.setConfiguration(configuration);
+        layouts = layoutsOf(configuration);
+
         Configuration previousConfiguration = this.configuration;
-        ConfigurationOperations operations = epServiceProvider.getEPAdministrator().getConfiguration();
         try {
             Collection<EventType> previousEventTypes = Collections.emptyList();
 
@@ -105,17 +201,17 @@ public class EsperEventProcessor implements ComplexEventProcessor {
             if (previousConfiguration != null) {
                 previousEventTypes = Collections.unmodifiableList(previousConfiguration.getEventTypeIns());
             }
-            this.updateEventTypes(previousEventTypes, newEventTypes, operations);
+            this.updateEventTypes(previousEventTypes, newEventTypes, epServiceProvider);
 
             // Update outgoing event types
             newEventTypes = Collections.unmodifiableList(configuration.getEventTypeOuts());
             if (previousConfiguration != null) {
                 previousEventTypes = Collections.unmodifiableList(previousConfiguration.getEventTypeOuts());
             }
-            this.updateEventTypes(previousEventTypes, newEventTypes, operations);
+            this.updateEventTypes(previousEventTypes, newEventTypes, epServiceProvider);
 
             // Update the statements
-            this.updateStatements(configuration.getStatements());
+            this.updateStatements(configuration.getStatements(), epServiceProvider, variablesByStatementName, windowsByStatementName);
 
             this.configuration = configuration;
             eventSinkListener.setConfiguration(configuration);
@@ -124,6 +220,207 @@ public class EsperEventProcessor implements ComplexEventProcessor {
         }
     }
 
+    /**
+     * @return the layouts of the incoming event types compiled by the EventMapper (object-array representation only)
+     */
+    private Map<String, EventLayout> layoutsOf(Configuration configuration) {
+        if (!eventMapper.isObjectArrayRepresentation()) {
+            return Collections.emptyMap();
+        }
+        Map<String, EventLayout> layouts = new HashMap<>();
+        for (EventTypeIn eventTypeIn : configuration.getEventTypeIns()) {
+            EventLayout layout = eventMapper.getLayout(eventTypeIn.getType());
+            if (layout != null) {
+                layouts.put(eventTypeIn.getType(), layout);
+            }
+        }
+        return layouts;
+    }
+
+    /**
+     * Build the new configuration in a shadow engine, then switch the event processing to it.
+     * The live engine is left untouched when the new configuration fails to apply.
+     * The shadow engine is validated (all statements compiled and started) but not warmed with events:
+     * synthetic events would remain in its windows and trigger outgoing events.
+     * @param configuration the new configuration to apply
+     */
+    private void swapConfiguration(Configuration configuration) throws ConfigurationException {
+        logger.info("Apply configuration in a shadow engine");
+
+        EPServiceProvider previousProvider = epServiceProvider;
+
+        // Alternate between the engines of the base URI and of the shadow URI
+        String uri = providerURI.equals(previousProvider.getURI()) ? providerURI + "-shadow" : providerURI;
+        EPServiceProvider provider = EPServiceProviderManager.getProvider(uri, esperConfiguration);
+        provider.initialize();
+
+        HashMap<String, String> variables = new HashMap<>();
+        HashMap<String, String> windows = new HashMap<>();
+        try {
+            // Creating the event types and statements validates the whole configuration before any event goes through it
+            Collection<EventType> previousEventTypes = Collections.emptyList();
+            this.updateEventTypes(previousEventTypes, Collections.unmodifiableList(configuration.getEventTypeIns()), provider);
+            this.updateEventTypes(previousEventTypes, Collections.unmodifiableList(configuration.getEventTypeOuts()), provider);
+            this.updateStatements(configuration.getStatements(), provider, variables, windows);
+        } catch (Exception e) {
+            provider.initialize();
+            throw new ConfigurationException("Failed to apply new configuration", e);
+        }
+
+        // Events are blocked only while the named windows are copied, by synchronous on-demand inserts in the new engine
+        Lock lock = swapLock.writeLock();
+        lock.lock();
+        try {
+            // The mapping plans are installed with the event types of the new engine
+            try {
+                eventMapper.setConfiguration(configuration);
+            } catch (ConfigurationException e) {
+                provider.initialize();
+                throw e;
+            }
+            layouts = layoutsOf(configuration);
+            if (migrateNamedWindows) {
+                loadState(provider, windows, variables, dumpState(previousProvider, windowsByStatementName, variablesByStatementName));
+            }
+            epServiceProvider = provider;
+            variablesByStatementName = variables;
+            windowsByStatementName = windows;
+        } finally {
+            lock.unlock();
+        }
+
+        this.configuration = configuration;
+        eventSinkListener.setConfiguration(configuration);
+        this.updateLanes(configuration);
+
+        // Free the resources of the previous engine, it is kept as the shadow engine of the next swap
+        previousProvider.initialize();
+        logger.info("Switched event processing to engine {}", uri);
+    }
+
+    /**
+     * Return a copy of the content of the named windows and tables, and of the values of the variables
+     * declared by the statements of the active configuration.
+     * The dispatch of the events is suspended and the lanes are drained during the copy, so that every event journaled
+     * before the journal position of the state is processed in the state, and every event journaled after is not.
+     * @return the state of the engine
+     */
+    public EngineState getState() {
+        Lock lock = lanesLock.writeLock();
+        lock.lock();
+        try {
+            EventLanes lanes = this.lanes;
+            if (lanes != null) {
+                try {
+                    lanes.awaitIdle();
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted while waiting for the lanes, the state may miss their pending events");
+                    Thread.currentThread().interrupt();
+                }
+            }
+            EngineState state = dumpState(epServiceProvider, windowsByStatementName, variablesByStatementName);
+            state.setJournalPosition(eventJournal.position());
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copy the state of an engine
+     * @param provider the engine
+     * @param windows the named windows and tables of the engine by statement name
+     * @param variables the variables of the engine by statement name
+     * @return the state of the engine
+     */
+    private EngineState dumpState(EPServiceProvider provider, Map<String, String> windows, Map<String, String> variables) {
+        EngineState state = new EngineState();
+
+        for (Map.Entry<String, String> entry : windows.entrySet()) {
+            EPStatement statement = provider.getEPAdministrator().getStatement(entry.getKey());
+            if (statement == null) {
+                continue;
+            }
+            String[] properties = statement.getEventType().getPropertyNames();
+            EngineState.Window window = new EngineState.Window(entry.getValue(), properties);
+
+            // The safe iterator prevents concurrent updates of the window while it is copied
+            SafeIterator<EventBean> iterator = statement.safeIterator();
+            try {
+                while (iterator.hasNext()) {
+                    EventBean eventBean = iterator.next();
+                    Object[] row = new Object[properties.length];
+                    for (int i = 0; i < properties.length; i++) {
+                        row[i] = eventBean.get(properties[i]);
+                    }
+                    window.getRows().add(row);
+                }
+            } finally {
+                iterator.close();
+            }
+            state.getWindows().put(entry.getKey(), window);
+        }
+
+        for (String variableName : variables.values()) {
+            state.getVariables().put(variableName, provider.getEPRuntime().getVariableValue(variableName));
+        }
+
+        return state;
+    }
+
+    /**
+     * Load a state into an engine.
+     * Named windows and tables are matched by statement name: same name means same EPL (hash), so the same type.
+     * Rows are inserted at the current engine time, which restoreState() sets to the time of the state:
+     * events of time windows do not keep their original arrival time.
+     * @param provider the engine
+     * @param windows the named windows and tables of the engine by statement name
+     * @param variables the variables of the engine by statement name
+     * @param state the state to load
+     */
+    private void loadState(EPServiceProvider provider, Map<String, String> windows, Map<String, String> variables, EngineState state) {
+        for (Map.Entry<String, EngineState.Window> entry : state.getWindows().entrySet()) {
+            if (!windows.containsKey(entry.getKey())) {
+                continue;
+            }
+            EngineState.Window window = entry.getValue();
+            try {
+                StringBuilder columns = new StringBuilder();
+                StringBuilder values = new StringBuilder();
+                for (String property : window.getProperties()) {
+                    if (columns.length() > 0) {
+                        columns.append(", ");
+                        values.append(", ");
+                    }
+                    columns.append(property);
+                    values.append('?');
+                }
+                EPOnDemandPreparedQueryParameterized insert = provider.getEPRuntime().prepareQueryWithParameters(
+                        "insert into " + window.getName() + "(" + columns + ") values (" + values + ")");
+
+                for (Object[] row : window.getRows()) {
+                    for (int i = 0; i < row.length; i++) {
+                        insert.setObject(i + 1, row[i]);
+                    }
+                    provider.getEPRuntime().executeQuery(insert);
+                }
+                logger.info("Loaded {} events in {}", window.getRows().size(), window.getName());
+            } catch (EPException e) {
+                logger.warn("Failed to load the content of {}", window.getName(), e);
+            }
+        }
+
+        for (String variableName : variables.values()) {
+            if (state.getVariables().containsKey(variableName)) {
+                try {
+                    provider.getEPRuntime().setVariableValue(variableName, state.getVariables().get(variableName));
+                } catch (EPException e) {
+                    logger.warn("Failed to load the value of variable {}", variableName, e);
+                }
+            }
+        }
+    }
+
     public Configuration getConfiguration() {
         return configuration;
     }
@@ -134,9 +431,19 @@ public class EsperEventProcessor implements ComplexEventProcessor {
      * @return true if the restoration was successful, false if the CEP failed to reinitialize from the active configuration
      */
     public boolean restoreConfiguration(Configuration previousConfiguration) {
+        // A failed blue/green swap never modifies the live engine
+        if (blueGreen && previousConfiguration == this.configuration) {
+            return true;
+        }
+
+        Lock lock = swapLock.writeLock();
+        lock.lock();
         epServiceProvider.getEngineInstanceWideLock().writeLock().lock();
 
         try {
+            eventMapper.setConfiguration(previousConfiguration);
+            layouts = layoutsOf(previousConfiguration);
+
             ConfigurationOperations operations = epServiceProvider.getEPAdministrator().getConfiguration();
 
             // Cleanup previous configuration
@@ -145,15 +452,16 @@ public class EsperEventProcessor implements ComplexEventProcessor {
                 operations.removeEventType(eventType.getName(), true);
             }
 
-            // Remove all statements to variables associations
+            // Remove all statements to variables and named windows associations
             variablesByStatementName.clear();
+            windowsByStatementName.clear();
 
             // Adding back in/out events, then statements
             Collection<EventType> inEventTypes = Collections.unmodifiableList(previousConfiguration.getEventTypeIns());
             Collection<EventType> outEventTypes = Collections.unmodifiableList(previousConfiguration.getEventTypeOuts());
-            this.updateEventTypes(Collections.emptyList(), inEventTypes, operations);
-            this.updateEventTypes(Collections.emptyList(), outEventTypes, operations);
-            this.updateStatements(previousConfiguration.getStatements());
+            this.updateEventTypes(Collections.emptyList(), inEventTypes, epServiceProvider);
+            this.updateEventTypes(Collections.emptyList(), outEventTypes, epServiceProvider);
+            this.updateStatements(previousConfiguration.getStatements(), epServiceProvider, variablesByStatementName, windowsByStatementName);
 
         } catch (Exception e) {
             logger.error("Failed to restore active configuration", e);
@@ -161,6 +469,7 @@ public class EsperEventProcessor implements ComplexEventProcessor {
             return false;
         } finally {
             epServiceProvider.getEngineInstanceWideLock().writeLock().unlock();
+            lock.unlock();
         }
 
         return true;
@@ -170,10 +479,27 @@ public class EsperEventProcessor implements ComplexEventProcessor {
      * Reset the CEP and remove the configuration
      */
     public void reset() {
-        epServiceProvider.destroy();
-        epServiceProvider.initialize();
+        Lock lanesWriteLock = lanesLock.writeLock();
+        lanesWriteLock.lock();
+        try {
+            if (lanes != null) {
+                lanes.shutdownNow();
+                lanes = null;
+            }
+        } finally {
+            lanesWriteLock.unlock();
+        }
+        Lock lock = swapLock.writeLock();
+        lock.lock();
+        try {
+            epServiceProvider.destroy();
+            epServiceProvider.initialize();
+        } finally {
+            lock.unlock();
+        }
         configuration = null;
         variablesByStatementName.clear();
+        windowsByStatementName.clear();
     }
 
     /**
@@ -184,13 +510,187 @@ public class EsperEventProcessor implements ComplexEventProcessor {
     public void processEvent(Event event) throws EventProcessingException {
         logger.info("EventIn: {}", event.toString());
 
+        // In multi-lane mode, the event is processed asynchronously by the lane of its entity.
+        // The event is journaled under the lock, so that a copy of the state never sees it journaled but not dispatched
+        Lock lock = lanesLock.readLock();
+        lock.lock();
+        try {
+            if (eventJournal.isEnabled()) {
+                eventJournal.append(event);
+            }
+            EventLanes lanes = this.lanes;
+            if (lanes != null) {
+                lanes.submit(event.getId(), event);
+            } else {
+                sendEvent(event);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Restore a state of the engine (for instance from a snapshot) and replay the events journaled after it.
+     * Only the named windows, tables and variables declared by the same statements in the active configuration are restored.
+     * The engine runs on the Esper external clock meanwhile: the time starts at the time of the state (or of the first event),
+     * only moves forward with the journaled timestamps, and finally reaches the current time.
+     * Outgoing events triggered by the replay are not sent, the events are not journaled again.
+     * @param state the state to restore, null if none
+     * @param entries the events to replay, in time order
+     */
+    public void restoreState(EngineState state, Iterator<EventJournal.Entry> entries) {
+        if (state == null && !entries.hasNext()) {
+            return;
+        }
+
+        EPServiceProvider provider = epServiceProvider;
+        EPRuntime runtime = provider.getEPRuntime();
+        long count = 0;
+        long failed = 0;
+        long start = System.currentTimeMillis();
+
+        eventSinkListener.setMuted(true);
+        runtime.sendEvent(new TimerControlEvent(TimerControlEvent.ClockType.CLOCK_EXTERNAL));
+        try {
+            EventJournal.Entry entry = entries.hasNext() ? entries.next() : null;
+            long time = state != null ? state.getTimestamp() : entry.getTimestamp();
+            runtime.sendEvent(new CurrentTimeEvent(time));
+            if (state != null) {
+                loadState(provider, windowsByStatementName, variablesByStatementName, state);
+            }
+            while (entry != null) {
+                if (entry.getTimestamp() > time) {
+                    time = entry.getTimestamp();
+                    runtime.sendEvent(new CurrentTimeEvent(time));
+                }
+                try {
+                    sendEvent(entry.getEvent(), provider);
+                    count++;
+                } catch (EventProcessingException e) {
+                    // the event type might have been removed from the configuration
+                    failed++;
+                }
+                entry = entries.hasNext() ? entries.next() : null;
+            }
+            runtime.sendEvent(new CurrentTimeEvent(Math.max(time, System.currentTimeMillis())));
+        } finally {
+            runtime.sendEvent(new TimerControlEvent(TimerControlEvent.ClockType.CLOCK_INTERNAL));
+            eventSinkListener.setMuted(false);
+        }
+        logger.info("Restored state and replayed {} events ({} failed) in {} ms", count, failed, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Send the event to the Esper runtime
+     * @param event
+     * @throws EventProcessingException
+     */
+    private void sendEvent(Event event) throws EventProcessingException {
+        long start = stageStatistics.start();
+        // The engine cannot be replaced while the event is processed
+        Lock lock = swapLock.readLock();
+        lock.lock();
+        try {
+            sendEvent(event, epServiceProvider);
+        } finally {
+            lock.unlock();
+        }
+        stageStatistics.record(StageStatistics.Stage.PROCESSING, event.getType(), start);
+    }
+
+    /**
+     * Send the event to the runtime of an engine
+     * @param event
+     * @param provider
+     * @throws EventProcessingException
+     */
+
+    private void sendEvent(Event event, EPServiceProvider provider) throws EventProcessingException {
         try {
-            this.epServiceProvider.getEPRuntime().sendEvent(event.getValues(), event.getType());
+            if (event.getArray() != null) {
+                provider.getEPRuntime().sendEvent(registeredArray(event), event.getType());
+            } else {
+                provider.getEPRuntime().sendEvent(event.getValues(), event.getType());
+            }
         } catch (EPException|EPServiceDestroyedException e) {
             throw new EventProcessingException(e.getMessage());
         }
     }
 
+    /**
+     * Return the properties of an object-array event in the layout registered in the engine.
+     * They are moved by name when the event was mapped (or journaled) with the layout of a previous configuration.
+     * @param event
+     * @return the properties
+     */
+    private Object[] registeredArray(Event event) {
+        EventLayout layout = event.getLayout();
+        EventLayout registered = layouts.get(event.getType());
+        if (layout == null || registered == null || registered.sameAs(layout)) {
+            return event.getArray();
+        }
+        return registered.remap(layout, event.getArray());
+    }
+
+    /**
+     * Process an event from a lane thread
+     * @param event
+     */
+    private void sendLaneEvent(Event event) {
+        try {
+            sendEvent(event);
+        } catch (EventProcessingException e) {
+            logger.error("Failed to process event {}", event, e);
+        }
+    }
+
+    /**
+     * Create, resize or remove the processing lanes according to the configuration.
+     * Pending events of the previous lanes are processed before any new event is dispatched,
+     * as an entity may be hashed to another lane.
+     * @param configuration
+     */
+    private void updateLanes(Configuration configuration) {
+        int count = configuration.getLanes() == null ? 1 : configuration.getLanes();
+
+        EventLanes previousLanes = this.lanes;
+        if (previousLanes == null && count <= 1 || previousLanes != null && previousLanes.getCount() == count) {
+            return;
+        }
+
+        Lock lock = lanesLock.writeLock();
+        lock.lock();
+        try {
+            if (previousLanes != null) {
+                previousLanes.shutdown();
+                awaitTermination(previousLanes);
+            }
+            if (count > 1) {
+                logger.info("Processing events in {} lanes", count);
+                this.lanes = new EventLanes(providerURI, count, lanesQueueSize, this::sendLaneEvent);
+            } else {
+                this.lanes = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the pending events of shut down lanes
+     * @param lanes
+     */
+    private void awaitTermination(EventLanes lanes) {
+        try {
+            while (!lanes.awaitTermination(1, TimeUnit.SECONDS)) {
+                logger.info("Waiting for {} pending events of the previous lanes", lanes.getQueueSize());
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the previous lanes");
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Return a list of Attribute for a given even type. This is mainly useful for testing.
      * @param eventTypeName
@@ -250,9 +750,11 @@ public class EsperEventProcessor implements ComplexEventProcessor {
      *
      * @param oldList the previous list of event types
      * @param newList the new list of event types
-     * @param operations the CEP configuration
+     * @param provider the engine to update
      */
-    private void updateEventTypes(Collection<EventType> oldList, Collection<EventType> newList, ConfigurationOperations operations) {
+    private void updateEventTypes(Collection<EventType> oldList, Collection<EventType> newList, EPServiceProvider provider) {
+        ConfigurationOperations operations = provider.getEPAdministrator().getConfiguration();
+
         List<EventType> eventTypesToRemove = new LinkedList<>(oldList);
         eventTypesToRemove.removeAll(newList);
 
@@ -266,7 +768,7 @@ public class EsperEventProcessor implements ComplexEventProcessor {
         }
         // Delete all the statements depending on the event types to remove
         for (String statementName : statementsToDelete) {
-            EPStatement statement = epServiceProvider.getEPAdministrator().getStatement(statementName);
+            EPStatement statement = provider.getEPAdministrator().getStatement(statementName);
             if (statement != null) {
                 logger.info("Removing unused statement: "+statement.getText());
                 statement.stop();
@@ -283,16 +785,31 @@ public class EsperEventProcessor implements ComplexEventProcessor {
             logger.info("Add new event type: {}", eventType);
             // Add event type mapped to esper representation
             String eventTypeName = eventType.getType();
-            operations.addEventType(eventTypeName, eventMapper.esperTypeFromEventType(eventType));
+            Map<String, Object> properties = eventMapper.esperTypeFromEventType(eventType);
+            if (eventMapper.isObjectArrayRepresentation()) {
+                // Properties are registered in the same order EventMapper fills the events
+                String[] propertyNames = eventMapper.esperPropertyNamesFromEventType(eventType);
+                Object[] propertyTypes = new Object[propertyNames.length];
+                for (int i = 0; i < propertyNames.length; i++) {
+                    propertyTypes[i] = properties.get(propertyNames[i]);
+                }
+                operations.addEventType(eventTypeName, propertyNames, propertyTypes);
+            } else {
+                operations.addEventType(eventTypeName, properties);
+            }
         }
     }
 
     /**
      * Update the EPL statements by adding new statements, and removing unused statements
      * @param statements
+     * @param provider the engine to update
+     * @param variables the statements declaring a variable in this engine
+     * @param windows the statements declaring a named window in this engine
      * @throws NoSuchAlgorithmException
      */
-    private void updateStatements(Collection<String> statements) throws NoSuchAlgorithmException {
+    private void updateStatements(Collection<String> statements, EPServiceProvider provider,
+            Map<String, String> variables, Map<String, String> windows) throws NoSuchAlgorithmException {
         // Keep a list of MD5 hash of all added statements
         Set<String> hashes = new HashSet<>();
         for (String eplStatement : statements) {
@@ -300,9 +817,10 @@ public class EsperEventProcessor implements ComplexEventProcessor {
         }
 
         // Removed unused statements first
-        for (String hash : epServiceProvider.getEPAdministrator().getStatementNames()) {
+        for (String hash : provider.getEPAdministrator().getStatementNames()) {
             if (!hashes.contains(hash)) {
-                removeStatement(hash);
+                removeStatement(hash, provider, variables);
+                windows.remove(hash);
             }
         }
 
@@ -311,29 +829,36 @@ public class EsperEventProcessor implements ComplexEventProcessor {
             String hash = MD5(eplStatement);
 
             // Create statement if does not already exist
-            EPStatement statement = epServiceProvider.getEPAdministrator().getStatement(hash);
+            EPStatement statement = provider.getEPAdministrator().getStatement(hash);
             if (statement == null) {
                 logger.info("Add new statement: {}", eplStatement);
-                EPStatementObjectModel model = epServiceProvider.getEPAdministrator().compileEPL(eplStatement);
+                EPStatementObjectModel model = provider.getEPAdministrator().compileEPL(eplStatement);
 
                 // When the statement defines a new variable, keep track of this association
                 if (model.getCreateVariable() != null) {
-                    variablesByStatementName.put(hash, model.getCreateVariable().getVariableName());
+                    variables.put(hash, model.getCreateVariable().getVariableName());
+                }
+                if (model.getCreateWindow() != null) {
+                    windows.put(hash, model.getCreateWindow().getWindowName());
+                }
+                if (model.getCreateTable() != null) {
+                    windows.put(hash, model.getCreateTable().getTableName());
                 }
 
-                statement = epServiceProvider.getEPAdministrator().create(model, hash);
+                statement = provider.getEPAdministrator().create(model, hash);
                 statement.addListener(eventSinkListener);
             }
         }
 
         // Collect metrics statements if enabled
         if (collectMetrics) {
-            EPStatement statement = epServiceProvider.getEPAdministrator().createEPL("select * from com.espertech.esper.client.metric.StatementMetric", "STATEMENT_METRIC");
+            EPStatement statement = provider.getEPAdministrator().createEPL("select * from com.espertech.esper.client.metric.StatementMetric", "STATEMENT_METRIC");
             statement.addListener((eventBeans, unused) -> {
                 if (eventBeans != null) {
                     for (EventBean eventBean : eventBeans) {
                         String statementName = (String)eventBean.get("statementName");
-                        String tenant = (String)eventBean.get("engineURI");
+                        // Use the base URI as engine URI changes on each blue/green swap
+                        String tenant = providerURI;
                         String keyPrefix = "cepheus.statement."+tenant+"."+statementName;
                         gaugeService.submit(keyPrefix+".cpuTime", (Long)eventBean.get("cpuTime"));
                         gaugeService.submit(keyPrefix+".wallTime", (Long)eventBean.get("wallTime"));
@@ -366,19 +891,21 @@ public class EsperEventProcessor implements ComplexEventProcessor {
      * Remove a statement, recursively removing statements depending on it
      * when it is a statement declaring a variable
      * @param statementName the hash of the statement to delete
+     * @param provider the engine of the statement
+     * @param variables the statements declaring a variable in this engine
      */
-    private void removeStatement(String statementName) {
-        EPStatement statement = epServiceProvider.getEPAdministrator().getStatement(statementName);
+    private void removeStatement(String statementName, EPServiceProvider provider, Map<String, String> variables) {
+        EPStatement statement = provider.getEPAdministrator().getStatement(statementName);
         if (statement != null) {
             logger.info("Remove statement: {}", statement.getText());
 
             // Destroy all statements associated to a given statement declaring a variable
-            String variableName = variablesByStatementName.get(statementName);
+            String variableName = variables.get(statementName);
             if (variableName != null) {
-                Set<String> epStatements = epServiceProvider.getEPAdministrator().getConfiguration().getVariableNameUsedBy(variableName);
+                Set<String> epStatements = provider.getEPAdministrator().getConfiguration().getVariableNameUsedBy(variableName);
                 for (String epStatement : new LinkedList<>(epStatements)) { // use a new list to prevent conccurent access
                     if (!epStatement.equals(statementName)) {
-                        removeStatement(epStatement);
+                        removeStatement(epStatement, provider, variables);
                     }
                 }
             }
@@ -0,0 +1,586 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.model.Event;
+import com.orange.cepheus.cep.model.EventLayout;
+import com.orange.cepheus.cep.model.JournalPosition;
+import com.orange.cepheus.cep.tenant.TenantFilter;
+import com.orange.cepheus.cep.tenant.TenantScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Optional append-only journal of the events processed by the CEP.
+ * Events are appended to segmented memory-mapped files in the data.path folder,
+ * segments older than the retention period are deleted.
+ * On startup, the events of the last minutes can be replayed to rebuild the state of the engine.
+ *
+ * A segment is a sequence of records: [length (int)][timestamp (long)][event], terminated by a zero length.
+ * Object-array events reference the layout they were mapped with, the layouts are kept in a separate catalog file
+ * so that the events can be remapped when replayed under another configuration.
+ */
+public class EventJournal {
+
+    private static Logger logger = LoggerFactory.getLogger(EventJournal.class);
+
+    private final static String PREFIX = "journal-";
+    private final static String EXT = ".journal";
+    private final static String LAYOUTS = "layouts";
+
+    /**
+     * Policy to flush the segments to the disk
+     */
+    public enum FsyncPolicy {
+        /** flush after each event */
+        ALWAYS,
+        /** flush every journal.fsyncPeriodicity ms */
+        PERIODIC,
+        /** let the operating system flush the pages */
+        NEVER;
+
+        public static FsyncPolicy fromString(String value) {
+            switch (value) {
+                case "always":
+                    return ALWAYS;
+                case "periodic":
+                    return PERIODIC;
+                case "never":
+                    return NEVER;
+                default:
+                    throw new IllegalArgumentException("unknown journal fsync policy " + value);
+            }
+        }
+    }
+
+    /**
+     * An event read from the journal
+     */
+    public static class Entry {
+        private final long timestamp;
+        private final Event event;
+
+        public Entry(long timestamp, Event event) {
+            this.timestamp = timestamp;
+            this.event = event;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Event getEvent() {
+            return event;
+        }
+    }
+
+    @Value("${journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${journal.segmentSize:67108864}")
+    private int segmentSize;
+
+    /**
+     * Retention of the segments in minutes
+     */
+    @Value("${journal.retention:60}")
+    private long retention;
+
+    @Value("${journal.fsync:periodic}")
+    private String fsyncPolicyName;
+
+    @Value("${journal.fsyncPeriodicity:1000}")
+    private long fsyncPeriodicity;
+
+    /**
+     * Number of minutes of events to replay on startup, 0 to disable the replay
+     */
+    @Value("${journal.replay:0}")
+    private long replay;
+
+    @Value("${data.path}")
+    private String dataPath;
+
+    /**
+     * This bean is only injected in multi tenant mode.
+     */
+    @Autowired(required = false)
+    private TenantScope tenantScope;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    private FsyncPolicy fsyncPolicy;
+
+    private File directory;
+
+    private MappedByteBuffer segment;
+
+    /**
+     * Start time of the current segment, also its name
+     */
+    private long segmentStart;
+
+    private ScheduledFuture scheduledFuture;
+
+    /**
+     * Layouts of the object-array events already written to the catalog, by id
+     */
+    private final Map<Long, EventLayout> layouts = new ConcurrentHashMap<>();
+
+    /**
+     * Buffer of each appending thread to serialize the events outside of the journal lock
+     */
+    private final ThreadLocal<RecordBuffer> recordBuffers = ThreadLocal.withInitial(RecordBuffer::new);
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+
+        fsyncPolicy = FsyncPolicy.fromString(fsyncPolicyName);
+
+        String id = TenantFilter.DEFAULT_TENANTID;
+        if (tenantScope != null) {
+            id = tenantScope.getConversationId();
+        }
+        directory = new File(dataPath + PREFIX + id.replace('/', '-'));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.error("Failed to create journal folder {}, journal disabled", directory);
+            enabled = false;
+            return;
+        }
+
+        layouts.putAll(readLayouts());
+
+        // Positions taken before the first event of this run are after the segments of the previous runs
+        List<File> segments = listSegments();
+        if (!segments.isEmpty()) {
+            segmentStart = startOf(segments.get(segments.size() - 1));
+        }
+
+        if (fsyncPolicy == FsyncPolicy.PERIODIC) {
+            scheduledFuture = taskScheduler.scheduleWithFixedDelay(this::flush, fsyncPeriodicity);
+        }
+
+        logger.info("Event journal enabled in {}: segment size {}, retention {} min, fsync policy {}", directory, segmentSize, retention, fsyncPolicy);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduledFuture != null) {
+            scheduledFuture.cancel(false);
+        }
+        flush();
+    }
+
+    /**
+     * @return true if the events are journaled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Append an event to the journal.
+     * The event is serialized in a buffer of the calling thread, the lock is only held to copy it to the segment.
+     * @param event the event processed by the CEP
+     */
+    public void append(Event event) {
+        EventLayout layout = event.getLayout();
+        if (event.getArray() != null && layout != null && !layouts.containsKey(layout.getId())) {
+            try {
+                writeLayout(layout);
+            } catch (IOException e) {
+                logger.error("Failed to journal the layout of event {}", event, e);
+                return;
+            }
+        }
+        RecordBuffer record = recordBuffers.get();
+        try {
+            record.reset();
+            writeEvent(record.output, event);
+            record.output.flush();
+        } catch (IOException e) {
+            logger.error("Failed to journal event {}", event, e);
+            return;
+        }
+        // record: [length][timestamp][event], keep room for the zero length terminating the segment
+        int length = 4 + 8 + record.size();
+        if (length + 4 > segmentSize) {
+            logger.error("Event too large for the journal segments {}", event);
+            return;
+        }
+
+        synchronized (this) {
+            try {
+                if (segment == null || segment.remaining() < length + 4) {
+                    rollSegment();
+                }
+            } catch (IOException e) {
+                logger.error("Failed to create journal segment", e);
+                return;
+            }
+
+            // Timestamps are taken under the lock to keep them ordered in the segment.
+            // Write the length last, so that a partially written record ends the segment
+            int position = segment.position();
+            segment.position(position + 4);
+            segment.putLong(System.currentTimeMillis());
+            segment.put(record.bytes(), 0, record.size());
+            segment.putInt(position, length - 4);
+
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                segment.force();
+            }
+        }
+    }
+
+    /**
+     * Return the position after the last journaled event.
+     * The caller must ensure that the events journaled before are processed (or dispatched) when the position is taken.
+     * @return the position, null if the events are not journaled
+     */
+    public synchronized JournalPosition position() {
+        if (!enabled) {
+            return null;
+        }
+        return new JournalPosition(segmentStart, segment == null ? JournalPosition.END : segment.position());
+    }
+
+    /**
+     * Return the events to replay on startup, after the configuration is applied
+     * @param after the position of the restored snapshot, null to replay all the events of the replay period
+     * @return the events journaled after the position in the replay period, in journal order, empty if replay is disabled
+     */
+    public Iterator<Entry> replay(JournalPosition after) {
+        if (!enabled || replay <= 0) {
+            return Collections.emptyIterator();
+        }
+        long since = System.currentTimeMillis() - replay * 60000;
+        List<File> segments = new ArrayList<>();
+        for (File file : segmentsSince(since)) {
+            if (after == null || startOf(file) >= after.getSegment()) {
+                segments.add(file);
+            }
+        }
+        logger.info("Replaying journal events since {}{}", new Date(since), after == null ? "" : " after " + after);
+        return new JournalIterator(segments, since, after, readLayouts());
+    }
+
+    /**
+     * Delete all the segments (for instance when the configuration is removed)
+     */
+    public synchronized void clear() {
+        if (!enabled) {
+            return;
+        }
+        segment = null;
+        for (File file : listSegments()) {
+            file.delete();
+        }
+        layouts.clear();
+        new File(directory, LAYOUTS).delete();
+    }
+
+    /**
+     * Add a layout to the catalog, before the first event referencing it
+     */
+    private synchronized void writeLayout(EventLayout layout) throws IOException {
+        if (layouts.containsKey(layout.getId())) {
+            return;
+        }
+        try (FileOutputStream file = new FileOutputStream(new File(directory, LAYOUTS), true)) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file));
+            output.writeLong(layout.getId());
+            output.writeInt(layout.size());
+            for (String name : layout.getNames()) {
+                output.writeUTF(name);
+            }
+            output.flush();
+            file.getFD().sync();
+        }
+        layouts.put(layout.getId(), layout);
+    }
+
+    /**
+     * @return the layouts of the catalog by id
+     */
+    private Map<Long, EventLayout> readLayouts() {
+        Map<Long, EventLayout> layouts = new HashMap<>();
+        File file = new File(directory, LAYOUTS);
+        if (!file.exists()) {
+            return layouts;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                long id;
+                try {
+                    id = input.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                String[] names = new String[input.readInt()];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = input.readUTF();
+                }
+                layouts.put(id, new EventLayout(names));
+            }
+        } catch (IOException e) {
+            // a layout partially written before a crash is never referenced
+            logger.warn("Failed to read the end of the journal layouts", e);
+        }
+        return layouts;
+    }
+
+    /**
+     * Flush the current segment to the disk
+     */
+    public synchronized void flush() {
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Close the current segment, start a new one and delete the expired segments
+     */
+    private void rollSegment() throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        segmentStart = Math.max(System.currentTimeMillis(), segmentStart + 1);
+        File file = new File(directory, String.format("%020d", segmentStart) + EXT);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            segment = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        deleteExpiredSegments();
+    }
+
+    /**
+     * A segment is expired when the next segment started before the retention period
+     */
+    private void deleteExpiredSegments() {
+        long expiration = System.currentTimeMillis() - retention * 60000;
+        List<File> segments = listSegments();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (startOf(segments.get(i + 1)) < expiration) {
+                logger.debug("Delete expired journal segment {}", segments.get(i));
+                segments.get(i).delete();
+            }
+        }
+    }
+
+    /**
+     * @return the segments that may hold events more recent than since
+     */
+    private List<File> segmentsSince(long since) {
+        List<File> segments = listSegments();
+        int first = 0;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (startOf(segments.get(i + 1)) <= since) {
+                first = i + 1;
+            }
+        }
+        return segments.subList(first, segments.size());
+    }
+
+    /**
+     * @return the segments ordered by start time
+     */
+    private List<File> listSegments() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXT));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> segments = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private long startOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - EXT.length()));
+    }
+
+    /**
+     * Reusable serialization buffer, giving access to its bytes without copying them
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        private final DataOutputStream output = new DataOutputStream(this);
+
+        RecordBuffer() {
+            super(512);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /**
+     * Lazily read the events of a list of segments
+     */
+    private class JournalIterator implements Iterator<Entry> {
+
+        private final Iterator<File> segments;
+        private final long since;
+        private final JournalPosition after;
+        private final Map<Long, EventLayout> layouts;
+        private ByteBuffer buffer;
+        private Entry next;
+
+        JournalIterator(List<File> segments, long since, JournalPosition after, Map<Long, EventLayout> layouts) {
+            this.segments = segments.iterator();
+            this.since = since;
+            this.after = after;
+            this.layouts = layouts;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = next;
+            advance();
+            return entry;
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null) {
+                if (buffer == null || buffer.remaining() < 4) {
+                    if (!openNextSegment()) {
+                        return;
+                    }
+                    continue;
+                }
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    // end of the segment
+                    buffer = null;
+                    continue;
+                }
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                try {
+                    DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+                    long timestamp = input.readLong();
+                    if (timestamp >= since) {
+                        next = new Entry(timestamp, readEvent(input, layouts));
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    logger.warn("Skipping unreadable journal record", e);
+                }
+            }
+        }
+
+        private boolean openNextSegment() {
+            buffer = null;
+            while (segments.hasNext()) {
+                File file = segments.next();
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                    buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+                    if (after != null && startOf(file) == after.getSegment()) {
+                        // Skip the records of the segment before the position
+                        buffer.position(Math.min(after.getOffset(), buffer.limit()));
+                    }
+                    return true;
+                } catch (IOException e) {
+                    logger.warn("Skipping unreadable journal segment {}", file, e);
+                }
+            }
+            return false;
+        }
+    }
+
+    /*
+     * Compact binary encoding of the events
+     */
+
+    private static final byte MAP_EVENT = 0;
+    private static final byte ARRAY_EVENT = 1;
+    private static final byte LAYOUT_ARRAY_EVENT = 2;
+
+    static void writeEvent(DataOutputStream output, Event event) throws IOException {
+        output.writeUTF(event.getType());
+        if (event.getArray() != null) {
+            if (event.getLayout() != null) {
+                output.writeByte(LAYOUT_ARRAY_EVENT);
+                output.writeLong(event.getLayout().getId());
+            } else {
+                output.writeByte(ARRAY_EVENT);
+            }
+            output.writeUTF(String.valueOf(event.getId()));
+            output.writeInt(event.getArray().length);
+            for (Object value : event.getArray()) {
+                ValueCodec.writeValue(output, value);
+            }
+        } else {
+            output.writeByte(MAP_EVENT);
+            Map<String, Object> values = event.getValues();
+            output.writeInt(values == null ? 0 : values.size());
+            if (values != null) {
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    ValueCodec.writeValue(output, entry.getValue());
+                }
+            }
+        }
+    }
+
+    static Event readEvent(DataInputStream input, Map<Long, EventLayout> layouts) throws IOException, ClassNotFoundException {
+        String type = input.readUTF();
+        byte representation = input.readByte();
+        if (representation == ARRAY_EVENT || representation == LAYOUT_ARRAY_EVENT) {
+            EventLayout layout = null;
+            if (representation == LAYOUT_ARRAY_EVENT) {
+                long layoutId = input.readLong();
+                layout = layouts.get(layoutId);
+                if (layout == null) {
+                    throw new IOException("unknown event layout " + layoutId);
+                }
+            }
+            String id = input.readUTF();
+            Object[] array = new Object[input.readInt()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = ValueCodec.readValue(input);
+            }
+            return new Event(type, id, layout, array);
+        }
+        Event event = new Event(type);
+        int size = input.readInt();
+        for (int i = 0; i < size; i++) {
+            String name = input.readUTF();
+            event.addValue(name, ValueCodec.readValue(input));
+        }
+        return event;
+    }
+}
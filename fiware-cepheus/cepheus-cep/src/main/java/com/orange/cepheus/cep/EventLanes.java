@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.model.Event;
+import com.orange.cepheus.cep.tenant.TenantScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * A fixed set of processing lanes, each lane being a single thread with a bounded queue.
+ * Events are dispatched to a lane by hashing their entity id: all the events of a given entity
+ * are processed in order by the same lane, while events of unrelated entities are processed in parallel.
+ * When the queue of a lane is full, the caller is blocked until a slot is available.
+ */
+public class EventLanes {
+
+    private static Logger logger = LoggerFactory.getLogger(EventLanes.class);
+
+    private final ThreadPoolExecutor[] lanes;
+
+    private final Consumer<Event> consumer;
+
+    /**
+     * @param name prefix of the lanes thread names
+     * @param count number of lanes
+     * @param queueSize maximum number of pending events for each lane
+     * @param consumer called by the lane thread for each event
+     */
+    public EventLanes(String name, int count, int queueSize, Consumer<Event> consumer) {
+        // Lanes threads must resolve the tenant scoped beans of the tenant creating the lanes
+        final TenantScope.Context tenantContext = TenantScope.getTenantContext();
+
+        lanes = new ThreadPoolExecutor[count];
+        for (int i = 0; i < count; i++) {
+            final String threadName = name + "-lane-" + i;
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(() -> {
+                    if (tenantContext != null) {
+                        TenantScope.storeTenantContext(tenantContext);
+                    }
+                    runnable.run();
+                }, threadName);
+                thread.setDaemon(true);
+                return thread;
+            };
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), threadFactory, EventLanes::waitForSlot);
+        }
+        this.consumer = consumer;
+    }
+
+    /**
+     * @return the number of lanes
+     */
+    public int getCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return the total number of events waiting in the lanes
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            size += lane.getQueue().size();
+        }
+        return size;
+    }
+
+    /**
+     * Return the lane of an entity
+     * @param id the entity id (can be null)
+     * @return the index of the lane
+     */
+    public int laneOf(Object id) {
+        if (id == null) {
+            return 0;
+        }
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Dispatch an event to the lane of its entity
+     * @param id the entity id of the event
+     * @param event the event
+     * @throws EventProcessingException if the lanes are shut down
+     */
+    public void submit(Object id, Event event) throws EventProcessingException {
+        try {
+            lanes[laneOf(id)].execute(() -> consumer.accept(event));
+        } catch (RejectedExecutionException e) {
+            throw new EventProcessingException("processing lanes are shut down", e);
+        }
+    }
+
+    /**
+     * Wait for the pending events of all the lanes to be processed.
+     * The caller must prevent new submissions meanwhile.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitIdle() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(lanes.length);
+        for (ThreadPoolExecutor lane : lanes) {
+            // Processed after the events already queued in the lane
+            lane.execute(latch::countDown);
+        }
+        latch.await();
+    }
+
+    /**
+     * Stop accepting events, the pending events are still processed.
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Wait for the pending events to be processed after a shutdown
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if all the lanes are terminated, false if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor lane : lanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting events, and drop the pending events.
+     */
+    public void shutdownNow() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    /**
+     * Block the caller until the lane can accept the event
+     */
+    private static void waitForSlot(Runnable task, ThreadPoolExecutor lane) {
+        try {
+            while (!lane.isShutdown()) {
+                if (lane.getQueue().offer(task, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.warn("Event rejected by a lane shutting down");
+        throw new RejectedExecutionException("lane is shut down");
+    }
+}
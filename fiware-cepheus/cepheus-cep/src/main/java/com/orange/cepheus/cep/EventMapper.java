@@ -11,6 +11,7 @@ import com.orange.cepheus.cep.model.Configuration;
 import com.orange.cepheus.geo.GeoUtil;
 import com.orange.ngsi.model.*;
 import com.vividsolutions.jts.geom.Geometry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Scope;
 import org.springframework.context.annotation.ScopedProxyMode;
 import org.springframework.stereotype.Component;
@@ -24,45 +25,143 @@ import java.util.*;
 @Component
 public class EventMapper {
 
-    private Map<String, JsonPath> jsonpaths = new HashMap<>();
+    /**
+     * Event representation registered in Esper: "map" (default) or "objectArray"
+     */
+    @Value("${events.representation:map}")
+    private String representation;
+
+    /**
+     * Compiled mapping plans of the incoming event types, by event type
+     */
+    private Map<String, MappingPlan> mappingPlans = new HashMap<>();
 
     private ISO8601DateFormat iso8691DateFormat = new ISO8601DateFormat();
 
     /**
-     * Compile JSON paths from Attributes and Metadata of the new configuration
+     * Conversion of string values by NGSI type
+     */
+    private final Map<String, Converter> converters = new HashMap<>();
+    {
+        converters.put("string", value -> value);
+        converters.put("boolean", Boolean::valueOf);
+        converters.put("int", Integer::valueOf);
+        converters.put("long", Long::valueOf);
+        converters.put("float", Float::valueOf);
+        converters.put("double", Double::valueOf);
+        converters.put("date", value -> iso8691DateFormat.parse(value));
+        converters.put("geo:point", GeoUtil::parseNGSIString);
+    }
+
+    /**
+     * Convert a string value to the Java object of a NGSI type
+     */
+    @FunctionalInterface
+    private interface Converter {
+        Object convert(String value) throws ParseException;
+    }
+
+    /**
+     * Compiled mapping of a context attribute, or of a context metadata, to an event property
+     */
+    private static class PropertyPlan {
+        /** the name of the event property */
+        final String property;
+        /** the index of the property in object-array representation, -1 for map events */
+        final int index;
+        /** the configured NGSI type and its converter */
+        final String type;
+        final Converter converter;
+        /** the compiled jsonpath, or null */
+        final JsonPath jsonPath;
+        /** the plans of the metadata by name (attributes only) */
+        final Map<String, PropertyPlan> metadata;
+
+        PropertyPlan(String property, int index, String type, Converter converter, JsonPath jsonPath, Map<String, PropertyPlan> metadata) {
+            this.property = property;
+            this.index = index;
+            this.type = type;
+            this.converter = converter;
+            this.jsonPath = jsonPath;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * Compiled mapping of an incoming event type
+     */
+    private static class MappingPlan {
+        /** the plans of the attributes by name */
+        final Map<String, PropertyPlan> attributes;
+        /** the layout of the properties, the index of the id property in object-array representation (null and -1 for map events) */
+        final EventLayout layout;
+        final int idIndex;
+
+        MappingPlan(Map<String, PropertyPlan> attributes, EventLayout layout, int idIndex) {
+            this.attributes = attributes;
+            this.layout = layout;
+            this.idIndex = idIndex;
+        }
+    }
+
+    /**
+     * Compile the mapping plans (JSON paths, converters and property positions)
+     * from Attributes and Metadata of the new configuration
      * @param configuration the new configuration
      */
     public void setConfiguration(Configuration configuration) throws ConfigurationException {
-        Map<String, JsonPath> jsonpaths = new HashMap<>();
+        Map<String, MappingPlan> mappingPlans = new HashMap<>();
 
         for (EventTypeIn eventTypeIn : configuration.getEventTypeIns()) {
-            for (Attribute attribute : eventTypeIn.getAttributes()) {
-                String jsonpath = attribute.getJsonpath();
-                if (jsonpath != null) {
-                    // JsonPath caches paths internally, no need to reuse them from one configuration to another.
-                    // Aggregate path by event type / attribute name
-                    try {
-                        jsonpaths.put(eventTypeIn.getType() + "/" + attribute.getName(), JsonPath.compile(jsonpath));
-                    } catch (IllegalArgumentException|InvalidPathException e) {
-                        throw new ConfigurationException("invalid jsonpath expression for attribute "+attribute.getName(), e);
-                    }
+            // In object-array representation, compute the fixed position of each property
+            Map<String, Integer> indexes = new HashMap<>();
+            EventLayout layout = null;
+            if (isObjectArrayRepresentation()) {
+                String[] names = esperPropertyNamesFromEventType(eventTypeIn);
+                for (int i = 0; i < names.length; i++) {
+                    indexes.put(names[i], i);
                 }
+                layout = new EventLayout(names);
+            }
 
+            Map<String, PropertyPlan> attributePlans = new HashMap<>();
+            for (Attribute attribute : eventTypeIn.getAttributes()) {
+                String attrName = attribute.getName();
+
+                Map<String, PropertyPlan> metadataPlans = new HashMap<>();
                 for (Metadata metadata : attribute.getMetadata()) {
-                    jsonpath = metadata.getJsonpath();
-                    if (jsonpath != null) {
-                        // Same as attribute but with metadata name
-                        try {
-                            jsonpaths.put(eventTypeIn.getType() + "/" + attribute.getName() + "/" + metadata.getName(), JsonPath.compile(jsonpath));
-                        } catch (IllegalArgumentException|InvalidPathException e) {
-                            throw new ConfigurationException("invalid jsonpath expression for metadata "+attribute.getName()+"/"+metadata.getName(), e);
-                        }
-                    }
+                    // For metadata, join with attribute name using a '_'
+                    String property = attrName + "_" + metadata.getName();
+                    JsonPath jsonPath = compileJsonPath(metadata.getJsonpath(), "metadata "+attrName+"/"+metadata.getName());
+                    metadataPlans.put(metadata.getName(), new PropertyPlan(property, indexes.getOrDefault(property, -1),
+                            metadata.getType(), converters.get(metadata.getType()), jsonPath, Collections.emptyMap()));
                 }
+
+                JsonPath jsonPath = compileJsonPath(attribute.getJsonpath(), "attribute "+attrName);
+                attributePlans.put(attrName, new PropertyPlan(attrName, indexes.getOrDefault(attrName, -1),
+                        attribute.getType(), converters.get(attribute.getType()), jsonPath, metadataPlans));
             }
+
+            mappingPlans.put(eventTypeIn.getType(), new MappingPlan(attributePlans, layout, indexes.getOrDefault("id", -1)));
         }
 
-        this.jsonpaths = jsonpaths;
+        this.mappingPlans = mappingPlans;
+    }
+
+    /**
+     * @param eventType an incoming event type
+     * @return the layout the events of this type are mapped with in object-array representation, null otherwise
+     */
+    public EventLayout getLayout(String eventType) {
+        MappingPlan mappingPlan = mappingPlans.get(eventType);
+        return mappingPlan == null ? null : mappingPlan.layout;
+    }
+
+    /**
+     * @return true if events are registered as Esper object-array types instead of map types
+     */
+    public boolean isObjectArrayRepresentation() {
+        return "objectArray".equals(representation);
     }
 
     /**
@@ -89,10 +188,23 @@ public class EventMapper {
         return properties;
     }
 
+    /**
+     * Order of the properties of an EventType in the object-array representation.
+     * The properties are the ones of esperTypeFromEventType sorted by name.
+     * @param eventType the Configuration event type
+     * @return the property names
+     */
+    public String[] esperPropertyNamesFromEventType(EventType eventType) {
+        Set<String> names = new TreeSet<>(esperTypeFromEventType(eventType).keySet());
+        return names.toArray(new String[names.size()]);
+    }
+
     /**
      * Convert a NGSI Context Element to an Esper event.
      * All properties (metadata, attributes and id) are defined at the same level.
      * Collisions might then occur, but id and then attributes will override metadata properties.
+     * The attributes declared in the configuration are mapped using the compiled mapping plan of the event type,
+     * the others (map representation only) are converted from their NGSI type.
      * @param contextElement the NGSI Context Element
      * @return an event to process
      * @throws EventProcessingException if the conversion fails
@@ -101,51 +213,79 @@ public class EventMapper {
         String eventId = contextElement.getEntityId().getId();
         String eventType = contextElement.getEntityId().getType();
 
-        Event event = new Event(eventType);
+        MappingPlan mappingPlan = mappingPlans.get(eventType);
 
-        // Add metadata values first
-        for(ContextAttribute contextAttribute : contextElement.getContextAttributeList()) {
-            String attrName = contextAttribute.getName();
-            for (ContextMetadata contextMetada : contextAttribute.getMetadata()) {
-                String name = contextMetada.getName();
-                String type = contextMetada.getType();
-
-                Object value = contextMetada.getValue();
-
-                // Extract value from jsonpath if any
-                JsonPath jsonPath = jsonpaths.get(eventType + "/" + attrName + "/" + name);
-                if (jsonPath != null) {
-                    value = jsonPath.read(value);
-                }
-
-                value = valueForType(value, type, name);
-                event.addValue(attrName + "_" + name, value);
+        // In object-array representation, properties are set at the index computed from the configuration
+        boolean objectArray = isObjectArrayRepresentation();
+        Event event;
+        if (objectArray) {
+            if (mappingPlan == null) {
+                throw new EventProcessingException("Unknown event type "+eventType);
             }
+            event = new Event(eventType, eventId, mappingPlan.layout, new Object[mappingPlan.layout.size()]);
+        } else {
+            event = new Event(eventType);
         }
 
-        // Override with attributes values
-        for(ContextAttribute contextAttribute : contextElement.getContextAttributeList()) {
+        // Single pass: metadata never override a property already set, attributes always do
+        for (ContextAttribute contextAttribute : contextElement.getContextAttributeList()) {
             String name = contextAttribute.getName();
-            String type = contextAttribute.getType();
+            PropertyPlan attributePlan = mappingPlan == null ? null : mappingPlan.attributes.get(name);
 
-            Object value = contextAttribute.getValue();
+            if (attributePlan == null) {
+                if (objectArray) {
+                    // Attributes not declared in the configuration are ignored
+                    if (contextAttribute.getValue() == null) {
+                        throw new EventProcessingException("Value cannot be null for attribute "+name);
+                    }
+                    continue;
+                }
+                for (ContextMetadata contextMetada : contextAttribute.getMetadata()) {
+                    Object value = valueForType(contextMetada.getValue(), contextMetada.getType(), contextMetada.getName());
+                    event.addValueIfAbsent(name + "_" + contextMetada.getName(), value);
+                }
+                Object value = valueForType(contextAttribute.getValue(), contextAttribute.getType(), name);
+                if (value == null) {
+                    throw new EventProcessingException("Value cannot be null for attribute "+name);
+                }
+                event.addValue(name, value);
+                continue;
+            }
 
-            // Extract value from jsonpath if any
-            JsonPath jsonPath = jsonpaths.get(eventType + "/" + name);
-            if (jsonPath != null) {
-                value = jsonPath.read(value);
+            for (ContextMetadata contextMetada : contextAttribute.getMetadata()) {
+                PropertyPlan metadataPlan = attributePlan.metadata.get(contextMetada.getName());
+                if (metadataPlan != null) {
+                    Object value = valueForPlan(contextMetada.getValue(), contextMetada.getType(), metadataPlan, contextMetada.getName());
+                    if (objectArray) {
+                        if (metadataPlan.index >= 0 && event.getArray()[metadataPlan.index] == null) {
+                            event.getArray()[metadataPlan.index] = value;
+                        }
+                    } else {
+                        event.addValueIfAbsent(metadataPlan.property, value);
+                    }
+                } else if (!objectArray) {
+                    Object value = valueForType(contextMetada.getValue(), contextMetada.getType(), contextMetada.getName());
+                    event.addValueIfAbsent(name + "_" + contextMetada.getName(), value);
+                }
             }
 
-            value = valueForType(value, type, name);
+            Object value = valueForPlan(contextAttribute.getValue(), contextAttribute.getType(), attributePlan, name);
             if (value == null) {
                 throw new EventProcessingException("Value cannot be null for attribute "+name);
             }
-
-            event.addValue(name, value);
+            if (objectArray) {
+                event.getArray()[attributePlan.index] = value;
+            } else {
+                event.addValue(name, value);
+            }
         }
 
         // Override with id
-        event.addValue("id", eventId);
+        if (objectArray) {
+            event.getArray()[mappingPlan.idIndex] = eventId;
+        } else {
+            event.addValue("id", eventId);
+        }
 
         return event;
     }
@@ -267,34 +407,70 @@ public class EventMapper {
      * @throws EventProcessingException if the conversion fails
      */
     private Object valueForString(String value, String type, String name) throws EventProcessingException {
+        Converter converter = converters.get(type);
+        // when type is unknown, handle as string
+        if (converter == null) {
+            return value;
+        }
+        return convert(converter, value, name);
+    }
+
+    /**
+     * Convert a value using the compiled plan of a property
+     * @param value the value to convert
+     * @param type NGSI type of the value
+     * @param plan the compiled plan of the property
+     * @param name used for error handling
+     * @return a Java Object for given value
+     * @throws EventProcessingException if the conversion fails
+     */
+    private Object valueForPlan(Object value, String type, PropertyPlan plan, String name) throws EventProcessingException {
+        // Extract value from jsonpath if any
+        if (plan.jsonPath != null) {
+            value = plan.jsonPath.read(value);
+        }
         // when type is not defined, handle as string
-        if (type == null) {
+        if (type == null || !(value instanceof String)) {
             return value;
         }
+        // The conversion depends on the NGSI type of the value, usually the configured type
+        if (type.equals(plan.type)) {
+            return plan.converter == null ? value : convert(plan.converter, (String) value, name);
+        }
+        return valueForString((String) value, type, name);
+    }
 
+    /**
+     * @param converter the converter of the NGSI type
+     * @param value the value to convert
+     * @param name used for error handling
+     * @return a Java Object for given value
+     * @throws EventProcessingException if the conversion fails
+     */
+    private Object convert(Converter converter, String value, String name) throws EventProcessingException {
         try {
-            switch (type) {
-                case "string":
-                    return value;
-                case "boolean":
-                    return Boolean.valueOf(value);
-                case "int":
-                    return Integer.valueOf(value);
-                case "long":
-                    return Long.valueOf(value);
-                case "float":
-                    return Float.valueOf(value);
-                case "double":
-                    return Double.valueOf(value);
-                case "date":
-                    return iso8691DateFormat.parse(value);
-                case "geo:point":
-                    return GeoUtil.parseNGSIString(value);
-                default:
-                    return value;
-            }
+            return converter.convert(value);
         } catch (IllegalArgumentException|ParseException e) {
             throw new EventProcessingException("Failed to parse value "+value+" for attribute "+name, e);
         }
     }
+
+    /**
+     * Compile a jsonpath expression
+     * @param jsonpath the expression, can be null
+     * @param description used for error handling
+     * @return the compiled jsonpath or null
+     * @throws ConfigurationException if the expression is invalid
+     */
+    private JsonPath compileJsonPath(String jsonpath, String description) throws ConfigurationException {
+        if (jsonpath == null) {
+            return null;
+        }
+        // JsonPath caches paths internally, no need to reuse them from one configuration to another.
+        try {
+            return JsonPath.compile(jsonpath);
+        } catch (IllegalArgumentException|InvalidPathException e) {
+            throw new ConfigurationException("invalid jsonpath expression for "+description, e);
+        }
+    }
 }
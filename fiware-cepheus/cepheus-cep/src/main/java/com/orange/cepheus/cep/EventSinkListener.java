@@ -11,16 +11,26 @@ package com.orange.cepheus.cep;
 import com.espertech.esper.client.*;
 import com.orange.cepheus.cep.model.*;
 import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.cep.tenant.TenantScope;
 import com.orange.ngsi.client.NgsiClient;
 import com.orange.ngsi.model.*;
 
+import org.HdrHistogram.Histogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.aop.scope.ScopedObject;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.http.HttpHeaders;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An update listener that triggers NGSI /updateContext requests on outgoing events
@@ -36,22 +46,124 @@ public class EventSinkListener implements StatementAwareUpdateListener {
     @Autowired
     private EventMapper eventMapper;
 
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    @Autowired
+    private StageStatistics stageStatistics;
+
+    /**
+     * Maximum time (ms) an outgoing event waits to be sent with others to the same broker (0 to send immediately)
+     */
+    @Value("${output.batch.linger:0}")
+    private long batchLinger;
+
+    /**
+     * Maximum number of entities updated by a single updateContext request
+     */
+    @Value("${output.batch.maxSize:100}")
+    private int batchMaxSize;
+
+    /**
+     * Maximum number of requests waiting to be sent to a broker
+     */
+    @Value("${output.queue.size:1000}")
+    private int queueSize;
+
+    /**
+     * Maximum number of concurrent requests to a broker
+     */
+    @Value("${output.queue.maxInFlight:${ngsi.http.maxConnectionsPerRoute:2}}")
+    private int maxInFlight;
+
+    @Value("${output.retry.maxAttempts:3}")
+    private int retryMaxAttempts;
+
+    @Value("${output.retry.initialBackoff:500}")
+    private long retryInitialBackoff;
+
+    @Value("${output.retry.maxBackoff:30000}")
+    private long retryMaxBackoff;
+
+    /**
+     * Number of consecutive failures opening the circuit breaker of a broker
+     */
+    @Value("${output.breaker.failureThreshold:5}")
+    private int breakerFailureThreshold;
+
+    /**
+     * Duration (ms) without requests to a broker once its circuit breaker is open
+     */
+    @Value("${output.breaker.openDuration:30000}")
+    private long breakerOpenDuration;
+
+    /**
+     * Publish the outbound queues metrics when the Spring Boot metrics are enabled
+     */
+    @Value("${endpoints.metrics.enabled:${endpoints.enabled:false}}")
+    private boolean collectMetrics;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    /**
+     * This bean is only injected in multi tenant mode.
+     */
+    @Autowired(required = false)
+    private TenantScope tenantScope;
+
+    private String metricsPrefix = "cepheus.output";
+
+    private BrokerSender.Policy senderPolicy;
+
+    /**
+     * Outbound queues by broker
+     */
+    private final Map<String, BrokerSender> senders = new ConcurrentHashMap<>();
+
     private Configuration configuration;
 
+    /**
+     * Batchers of the outgoing context elements by broker
+     */
+    private final Map<String, BrokerBatcher> batchers = new ConcurrentHashMap<>();
+
     /**
      * All outgoing outgoingEvents accessible by type
      */
     private Map<String, EventTypeOut> outgoingEvents;
 
+    /**
+     * When muted, outgoing events are not sent (for instance while replaying past events)
+     */
+    private volatile boolean muted;
+
+    @PostConstruct
+    public void init() {
+        senderPolicy = new BrokerSender.Policy();
+        senderPolicy.queueSize = queueSize;
+        senderPolicy.maxInFlight = maxInFlight;
+        senderPolicy.maxAttempts = retryMaxAttempts;
+        senderPolicy.initialBackoff = retryInitialBackoff;
+        senderPolicy.maxBackoff = retryMaxBackoff;
+        senderPolicy.failureThreshold = breakerFailureThreshold;
+        senderPolicy.openDuration = breakerOpenDuration;
+
+        if (tenantScope != null) {
+            metricsPrefix = metricsPrefix + "." + tenantScope.getConversationId();
+        }
+    }
+
     /**
      * Called by Esper CEP engine when a new event is added or removed from a statement.
-     * This will trigger asynchronous updateContext request to broker for corresponding ContextElements
+     * This will trigger asynchronous updateContext request to broker for corresponding ContextElements,
+     * possibly batched with the other events sent to the same broker
      */
     @Override
     public void update(EventBean[] added, EventBean[] removed, EPStatement epStatement, EPServiceProvider epServiceProvider) {
 
         // ignore updates for removed events
-        if (added == null) {
+        if (added == null || muted) {
             return;
         }
 
@@ -72,23 +184,31 @@ public class EventSinkListener implements StatementAwareUpdateListener {
             if (eventTypeOut == null) {
                 logger.debug("EventTypeOut {} doesn't exist in Configuration, updateContext not sent", type);
             } else {
-                UpdateContext updateContext = buildUpdateContextRequest(eventBean, eventTypeOut);
-                if (updateContext != null) {
+                long start = stageStatistics.start();
+                ContextElement contextElement = eventMapper.contextElementFromEvent(eventBean, eventTypeOut);
+                stageStatistics.record(StageStatistics.Stage.MAPPING_OUT, type, start);
+                if (contextElement != null) {
                     for (Broker broker : eventTypeOut.getBrokers()) {
                         assert broker != null;
-                       	HttpHeaders httpHeaders = getHeadersForBroker(broker);
-		        ngsiClient.updateContext(broker.getUrl(), httpHeaders, updateContext).addCallback(
-		                updateContextResponse ->
-		                         logger.debug("UpdateContext completed for {}", broker.getUrl()),
-		                throwable ->
-		                         logger.warn("UpdateContext failed for {}", broker.getUrl(), throwable)
-		        );
+                        if (batchLinger > 0) {
+                            batcherForBroker(broker).add(contextElement);
+                        } else {
+                            sendUpdateContext(broker, Collections.singletonList(contextElement));
+                        }
                     }
                 }
             }
         }
     }
 
+    /**
+     * Send all the pending batches
+     */
+    @PreDestroy
+    public void flush() {
+        batchers.values().forEach(BrokerBatcher::flush);
+    }
+
     /**
      * Configuration access the type of outgoing events
      */
@@ -100,6 +220,27 @@ public class EventSinkListener implements StatementAwareUpdateListener {
         }
         this.outgoingEvents = events;
         this.configuration = configuration;
+
+        // Send the batches of the previous configuration, brokers may have changed
+        flush();
+        batchers.clear();
+
+        // Forget the outbound queues of the brokers removed from the configuration
+        Set<String> brokerKeys = new HashSet<>();
+        for (EventTypeOut event : configuration.getEventTypeOuts()) {
+            for (Broker broker : event.getBrokers()) {
+                brokerKeys.add(brokerKey(broker));
+            }
+        }
+        senders.keySet().retainAll(brokerKeys);
+    }
+
+    /**
+     * Stop or resume sending the outgoing events to the brokers
+     * @param muted true to stop sending
+     */
+    public void setMuted(boolean muted) {
+        this.muted = muted;
     }
 
     /**
@@ -112,17 +253,53 @@ public class EventSinkListener implements StatementAwareUpdateListener {
     }
 
     /**
-     * Build an updateContext request from an event
-     * @return An updateContext request, or null if no attributes are updated
+     * @return the batcher of the broker, brokers sharing the same url and headers share the same batcher
      */
-    private UpdateContext buildUpdateContextRequest(EventBean eventBean, EventTypeOut eventTypeOut) {
-        ContextElement contextElement = eventMapper.contextElementFromEvent(eventBean, eventTypeOut);
-        if (contextElement == null) {
-            return null;
-        }
+    private BrokerBatcher batcherForBroker(Broker broker) {
+        return batchers.computeIfAbsent(brokerKey(broker), k -> new BrokerBatcher(batchLinger, batchMaxSize, taskScheduler,
+                contextElements -> sendUpdateContext(broker, contextElements)));
+    }
+
+    /**
+     * @return the outbound queue of the broker, brokers sharing the same url and headers share the same queue
+     */
+    private BrokerSender senderForBroker(Broker broker) {
+        return senders.computeIfAbsent(brokerKey(broker), k -> {
+            // Requests can be sent from the response callbacks, out of the tenant context: resolve the tenant statistics now
+            StageStatistics statistics = stageStatistics instanceof ScopedObject ?
+                    (StageStatistics) ((ScopedObject) stageStatistics).getTargetObject() : stageStatistics;
+            return new BrokerSender(broker.getUrl(), senderPolicy, taskScheduler,
+                    updateContext -> sendUpdateContextRequest(broker, updateContext, statistics),
+                    collectMetrics ? gaugeService : null,
+                    metricsPrefix + "." + broker.getUrl().replaceAll("[^A-Za-z0-9]+", "_"));
+        });
+    }
+
+    private String brokerKey(Broker broker) {
+        return broker.getUrl() + '|' + broker.getServiceName() + '|' + broker.getServicePath() + '|' + broker.getAuthToken();
+    }
+
+    /**
+     * Queue an updateContext request appending the context elements to the broker
+     */
+    private void sendUpdateContext(Broker broker, List<ContextElement> contextElements) {
         UpdateContext updateContext = new UpdateContext(UpdateAction.APPEND);
-        updateContext.setContextElements(Collections.singletonList(contextElement));
-        return updateContext;
+        updateContext.setContextElements(contextElements);
+        senderForBroker(broker).send(updateContext);
+    }
+
+    /**
+     * Send an updateContext request to the broker, recording its duration under the type of its first entity
+     */
+    private ListenableFuture<UpdateContextResponse> sendUpdateContextRequest(Broker broker, UpdateContext updateContext, StageStatistics statistics) {
+        Histogram histogram = statistics.getHistogram(StageStatistics.Stage.OUTBOUND,
+                updateContext.getContextElements().get(0).getEntityId().getType());
+        long start = statistics.start();
+        ListenableFuture<UpdateContextResponse> response = ngsiClient.updateContext(broker.getUrl(), getHeadersForBroker(broker), updateContext);
+        if (histogram != null) {
+            response.addCallback(result -> StageStatistics.record(histogram, start), throwable -> StageStatistics.record(histogram, start));
+        }
+        return response;
     }
 
     /**
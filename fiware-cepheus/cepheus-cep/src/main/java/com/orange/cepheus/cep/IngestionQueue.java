@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.model.Event;
+import com.orange.cepheus.cep.tenant.TenantScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded ingestion stage between the NGSI controller and the Complex Event Processor.
+ * When enabled, incoming events are accepted in a bounded queue and processed by a pool of dispatcher threads,
+ * so that the NGSI request can be acknowledged without waiting for the CEP.
+ * Each dispatcher thread has its own queue (of queueSize / threads events), the events of an entity always go
+ * to the same dispatcher so that they are processed in their order of arrival.
+ * When the queue is full, the overflow policy decides to block the caller, drop the oldest pending event or reject the new one.
+ * The events of a request are admitted or rejected together: with the block and reject policies, a slot is reserved
+ * in the queue of each dispatcher before the events are submitted, and released when the dispatcher takes the event.
+ */
+public class IngestionQueue {
+
+    private static Logger logger = LoggerFactory.getLogger(IngestionQueue.class);
+
+    /**
+     * Behavior when the queue is full
+     */
+    public enum OverflowPolicy {
+        /** wait for a free slot (up to ingestion.blockTimeout), then reject */
+        BLOCK,
+        /** discard the oldest pending event to accept the new one */
+        DROP_OLDEST,
+        /** reject the new event immediately */
+        REJECT;
+
+        public static OverflowPolicy fromString(String value) {
+            switch (value) {
+                case "block":
+                    return BLOCK;
+                case "dropOldest":
+                    return DROP_OLDEST;
+                case "reject":
+                    return REJECT;
+                default:
+                    throw new IllegalArgumentException("unknown ingestion overflow policy " + value);
+            }
+        }
+    }
+
+    /**
+     * When disabled, events are processed synchronously on the request thread.
+     */
+    @Value("${ingestion.enabled:false}")
+    private boolean enabled;
+
+    @Value("${ingestion.queueSize:10000}")
+    private int queueSize;
+
+    @Value("${ingestion.threads:1}")
+    private int threads;
+
+    @Value("${ingestion.overflowPolicy:block}")
+    private String overflowPolicyName;
+
+    /**
+     * Maximum duration (ms) a request will wait for a free slot with the block policy
+     */
+    @Value("${ingestion.blockTimeout:1000}")
+    private long blockTimeout;
+
+    /**
+     * Publish the queue metrics when the Spring Boot metrics are enabled
+     */
+    @Value("${endpoints.metrics.enabled:${endpoints.enabled:false}}")
+    private boolean collectMetrics;
+
+    /**
+     * This bean is only injected in multi tenant mode.
+     */
+    @Autowired(required = false)
+    private TenantScope tenantScope;
+
+    @Autowired
+    private ComplexEventProcessor complexEventProcessor;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    private OverflowPolicy overflowPolicy;
+
+    /**
+     * Single thread executors, one per dispatcher
+     */
+    private ThreadPoolExecutor[] executors;
+
+    /**
+     * Free slots in the queue of each dispatcher (block and reject policies)
+     */
+    private Semaphore[] slots;
+
+    private int laneSize;
+
+    private String metricsPrefix = "cepheus.ingestion";
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+
+    /**
+     * An event waiting in the queue
+     */
+    private class IngestionTask implements Runnable {
+        private final Event event;
+        private final int lane;
+        private final long enqueueTime = System.nanoTime();
+
+        IngestionTask(Event event, int lane) {
+            this.event = event;
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            // The event left the queue of the dispatcher
+            if (slots != null) {
+                slots[lane].release();
+            }
+            long latency = System.nanoTime() - enqueueTime;
+            processed.increment();
+            totalLatency.add(latency);
+            try {
+                complexEventProcessor.processEvent(event);
+            } catch (EventProcessingException e) {
+                failed.increment();
+                logger.error("Failed to process event {}", event, e);
+            }
+            if (collectMetrics) {
+                gaugeService.submit(metricsPrefix + ".latency", latency / 1000000.0);
+                publishMetrics();
+            }
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+
+        overflowPolicy = OverflowPolicy.fromString(overflowPolicyName);
+
+        // Dispatcher threads must resolve the tenant scoped beans of the tenant owning this queue
+        final TenantScope.Context tenantContext;
+        if (tenantScope != null) {
+            tenantContext = TenantScope.getTenantContext();
+            metricsPrefix = metricsPrefix + "." + tenantScope.getConversationId();
+        } else {
+            tenantContext = null;
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(() -> {
+                if (tenantContext != null) {
+                    TenantScope.storeTenantContext(tenantContext);
+                }
+                runnable.run();
+            }, "ingestion-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        // Idle dispatchers are released so that removed tenants do not leak threads
+        laneSize = Math.max(1, queueSize / threads);
+        executors = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            executors[i] = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(laneSize), threadFactory, this::overflow);
+            executors[i].allowCoreThreadTimeOut(true);
+        }
+        if (overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+            slots = new Semaphore[threads];
+            for (int i = 0; i < threads; i++) {
+                slots[i] = new Semaphore(laneSize);
+            }
+        }
+
+        logger.info("Asynchronous ingestion enabled: queue size {}, {} threads, overflow policy {}", queueSize, threads, overflowPolicy);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executors != null) {
+            for (ThreadPoolExecutor executor : executors) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @return true if events are processed asynchronously
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Accept an event for asynchronous processing.
+     * @param event the event to process
+     * @throws EventProcessingException when the event is rejected by the overflow policy
+     */
+    public void submit(Event event) throws EventProcessingException {
+        submitAll(Collections.singletonList(event));
+    }
+
+    /**
+     * Accept the events of a request for asynchronous processing, all the events are either accepted or rejected.
+     * @param events the events to process
+     * @throws EventProcessingException when the events are rejected by the overflow policy
+     */
+    public void submitAll(List<Event> events) throws EventProcessingException {
+        int[] lanes = new int[events.size()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = laneOf(events.get(i));
+        }
+        try {
+            if (slots != null) {
+                acquireSlots(lanes);
+            }
+            // With reserved slots, the events cannot overflow the queues of the dispatchers
+            for (int i = 0; i < lanes.length; i++) {
+                executors[lanes[i]].execute(new IngestionTask(events.get(i), lanes[i]));
+            }
+        } catch (RejectedExecutionException e) {
+            rejected.add(events.size());
+            if (collectMetrics) {
+                publishMetrics();
+            }
+            throw new EventProcessingException("ingestion queue is full", e);
+        }
+        accepted.add(events.size());
+    }
+
+    /**
+     * Reserve a slot in the queue of the dispatcher of each event, waiting up to the block timeout with the block policy
+     * @throws RejectedExecutionException when the events do not fit, no slot is reserved then
+     */
+    private void acquireSlots(int[] lanes) {
+        int[] needed = new int[slots.length];
+        for (int lane : lanes) {
+            needed[lane]++;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(overflowPolicy == OverflowPolicy.BLOCK ? blockTimeout : 0);
+        // Lanes are reserved in the same order by all the requests
+        for (int lane = 0; lane < slots.length; lane++) {
+            if (needed[lane] == 0) {
+                continue;
+            }
+            boolean acquired;
+            try {
+                acquired = needed[lane] <= laneSize
+                        && slots[lane].tryAcquire(needed[lane], Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                releaseSlots(needed, lane);
+                throw new RejectedExecutionException("interrupted while waiting for the ingestion queue");
+            }
+            if (!acquired) {
+                releaseSlots(needed, lane);
+                throw new RejectedExecutionException("ingestion queue is full");
+            }
+        }
+    }
+
+    /**
+     * Release the slots reserved in the lanes before the given one
+     */
+    private void releaseSlots(int[] needed, int end) {
+        for (int lane = 0; lane < end; lane++) {
+            if (needed[lane] > 0) {
+                slots[lane].release(needed[lane]);
+            }
+        }
+    }
+
+    private int laneOf(Event event) {
+        return event.getId() == null ? 0 : (event.getId().hashCode() & Integer.MAX_VALUE) % executors.length;
+    }
+
+    /**
+     * Remove all the pending events (for instance when the configuration is reset)
+     */
+    public void clear() {
+        if (executors != null) {
+            for (int lane = 0; lane < executors.length; lane++) {
+                List<Runnable> removed = new ArrayList<>();
+                executors[lane].getQueue().drainTo(removed);
+                if (slots != null) {
+                    slots[lane].release(removed.size());
+                }
+            }
+        }
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        if (executors != null) {
+            for (ThreadPoolExecutor executor : executors) {
+                size += executor.getQueue().size();
+            }
+        }
+        return size;
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the average duration (ms) between the acceptance of an event and the start of its processing
+     */
+    public double getAverageLatency() {
+        long count = processed.sum();
+        return count == 0 ? 0 : totalLatency.sum() / 1000000.0 / count;
+    }
+
+    private void publishMetrics() {
+        gaugeService.submit(metricsPrefix + ".queueSize", getQueueSize());
+        gaugeService.submit(metricsPrefix + ".accepted", accepted.sum());
+        gaugeService.submit(metricsPrefix + ".rejected", rejected.sum());
+        gaugeService.submit(metricsPrefix + ".dropped", dropped.sum());
+        gaugeService.submit(metricsPrefix + ".failed", failed.sum());
+    }
+
+    /**
+     * Apply the overflow policy when the queue of a dispatcher is full.
+     * The block and reject policies reserve a slot before submitting, so only the drop oldest policy overflows.
+     */
+    private void overflow(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("ingestion is shut down");
+        }
+        if (overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+            throw new RejectedExecutionException("ingestion queue is full");
+        }
+        // Retry until the new event finds a slot, dropping the oldest ones
+        while (!executor.getQueue().offer(task)) {
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest != null) {
+                dropped.increment();
+                logger.warn("Ingestion queue full, dropping oldest event {}", ((IngestionTask) oldest).event);
+            }
+        }
+    }
+}
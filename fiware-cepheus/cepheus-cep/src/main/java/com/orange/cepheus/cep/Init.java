@@ -11,6 +11,7 @@ package com.orange.cepheus.cep;
 import com.orange.cepheus.cep.exception.ConfigurationException;
 import com.orange.cepheus.cep.exception.PersistenceException;
 import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.cep.model.EngineState;
 import com.orange.cepheus.cep.persistence.Persistence;
 import com.orange.cepheus.cep.tenant.TenantFilter;
 import org.slf4j.Logger;
@@ -21,6 +22,7 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 /**
  * This Bean is created to load a persisted Configuration
@@ -46,7 +48,10 @@ public class Init {
     protected SubscriptionManager subscriptionManager;
 
     @Autowired
-    protected EventMapper eventMapper;
+    protected SnapshotManager snapshotManager;
+
+    @Autowired
+    protected EventJournal eventJournal;
 
     @PostConstruct
     protected void loadConfigurationOnStartup() {
@@ -54,12 +59,38 @@ public class Init {
         try {
             if (persistence.configurationExists(TenantFilter.DEFAULT_TENANTID)) {
                 Configuration configuration = persistence.loadConfiguration(TenantFilter.DEFAULT_TENANTID);
-                eventMapper.setConfiguration(configuration);
                 complexEventProcessor.setConfiguration(configuration);
+                EngineState state = loadSnapshot();
+                complexEventProcessor.restoreState(state, eventJournal.replay(state == null ? null : state.getJournalPosition()));
                 subscriptionManager.setConfiguration(configuration);
             }
         } catch (PersistenceException | ConfigurationException e) {
             logger.error("Failed to load or apply persisted configuration", e);
         }
     }
+
+    /**
+     * Load the state of the engine to restore before the subscriptions resume,
+     * the journal replays the events received after the snapshot
+     * @return the state, null if none or unreadable
+     */
+    private EngineState loadSnapshot() {
+        try {
+            return snapshotManager.loadSnapshot();
+        } catch (PersistenceException e) {
+            logger.error("Failed to restore snapshot", e);
+            return null;
+        }
+    }
+
+    @PreDestroy
+    protected void saveSnapshotOnShutdown() {
+        try {
+            // Stop the periodic snapshots before the final one
+            snapshotManager.shutdown();
+            snapshotManager.saveSnapshot();
+        } catch (PersistenceException e) {
+            logger.error("Failed to save snapshot on shutdown", e);
+        }
+    }
 }
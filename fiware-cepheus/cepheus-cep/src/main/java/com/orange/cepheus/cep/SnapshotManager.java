@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.exception.PersistenceException;
+import com.orange.cepheus.cep.model.EngineState;
+import com.orange.cepheus.cep.model.JournalPosition;
+import com.orange.cepheus.cep.tenant.TenantFilter;
+import com.orange.cepheus.cep.tenant.TenantScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.scheduling.TaskScheduler;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Periodically save the state of the Complex Event Processor (named windows, tables and variables)
+ * in the data.path folder, so that it can be restored on startup after the configuration is applied.
+ *
+ * A snapshot is a gzipped binary file: [magic (int)][version (byte)][timestamp (long)][journal position], then for each window
+ * [statement][name][properties][rows] and for each variable [name][value], values being encoded by the ValueCodec.
+ * The journal position is where the replay of the events starts on restore.
+ * Restored events enter their windows at the time of the snapshot: time windows keep them for their full length from then.
+ */
+public class SnapshotManager {
+
+    private static Logger logger = LoggerFactory.getLogger(SnapshotManager.class);
+
+    private final static String PREFIX = "cep-";
+    private final static String EXT = ".snapshot";
+
+    private final static int MAGIC = 0x43455053;
+    private final static byte VERSION = 1;
+
+    @Value("${snapshot.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Periodicity (ms) of the snapshots
+     */
+    @Value("${snapshot.periodicity:60000}")
+    private long periodicity;
+
+    @Value("${data.path}")
+    private String dataPath;
+
+    /**
+     * Publish the snapshot metrics when the Spring Boot metrics are enabled
+     */
+    @Value("${endpoints.metrics.enabled:${endpoints.enabled:false}}")
+    private boolean collectMetrics;
+
+    /**
+     * This bean is only injected in multi tenant mode.
+     */
+    @Autowired(required = false)
+    private TenantScope tenantScope;
+
+    @Autowired
+    private ComplexEventProcessor complexEventProcessor;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    private String snapshotId = TenantFilter.DEFAULT_TENANTID;
+
+    private String metricsPrefix = "cepheus.snapshot";
+
+    /**
+     * The periodic task runs on the scheduler threads, it must resolve the tenant scoped beans of its tenant
+     */
+    private TenantScope.Context tenantContext;
+
+    private ScheduledFuture scheduledFuture;
+
+    private volatile long lastSize;
+    private volatile long lastDuration;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+
+        if (tenantScope != null) {
+            tenantContext = TenantScope.getTenantContext();
+            snapshotId = tenantScope.getConversationId();
+            metricsPrefix = metricsPrefix + "." + snapshotId;
+        }
+
+        scheduledFuture = taskScheduler.scheduleWithFixedDelay(this::periodicSnapshot,
+                new Date(System.currentTimeMillis() + periodicity), periodicity);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduledFuture != null) {
+            scheduledFuture.cancel(false);
+        }
+    }
+
+    /**
+     * @return true if snapshots are enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the size in bytes of the last snapshot
+     */
+    public long getLastSize() {
+        return lastSize;
+    }
+
+    /**
+     * @return the duration in ms of the last snapshot
+     */
+    public long getLastDuration() {
+        return lastDuration;
+    }
+
+    /**
+     * Save the state of the CEP engine, replacing the previous snapshot.
+     * Saves are serialized, a periodic snapshot in progress completes before the final one on shutdown.
+     * @throws PersistenceException if the snapshot could not be written
+     */
+    public synchronized void saveSnapshot() throws PersistenceException {
+        if (!enabled || complexEventProcessor.getConfiguration() == null) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        EngineState state = complexEventProcessor.getState();
+
+        // Write to a temporary file first, so that a crash never leaves a partial snapshot
+        File file = new File(dataPath + idToFilename(snapshotId));
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile))))) {
+            writeState(out, state);
+        } catch (IOException e) {
+            throw new PersistenceException("Failed to save snapshot", e);
+        }
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new PersistenceException("Failed to save snapshot", e);
+        }
+
+        lastSize = file.length();
+        lastDuration = System.currentTimeMillis() - start;
+        logger.info("Saved snapshot {} ({} bytes) in {} ms", file, lastSize, lastDuration);
+        if (collectMetrics) {
+            gaugeService.submit(metricsPrefix + ".size", lastSize);
+            gaugeService.submit(metricsPrefix + ".duration", lastDuration);
+        }
+    }
+
+    /**
+     * Load the state of the CEP engine from the last snapshot if any,
+     * to be restored with the events journaled after it once the configuration is applied.
+     * @return the state, null if there is no snapshot
+     * @throws PersistenceException if the snapshot could not be read
+     */
+    public EngineState loadSnapshot() throws PersistenceException {
+        File file = new File(dataPath + idToFilename(snapshotId));
+        if (!enabled || !file.exists()) {
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        EngineState state;
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))))) {
+            state = readState(in);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new PersistenceException("Failed to load snapshot", e);
+        }
+
+        logger.info("Loaded snapshot {} ({} bytes) in {} ms", file, file.length(), System.currentTimeMillis() - start);
+        return state;
+    }
+
+    /**
+     * Delete the snapshot (for instance when the configuration is removed)
+     */
+    public void deleteSnapshot() {
+        // The beans of a removed tenant are discarded
+        if (tenantScope != null) {
+            shutdown();
+        }
+        new File(dataPath + idToFilename(snapshotId)).delete();
+    }
+
+    private void periodicSnapshot() {
+        if (tenantContext != null) {
+            TenantScope.storeTenantContext(tenantContext);
+        }
+        try {
+            saveSnapshot();
+        } catch (PersistenceException e) {
+            logger.error("Failed to save periodic snapshot", e);
+        } finally {
+            if (tenantContext != null) {
+                TenantScope.resetTenant();
+            }
+        }
+    }
+
+    private static void writeState(DataOutputStream out, EngineState state) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(state.getTimestamp());
+        JournalPosition journalPosition = state.getJournalPosition();
+        out.writeBoolean(journalPosition != null);
+        if (journalPosition != null) {
+            out.writeLong(journalPosition.getSegment());
+            out.writeInt(journalPosition.getOffset());
+        }
+        out.writeInt(state.getWindows().size());
+        for (Map.Entry<String, EngineState.Window> entry : state.getWindows().entrySet()) {
+            EngineState.Window window = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeUTF(window.getName());
+            out.writeInt(window.getProperties().length);
+            for (String property : window.getProperties()) {
+                out.writeUTF(property);
+            }
+            out.writeInt(window.getRows().size());
+            for (Object[] row : window.getRows()) {
+                for (Object value : row) {
+                    ValueCodec.writeValue(out, value);
+                }
+            }
+        }
+        out.writeInt(state.getVariables().size());
+        for (Map.Entry<String, Object> entry : state.getVariables().entrySet()) {
+            out.writeUTF(entry.getKey());
+            ValueCodec.writeValue(out, entry.getValue());
+        }
+    }
+
+    private static EngineState readState(DataInputStream in) throws IOException, ClassNotFoundException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("unknown snapshot format");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+        EngineState state = new EngineState(in.readLong());
+        if (in.readBoolean()) {
+            state.setJournalPosition(new JournalPosition(in.readLong(), in.readInt()));
+        }
+        int windows = in.readInt();
+        for (int i = 0; i < windows; i++) {
+            String statementName = in.readUTF();
+            String name = in.readUTF();
+            String[] properties = new String[in.readInt()];
+            for (int j = 0; j < properties.length; j++) {
+                properties[j] = in.readUTF();
+            }
+            EngineState.Window window = new EngineState.Window(name, properties);
+            int rows = in.readInt();
+            for (int j = 0; j < rows; j++) {
+                Object[] row = new Object[properties.length];
+                for (int k = 0; k < row.length; k++) {
+                    row[k] = ValueCodec.readValue(in);
+                }
+                window.getRows().add(row);
+            }
+            state.getWindows().put(statementName, window);
+        }
+        int variables = in.readInt();
+        for (int i = 0; i < variables; i++) {
+            String name = in.readUTF();
+            state.getVariables().put(name, ValueCodec.readValue(in));
+        }
+        return state;
+    }
+
+    /**
+     * Prepare the id to be compatible to a filename
+     */
+    private String idToFilename(String id) {
+        return PREFIX + id.replace('/', '-') + EXT;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.model.LatencyStats;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Expose the stage statistics of all the tenants through the Spring Boot metrics endpoint,
+ * as prefix.type.stage.count|mean|p50|p99|p999|max (durations in microseconds)
+ */
+@Component
+public class StageMetrics implements PublicMetrics {
+
+    /**
+     * Statistics by metrics prefix
+     */
+    private final Map<String, StageStatistics> statistics = new ConcurrentHashMap<>();
+
+    void register(String prefix, StageStatistics stageStatistics) {
+        statistics.put(prefix, stageStatistics);
+    }
+
+    void unregister(String prefix, StageStatistics stageStatistics) {
+        statistics.remove(prefix, stageStatistics);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        statistics.forEach((prefix, stageStatistics) ->
+                stageStatistics.getStats().forEach((type, stages) ->
+                        stages.forEach((stage, stats) -> {
+                            String name = prefix + "." + type.replaceAll("[^A-Za-z0-9]+", "_") + "." + stage;
+                            metrics.add(new Metric<>(name + ".count", stats.getCount()));
+                            metrics.add(new Metric<>(name + ".mean", stats.getMean()));
+                            metrics.add(new Metric<>(name + ".p50", stats.getP50()));
+                            metrics.add(new Metric<>(name + ".p99", stats.getP99()));
+                            metrics.add(new Metric<>(name + ".p999", stats.getP999()));
+                            metrics.add(new Metric<>(name + ".max", stats.getMax()));
+                        })));
+        return metrics;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.model.LatencyStats;
+import com.orange.cepheus.cep.tenant.TenantScope;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency histograms of each stage of the event pipeline, by event type.
+ * Durations are recorded in microseconds in HDR histograms (wait-free recording, fixed relative precision),
+ * so that the statistics can be kept in production without the cost of the Esper engine metrics.
+ * When disabled, start() and record() do nothing.
+ */
+public class StageStatistics {
+
+    /**
+     * Stages of the event pipeline
+     */
+    public enum Stage {
+        /** decoding of the NGSI request, from its reception to the controller (recorded once per request) */
+        DECODE("decode"),
+        /** mapping of a context element to an incoming event (EventMapper) */
+        MAPPING_IN("mappingIn"),
+        /** processing of an incoming event by the engine, including the listeners of the statements */
+        PROCESSING("processing"),
+        /** mapping of an outgoing event to a context element (EventSinkListener) */
+        MAPPING_OUT("mappingOut"),
+        /** updateContext request to a broker, until its response */
+        OUTBOUND("outbound");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    @Value("${stats.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Number of significant digits kept by the histograms (1 to 5)
+     */
+    @Value("${stats.significantDigits:2}")
+    private int significantDigits;
+
+    /**
+     * This bean is only injected in multi tenant mode.
+     */
+    @Autowired(required = false)
+    private TenantScope tenantScope;
+
+    @Autowired
+    private StageMetrics stageMetrics;
+
+    private String metricsPrefix = "cepheus.stats";
+
+    /**
+     * Histograms by event type, indexed by stage
+     */
+    private final Map<String, Histogram[]> histograms = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (tenantScope != null) {
+            metricsPrefix = metricsPrefix + "." + tenantScope.getConversationId();
+        }
+        if (enabled) {
+            stageMetrics.register(metricsPrefix, this);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stageMetrics.unregister(metricsPrefix, this);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the start time of a stage, to give to record()
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the duration of a stage
+     * @param stage the stage
+     * @param type the type of the event
+     * @param start the start time returned by start()
+     */
+    public void record(Stage stage, String type, long start) {
+        if (enabled) {
+            record(getHistogram(stage, type), start);
+        }
+    }
+
+    /**
+     * Get the histogram of a stage, to record durations outside of the tenant context (for instance in asynchronous callbacks)
+     * @return the histogram or null when disabled
+     */
+    public Histogram getHistogram(Stage stage, String type) {
+        if (!enabled) {
+            return null;
+        }
+        return histograms.computeIfAbsent(type == null ? "" : type, t -> {
+            Histogram[] stages = new Histogram[Stage.values().length];
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new ConcurrentHistogram(significantDigits);
+            }
+            return stages;
+        })[stage.ordinal()];
+    }
+
+    /**
+     * Record the duration since start in a histogram returned by getHistogram()
+     */
+    public static void record(Histogram histogram, long start) {
+        if (histogram != null) {
+            histogram.recordValue(Math.max(0, (System.nanoTime() - start) / 1000));
+        }
+    }
+
+    /**
+     * @return the statistics of each stage, by event type
+     */
+    public Map<String, Map<String, LatencyStats>> getStats() {
+        Map<String, Map<String, LatencyStats>> stats = new TreeMap<>();
+        histograms.forEach((type, stages) -> {
+            Map<String, LatencyStats> stageStats = new LinkedHashMap<>();
+            for (Stage stage : Stage.values()) {
+                Histogram histogram = stages[stage.ordinal()].copy();
+                if (histogram.getTotalCount() > 0) {
+                    stageStats.put(stage.getLabel(), new LatencyStats(histogram));
+                }
+            }
+            stats.put(type, stageStats);
+        });
+        return stats;
+    }
+
+    /**
+     * Forget all the recorded durations
+     */
+    public void reset() {
+        histograms.clear();
+    }
+}
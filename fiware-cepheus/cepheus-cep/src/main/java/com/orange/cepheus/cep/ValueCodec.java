@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compact binary encoding of the values of the events, shared by the EventJournal and the SnapshotManager.
+ * Each value is written with a type tag. Values of other types fall back to the Java serialization,
+ * only classes of the JDK value packages and of the JTS geometries are accepted when they are read back,
+ * so that a tampered file cannot instantiate arbitrary classes of the classpath.
+ */
+final class ValueCodec {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte FLOAT = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte BOOLEAN = 6;
+    private static final byte DATE = 7;
+    private static final byte SERIALIZED = 8;
+    private static final byte GEOMETRY = 9;
+    private static final byte TEXT = 10;
+
+    /**
+     * Longest string that always fits the 64KB limit of writeUTF
+     */
+    private static final int MAX_UTF_LENGTH = 0xFFFF / 3;
+
+    /**
+     * Packages of the classes accepted by the Java serialization fallback
+     */
+    private static final Set<String> SERIALIZABLE_PACKAGES = new HashSet<>(Arrays.asList("java.lang", "java.util", "java.math",
+            "com.vividsolutions.jts.geom", "com.vividsolutions.jts.geom.impl"));
+
+    private ValueCodec() {
+    }
+
+    static void writeValue(DataOutputStream output, Object value) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (value instanceof String) {
+            String string = (String) value;
+            if (string.length() <= MAX_UTF_LENGTH) {
+                output.writeByte(STRING);
+                output.writeUTF(string);
+            } else {
+                output.writeByte(TEXT);
+                writeBytes(output, string.getBytes(StandardCharsets.UTF_8));
+            }
+        } else if (value instanceof Integer) {
+            output.writeByte(INT);
+            output.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            output.writeByte(FLOAT);
+            output.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Date) {
+            output.writeByte(DATE);
+            output.writeLong(((Date) value).getTime());
+        } else if (value instanceof Geometry) {
+            // Well-known binary with the SRID
+            output.writeByte(GEOMETRY);
+            writeBytes(output, new WKBWriter(2, true).write((Geometry) value));
+        } else {
+            // Other values (json objects...) use the Java serialization
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOutput = new ObjectOutputStream(bytes)) {
+                objectOutput.writeObject(value);
+            }
+            output.writeByte(SERIALIZED);
+            writeBytes(output, bytes.toByteArray());
+        }
+    }
+
+    static Object readValue(DataInputStream input) throws IOException, ClassNotFoundException {
+        byte tag = input.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return input.readUTF();
+            case INT:
+                return input.readInt();
+            case LONG:
+                return input.readLong();
+            case FLOAT:
+                return input.readFloat();
+            case DOUBLE:
+                return input.readDouble();
+            case BOOLEAN:
+                return input.readBoolean();
+            case DATE:
+                return new Date(input.readLong());
+            case SERIALIZED:
+                try (ObjectInputStream objectInput = new FilteredObjectInputStream(new ByteArrayInputStream(readBytes(input)))) {
+                    return objectInput.readObject();
+                }
+            case GEOMETRY:
+                try {
+                    return new WKBReader().read(readBytes(input));
+                } catch (ParseException e) {
+                    throw new IOException("invalid geometry", e);
+                }
+            case TEXT:
+                return new String(readBytes(input), StandardCharsets.UTF_8);
+            default:
+                throw new IOException("unknown value tag " + tag);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            throw new IOException("invalid value length " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Rejects the classes outside of the accepted packages before they are loaded
+     */
+    private static class FilteredObjectInputStream extends ObjectInputStream {
+
+        FilteredObjectInputStream(InputStream input) throws IOException {
+            super(input);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            // Arrays are checked by their component type, primitive arrays are always accepted
+            int dimensions = 0;
+            while (dimensions < name.length() && name.charAt(dimensions) == '[') {
+                dimensions++;
+            }
+            if (dimensions > 0) {
+                name = name.charAt(dimensions) == 'L' ? name.substring(dimensions + 1, name.length() - 1) : "";
+            }
+            if (!name.isEmpty()) {
+                int lastDot = name.lastIndexOf('.');
+                if (lastDot < 0 || !SERIALIZABLE_PACKAGES.contains(name.substring(0, lastDot))) {
+                    throw new InvalidClassException(desc.getName(), "class not accepted in the journal and snapshot values");
+                }
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+            throw new InvalidClassException("proxy classes are not accepted in the journal and snapshot values");
+        }
+    }
+}
@@ -8,9 +8,13 @@
 
 package com.orange.cepheus.cep.controller;
 
-import com.orange.cepheus.cep.EventMapper;
+import com.orange.cepheus.cep.EventJournal;
+import com.orange.cepheus.cep.IngestionQueue;
+import com.orange.cepheus.cep.SnapshotManager;
+import com.orange.cepheus.cep.StageStatistics;
 import com.orange.cepheus.cep.SubscriptionManager;
 import com.orange.cepheus.cep.exception.PersistenceException;
+import com.orange.cepheus.cep.model.LatencyStats;
 import com.orange.cepheus.cep.model.Statement;
 import com.orange.cepheus.cep.tenant.TenantFilter;
 import com.orange.cepheus.cep.tenant.TenantScope;
@@ -34,6 +38,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Controller for management of the CEP
@@ -51,10 +56,19 @@ public class AdminController {
     public Persistence persistence;
 
     @Autowired
-    public EventMapper eventMapper;
+    public SubscriptionManager subscriptionManager;
 
     @Autowired
-    public SubscriptionManager subscriptionManager;
+    public IngestionQueue ingestionQueue;
+
+    @Autowired
+    public SnapshotManager snapshotManager;
+
+    @Autowired
+    public EventJournal eventJournal;
+
+    @Autowired
+    public StageStatistics stageStatistics;
 
     /**
      * This bean is only injected in multi tenant mode.
@@ -90,14 +104,12 @@ public class AdminController {
         final Configuration previousConfiguration = complexEventProcessor.getConfiguration();
         try {
             complexEventProcessor.setConfiguration(configuration);
-            eventMapper.setConfiguration(configuration);
             subscriptionManager.setConfiguration(configuration);
             persistence.saveConfiguration(configurationId, configuration);
         } catch (ConfigurationException e) {
             // try to restore previous configuration
             if (previousConfiguration != null) {
                 complexEventProcessor.restoreConfiguration(previousConfiguration);
-                eventMapper.setConfiguration(previousConfiguration);
                 subscriptionManager.setConfiguration(previousConfiguration);
             }
             throw e;
@@ -144,10 +156,14 @@ public class AdminController {
         if (tenantFilter != null) {
             tenantFilter.removeTenant(configurationId);
         }
-        // Reset the CEP
+        // Discard pending events and reset the CEP
+        ingestionQueue.clear();
         complexEventProcessor.reset();
-        // Delete the persisted configuration
+        // Delete the persisted configuration and engine state
         persistence.deleteConfiguration(configurationId);
+        snapshotManager.deleteSnapshot();
+        eventJournal.clear();
+        stageStatistics.reset();
 
         return new ResponseEntity<>(HttpStatus.OK);
     }
@@ -164,6 +180,27 @@ public class AdminController {
         return new ResponseEntity<>(statements, HttpStatus.OK);
     }
 
+    /**
+     * @return the latency statistics (microseconds) of each stage of the event pipeline, by event type
+     */
+    @RequestMapping(value = "/stats", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Map<String, LatencyStats>>> stats() {
+
+        if (!stageStatistics.isEnabled()) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+
+        return new ResponseEntity<>(stageStatistics.getStats(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/stats", method = RequestMethod.DELETE)
+    public ResponseEntity<?> resetStats() {
+
+        stageStatistics.reset();
+
+        return new ResponseEntity<>(HttpStatus.OK);
+    }
+
     @ExceptionHandler(MethodArgumentNotValidException.class)
     public ResponseEntity<StatusCode> validationExceptionHandler(HttpServletRequest req, MethodArgumentNotValidException exception) {
 
@@ -10,6 +10,8 @@ package com.orange.cepheus.cep.controller;
 
 import com.orange.cepheus.cep.ComplexEventProcessor;
 import com.orange.cepheus.cep.EventMapper;
+import com.orange.cepheus.cep.IngestionQueue;
+import com.orange.cepheus.cep.StageStatistics;
 import com.orange.cepheus.cep.SubscriptionManager;
 import com.orange.cepheus.cep.exception.EventProcessingException;
 import com.orange.cepheus.cep.exception.TypeNotFoundException;
@@ -22,6 +24,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.*;
@@ -44,6 +48,12 @@ public class NgsiController extends NgsiBaseController {
     @Autowired
     public SubscriptionManager subscriptionManager;
 
+    @Autowired
+    public IngestionQueue ingestionQueue;
+
+    @Autowired
+    public StageStatistics stageStatistics;
+
     @Autowired
     public NgsiClient ngsiClient;
 
@@ -56,11 +66,15 @@ public class NgsiController extends NgsiBaseController {
 
         // Only handle notification if it has a valid subscription
         if (subscriptionManager.validateSubscriptionId(notify.getSubscriptionId(), notify.getOriginator().toString())) {
+            if (!notify.getContextElementResponseList().isEmpty()) {
+                recordDecode(notify.getContextElementResponseList().get(0).getContextElement());
+            }
+            // Map all the context elements before processing any, so that the notification is admitted or rejected as a whole
+            List<Event> events = new ArrayList<>(notify.getContextElementResponseList().size());
             for (ContextElementResponse response : notify.getContextElementResponseList()) {
-                ContextElement element = response.getContextElement();
-                Event event = eventMapper.eventFromContextElement(element);
-                complexEventProcessor.processEvent(event);
+                events.add(mapEvent(response.getContextElement()));
             }
+            processEvents(events);
             notifyContextResponse.setResponseCode(new StatusCode(CodeEnum.CODE_200));
         } else {
             logger.warn("notifyContext request: invalid subscription id {} / {}", notify.getSubscriptionId(), notify.getOriginator());
@@ -77,11 +91,14 @@ public class NgsiController extends NgsiBaseController {
 
         List<ContextElementResponse> responses = new LinkedList<>();
 
+        if (!update.getContextElements().isEmpty()) {
+            recordDecode(update.getContextElements().get(0));
+        }
         for (ContextElement element : update.getContextElements()) {
             StatusCode statusCode;
             try {
-                Event event = eventMapper.eventFromContextElement(element);
-                complexEventProcessor.processEvent(event);
+                Event event = mapEvent(element);
+                processEvent(event);
                 statusCode = new StatusCode(CodeEnum.CODE_200);
             } catch (EventProcessingException e) {
                 logger.error("updateContext incoming request: failed to process event {}", e);
@@ -96,6 +113,55 @@ public class NgsiController extends NgsiBaseController {
         return response;
     }
 
+    /**
+     * Map a context element to an event, recording the mapping duration
+     */
+    private Event mapEvent(ContextElement element) throws EventProcessingException, TypeNotFoundException {
+        long start = stageStatistics.start();
+        Event event = eventMapper.eventFromContextElement(element);
+        stageStatistics.record(StageStatistics.Stage.MAPPING_IN, element.getEntityId().getType(), start);
+        return event;
+    }
+
+    /**
+     * Record the decoding duration of the current request, under the type of its first context element
+     */
+    private void recordDecode(ContextElement element) {
+        RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+        if (requestAttributes != null && element.getEntityId() != null) {
+            Object receivedAt = requestAttributes.getAttribute(RequestTimingConfiguration.RECEIVED_AT, RequestAttributes.SCOPE_REQUEST);
+            if (receivedAt != null) {
+                stageStatistics.record(StageStatistics.Stage.DECODE, element.getEntityId().getType(), (Long) receivedAt);
+            }
+        }
+    }
+
+    /**
+     * Hand all the events to the ingestion queue when asynchronous ingestion is enabled,
+     * else process them directly on the request thread.
+     */
+    private void processEvents(List<Event> events) throws EventProcessingException {
+        if (ingestionQueue.isEnabled()) {
+            ingestionQueue.submitAll(events);
+        } else {
+            for (Event event : events) {
+                complexEventProcessor.processEvent(event);
+            }
+        }
+    }
+
+    /**
+     * Hand the event to the ingestion queue when asynchronous ingestion is enabled,
+     * else process it directly on the request thread.
+     */
+    private void processEvent(Event event) throws EventProcessingException {
+        if (ingestionQueue.isEnabled()) {
+            ingestionQueue.submit(event);
+        } else {
+            complexEventProcessor.processEvent(event);
+        }
+    }
+
     @ExceptionHandler({TypeNotFoundException.class})
     public ResponseEntity<Object> typeNotFoundExceptionHandler(HttpServletRequest req, TypeNotFoundException typeNotFoundException) {
         logger.error("Type not found: {}", typeNotFoundException.getTypeName());
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep.controller;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * When the stage statistics are enabled, mark the NGSI requests with the time they are dispatched to the controller,
+ * before their body is decoded, so that the controller can record the decoding duration.
+ */
+@Configuration
+public class RequestTimingConfiguration extends WebMvcConfigurerAdapter {
+
+    /**
+     * Request attribute holding the dispatch time (System.nanoTime())
+     */
+    public final static String RECEIVED_AT = "cepheus.receivedAt";
+
+    @Value("${stats.enabled:false}")
+    private boolean enabled;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (enabled) {
+            registry.addInterceptor(new HandlerInterceptorAdapter() {
+                @Override
+                public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                    request.setAttribute(RECEIVED_AT, System.nanoTime());
+                    return true;
+                }
+            }).addPathPatterns("/v1/**", "/ngsi10/**", "/NGSI10/**").excludePathPatterns("/v1/admin/**");
+        }
+    }
+}
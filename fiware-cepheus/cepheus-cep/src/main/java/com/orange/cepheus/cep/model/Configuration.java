@@ -12,6 +12,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.net.URI;
 import java.util.List;
@@ -47,6 +48,13 @@ public class Configuration {
     @NotNull(message = "Configuration.statements must contain a list of EPL statements")
     private List<String> statements;
 
+    /**
+     * Number of processing lanes (optional, default: a single lane processing events synchronously).
+     * Events are dispatched to the lanes by entity id: per-entity ordering is kept while unrelated entities are processed in parallel.
+     */
+    @Min(value = 1, message = "Configuration.lanes must be at least 1")
+    private Integer lanes;
+
     public Configuration() {
     }
 
@@ -97,4 +105,12 @@ public class Configuration {
     public void setStatements(List<String> statements) {
         this.statements = statements;
     }
+
+    public Integer getLanes() {
+        return lanes;
+    }
+
+    public void setLanes(Integer lanes) {
+        this.lanes = lanes;
+    }
 }
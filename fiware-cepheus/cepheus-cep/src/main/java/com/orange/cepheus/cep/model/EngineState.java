@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep.model;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copy of the state of the CEP engine: content of the named windows and tables, and values of the variables.
+ * Used to snapshot the engine, and to migrate the state from one engine to another.
+ */
+public class EngineState {
+
+    /**
+     * Content of a named window or a table
+     */
+    public static class Window {
+
+        private final String name;
+        private final String[] properties;
+        private final List<Object[]> rows = new LinkedList<>();
+
+        public Window(String name, String[] properties) {
+            this.name = name;
+            this.properties = properties;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String[] getProperties() {
+            return properties;
+        }
+
+        /**
+         * @return the values of each row, in the order of the properties
+         */
+        public List<Object[]> getRows() {
+            return rows;
+        }
+    }
+
+    /**
+     * Time of the copy
+     */
+    private final long timestamp;
+
+    /**
+     * Named windows and tables by name of their declaring statement
+     */
+    private final Map<String, Window> windows = new HashMap<>();
+
+    /**
+     * Values of the variables by name
+     */
+    private final Map<String, Object> variables = new HashMap<>();
+
+    /**
+     * Position of the event journal at the time of the copy, null if the events are not journaled
+     */
+    private JournalPosition journalPosition;
+
+    public EngineState() {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * @param timestamp time of the copy (for instance of a restored snapshot)
+     */
+    public EngineState(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, Window> getWindows() {
+        return windows;
+    }
+
+    public Map<String, Object> getVariables() {
+        return variables;
+    }
+
+    /**
+     * @return the position of the journal: all the events journaled before were processed in this state
+     */
+    public JournalPosition getJournalPosition() {
+        return journalPosition;
+    }
+
+    public void setJournalPosition(JournalPosition journalPosition) {
+        this.journalPosition = journalPosition;
+    }
+}
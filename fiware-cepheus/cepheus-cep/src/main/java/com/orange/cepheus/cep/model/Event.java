@@ -8,16 +8,22 @@
 
 package com.orange.cepheus.cep.model;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Event sent to the Esper CEP engine.
  * An event is a collection of properties defined by a type.
+ * The properties are either held in a map (by name),
+ * or in an array (by index) when the event type is registered as an object-array type.
  */
 public class Event {
 
     private Map<String, Object> values;
+    private Object[] array;
+    private EventLayout layout;
+    private String id;
     private String type;
 
     public Event() {
@@ -27,6 +33,30 @@ public class Event {
         this.type = type;
     }
 
+    /**
+     * Create an event in the object-array representation
+     * @param type the event type
+     * @param id the entity id
+     * @param array the properties, sized and ordered following the event type registration
+     */
+    public Event(String type, String id, Object[] array) {
+        this.type = type;
+        this.id = id;
+        this.array = array;
+    }
+
+    /**
+     * Create an event in the object-array representation, keeping the layout of the properties
+     * @param type the event type
+     * @param id the entity id
+     * @param layout the layout the properties were mapped with
+     * @param array the properties, sized and ordered following the layout
+     */
+    public Event(String type, String id, EventLayout layout, Object[] array) {
+        this(type, id, array);
+        this.layout = layout;
+    }
+
     public String getType() {
         return type;
     }
@@ -42,14 +72,48 @@ public class Event {
         values.put(name, value);
     }
 
+    /**
+     * Add a value only if the property is not already defined
+     */
+    public void addValueIfAbsent(String name, Object value) {
+        if (values == null) {
+            values = new HashMap<>();
+        }
+        values.putIfAbsent(name, value);
+    }
+
     public Map<String, Object> getValues() {
         return values;
     }
 
+    /**
+     * @return the properties in the object-array representation, or null for a map event
+     */
+    public Object[] getArray() {
+        return array;
+    }
+
+    /**
+     * @return the layout of the properties in the object-array representation, or null if unknown
+     */
+    public EventLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the id of the entity the event comes from
+     */
+    public Object getId() {
+        if (array != null) {
+            return id;
+        }
+        return values == null ? null : values.get("id");
+    }
+
     @Override public String toString() {
         return "Event{" +
                 "type='" + type + '\'' +
-                ", values=" + values +
+                ", values=" + (array != null ? Arrays.toString(array) : values) +
                 '}';
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Order of the properties of an event type in the object-array representation.
+ * An event keeps the layout it was mapped with: when the configuration changed before the event is processed
+ * (or replayed from the journal), its properties are moved by name to the positions of the layout registered in the engine.
+ */
+public class EventLayout {
+
+    private final String[] names;
+
+    /**
+     * Fingerprint of the property names, identifying the layout in the journal
+     */
+    private final long id;
+
+    private final Map<String, Integer> indexes = new HashMap<>();
+
+    /**
+     * @param names the property names, in the order of the event type registration
+     */
+    public EventLayout(String[] names) {
+        this.names = names;
+        // 64 bits FNV-1a hash of the names
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < names.length; i++) {
+            indexes.put(names[i], i);
+            for (int j = 0; j < names[i].length(); j++) {
+                hash = (hash ^ names[i].charAt(j)) * 0x100000001b3L;
+            }
+            hash = (hash ^ 0xff) * 0x100000001b3L;
+        }
+        this.id = hash;
+    }
+
+    public String[] getNames() {
+        return names;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return the position of a property, -1 if the property is not part of the layout
+     */
+    public int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return true if the other layout has the same properties in the same order
+     */
+    public boolean sameAs(EventLayout other) {
+        return other == this || other.id == id && Arrays.equals(other.names, names);
+    }
+
+    /**
+     * Move the properties of an event mapped with another layout to the positions of this layout.
+     * Properties missing from the other layout are null, properties missing from this layout are dropped.
+     * @param from the layout the properties were mapped with
+     * @param values the properties
+     * @return the properties in this layout
+     */
+    public Object[] remap(EventLayout from, Object[] values) {
+        Object[] remapped = new Object[names.length];
+        for (int i = 0; i < names.length; i++) {
+            int index = from.indexOf(names[i]);
+            if (index >= 0 && index < values.length) {
+                remapped[i] = values[index];
+            }
+        }
+        return remapped;
+    }
+}
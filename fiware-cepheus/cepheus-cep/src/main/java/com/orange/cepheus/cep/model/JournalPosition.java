@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep.model;
+
+/**
+ * Position in the event journal: the segment (identified by its start time) and the offset of the next record in it.
+ * The events journaled after a position are the records after the offset in the segment, and the records of the next segments.
+ */
+public class JournalPosition {
+
+    /**
+     * Offset of the end of a segment
+     */
+    public static final int END = Integer.MAX_VALUE;
+
+    private final long segment;
+
+    private final int offset;
+
+    public JournalPosition(long segment, int offset) {
+        this.segment = segment;
+        this.offset = offset;
+    }
+
+    /**
+     * @return the start time of the segment
+     */
+    public long getSegment() {
+        return segment;
+    }
+
+    /**
+     * @return the offset in the segment, END after its last record
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public String toString() {
+        return "JournalPosition{segment=" + segment + ", offset=" + offset + '}';
+    }
+}
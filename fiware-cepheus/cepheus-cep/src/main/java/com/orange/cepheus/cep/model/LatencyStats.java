@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep.model;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Model class used by the admin/stats endpoint: distribution of the durations (microseconds) of a stage
+ */
+public class LatencyStats {
+
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    public LatencyStats(Histogram histogram) {
+        count = histogram.getTotalCount();
+        mean = histogram.getMean();
+        p50 = histogram.getValueAtPercentile(50);
+        p99 = histogram.getValueAtPercentile(99);
+        p999 = histogram.getValueAtPercentile(99.9);
+        max = histogram.getMaxValue();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+}
@@ -77,9 +77,33 @@ public class TenantConfiguration {
         return new EventSinkListener();
     }
 
+    @Bean
+    @Scope(value = "tenant", proxyMode = ScopedProxyMode.TARGET_CLASS)
+    IngestionQueue ingestionQueue() {
+        return new IngestionQueue();
+    }
+
+    @Bean
+    @Scope(value = "tenant", proxyMode = ScopedProxyMode.TARGET_CLASS)
+    SnapshotManager snapshotManager() {
+        return new SnapshotManager();
+    }
+
+    @Bean
+    @Scope(value = "tenant", proxyMode = ScopedProxyMode.TARGET_CLASS)
+    EventJournal eventJournal() {
+        return new EventJournal();
+    }
+
     @Bean
     @Scope(value = "tenant", proxyMode = ScopedProxyMode.TARGET_CLASS)
     SubscriptionManager subscriptionManager() {
         return new SubscriptionManager();
     }
+
+    @Bean
+    @Scope(value = "tenant", proxyMode = ScopedProxyMode.TARGET_CLASS)
+    StageStatistics stageStatistics() {
+        return new StageStatistics();
+    }
 }
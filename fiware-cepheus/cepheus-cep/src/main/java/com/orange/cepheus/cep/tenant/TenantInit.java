@@ -9,12 +9,14 @@
 package com.orange.cepheus.cep.tenant;
 
 import com.orange.cepheus.cep.ComplexEventProcessor;
-import com.orange.cepheus.cep.EventMapper;
+import com.orange.cepheus.cep.EventJournal;
 import com.orange.cepheus.cep.Init;
+import com.orange.cepheus.cep.SnapshotManager;
 import com.orange.cepheus.cep.SubscriptionManager;
 import com.orange.cepheus.cep.exception.ConfigurationException;
 import com.orange.cepheus.cep.exception.PersistenceException;
 import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.cep.model.EngineState;
 import com.orange.cepheus.cep.persistence.Persistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +26,7 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 /**
  * This Bean is created to load a the persisted Configurations
@@ -55,15 +58,24 @@ public class TenantInit {
             tenantFilter.forceTenantScope(id);
 
             // Get beans needing the configuration
-            EventMapper eventMapper = (EventMapper) applicationContext.getBean("eventMapper");
             ComplexEventProcessor complexEventProcessor = (ComplexEventProcessor) applicationContext.getBean("complexEventProcessor");
             SubscriptionManager subscriptionManager = (SubscriptionManager) applicationContext.getBean("subscriptionManager");
+            SnapshotManager snapshotManager = (SnapshotManager) applicationContext.getBean("snapshotManager");
+            EventJournal eventJournal = (EventJournal) applicationContext.getBean("eventJournal");
 
             // Try restoring the persisted configuration if any
             try {
                 Configuration configuration = persistence.loadConfiguration(id);
-                eventMapper.setConfiguration(configuration);
                 complexEventProcessor.setConfiguration(configuration);
+                // Restore the state of the engine before the subscriptions resume
+                EngineState state = null;
+                try {
+                    state = snapshotManager.loadSnapshot();
+                } catch (PersistenceException e) {
+                    logger.error("Failed to restore snapshot {}", id, e);
+                }
+                // With the events received after the snapshot
+                complexEventProcessor.restoreState(state, eventJournal.replay(state == null ? null : state.getJournalPosition()));
                 subscriptionManager.setConfiguration(configuration);
             } catch (PersistenceException | ConfigurationException e) {
                 logger.error("Failed to load or apply persisted configuration {}", id, e);
@@ -73,4 +85,27 @@ public class TenantInit {
             tenantFilter.forceTenantScope(null);
         });
     }
+
+    /**
+     * Tenant scoped beans are never destroyed, save the snapshot of each tenant on shutdown
+     */
+    @PreDestroy
+    protected void saveSnapshotsOnShutdown() {
+
+        persistence.listConfigurations().forEach(id -> {
+
+            tenantFilter.forceTenantScope(id);
+
+            SnapshotManager snapshotManager = (SnapshotManager) applicationContext.getBean("snapshotManager");
+            try {
+                // Stop the periodic snapshots before the final one
+                snapshotManager.shutdown();
+                snapshotManager.saveSnapshot();
+            } catch (PersistenceException e) {
+                logger.error("Failed to save snapshot {} on shutdown", id, e);
+            }
+
+            tenantFilter.forceTenantScope(null);
+        });
+    }
 }
@@ -42,6 +42,14 @@ public class TenantScope implements Scope {
         tenantHolder.set(tenantContext);
     }
 
+    /**
+     * Get the tenant context associated to the current thread
+     * @return the tenant context or null
+     */
+    public static Context getTenantContext() {
+        return tenantHolder.get();
+    }
+
     /**
      * Reset the tenant context associated to the current thread
      */
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.espertech.esper.client.EPStatement;
+import com.orange.cepheus.cep.exception.ConfigurationException;
+import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.model.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Iterator;
+
+import static com.orange.cepheus.cep.Util.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test the blue/green configuration swap of the Esper complex event processor
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@TestPropertySource("classpath:application-bluegreen.properties") // blue/green swap with named windows migration
+public class BlueGreenConfigurationTest {
+
+    private static final String CREATE_WINDOW = "create window TempWindow.win:keepall() as TempSensor";
+
+    @Mock
+    EventSinkListener eventSinkListener;
+
+    @Autowired
+    @InjectMocks
+    private EsperEventProcessor esperEventProcessor;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @After
+    public void tearDown() throws ConfigurationException {
+        esperEventProcessor.setConfiguration(emptyConfiguration());
+    }
+
+    @Test
+    public void checkFailedSwapKeepsLiveConfiguration() throws ConfigurationException {
+        Configuration configuration = getBasicConf();
+        esperEventProcessor.setConfiguration(configuration);
+
+        Configuration badConfiguration = getBasicConf();
+        badConfiguration.getStatements().set(0, "INSERT INTO TempSensorAvg SELECT BAD FROM TempSensor");
+        try {
+            esperEventProcessor.setConfiguration(badConfiguration);
+            fail("configuration must be rejected");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+
+        assertSame(configuration, esperEventProcessor.getConfiguration());
+        assertEquals(1, esperEventProcessor.getStatements().size());
+        assertTrue(esperEventProcessor.restoreConfiguration(configuration));
+    }
+
+    @Test
+    public void checkNamedWindowMigration() throws ConfigurationException, EventProcessingException {
+        Configuration configuration = getBasicConf();
+        configuration.getStatements().add(CREATE_WINDOW);
+        configuration.getStatements().add("insert into TempWindow select * from TempSensor");
+        esperEventProcessor.setConfiguration(configuration);
+
+        esperEventProcessor.processEvent(buildBasicEvent(10.0));
+        esperEventProcessor.processEvent(buildBasicEvent(12.0));
+
+        // New configuration keeping the named window
+        Configuration newConfiguration = getBasicConf();
+        newConfiguration.getStatements().add(CREATE_WINDOW);
+        esperEventProcessor.setConfiguration(newConfiguration);
+
+        assertSame(newConfiguration, esperEventProcessor.getConfiguration());
+        assertEquals(2, esperEventProcessor.getStatements().size());
+        assertEquals(2, windowSize());
+    }
+
+    @Test
+    public void checkNoEventLostDuringSwap() throws Exception {
+        Configuration configuration = getBasicConf();
+        configuration.getStatements().add(CREATE_WINDOW);
+        configuration.getStatements().add("insert into TempWindow select * from TempSensor");
+        esperEventProcessor.setConfiguration(configuration);
+
+        // Events sent while the engine is swapped are processed either before the migration or by the new engine
+        final int count = 2000;
+        Thread sender = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++) {
+                    esperEventProcessor.processEvent(buildBasicEvent((double) i));
+                }
+            } catch (EventProcessingException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        sender.start();
+        for (int i = 0; i < 5; i++) {
+            Configuration newConfiguration = getBasicConf();
+            newConfiguration.getStatements().add(CREATE_WINDOW);
+            newConfiguration.getStatements().add("insert into TempWindow select * from TempSensor");
+            newConfiguration.getStatements().add("select count(*) from TempSensor" + (i % 2 == 0 ? "" : ".win:length(10)"));
+            esperEventProcessor.setConfiguration(newConfiguration);
+        }
+        sender.join();
+
+        assertEquals(count, windowSize());
+    }
+
+    private int windowSize() {
+        for (EPStatement statement : esperEventProcessor.getEPStatements()) {
+            if (CREATE_WINDOW.equals(statement.getText())) {
+                int size = 0;
+                for (Iterator<?> iterator = statement.iterator(); iterator.hasNext(); iterator.next()) {
+                    size++;
+                }
+                return size;
+            }
+        }
+        fail("missing named window");
+        return 0;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.EntityId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the BrokerBatcher
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BrokerBatcherTest {
+
+    @Mock
+    TaskScheduler taskScheduler;
+
+    @Mock
+    ScheduledFuture scheduledFuture;
+
+    private List<List<ContextElement>> batches = new LinkedList<>();
+
+    private BrokerBatcher brokerBatcher;
+
+    @Before
+    public void setUp() {
+        when(taskScheduler.schedule(any(Runnable.class), any(Date.class))).thenReturn(scheduledFuture);
+        brokerBatcher = new BrokerBatcher(1000, 3, taskScheduler, batches::add);
+    }
+
+    @Test
+    public void checkLingerScheduledOnce() {
+        brokerBatcher.add(contextElement("S1", "temp", 1));
+        brokerBatcher.add(contextElement("S2", "temp", 2));
+
+        ArgumentCaptor<Runnable> flushArg = ArgumentCaptor.forClass(Runnable.class);
+        verify(taskScheduler, times(1)).schedule(flushArg.capture(), any(Date.class));
+        assertEquals(0, batches.size());
+
+        // Linger timeout
+        flushArg.getValue().run();
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(0, brokerBatcher.size());
+    }
+
+    @Test
+    public void checkSendOnMaxSize() {
+        brokerBatcher.add(contextElement("S1", "temp", 1));
+        brokerBatcher.add(contextElement("S2", "temp", 2));
+        brokerBatcher.add(contextElement("S3", "temp", 3));
+
+        assertEquals(1, batches.size());
+        assertEquals(3, batches.get(0).size());
+        verify(scheduledFuture).cancel(false);
+
+        // Nothing left to send
+        brokerBatcher.flush();
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void checkCollapseUpdatesOfSameEntity() {
+        brokerBatcher.add(contextElement("S1", "temp", 1));
+        brokerBatcher.add(contextElement("S2", "temp", 2));
+        brokerBatcher.add(contextElement("S1", "temp", 10));
+        brokerBatcher.add(contextElement("S1", "hum", 50));
+        assertEquals(2, brokerBatcher.size());
+
+        brokerBatcher.flush();
+        assertEquals(1, batches.size());
+        List<ContextElement> batch = batches.get(0);
+        assertEquals(2, batch.size());
+
+        ContextElement s1 = batch.get(0);
+        assertEquals("S1", s1.getEntityId().getId());
+        assertEquals(2, s1.getContextAttributeList().size());
+        assertEquals("temp", s1.getContextAttributeList().get(0).getName());
+        assertEquals(10, s1.getContextAttributeList().get(0).getValue());
+        assertEquals("hum", s1.getContextAttributeList().get(1).getName());
+        assertEquals(50, s1.getContextAttributeList().get(1).getValue());
+        assertEquals("S2", batch.get(1).getEntityId().getId());
+    }
+
+    private ContextElement contextElement(String id, String attribute, int value) {
+        ContextElement contextElement = new ContextElement();
+        contextElement.setEntityId(new EntityId(id, "Sensor", false));
+        contextElement.setContextAttributeList(Collections.singletonList(new ContextAttribute(attribute, "int", value)));
+        return contextElement;
+    }
+}
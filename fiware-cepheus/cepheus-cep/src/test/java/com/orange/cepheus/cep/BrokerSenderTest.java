@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.EntityId;
+import com.orange.ngsi.model.UpdateAction;
+import com.orange.ngsi.model.UpdateContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the BrokerSender
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BrokerSenderTest {
+
+    @Mock
+    TaskScheduler taskScheduler;
+
+    @Mock
+    GaugeService gaugeService;
+
+    private List<SettableListenableFuture<Object>> requests = new ArrayList<>();
+
+    private List<UpdateContext> updates = new ArrayList<>();
+
+    private BrokerSender brokerSender;
+
+    @Before
+    public void setUp() {
+        BrokerSender.Policy policy = new BrokerSender.Policy();
+        policy.queueSize = 3;
+        policy.maxInFlight = 1;
+        policy.maxAttempts = 2;
+        policy.failureThreshold = 2;
+
+        brokerSender = new BrokerSender("http://orion", policy, taskScheduler, updateContext -> {
+            updates.add(updateContext);
+            SettableListenableFuture<Object> future = new SettableListenableFuture<>();
+            requests.add(future);
+            return future;
+        }, gaugeService, "cepheus.output.orion");
+    }
+
+    @Test
+    public void checkInFlightLimit() {
+        brokerSender.send(new UpdateContext(UpdateAction.APPEND));
+        brokerSender.send(new UpdateContext(UpdateAction.APPEND));
+        assertEquals(1, requests.size());
+        assertEquals(1, brokerSender.getInFlight());
+        assertEquals(1, brokerSender.getQueueSize());
+
+        // Next request is sent on completion
+        requests.get(0).set(null);
+        assertEquals(2, requests.size());
+        assertEquals(0, brokerSender.getQueueSize());
+        verify(gaugeService, atLeastOnce()).submit(eq("cepheus.output.orion.queueSize"), anyDouble());
+    }
+
+    @Test
+    public void checkQueueDropsOldest() {
+        for (int i = 0; i < 5; i++) {
+            brokerSender.send(new UpdateContext(UpdateAction.APPEND));
+        }
+        // 1 in flight, 3 queued, 1 dropped
+        assertEquals(3, brokerSender.getQueueSize());
+        assertEquals(1, brokerSender.getDropped());
+    }
+
+    @Test
+    public void checkRetryTransientFailure() {
+        brokerSender.send(new UpdateContext(UpdateAction.APPEND));
+        requests.get(0).setException(new ResourceAccessException("connection refused"));
+
+        ArgumentCaptor<Runnable> retryArg = ArgumentCaptor.forClass(Runnable.class);
+        verify(taskScheduler).schedule(retryArg.capture(), any(Date.class));
+        assertEquals(1, brokerSender.getFailures());
+
+        retryArg.getValue().run();
+        assertEquals(2, requests.size());
+        requests.get(1).set(null);
+        assertEquals(0, brokerSender.getInFlight());
+        assertEquals(BrokerSender.BreakerState.CLOSED, brokerSender.getBreakerState());
+    }
+
+    @Test
+    public void checkQueueHeldDuringRetry() {
+        brokerSender.send(updateContext("S1", 1));
+        brokerSender.send(updateContext("S1", 2));
+        requests.get(0).setException(new ResourceAccessException("connection refused"));
+
+        // The newer update waits for the retry of the older one
+        assertEquals(1, requests.size());
+        assertEquals(1, brokerSender.getQueueSize());
+
+        ArgumentCaptor<Runnable> retryArg = ArgumentCaptor.forClass(Runnable.class);
+        verify(taskScheduler).schedule(retryArg.capture(), any(Date.class));
+        retryArg.getValue().run();
+        assertEquals(2, requests.size());
+        assertEquals(1, updates.get(1).getContextElements().get(0).getContextAttributeList().get(0).getValue());
+
+        requests.get(1).set(null);
+        assertEquals(3, requests.size());
+        assertEquals(2, updates.get(2).getContextElements().get(0).getContextAttributeList().get(0).getValue());
+    }
+
+    @Test
+    public void checkRetryReplacedByNewerUpdate() {
+        BrokerSender.Policy policy = new BrokerSender.Policy();
+        policy.maxInFlight = 2;
+        brokerSender = new BrokerSender("http://orion", policy, taskScheduler, updateContext -> {
+            updates.add(updateContext);
+            SettableListenableFuture<Object> future = new SettableListenableFuture<>();
+            requests.add(future);
+            return future;
+        }, gaugeService, "cepheus.output.orion");
+
+        // Both updates are in flight when the first one fails
+        brokerSender.send(updateContext("S1", 1));
+        brokerSender.send(updateContext("S1", 2));
+        requests.get(0).setException(new ResourceAccessException("connection refused"));
+
+        ArgumentCaptor<Runnable> retryArg = ArgumentCaptor.forClass(Runnable.class);
+        verify(taskScheduler).schedule(retryArg.capture(), any(Date.class));
+        retryArg.getValue().run();
+
+        // The stale update is not sent again after the newer one
+        assertEquals(2, requests.size());
+        assertEquals(0, brokerSender.getQueueSize());
+    }
+
+    @Test
+    public void checkNoRetryOnClientError() {
+        brokerSender.send(new UpdateContext(UpdateAction.APPEND));
+        requests.get(0).setException(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+
+        verify(taskScheduler, never()).schedule(any(Runnable.class), any(Date.class));
+        assertEquals(1, brokerSender.getFailures());
+        assertEquals(0, brokerSender.getQueueSize());
+    }
+
+    @Test
+    public void checkBreakerOpensAfterConsecutiveFailures() {
+        brokerSender.send(new UpdateContext(UpdateAction.APPEND));
+        brokerSender.send(new UpdateContext(UpdateAction.APPEND));
+        requests.get(0).setException(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+        requests.get(1).setException(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+        assertEquals(BrokerSender.BreakerState.OPEN, brokerSender.getBreakerState());
+
+        // No request is sent while the breaker is open
+        brokerSender.send(new UpdateContext(UpdateAction.APPEND));
+        assertEquals(2, requests.size());
+        assertEquals(1, brokerSender.getQueueSize());
+    }
+
+    private UpdateContext updateContext(String id, int value) {
+        ContextElement contextElement = new ContextElement();
+        contextElement.setEntityId(new EntityId(id, "TempSensor", false));
+        contextElement.setContextAttributeList(Collections.singletonList(new ContextAttribute("temp", "int", value)));
+        UpdateContext updateContext = new UpdateContext(UpdateAction.APPEND);
+        updateContext.setContextElements(Collections.singletonList(contextElement));
+        return updateContext;
+    }
+}
@@ -16,6 +16,7 @@ import com.orange.cepheus.cep.exception.EventProcessingException;
 import com.orange.cepheus.cep.exception.EventTypeNotFoundException;
 import com.orange.cepheus.cep.model.Attribute;
 import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.cep.model.EngineState;
 import com.orange.cepheus.cep.model.Statement;
 import org.junit.*;
 import org.junit.runner.RunWith;
@@ -179,6 +180,86 @@ public class EsperEventProcessorTest {
         assertEquals(configuration.getStatements().get(0), esperEventProcessor.getStatements().get(0).getText());
     }
 
+    /**
+     * Check that a configuration rejected by the event mapper leaves the engine untouched:
+     * the previous configuration, statements and event types stay active
+     */
+    @Test
+    public void checkMappingErrorKeepsLiveConfiguration() throws ConfigurationException, EventTypeNotFoundException {
+        Configuration configuration = getBasicConf();
+        esperEventProcessor.setConfiguration(configuration);
+
+        Configuration badConfiguration = getBasicConf();
+        badConfiguration.getEventTypeIns().get(0).getAttributes().iterator().next().setJsonpath("$BADJSONPATH");
+        badConfiguration.getEventTypeIns().get(0).addAttribute(new Attribute("hum", "double"));
+        badConfiguration.getStatements().set(0, "select * from TempSensor");
+        try {
+            esperEventProcessor.setConfiguration(badConfiguration);
+            fail("bad jsonpath should throw ConfigurationException");
+        } catch (ConfigurationException e) {
+            // ok
+        }
+
+        assertSame(configuration, esperEventProcessor.getConfiguration());
+        assertEquals(configuration.getStatements().get(0), esperEventProcessor.getStatements().get(0).getText());
+        Map<String, Attribute> attributes = esperEventProcessor.getEventTypeAttributes("TempSensor");
+        assertEquals(2, attributes.size());
+        assertEquals("double", attributes.get("temp").getType());
+        assertFalse(attributes.containsKey("hum"));
+        assertEquals(2, esperEventProcessor.getEventTypeAttributes("TempSensorAvg").size());
+    }
+
+    /**
+     * Check that the replayed events are processed at their journaled time
+     */
+    @Test
+    public void checkReplayUsesJournaledTime() throws ConfigurationException {
+        esperEventProcessor.setConfiguration(getBasicConf());
+
+        long now = System.currentTimeMillis();
+        List<EventJournal.Entry> entries = new ArrayList<>();
+        entries.add(new EventJournal.Entry(now - 10000, buildBasicEvent(10.0)));
+        entries.add(new EventJournal.Entry(now - 1000, buildBasicEvent(20.0)));
+        esperEventProcessor.restoreState(null, entries.iterator());
+
+        // the first event left the 2 seconds time window before the second one was replayed
+        EPStatement statement = esperEventProcessor.getEPStatements().get(0);
+        assertEquals(20.0, statement.iterator().next().get("avgTemp"));
+    }
+
+    /**
+     * Check that the restored rows and the replayed events follow the time of the snapshot across a restart
+     */
+    @Test
+    public void checkTimeWindowAcrossRestart() throws ConfigurationException, EventProcessingException {
+        Configuration configuration = getBasicConf();
+        configuration.getStatements().add("create window TempWindow.win:time(10 sec) as TempSensor");
+        configuration.getStatements().add("insert into TempWindow select * from TempSensor");
+        esperEventProcessor.setConfiguration(configuration);
+        esperEventProcessor.processEvent(buildBasicEvent(10.0));
+        EngineState state = esperEventProcessor.getState();
+
+        // Restart from a snapshot taken 20 s ago, then events journaled 15 s and 1 s ago
+        esperEventProcessor.reset();
+        esperEventProcessor.setConfiguration(configuration);
+        long now = System.currentTimeMillis();
+        EngineState snapshot = new EngineState(now - 20000);
+        snapshot.getWindows().putAll(state.getWindows());
+        List<EventJournal.Entry> entries = new ArrayList<>();
+        entries.add(new EventJournal.Entry(now - 15000, buildBasicEvent(15.0)));
+        entries.add(new EventJournal.Entry(now - 1000, buildBasicEvent(20.0)));
+        esperEventProcessor.restoreState(snapshot, entries.iterator());
+
+        // Only the last event is still in the 10 seconds window
+        List<Object> temps = new ArrayList<>();
+        for (EPStatement statement : esperEventProcessor.getEPStatements()) {
+            if (statement.getText().startsWith("create window")) {
+                statement.iterator().forEachRemaining(eventBean -> temps.add(eventBean.get("temp")));
+            }
+        }
+        assertEquals(Collections.singletonList(20.0), temps);
+    }
+
     /**
      * Check that a bad configuration reset returns false
      * @throws ConfigurationException
@@ -245,6 +326,24 @@ public class EsperEventProcessorTest {
         assertEquals("celcius", events[0].get("avgTemp_unit"));
     }
 
+    /**
+     * Check that events are processed by the lanes when the multi-lane mode is enabled
+     * @throws ConfigurationException
+     * @throws EventProcessingException
+     */
+    @Test
+    public void checkMultiLaneProcessing() throws ConfigurationException, EventProcessingException {
+        Configuration configuration = getBasicConf();
+        configuration.setLanes(4);
+        esperEventProcessor.setConfiguration(configuration);
+
+        esperEventProcessor.processEvent(buildBasicEvent((double) 5.0));
+
+        ArgumentCaptor<EventBean[]> eventsArg = ArgumentCaptor.forClass(EventBean[].class);
+        verify(eventSinkListener, timeout(5000)).update(eventsArg.capture(), eq(null), any(EPStatement.class), any(EPServiceProvider.class));
+        assertEquals(5.0, eventsArg.getValue()[0].get("avgTemp"));
+    }
+
     private void sendXtemperature() {
         Random random = new Random(15);
         for (int i=1; i<100 ; i++) {
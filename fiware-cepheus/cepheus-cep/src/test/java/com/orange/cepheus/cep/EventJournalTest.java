@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.model.Event;
+import com.orange.cepheus.cep.model.EventLayout;
+import com.orange.cepheus.cep.model.JournalPosition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Date;
+import java.util.Iterator;
+
+import static com.orange.cepheus.cep.Util.buildBasicEvent;
+import static org.junit.Assert.*;
+
+/**
+ * Test the journal of the incoming events
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@TestPropertySource("classpath:application-journal.properties") // journal with 1KB segments
+public class EventJournalTest {
+
+    @Autowired
+    private EventJournal eventJournal;
+
+    @Before
+    @After
+    public void clear() {
+        eventJournal.clear();
+    }
+
+    @Test
+    public void checkAppendAndReplay() {
+        long start = System.currentTimeMillis();
+        Event event = buildBasicEvent(12.5);
+        event.addValue("date", new Date(1000));
+        eventJournal.append(event);
+        eventJournal.append(new Event("TempSensor", "S2", new Object[] {"S2", 5.0, null}));
+
+        Iterator<EventJournal.Entry> entries = eventJournal.replay(null);
+
+        assertTrue(entries.hasNext());
+        EventJournal.Entry entry = entries.next();
+        assertTrue(entry.getTimestamp() >= start);
+        assertEquals("TempSensor", entry.getEvent().getType());
+        assertEquals(event.getValues(), entry.getEvent().getValues());
+
+        assertTrue(entries.hasNext());
+        entry = entries.next();
+        assertEquals("S2", entry.getEvent().getId());
+        assertArrayEquals(new Object[] {"S2", 5.0, null}, entry.getEvent().getArray());
+
+        assertFalse(entries.hasNext());
+    }
+
+    @Test
+    public void checkReplayKeepsLayout() {
+        EventLayout layout = new EventLayout(new String[] {"id", "temp", "humidity"});
+        eventJournal.append(new Event("TempSensor", "S1", layout, new Object[] {"S1", 12.5, 40.0}));
+        eventJournal.append(new Event("TempSensor", "S2", layout, new Object[] {"S2", 5.0, 60.0}));
+
+        Iterator<EventJournal.Entry> entries = eventJournal.replay(null);
+
+        for (String id : new String[] {"S1", "S2"}) {
+            assertTrue(entries.hasNext());
+            Event event = entries.next().getEvent();
+            assertEquals(id, event.getId());
+            assertNotNull(event.getLayout());
+            assertTrue(layout.sameAs(event.getLayout()));
+        }
+        assertFalse(entries.hasNext());
+    }
+
+    @Test
+    public void checkReplayAcrossSegments() {
+        for (int i = 0; i < 100; i++) {
+            eventJournal.append(buildBasicEvent((double) i));
+        }
+
+        Iterator<EventJournal.Entry> entries = eventJournal.replay(null);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(entries.hasNext());
+            assertEquals((double) i, entries.next().getEvent().getValues().get("temp"));
+        }
+        assertFalse(entries.hasNext());
+    }
+
+    @Test
+    public void checkReplayAfterPosition() {
+        eventJournal.append(buildBasicEvent(1.0));
+        JournalPosition position = eventJournal.position();
+        for (int i = 2; i < 50; i++) {
+            eventJournal.append(buildBasicEvent((double) i));
+        }
+
+        // Only the events journaled after the position, across segments
+        Iterator<EventJournal.Entry> entries = eventJournal.replay(position);
+        for (int i = 2; i < 50; i++) {
+            assertTrue(entries.hasNext());
+            assertEquals((double) i, entries.next().getEvent().getValues().get("temp"));
+        }
+        assertFalse(entries.hasNext());
+    }
+
+    @Test
+    public void checkReplayAfterLastPosition() {
+        eventJournal.append(buildBasicEvent(1.0));
+
+        assertFalse(eventJournal.replay(eventJournal.position()).hasNext());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.model.Event;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the entity partitioned processing lanes
+ */
+public class EventLanesTest {
+
+    @Test
+    public void checkSameEntitySameLane() {
+        EventLanes lanes = new EventLanes("test", 8, 10, event -> {});
+        try {
+            assertEquals(lanes.laneOf("S1"), lanes.laneOf("S1"));
+            assertEquals(0, lanes.laneOf(null));
+            for (int i = 0; i < 100; i++) {
+                int lane = lanes.laneOf("S" + i);
+                assertTrue(lane >= 0 && lane < 8);
+            }
+        } finally {
+            lanes.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkPerEntityOrdering() throws EventProcessingException, InterruptedException {
+        final int entities = 10;
+        final int eventsPerEntity = 1000;
+        final CountDownLatch done = new CountDownLatch(entities * eventsPerEntity);
+        final Map<Object, List<Object>> received = new ConcurrentHashMap<>();
+
+        EventLanes lanes = new EventLanes("test", 4, 16, event -> {
+            Map<String, Object> values = event.getValues();
+            received.computeIfAbsent(values.get("id"), id -> Collections.synchronizedList(new ArrayList<>())).add(values.get("seq"));
+            done.countDown();
+        });
+
+        try {
+            for (int seq = 0; seq < eventsPerEntity; seq++) {
+                for (int e = 0; e < entities; e++) {
+                    Event event = new Event("TempSensor");
+                    event.addValue("id", "S" + e);
+                    event.addValue("seq", seq);
+                    lanes.submit("S" + e, event);
+                }
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            lanes.shutdown();
+        }
+
+        assertEquals(entities, received.size());
+        for (List<Object> sequence : received.values()) {
+            for (int seq = 0; seq < eventsPerEntity; seq++) {
+                assertEquals(seq, sequence.get(seq));
+            }
+        }
+    }
+
+    @Test
+    public void checkAwaitTerminationDrainsPendingEvents() throws EventProcessingException, InterruptedException {
+        final AtomicInteger processed = new AtomicInteger();
+        EventLanes lanes = new EventLanes("test", 2, 100, event -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processed.incrementAndGet();
+        });
+
+        for (int i = 0; i < 100; i++) {
+            lanes.submit("S" + i, new Event("TempSensor"));
+        }
+        lanes.shutdown();
+
+        assertTrue(lanes.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(100, processed.get());
+    }
+
+    @Test(expected = EventProcessingException.class)
+    public void checkRejectAfterShutdown() throws EventProcessingException {
+        EventLanes lanes = new EventLanes("test", 2, 10, event -> {});
+        lanes.shutdown();
+        lanes.submit("S1", new Event("TempSensor"));
+    }
+}
@@ -260,6 +260,41 @@ public class EventMapperTest {
         assertEquals("hello", values.get("Attr"));
     }
 
+    /**
+     * Test that the compiled mapping plan converts configured attributes and metadata,
+     * and that attributes override metadata
+     * @throws Exception
+     */
+    @Test
+    public void testContextElementConversionWithMappingPlan() throws Exception {
+        Metadata m = new Metadata("accuracy", "double");
+        Attribute temp = new Attribute("temp", "float");
+        temp.setMetadata(Collections.singleton(m));
+        Attribute accuracy = new Attribute("temp_accuracy", "double");
+
+        EventTypeIn e = new EventTypeIn("S.*", "PlanSensor", true);
+        e.setAttributes(new HashSet<>(Arrays.asList(temp, accuracy)));
+
+        Configuration configuration = new Configuration();
+        configuration.setEventTypeIns(Collections.singletonList(e));
+
+        eventMapper.setConfiguration(configuration);
+
+        ContextElement ce = new ContextElement();
+        ce.setEntityId(new EntityId("S1", "PlanSensor", false));
+        ContextAttribute ca = new ContextAttribute("temp", "float", "15.5");
+        ca.setMetadata(Collections.singletonList(new ContextMetadata("accuracy", "double", "0.5")));
+        ContextAttribute ca2 = new ContextAttribute("temp_accuracy", "double", "0.1");
+        ContextAttribute ca3 = new ContextAttribute("other", "int", "3");
+        ce.setContextAttributeList(Arrays.asList(ca2, ca, ca3));
+
+        Map<String, Object> values = eventMapper.eventFromContextElement(ce).getValues();
+        assertEquals(15.5f, values.get("temp"));
+        assertEquals(0.1d, values.get("temp_accuracy"));
+        assertEquals(3, values.get("other"));
+        assertEquals("S1", values.get("id"));
+    }
+
     /**
      * Test that the ContextElement with a bad jsonpath in attribute will trigger exception
      * @throws Exception
@@ -23,6 +23,7 @@ import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
@@ -193,6 +194,32 @@ public class EventSinkListenerTest {
         verify(ngsiClient, never()).updateContext(any(), any(), any());
     }
 
+    /**
+     * Check that the outbound queues of the brokers removed from the configuration are forgotten
+     */
+    @Test
+    public void sendersPrunedOnConfigurationChange() {
+
+        when(statement.getText()).thenReturn("statement");
+
+        List<ContextAttribute> attributes = new LinkedList<>();
+        attributes.add(new ContextAttribute("id", "string", "OUT1"));
+        attributes.add(new ContextAttribute("avgTemp", "double", 10.25));
+        EventBean[]beans = {buildEventBean("TempSensorAvg", attributes)};
+        eventSinkListener.update(beans, null, statement, provider);
+
+        Map<String, ?> senders = (Map<String, ?>) ReflectionTestUtils.getField(eventSinkListener, "senders");
+        assertEquals(1, senders.size());
+
+        Configuration configuration = new Configuration();
+        EventTypeOut eventTypeOut = new EventTypeOut("OUT1", "TempSensorAvg", false);
+        eventTypeOut.addBroker(new Broker("http://other"));
+        configuration.setEventTypeOuts(Collections.singletonList(eventTypeOut));
+        eventSinkListener.setConfiguration(configuration);
+
+        assertTrue(senders.isEmpty());
+    }
+
     /**
      * Helper to generate a Esper Event Bean for a given type and attributes
      */
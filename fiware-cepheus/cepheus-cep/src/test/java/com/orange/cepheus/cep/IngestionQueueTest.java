@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.model.Event;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.orange.cepheus.cep.Util.buildBasicEvent;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test for the asynchronous ingestion queue
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@TestPropertySource("classpath:application-ingestion.properties") // queue of 1 event with reject policy
+public class IngestionQueueTest {
+
+    @Mock
+    ComplexEventProcessor complexEventProcessor;
+
+    @Autowired
+    @InjectMocks
+    private IngestionQueue ingestionQueue;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void checkEventProcessedAsynchronously() throws EventProcessingException, InterruptedException {
+        CountDownLatch processed = new CountDownLatch(1);
+        Event event = buildBasicEvent(12.5);
+        doAnswer(invocation -> {
+            processed.countDown();
+            return null;
+        }).when(complexEventProcessor).processEvent(event);
+
+        assertTrue(ingestionQueue.isEnabled());
+        long accepted = ingestionQueue.getAcceptedCount();
+        ingestionQueue.submit(event);
+
+        assertTrue(processed.await(5, TimeUnit.SECONDS));
+        verify(complexEventProcessor).processEvent(event);
+        assertEquals(accepted + 1, ingestionQueue.getAcceptedCount());
+    }
+
+    @Test
+    public void checkRejectWhenQueueIsFull() throws EventProcessingException, InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(complexEventProcessor).processEvent(any());
+
+        long rejected = ingestionQueue.getRejectedCount();
+
+        // First event blocks the only dispatcher, second one fills the queue
+        ingestionQueue.submit(buildBasicEvent(1.0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        ingestionQueue.submit(buildBasicEvent(2.0));
+        assertEquals(1, ingestionQueue.getQueueSize());
+
+        try {
+            ingestionQueue.submit(buildBasicEvent(3.0));
+            fail("event must be rejected");
+        } catch (EventProcessingException e) {
+            assertEquals(rejected + 1, ingestionQueue.getRejectedCount());
+        } finally {
+            release.countDown();
+        }
+
+        verify(complexEventProcessor, timeout(5000).times(2)).processEvent(any());
+    }
+
+    @Test
+    public void checkRequestRejectedAsAWhole() throws EventProcessingException, InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(complexEventProcessor).processEvent(any());
+
+        long rejected = ingestionQueue.getRejectedCount();
+
+        // First event blocks the only dispatcher, the queue has room for a single event
+        ingestionQueue.submit(buildBasicEvent(1.0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        try {
+            ingestionQueue.submitAll(Arrays.asList(buildBasicEvent(2.0), buildBasicEvent(3.0)));
+            fail("events must be rejected");
+        } catch (EventProcessingException e) {
+            // None of the events was queued
+            assertEquals(0, ingestionQueue.getQueueSize());
+            assertEquals(rejected + 2, ingestionQueue.getRejectedCount());
+        } finally {
+            release.countDown();
+        }
+
+        verify(complexEventProcessor, timeout(5000).times(1)).processEvent(any());
+    }
+
+    @Test
+    public void checkBlockUntilDispatcherTakesEvent() throws EventProcessingException, InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(complexEventProcessor).processEvent(any());
+
+        Object overflowPolicy = ReflectionTestUtils.getField(ingestionQueue, "overflowPolicy");
+        Object blockTimeout = ReflectionTestUtils.getField(ingestionQueue, "blockTimeout");
+        ReflectionTestUtils.setField(ingestionQueue, "overflowPolicy", IngestionQueue.OverflowPolicy.BLOCK);
+        ReflectionTestUtils.setField(ingestionQueue, "blockTimeout", 5000L);
+        try {
+            // First event blocks the only dispatcher, second one fills the queue
+            ingestionQueue.submit(buildBasicEvent(1.0));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            ingestionQueue.submit(buildBasicEvent(2.0));
+
+            // The third event waits until the dispatcher takes the second one
+            new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                release.countDown();
+            }).start();
+            long start = System.currentTimeMillis();
+            ingestionQueue.submit(buildBasicEvent(3.0));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            release.countDown();
+            ReflectionTestUtils.setField(ingestionQueue, "overflowPolicy", overflowPolicy);
+            ReflectionTestUtils.setField(ingestionQueue, "blockTimeout", blockTimeout);
+        }
+
+        verify(complexEventProcessor, timeout(5000).times(3)).processEvent(any());
+    }
+}
@@ -17,6 +17,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -43,7 +44,10 @@ public class InitTest {
     public SubscriptionManager subscriptionManager;
 
     @Mock
-    public EventMapper eventMapper;
+    public SnapshotManager snapshotManager;
+
+    @Mock
+    public EventJournal eventJournal;
 
     @Autowired
     @InjectMocks
@@ -66,7 +70,24 @@ public class InitTest {
 
         verify(complexEventProcessor).setConfiguration(eq(configuration));
         verify(subscriptionManager).setConfiguration(eq(configuration));
-        verify(eventMapper).setConfiguration(configuration);
+        // Engine state is restored before the subscriptions resume
+        InOrder inOrder = inOrder(complexEventProcessor, snapshotManager, subscriptionManager);
+        inOrder.verify(complexEventProcessor).setConfiguration(eq(configuration));
+        inOrder.verify(snapshotManager).loadSnapshot();
+        inOrder.verify(complexEventProcessor).restoreState(any(), any());
+        inOrder.verify(subscriptionManager).setConfiguration(eq(configuration));
+    }
+
+    /**
+     * Check that the periodic snapshots are stopped before the final one
+     */
+    @Test
+    public void checkSnapshotOnShutdown() throws PersistenceException {
+        init.saveSnapshotOnShutdown();
+
+        InOrder inOrder = inOrder(snapshotManager);
+        inOrder.verify(snapshotManager).shutdown();
+        inOrder.verify(snapshotManager).saveSnapshot();
     }
 
     /**
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.espertech.esper.client.EPServiceProvider;
+import com.espertech.esper.client.EPStatement;
+import com.espertech.esper.client.EventBean;
+import com.orange.cepheus.cep.exception.ConfigurationException;
+import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.model.Attribute;
+import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.cep.model.Event;
+import com.orange.ngsi.model.ContextElement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.orange.cepheus.cep.Util.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test the object-array representation of the events
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@TestPropertySource("classpath:application-objectarray.properties") // object-array events
+public class ObjectArrayEventsTest {
+
+    @Mock
+    EventSinkListener eventSinkListener;
+
+    @Autowired
+    @InjectMocks
+    private EsperEventProcessor esperEventProcessor;
+
+    @Autowired
+    private EventMapper eventMapper;
+
+    @Before
+    public void setUp() throws ConfigurationException {
+        MockitoAnnotations.initMocks(this);
+        esperEventProcessor.setConfiguration(getBasicConf());
+    }
+
+    @After
+    public void tearDown() throws ConfigurationException {
+        esperEventProcessor.setConfiguration(emptyConfiguration());
+    }
+
+    @Test
+    public void checkPropertiesOrder() {
+        String[] names = eventMapper.esperPropertyNamesFromEventType(getBasicConf().getEventTypeIns().get(0));
+        assertArrayEquals(new String[] {"id", "temp", "temp_unit"}, names);
+    }
+
+    @Test
+    public void checkObjectArrayEvent() throws Exception {
+        ContextElement contextElement = createTemperatureContextElement(0);
+        Event event = eventMapper.eventFromContextElement(contextElement);
+
+        assertNull(event.getValues());
+        assertEquals("S1", event.getId());
+        List<String> names = Arrays.asList(eventMapper.esperPropertyNamesFromEventType(getBasicConf().getEventTypeIns().get(0)));
+        assertEquals(names.size(), event.getArray().length);
+        assertEquals("S1", event.getArray()[names.indexOf("id")]);
+        assertEquals(15.5, event.getArray()[names.indexOf("temp")]);
+    }
+
+    @Test(expected = EventProcessingException.class)
+    public void checkUnknownEventType() throws Exception {
+        ContextElement contextElement = createTemperatureContextElement(0);
+        contextElement.getEntityId().setType("UNKNOWN");
+        eventMapper.eventFromContextElement(contextElement);
+    }
+
+    @Test
+    public void checkProcessObjectArrayEvent() throws EventProcessingException {
+        esperEventProcessor.processEvent(new Event("TempSensor", "S1", new Object[] {"S1", 5.0, "celcius"}));
+
+        ArgumentCaptor<EventBean[]> eventsArg = ArgumentCaptor.forClass(EventBean[].class);
+        verify(eventSinkListener).update(eventsArg.capture(), eq(null), any(EPStatement.class), any(EPServiceProvider.class));
+        assertEquals(5.0, eventsArg.getValue()[0].get("avgTemp"));
+        assertEquals("celcius", eventsArg.getValue()[0].get("avgTemp_unit"));
+    }
+
+    @Test
+    public void checkEventMappedWithPreviousLayout() throws Exception {
+        Event event = eventMapper.eventFromContextElement(createTemperatureContextElement(0));
+
+        // The new configuration adds a property sorted before the others
+        Configuration configuration = getBasicConf();
+        configuration.getEventTypeIns().get(0).addAttribute(new Attribute("humidity", "double"));
+        esperEventProcessor.setConfiguration(configuration);
+        assertNotSame(event.getLayout(), eventMapper.getLayout("TempSensor"));
+
+        esperEventProcessor.processEvent(event);
+
+        ArgumentCaptor<EventBean[]> eventsArg = ArgumentCaptor.forClass(EventBean[].class);
+        verify(eventSinkListener).update(eventsArg.capture(), eq(null), any(EPStatement.class), any(EPServiceProvider.class));
+        assertEquals(15.5, eventsArg.getValue()[0].get("avgTemp"));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.espertech.esper.client.EPStatement;
+import com.orange.cepheus.cep.exception.ConfigurationException;
+import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.exception.PersistenceException;
+import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.cep.model.EngineState;
+import com.orange.cepheus.cep.tenant.TenantFilter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
+
+import static com.orange.cepheus.cep.Util.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test the snapshot and restore of the engine state
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@TestPropertySource("classpath:application-snapshot.properties") // snapshots enabled
+public class SnapshotManagerTest {
+
+    private static final String CREATE_WINDOW = "create window TempWindow.win:keepall() as TempSensor";
+
+    @Mock
+    EventSinkListener eventSinkListener;
+
+    @Autowired
+    @InjectMocks
+    private EsperEventProcessor esperEventProcessor;
+
+    @Autowired
+    private SnapshotManager snapshotManager;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @After
+    public void tearDown() throws ConfigurationException {
+        snapshotManager.deleteSnapshot();
+        esperEventProcessor.setConfiguration(emptyConfiguration());
+    }
+
+    @Test
+    public void checkSnapshotAndRestore() throws ConfigurationException, EventProcessingException, PersistenceException {
+        esperEventProcessor.setConfiguration(getWindowConfiguration());
+        esperEventProcessor.processEvent(buildBasicEvent(10.0));
+        esperEventProcessor.processEvent(buildBasicEvent(12.0));
+
+        snapshotManager.saveSnapshot();
+        assertTrue(snapshotManager.getLastSize() > 0);
+
+        // Simulate a restart
+        esperEventProcessor.reset();
+        esperEventProcessor.setConfiguration(getWindowConfiguration());
+        assertEquals(0, windowSize());
+
+        EngineState state = snapshotManager.loadSnapshot();
+        assertNotNull(state);
+        esperEventProcessor.restoreState(state, Collections.emptyIterator());
+        assertEquals(2, windowSize());
+    }
+
+    @Test
+    public void checkStateWaitsForLanes() throws ConfigurationException, EventProcessingException {
+        Configuration configuration = getWindowConfiguration();
+        configuration.setLanes(4);
+        esperEventProcessor.setConfiguration(configuration);
+        for (int i = 0; i < 100; i++) {
+            esperEventProcessor.processEvent(buildBasicEvent((double) i));
+        }
+
+        // Events dispatched to the lanes before the copy are in the state
+        EngineState state = esperEventProcessor.getState();
+        int rows = 0;
+        for (EngineState.Window window : state.getWindows().values()) {
+            rows += window.getRows().size();
+        }
+        assertEquals(100, rows);
+    }
+
+    @Test(expected = PersistenceException.class)
+    public void checkSerializedSnapshotRejected() throws IOException, PersistenceException {
+        // Snapshots are never read with the Java serialization
+        File file = new File(ReflectionTestUtils.getField(snapshotManager, "dataPath") + "cep-" + TenantFilter.DEFAULT_TENANTID + ".snapshot");
+        try (ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(file)))) {
+            out.writeObject(new ArrayList<>());
+        }
+        snapshotManager.loadSnapshot();
+    }
+
+    @Test
+    public void checkNoSnapshot() throws PersistenceException {
+        assertNull(snapshotManager.loadSnapshot());
+    }
+
+    private Configuration getWindowConfiguration() {
+        Configuration configuration = getBasicConf();
+        configuration.getStatements().add(CREATE_WINDOW);
+        configuration.getStatements().add("insert into TempWindow select * from TempSensor");
+        return configuration;
+    }
+
+    private int windowSize() {
+        for (EPStatement statement : esperEventProcessor.getEPStatements()) {
+            if (CREATE_WINDOW.equals(statement.getText())) {
+                int size = 0;
+                for (Iterator<?> iterator = statement.iterator(); iterator.hasNext(); iterator.next()) {
+                    size++;
+                }
+                return size;
+            }
+        }
+        fail("missing named window");
+        return 0;
+    }
+}
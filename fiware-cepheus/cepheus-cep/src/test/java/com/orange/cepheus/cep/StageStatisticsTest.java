@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.model.LatencyStats;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.orange.cepheus.cep.Util.*;
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+/**
+ * Test for the latency statistics of the event pipeline stages
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@TestPropertySource("classpath:application-stats.properties") // enabled stage statistics
+public class StageStatisticsTest {
+
+    private MockMvc mockMvc;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private MappingJackson2HttpMessageConverter mapper;
+
+    @Autowired
+    private StageStatistics stageStatistics;
+
+    @Autowired
+    private StageMetrics stageMetrics;
+
+    @Before
+    public void setUp() {
+        mockMvc = webAppContextSetup(webApplicationContext).build();
+        stageStatistics.reset();
+    }
+
+    @Test
+    public void checkRecordedDurations() {
+        long start = stageStatistics.start() - TimeUnit.MILLISECONDS.toNanos(2);
+        stageStatistics.record(StageStatistics.Stage.PROCESSING, "TempSensor", start);
+
+        Map<String, LatencyStats> stats = stageStatistics.getStats().get("TempSensor");
+        assertEquals(1, stats.size());
+        LatencyStats processing = stats.get("processing");
+        assertEquals(1, processing.getCount());
+        assertTrue(processing.getP50() >= 1900);
+        assertEquals(processing.getP50(), processing.getP999());
+    }
+
+    @Test
+    public void checkMetrics() {
+        stageStatistics.record(StageStatistics.Stage.OUTBOUND, "TempSensor", stageStatistics.start());
+
+        Map<String, Number> metrics = stageMetrics.metrics().stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+        assertEquals(1L, metrics.get("cepheus.stats.TempSensor.outbound.count"));
+        assertTrue(metrics.containsKey("cepheus.stats.TempSensor.outbound.p99"));
+        assertFalse(metrics.containsKey("cepheus.stats.TempSensor.processing.count"));
+    }
+
+    @Test
+    public void checkStagesOfAnUpdate() throws Exception {
+        mockMvc.perform(post("/v1/admin/config")
+                .content(json(mapper, getBasicConf()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isCreated());
+
+        mockMvc.perform(post("/v1/updateContext")
+                .content(json(mapper, createUpdateContextTempSensor(0)))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(get("/v1/admin/stats").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.TempSensor.decode.count").value(1))
+                .andExpect(jsonPath("$.TempSensor.mappingIn.count").value(1))
+                .andExpect(jsonPath("$.TempSensor.processing.count").value(1))
+                .andExpect(jsonPath("$.TempSensorAvg.mappingOut.count").value(1));
+
+        mockMvc.perform(delete("/v1/admin/stats")).andExpect(status().isOk());
+
+        mockMvc.perform(get("/v1/admin/stats").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.TempSensor").doesNotExist());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.geo.GeoUtil;
+import com.vividsolutions.jts.geom.Geometry;
+import org.junit.Test;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ValueCodec
+ */
+public class ValueCodecTest {
+
+    @Test
+    public void checkValues() throws Exception {
+        for (Object value : Arrays.asList(null, "S1", 1, 2L, 3.0f, 4.0, true, new Date(1000), new String(new char[100000]).replace('\0', 'a'))) {
+            assertEquals(value, decode(encode(value)));
+        }
+    }
+
+    @Test
+    public void checkGeometry() throws Exception {
+        Geometry point = GeoUtil.parseNGSIString("48.8, 2.3");
+        assertTrue(point.equalsExact((Geometry) decode(encode(point))));
+    }
+
+    @Test
+    public void checkSerializedValue() throws Exception {
+        assertEquals(Collections.singletonList("S1"), decode(encode(Collections.singletonList("S1"))));
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void checkSerializedClassRejected() throws Exception {
+        decode(encode(new SimpleDateFormat()));
+    }
+
+    private byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        ValueCodec.writeValue(output, value);
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        return ValueCodec.readValue(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
@@ -10,7 +10,6 @@ package com.orange.cepheus.cep.controller;
 
 import com.orange.cepheus.cep.Application;
 import com.orange.cepheus.cep.ComplexEventProcessor;
-import com.orange.cepheus.cep.EventMapper;
 import com.orange.cepheus.cep.exception.ConfigurationException;
 import com.orange.cepheus.cep.exception.PersistenceException;
 import com.orange.cepheus.cep.model.Configuration;
@@ -82,9 +81,6 @@ public class AdminControllerMultiTenantTest {
     @Mock
     private Persistence persistence;
 
-    @Mock
-    private EventMapper eventMapper;
-
     @Autowired
     @InjectMocks
     AdminController adminController;
@@ -100,7 +96,6 @@ public class AdminControllerMultiTenantTest {
     public void resetMocks() {
         reset(complexEventProcessor);
         reset(persistence);
-        reset(eventMapper);
     }
 
     @Test
@@ -284,19 +279,6 @@ public class AdminControllerMultiTenantTest {
                 .andExpect(jsonPath("$.details").value("DETAIL ERROR"));
     }
 
-    @Test
-    public void eventMapperErrorHandling() throws Exception {
-        Configuration configuration = getBasicConf();
-
-        doThrow(new ConfigurationException("ERROR", new Exception("DETAIL ERROR"))).when(eventMapper).setConfiguration(any(Configuration.class));
-
-        mockMvc.perform(post("/v1/admin/config").content(json(mapping, configuration)).contentType(MediaType.APPLICATION_JSON))
-                .andExpect(status().isBadRequest())
-                .andExpect(jsonPath("$.code").value("400"))
-                .andExpect(jsonPath("$.reasonPhrase").value("ERROR"))
-                .andExpect(jsonPath("$.details").value("DETAIL ERROR"));
-    }
-
     @Test
     public void persistenceErrorHandling() throws Exception {
 
@@ -10,7 +10,6 @@ package com.orange.cepheus.cep.controller;
 
 import com.orange.cepheus.cep.Application;
 import com.orange.cepheus.cep.ComplexEventProcessor;
-import com.orange.cepheus.cep.EventMapper;
 import com.orange.cepheus.cep.exception.ConfigurationException;
 import com.orange.cepheus.cep.exception.PersistenceException;
 import com.orange.cepheus.cep.model.Configuration;
@@ -64,9 +63,6 @@ public class AdminControllerTest {
     @Mock
     private Persistence persistence;
 
-    @Mock
-    private EventMapper eventMapper;
-
     @Autowired
     @InjectMocks
     AdminController adminController;
@@ -81,7 +77,6 @@ public class AdminControllerTest {
     public void resetMocks() {
         reset(complexEventProcessor);
         reset(persistence);
-        reset(eventMapper);
     }
 
     @Test
@@ -174,19 +169,6 @@ public class AdminControllerTest {
                 .andExpect(jsonPath("$.details").value("DETAIL ERROR"));
     }
 
-    @Test
-    public void eventMapperErrorHandling() throws Exception {
-        Configuration configuration = getBasicConf();
-
-        doThrow(new ConfigurationException("ERROR", new Exception("DETAIL ERROR"))).when(eventMapper).setConfiguration(any(Configuration.class));
-
-        mockMvc.perform(post("/v1/admin/config").content(json(mapping, configuration)).contentType(MediaType.APPLICATION_JSON))
-                .andExpect(status().isBadRequest())
-                .andExpect(jsonPath("$.code").value("400"))
-                .andExpect(jsonPath("$.reasonPhrase").value("ERROR"))
-                .andExpect(jsonPath("$.details").value("DETAIL ERROR"));
-    }
-
     @Test
     public void persistenceErrorHandling() throws Exception {
 
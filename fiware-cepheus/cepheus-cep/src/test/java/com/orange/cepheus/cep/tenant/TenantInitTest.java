@@ -1,7 +1,8 @@
 package com.orange.cepheus.cep.tenant;
 
 import com.orange.cepheus.cep.ComplexEventProcessor;
-import com.orange.cepheus.cep.EventMapper;
+import com.orange.cepheus.cep.EventJournal;
+import com.orange.cepheus.cep.SnapshotManager;
 import com.orange.cepheus.cep.SubscriptionManager;
 import com.orange.cepheus.cep.exception.ConfigurationException;
 import com.orange.cepheus.cep.exception.PersistenceException;
@@ -33,15 +34,18 @@ public class TenantInitTest {
     @Mock
     ApplicationContext applicationContext;
 
-    @Mock
-    EventMapper eventMapper;
-
     @Mock
     ComplexEventProcessor complexEventProcessor;
 
     @Mock
     SubscriptionManager subscriptionManager;
 
+    @Mock
+    SnapshotManager snapshotManager;
+
+    @Mock
+    EventJournal eventJournal;
+
     @Mock
     Persistence persistence;
 
@@ -70,9 +74,10 @@ public class TenantInitTest {
         Collection<String> configurations = new LinkedList<>();
         configurations.add("smartcity/team1");
         when(persistence.listConfigurations()).thenReturn(configurations);
-        when(applicationContext.getBean("eventMapper")).thenReturn(eventMapper);
         when(applicationContext.getBean("complexEventProcessor")).thenReturn(complexEventProcessor);
         when(applicationContext.getBean("subscriptionManager")).thenReturn(subscriptionManager);
+        when(applicationContext.getBean("snapshotManager")).thenReturn(snapshotManager);
+        when(applicationContext.getBean("eventJournal")).thenReturn(eventJournal);
 
         InOrder inOrder = inOrder( tenantFilter );
 
@@ -82,9 +87,9 @@ public class TenantInitTest {
         inOrder.verify(tenantFilter).forceTenantScope("smartcity/team1");
         inOrder.verify(tenantFilter).forceTenantScope(null);
         verify(persistence, atLeastOnce()).loadConfiguration("smartcity/team1");
-        verify(eventMapper, atLeastOnce()).setConfiguration(any());
         verify(complexEventProcessor, atLeastOnce()).setConfiguration(any());
         verify(subscriptionManager, atLeastOnce()).setConfiguration(any());
+        verify(snapshotManager, atLeastOnce()).loadSnapshot();
     }
 
     @Test
@@ -93,9 +98,10 @@ public class TenantInitTest {
         configurations.add("smartcity/team1");
         doThrow(PersistenceException.class).when(persistence).loadConfiguration("smartcity/team1");
         when(persistence.listConfigurations()).thenReturn(configurations);
-        when(applicationContext.getBean("eventMapper")).thenReturn(eventMapper);
         when(applicationContext.getBean("complexEventProcessor")).thenReturn(complexEventProcessor);
         when(applicationContext.getBean("subscriptionManager")).thenReturn(subscriptionManager);
+        when(applicationContext.getBean("snapshotManager")).thenReturn(snapshotManager);
+        when(applicationContext.getBean("eventJournal")).thenReturn(eventJournal);
 
         InOrder inOrder = inOrder( tenantFilter );
 
@@ -105,14 +111,13 @@ public class TenantInitTest {
         inOrder.verify(tenantFilter).forceTenantScope("smartcity/team1");
         inOrder.verify(tenantFilter).forceTenantScope(null);
         verify(persistence, atLeastOnce()).loadConfiguration("smartcity/team1");
-        verify(eventMapper, never()).setConfiguration(any());
         verify(complexEventProcessor, never()).setConfiguration(any());
         verify(subscriptionManager, never()).setConfiguration(any());
+        verify(snapshotManager, never()).loadSnapshot();
     }
 
     @After
     public void resetMock() {
-        reset(eventMapper);
         reset(complexEventProcessor);
         reset(subscriptionManager);
         reset(applicationContext);
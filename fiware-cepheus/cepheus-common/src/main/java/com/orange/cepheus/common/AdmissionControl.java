@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Adaptive limit of the number of NGSI requests processed at the same time.
+ *
+ * The latency of the processed requests is compared to a baseline (the lowest latency observed recently):
+ * while the latency stays under tolerance * baseline the limit slowly grows (additive increase),
+ * when the latency goes above, the service is queuing work and the limit is reduced (multiplicative decrease).
+ * Requests beyond the limit are rejected immediately instead of waiting for a servlet thread.
+ *
+ * A share of the limit is reserved to the priority requests (registrations, subscriptions, queries),
+ * so that the bulk telemetry (updateContext, notifyContext) is shed first.
+ *
+ * Shared by the CEP and the broker, the metrics are published under admission.metricsPrefix.
+ */
+@Component
+public class AdmissionControl {
+
+    private static Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+
+    /**
+     * Number of latency samples after which the baseline is estimated again
+     */
+    private final static int BASELINE_WINDOW = 1000;
+
+    @Value("${admission.enabled:false}")
+    private boolean enabled;
+
+    @Value("${admission.initialLimit:20}")
+    private int initialLimit;
+
+    @Value("${admission.minLimit:4}")
+    private int minLimit;
+
+    @Value("${admission.maxLimit:200}")
+    private int maxLimit;
+
+    /**
+     * Ratio of the baseline latency above which the limit is reduced
+     */
+    @Value("${admission.tolerance:2.0}")
+    private double tolerance;
+
+    /**
+     * Factor applied to the limit when the latency is above the tolerance
+     */
+    @Value("${admission.backoff:0.9}")
+    private double backoff;
+
+    /**
+     * Share of the limit only available to the priority requests
+     */
+    @Value("${admission.priorityShare:0.2}")
+    private double priorityShare;
+
+    /**
+     * Delay (s) sent in the Retry-After header of the rejected requests
+     */
+    @Value("${admission.retryAfter:1}")
+    private int retryAfter;
+
+    /**
+     * Prefix of the published gauges
+     */
+    @Value("${admission.metricsPrefix:cepheus.admission}")
+    private String metricsPrefix;
+
+    /**
+     * Publish the admission metrics when the Spring Boot metrics are enabled
+     */
+    @Value("${endpoints.metrics.enabled:${endpoints.enabled:false}}")
+    private boolean collectMetrics;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    private double limit;
+
+    private int inFlight;
+
+    private long rejected;
+
+    /**
+     * Lowest latency (ns) of the previous window, and of the current window
+     */
+    private long baseline;
+
+    private long windowMin = Long.MAX_VALUE;
+
+    private int windowSamples;
+
+    private long lastDecrease;
+
+    @PostConstruct
+    public void init() {
+        limit = initialLimit;
+        lastDecrease = System.nanoTime();
+        if (enabled) {
+            logger.info("Admission control enabled: limit {} ({} to {}), latency tolerance {}", initialLimit, minLimit, maxLimit, tolerance);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Admit a request if the limit allows it, the request must then be released by release()
+     * @param priority true for a priority request
+     * @return true if admitted, false if the request must be rejected
+     */
+    public boolean tryAcquire(boolean priority) {
+        synchronized (this) {
+            int allowed = (int) (priority ? limit : limit * (1 - priorityShare));
+            if (inFlight < Math.max(1, allowed)) {
+                inFlight++;
+                return true;
+            }
+            rejected++;
+        }
+        publishMetrics();
+        return false;
+    }
+
+    /**
+     * Release an admitted request and adapt the limit to its latency
+     * @param latency the processing duration of the request (ns)
+     */
+    public void release(long latency) {
+        synchronized (this) {
+            inFlight--;
+
+            windowMin = Math.min(windowMin, latency);
+            if (baseline == 0 || latency < baseline) {
+                baseline = latency;
+            }
+            if (++windowSamples >= BASELINE_WINDOW) {
+                // Forget old baselines, the cost of the requests changes with the configuration and the data
+                baseline = windowMin;
+                windowMin = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+
+            long now = System.nanoTime();
+            if (latency > baseline * tolerance) {
+                // Decrease at most once per latency period, the requests in flight suffer from the same congestion
+                if (now - lastDecrease > latency) {
+                    limit = Math.max(minLimit, limit * backoff);
+                    lastDecrease = now;
+                }
+            } else if (inFlight + 1 >= limit / 2) {
+                // Only grow a limit which is used
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+        publishMetrics();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    private void publishMetrics() {
+        if (!collectMetrics) {
+            return;
+        }
+        double currentLimit;
+        int currentInFlight;
+        long currentRejected;
+        synchronized (this) {
+            currentLimit = limit;
+            currentInFlight = inFlight;
+            currentRejected = rejected;
+        }
+        gaugeService.submit(metricsPrefix + ".limit", currentLimit);
+        gaugeService.submit(metricsPrefix + ".inFlight", currentInFlight);
+        gaugeService.submit(metricsPrefix + ".rejected", currentRejected);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.common;
+
+import com.orange.ngsi.model.StatusCode;
+import com.orange.ngsi.server.NgsiBaseController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.web.HttpMessageConverters;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Admission of the NGSI requests by the AdmissionControl before their processing.
+ * Rejected requests are answered with a 503 NGSI error and a Retry-After header, without reaching the controllers.
+ * Asynchronous requests are released when their response is complete.
+ */
+@Component
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    private static Logger logger = LoggerFactory.getLogger(AdmissionFilter.class);
+
+    /**
+     * NGSI operations subject to the admission control, other requests (admin, REST) are always admitted
+     */
+    private final static Set<String> OPERATIONS = new HashSet<>(Arrays.asList("updateContext", "notifyContext", "queryContext",
+            "subscribeContext", "updateContextSubscription", "unsubscribeContext", "registerContext", "discoverContextAvailability",
+            "subscribeContextAvailability", "updateContextAvailabilitySubscription", "unsubscribeContextAvailability",
+            "notifyContextAvailability"));
+
+    /**
+     * Operations admitted in the share of the limit reserved to priority requests
+     */
+    @Value("${admission.priorityOperations:registerContext,subscribeContext,updateContextSubscription,unsubscribeContext,queryContext}")
+    private String[] priorityOperations;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private HttpMessageConverters messageConverters;
+
+    /**
+     * Builds the NGSI error response matching the operation of a request
+     */
+    private final ErrorResponses errorResponses = new ErrorResponses();
+
+    private Set<String> priorities;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+
+        String operation = operation(request.getRequestURI());
+        if (!admissionControl.isEnabled() || !OPERATIONS.contains(operation)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        if (!admissionControl.tryAcquire(isPriority(operation))) {
+            reject(request, response);
+            return;
+        }
+
+        long admittedAt = System.nanoTime();
+        boolean async = false;
+        try {
+            filterChain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                // Release when the response of the asynchronous processing is written
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        admissionControl.release(System.nanoTime() - admittedAt);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                        event.getAsyncContext().addListener(this);
+                    }
+                });
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                admissionControl.release(System.nanoTime() - admittedAt);
+            }
+        }
+    }
+
+    /**
+     * Write the 503 NGSI error of a rejected request, in the format of the request (JSON by default)
+     */
+    @SuppressWarnings("unchecked")
+    private void reject(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        logger.warn("Request rejected: overloaded, retry after {} s", admissionControl.getRetryAfter());
+
+        StatusCode statusCode = new StatusCode();
+        statusCode.setCode("503");
+        statusCode.setReasonPhrase("service unavailable");
+        statusCode.setDetail("Overloaded, retry after " + admissionControl.getRetryAfter() + " s");
+        Object body = errorResponses.of(request.getRequestURI(), statusCode).getBody();
+
+        MediaType mediaType = MediaType.APPLICATION_JSON;
+        try {
+            if (request.getContentType() != null && MediaType.APPLICATION_XML.isCompatibleWith(MediaType.parseMediaType(request.getContentType()))) {
+                mediaType = MediaType.APPLICATION_XML;
+            }
+        } catch (InvalidMediaTypeException e) {
+            // Answer in JSON
+        }
+
+        ServletServerHttpResponse output = new ServletServerHttpResponse(response);
+        output.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        output.getHeaders().set("Retry-After", String.valueOf(admissionControl.getRetryAfter()));
+        for (HttpMessageConverter<?> converter : messageConverters.getConverters()) {
+            if (converter.canWrite(body.getClass(), mediaType)) {
+                ((HttpMessageConverter<Object>) converter).write(body, mediaType, output);
+                return;
+            }
+        }
+        output.flush();
+    }
+
+    private String operation(String uri) {
+        return uri.substring(uri.lastIndexOf('/') + 1);
+    }
+
+    private boolean isPriority(String operation) {
+        if (priorities == null) {
+            Set<String> operations = new HashSet<>();
+            for (String operation : priorityOperations) {
+                operations.add(operation.trim());
+            }
+            priorities = operations;
+        }
+        return priorities.contains(operation);
+    }
+
+    /**
+     * Exposes the NGSI error responses of the controllers
+     */
+    private static class ErrorResponses extends NgsiBaseController {
+
+        ResponseEntity<Object> of(String path, StatusCode statusCode) {
+            return errorResponse(path, statusCode);
+        }
+    }
+}
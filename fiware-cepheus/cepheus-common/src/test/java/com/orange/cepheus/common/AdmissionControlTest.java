@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.common;
+
+import com.jayway.jsonpath.JsonPath;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.autoconfigure.web.HttpMessageConverters;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the AdmissionControl and the AdmissionFilter
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AdmissionControlTest {
+
+    @Mock
+    GaugeService gaugeService;
+
+    @InjectMocks
+    AdmissionControl admissionControl;
+
+    AdmissionFilter admissionFilter = new AdmissionFilter();
+
+    @Before
+    public void setUp() {
+        ReflectionTestUtils.setField(admissionControl, "enabled", true);
+        ReflectionTestUtils.setField(admissionControl, "initialLimit", 10);
+        ReflectionTestUtils.setField(admissionControl, "minLimit", 2);
+        ReflectionTestUtils.setField(admissionControl, "maxLimit", 12);
+        ReflectionTestUtils.setField(admissionControl, "tolerance", 2.0);
+        ReflectionTestUtils.setField(admissionControl, "backoff", 0.5);
+        ReflectionTestUtils.setField(admissionControl, "priorityShare", 0.2);
+        admissionControl.init();
+
+        ReflectionTestUtils.setField(admissionFilter, "admissionControl", admissionControl);
+        ReflectionTestUtils.setField(admissionFilter, "messageConverters", new HttpMessageConverters(new MappingJackson2HttpMessageConverter()));
+        ReflectionTestUtils.setField(admissionFilter, "priorityOperations", new String[] { "registerContext", "queryContext" });
+    }
+
+    @Test
+    public void rejectAboveLimit() {
+        for (int i = 0; i < 8; i++) {
+            assertTrue(admissionControl.tryAcquire(false));
+        }
+        // Telemetry is rejected first, the remaining share is reserved to priority requests
+        assertFalse(admissionControl.tryAcquire(false));
+        assertTrue(admissionControl.tryAcquire(true));
+        assertTrue(admissionControl.tryAcquire(true));
+        assertFalse(admissionControl.tryAcquire(true));
+        assertEquals(10, admissionControl.getInFlight());
+        assertEquals(2, admissionControl.getRejected());
+
+        admissionControl.release(1000000);
+        assertTrue(admissionControl.tryAcquire(true));
+    }
+
+    @Test
+    public void decreaseLimitWhenLatencyGrows() {
+        assertTrue(admissionControl.tryAcquire(false));
+        admissionControl.release(1000000);
+        assertTrue(admissionControl.tryAcquire(false));
+        ReflectionTestUtils.setField(admissionControl, "lastDecrease", System.nanoTime() - 1000000000L);
+        admissionControl.release(10000000);
+        assertEquals(5, admissionControl.getLimit());
+
+        // Not below the minimum
+        for (int i = 0; i < 10; i++) {
+            ReflectionTestUtils.setField(admissionControl, "lastDecrease", System.nanoTime() - 1000000000L);
+            assertTrue(admissionControl.tryAcquire(true));
+            admissionControl.release(10000000);
+        }
+        assertEquals(2, admissionControl.getLimit());
+    }
+
+    @Test
+    public void increaseLimitWhileLatencyIsStable() {
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 10; j++) {
+                admissionControl.tryAcquire(true);
+            }
+            for (int j = 0; j < 10; j++) {
+                admissionControl.release(1000000);
+            }
+        }
+        // Not above the maximum
+        assertEquals(12, admissionControl.getLimit());
+        assertEquals(0, admissionControl.getInFlight());
+    }
+
+    @Test
+    public void filterRejectsWithNgsiError() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(admissionControl.tryAcquire(true));
+        }
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain filterChain = new MockFilterChain();
+        admissionFilter.doFilter(ngsiRequest("/v1/notifyContext"), response, filterChain);
+
+        // The request never reaches the controller
+        assertNull(filterChain.getRequest());
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus());
+        assertEquals("1", response.getHeader("Retry-After"));
+        assertEquals("503", JsonPath.read(response.getContentAsString(), "$.responseCode.code"));
+        assertEquals(1, admissionControl.getRejected());
+    }
+
+    @Test
+    public void filterReleasesAdmittedRequests() throws Exception {
+        MockFilterChain filterChain = new MockFilterChain();
+        admissionFilter.doFilter(ngsiRequest("/v1/updateContext"), new MockHttpServletResponse(), filterChain);
+
+        assertNotNull(filterChain.getRequest());
+        assertEquals(0, admissionControl.getInFlight());
+    }
+
+    @Test
+    public void filterAlwaysAdmitsOtherRequests() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(admissionControl.tryAcquire(true));
+        }
+
+        MockFilterChain filterChain = new MockFilterChain();
+        admissionFilter.doFilter(new MockHttpServletRequest("GET", "/v1/admin/config"), new MockHttpServletResponse(), filterChain);
+
+        assertNotNull(filterChain.getRequest());
+        assertEquals(0, admissionControl.getRejected());
+    }
+
+    private MockHttpServletRequest ngsiRequest(String uri) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", uri);
+        request.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        return request;
+    }
+}
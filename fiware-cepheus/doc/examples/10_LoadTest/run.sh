@@ -0,0 +1,72 @@
+#!/bin/sh
+# Load test: send a stream of updates from mock-iotagent to the CEP,
+# and report the throughput and end-to-end latency measured by mock-orion
+#
+# Usage: ./run.sh [config.json]
+# The load profile can be changed by the environment variables below, example:
+#   RATE=2000 DURATION=30 BURST=100 ./run.sh
+
+CEP=localhost:8080
+ORION=localhost:8082
+IOTAGENT=localhost:8083
+
+CONFIG_FILE=${1:-config.json}
+OPERATION=${OPERATION:-updateContext}
+TARGET=${TARGET:-http://$CEP}
+ENTITIES=${ENTITIES:-100}
+ATTRIBUTES=${ATTRIBUTES:-1}
+RATE=${RATE:-500}
+DURATION=${DURATION:-60}
+BURST=${BURST:-1}
+# Time given to the pending updates to reach mock-orion after the end of the load
+DRAIN=${DRAIN:-5}
+
+. ../common.sh
+
+# Extract a numeric or boolean field from a flat JSON object
+function field() #(json, name)
+{
+    echo "$1" | sed -n 's/.*"'$2'":\([^,}]*\).*/\1/p'
+}
+
+echo "#1 Update CEP with the $CONFIG_FILE configuration"
+CONFIG=`cat $CONFIG_FILE`
+updateConfig $CEP "$CONFIG"
+echo ""
+# Let the CEP subscribe to its providers
+sleep 2
+
+echo "#2 Reset the mock-orion statistics"
+curl -s -X DELETE $ORION/v1/admin/stats
+
+LOAD='{
+	"operation": "'$OPERATION'",
+	"target": "'$TARGET'",
+	"entities": '$ENTITIES',
+	"attributes": '$ATTRIBUTES',
+	"rate": '$RATE',
+	"duration": '$DURATION',
+	"burstSize": '$BURST'
+}'
+
+echo "#3 Start a load of $RATE $OPERATION/s for $DURATION s by bursts of $BURST on $ENTITIES entities"
+out=$(send $IOTAGENT "v1/admin/load" "$LOAD")
+if [ "$(field "$out" running)" != "true" ]; then
+	echo "   Load not started: $out"
+	exit 1
+fi
+
+while [ "$(field "$(curl -s $IOTAGENT/v1/admin/load)" running)" = "true" ]; do
+	sleep 1
+done
+sleep $DRAIN
+
+LOAD_STATUS=$(curl -s $IOTAGENT/v1/admin/load)
+STATS=$(curl -s $ORION/v1/admin/stats)
+
+echo ""
+echo "#4 Results"
+echo "   sent:        $(field "$LOAD_STATUS" sent) requests at $(field "$LOAD_STATUS" sendRate)/s ($(field "$LOAD_STATUS" failed) failed)"
+echo "   received:    $(field "$STATS" received) context elements ($(field "$STATS" measured) with sentAt)"
+echo "   throughput:  $(field "$STATS" throughput)/s sustained over $(field "$STATS" duration) ms"
+echo "   latency:     p50 $(field "$STATS" p50) ms, p99 $(field "$STATS" p99) ms, p999 $(field "$STATS" p999) ms, max $(field "$STATS" max) ms"
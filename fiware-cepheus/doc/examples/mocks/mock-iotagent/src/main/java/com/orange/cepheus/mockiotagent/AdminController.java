@@ -8,6 +8,7 @@
 
 package com.orange.cepheus.mockiotagent;
 
+import com.orange.cepheus.mockiotagent.model.Load;
 import com.orange.ngsi.client.NgsiClient;
 import com.orange.ngsi.model.*;
 import org.slf4j.Logger;
@@ -18,10 +19,12 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.validation.Valid;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -43,6 +46,9 @@ public class AdminController {
     @Autowired
     NgsiClient ngsiClient;
 
+    @Autowired
+    LoadGenerator loadGenerator;
+
     @Value("${cepheus.broker:http://localhost:8081}")
     String cepheusBroker;
 
@@ -123,6 +129,28 @@ public class AdminController {
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
+    @RequestMapping(value = "/load", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<LoadGenerator.Status> startLoad(@Valid @RequestBody final Load load) {
+        try {
+            loadGenerator.start(load);
+        } catch (IllegalStateException e) {
+            logger.warn("Load not started: {}", e.getMessage());
+            return new ResponseEntity<>(loadGenerator.getStatus(), HttpStatus.CONFLICT);
+        }
+        return new ResponseEntity<>(loadGenerator.getStatus(), HttpStatus.ACCEPTED);
+    }
+
+    @RequestMapping(value = "/load", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<LoadGenerator.Status> getLoad() {
+        return new ResponseEntity<>(loadGenerator.getStatus(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/load", method = RequestMethod.DELETE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<LoadGenerator.Status> stopLoad() {
+        loadGenerator.stop();
+        return new ResponseEntity<>(loadGenerator.getStatus(), HttpStatus.OK);
+    }
+
     private ResponseEntity responseKO() {
         return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
     }
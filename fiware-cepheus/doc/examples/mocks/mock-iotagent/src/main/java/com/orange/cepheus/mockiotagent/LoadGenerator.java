@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.mockiotagent;
+
+import com.orange.cepheus.mockiotagent.model.Load;
+import com.orange.ngsi.client.NgsiClient;
+import com.orange.ngsi.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates a stream of NGSI requests following a load profile.
+ * Each context element carries a sentAt attribute (type long, epoch in ms) set when the request is sent,
+ * so that the receiver of the updates (mock-orion) can measure the end-to-end latency.
+ * updateContext requests are sent to the target of the load,
+ * notifyContext requests to all the subscriptions received by the mock (i.e. from Cepheus-CEP).
+ */
+@Component
+public class LoadGenerator {
+
+    private static Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    public final static String SENT_AT = "sentAt";
+
+    @Autowired
+    NgsiClient ngsiClient;
+
+    @Value("${cepheus.broker:http://localhost:8081}")
+    String cepheusBroker;
+
+    @Value("${iotagent:http://localhost:8083}")
+    String providingApplication;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, SubscribeContext> subscriptions = new ConcurrentHashMap<>();
+
+    private ScheduledFuture<?> task;
+
+    private Load load;
+
+    private long start;
+
+    private long end;
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong acknowledged = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Start a new load
+     * @param load the load profile
+     * @throws IllegalStateException if a load is already running or a notify load has no subscription to notify
+     */
+    public synchronized void start(Load load) {
+        if (isRunning()) {
+            throw new IllegalStateException("a load is already running");
+        }
+        if ("notifyContext".equals(load.getOperation()) && subscriptions.isEmpty()) {
+            throw new IllegalStateException("no subscription to notify");
+        }
+        if (load.getTarget() == null) {
+            load.setTarget(cepheusBroker);
+        }
+        this.load = load;
+        sent.set(0);
+        acknowledged.set(0);
+        failed.set(0);
+        start = System.currentTimeMillis();
+        end = 0;
+
+        long total = (long) load.getRate() * load.getDuration();
+        long period = Math.max(1, TimeUnit.SECONDS.toMicros(load.getBurstSize()) / load.getRate());
+        logger.info("Start load of {} {} at {}/s by bursts of {} on {} entities", total, load.getOperation(), load.getRate(), load.getBurstSize(), load.getEntities());
+        task = scheduler.scheduleAtFixedRate(() -> sendBurst(total), 0, period, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Stop the running load, if any
+     */
+    public synchronized void stop() {
+        if (isRunning()) {
+            task.cancel(false);
+            end = System.currentTimeMillis();
+            logger.info("Load stopped after {} requests", sent.get());
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return task != null && !task.isDone();
+    }
+
+    /**
+     * @return the progress of the last load
+     */
+    public synchronized Status getStatus() {
+        long elapsed = (end > 0 ? end : System.currentTimeMillis()) - start;
+        return new Status(isRunning(), load, sent.get(), acknowledged.get(), failed.get(), load == null ? 0 : elapsed);
+    }
+
+    /**
+     * Register a subscription to notify during notifyContext loads
+     * @return the subscription id
+     */
+    public String addSubscription(SubscribeContext subscribeContext) {
+        String subscriptionId = UUID.randomUUID().toString();
+        subscriptions.put(subscriptionId, subscribeContext);
+        return subscriptionId;
+    }
+
+    public boolean removeSubscription(String subscriptionId) {
+        return subscriptions.remove(subscriptionId) != null;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void sendBurst(long total) {
+        for (int i = 0; i < load.getBurstSize(); i++) {
+            long n = sent.get();
+            if (n >= total) {
+                stop();
+                return;
+            }
+            sent.incrementAndGet();
+            try {
+                send(contextElement(n));
+            } catch (Exception e) {
+                logger.warn("Failed to send request: {}", e.toString());
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    private void send(ContextElement contextElement) throws URISyntaxException {
+        if ("notifyContext".equals(load.getOperation())) {
+            URI originator = new URI(providingApplication);
+            for (Map.Entry<String, SubscribeContext> subscription : subscriptions.entrySet()) {
+                NotifyContext notifyContext = new NotifyContext(subscription.getKey(), originator);
+                notifyContext.setContextElementResponseList(Collections.singletonList(new ContextElementResponse(contextElement, new StatusCode(CodeEnum.CODE_200))));
+                track(ngsiClient.notifyContextCustomURL(subscription.getValue().getReference().toString(), null, notifyContext));
+            }
+        } else {
+            UpdateContext updateContext = new UpdateContext(UpdateAction.APPEND);
+            updateContext.setContextElements(Collections.singletonList(contextElement));
+            track(ngsiClient.updateContext(load.getTarget(), null, updateContext));
+        }
+    }
+
+    private void track(ListenableFuture<?> response) {
+        response.addCallback(result -> acknowledged.incrementAndGet(), throwable -> failed.incrementAndGet());
+    }
+
+    private ContextElement contextElement(long n) {
+        ContextElement contextElement = new ContextElement();
+        contextElement.setEntityId(new EntityId(load.getEntityType() + (n % load.getEntities()), load.getEntityType(), false));
+        List<ContextAttribute> attributes = new ArrayList<>(load.getAttributes() + 1);
+        for (int i = 0; i < load.getAttributes(); i++) {
+            attributes.add(new ContextAttribute("attr" + i, "double", String.valueOf(ThreadLocalRandom.current().nextDouble(100))));
+        }
+        attributes.add(new ContextAttribute(SENT_AT, "long", String.valueOf(System.currentTimeMillis())));
+        contextElement.setContextAttributeList(attributes);
+        return contextElement;
+    }
+
+    /**
+     * Progress of a load
+     */
+    public static class Status {
+
+        private final boolean running;
+
+        private final Load load;
+
+        private final long sent;
+
+        private final long acknowledged;
+
+        private final long failed;
+
+        private final long elapsed;
+
+        public Status(boolean running, Load load, long sent, long acknowledged, long failed, long elapsed) {
+            this.running = running;
+            this.load = load;
+            this.sent = sent;
+            this.acknowledged = acknowledged;
+            this.failed = failed;
+            this.elapsed = elapsed;
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+
+        public Load getLoad() {
+            return load;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getAcknowledged() {
+            return acknowledged;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return the duration of the load (ms)
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * @return the rate of sent requests (per second)
+         */
+        public double getSendRate() {
+            return elapsed == 0 ? 0 : sent * 1000.0 / elapsed;
+        }
+    }
+}
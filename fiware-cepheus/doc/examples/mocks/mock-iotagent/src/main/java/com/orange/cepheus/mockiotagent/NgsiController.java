@@ -12,6 +12,7 @@ import com.orange.ngsi.model.*;
 import com.orange.ngsi.server.NgsiBaseController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -32,6 +33,9 @@ public class NgsiController extends NgsiBaseController {
 
     private String[] statusTab = {"open", "closed"};
 
+    @Autowired
+    LoadGenerator loadGenerator;
+
     @Override
     public UpdateContextResponse updateContext(final UpdateContext update) {
 
@@ -64,6 +68,28 @@ public class NgsiController extends NgsiBaseController {
         }
     }
 
+    @Override
+    public SubscribeContextResponse subscribeContext(final SubscribeContext subscribe) {
+        logger.info("=> subscribeContext: {}", subscribe.toString());
+
+        // subscriptions are notified by notifyContext loads
+        SubscribeResponse subscribeResponse = new SubscribeResponse();
+        subscribeResponse.setSubscriptionId(loadGenerator.addSubscription(subscribe));
+        subscribeResponse.setDuration(subscribe.getDuration());
+        SubscribeContextResponse subscribeContextResponse = new SubscribeContextResponse();
+        subscribeContextResponse.setSubscribeResponse(subscribeResponse);
+        return subscribeContextResponse;
+    }
+
+    @Override
+    public UnsubscribeContextResponse unsubscribeContext(final UnsubscribeContext unsubscribe) {
+        logger.info("=> unsubscribeContext: {}", unsubscribe.getSubscriptionId());
+
+        StatusCode statusCode = loadGenerator.removeSubscription(unsubscribe.getSubscriptionId()) ?
+                new StatusCode(CodeEnum.CODE_200) : new StatusCode(CodeEnum.CODE_470, unsubscribe.getSubscriptionId());
+        return new UnsubscribeContextResponse(statusCode, unsubscribe.getSubscriptionId());
+    }
+
     private QueryContextResponse createRoomQueryResponse(EntityId queryEntityId) {
         QueryContextResponse queryContextResponse = new QueryContextResponse();
 
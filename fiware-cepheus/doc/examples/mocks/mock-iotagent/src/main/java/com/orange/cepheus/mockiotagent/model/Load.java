@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.mockiotagent.model;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.Pattern;
+
+/**
+ * Load profile: stream of NGSI requests sent to the target, one context element per request.
+ * Requests are sent by bursts of burstSize requests, spaced so that the average rate is kept:
+ * burstSize = 1 gives a constant stream, a larger burstSize gives peaks of burstSize requests.
+ */
+public class Load {
+
+    /**
+     * Base URL of the target (Cepheus-Broker or Cepheus-CEP), defaults to the cepheus.broker property
+     */
+    private String target;
+
+    /**
+     * NGSI operation sent to the target
+     */
+    @Pattern(regexp = "updateContext|notifyContext")
+    private String operation = "updateContext";
+
+    private String entityType = "Sensor";
+
+    /**
+     * Number of distinct entities, updated in turn (ids are entityType + index)
+     */
+    @Min(1)
+    private int entities = 100;
+
+    /**
+     * Number of double attributes per context element (named attr0, attr1...),
+     * the sentAt attribute is always added
+     */
+    @Min(0)
+    private int attributes = 1;
+
+    /**
+     * Requests per second
+     */
+    @Min(1)
+    private int rate = 100;
+
+    /**
+     * Duration of the load in seconds
+     */
+    @Min(1)
+    private int duration = 60;
+
+    @Min(1)
+    private int burstSize = 1;
+
+    public String getTarget() {
+        return target;
+    }
+
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    public void setEntityType(String entityType) {
+        this.entityType = entityType;
+    }
+
+    public int getEntities() {
+        return entities;
+    }
+
+    public void setEntities(int entities) {
+        this.entities = entities;
+    }
+
+    public int getAttributes() {
+        return attributes;
+    }
+
+    public void setAttributes(int attributes) {
+        this.attributes = attributes;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public void setDuration(int duration) {
+        this.duration = duration;
+    }
+
+    public int getBurstSize() {
+        return burstSize;
+    }
+
+    public void setBurstSize(int burstSize) {
+        this.burstSize = burstSize;
+    }
+}
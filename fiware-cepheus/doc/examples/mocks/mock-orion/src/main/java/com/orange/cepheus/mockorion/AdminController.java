@@ -37,6 +37,9 @@ public class AdminController {
     @Autowired
     NgsiClient ngsiClient;
 
+    @Autowired
+    LatencyRecorder latencyRecorder;
+
     @Value("${cepheus.broker:http://localhost:8081}")
     String cepheusBroker;
 
@@ -83,4 +86,14 @@ public class AdminController {
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
+    @RequestMapping(value = "/stats", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<LatencyRecorder.Stats> stats() {
+        return new ResponseEntity<>(latencyRecorder.getStats(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/stats", method = RequestMethod.DELETE)
+    public ResponseEntity resetStats() {
+        latencyRecorder.reset();
+        return new ResponseEntity<>(HttpStatus.OK);
+    }
 }
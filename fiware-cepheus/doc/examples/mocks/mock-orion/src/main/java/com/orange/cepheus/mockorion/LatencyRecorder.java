@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.mockorion;
+
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the arrival of the context elements and their end-to-end latency,
+ * computed from the sentAt attribute (epoch in ms) set by the mock-iotagent load generator.
+ * Latencies are counted in buckets of 1 ms up to latency.max ms, so that recording never allocates nor locks.
+ */
+@Component
+public class LatencyRecorder {
+
+    public final static String SENT_AT = "sentAt";
+
+    @Value("${latency.max:60000}")
+    int maxLatency;
+
+    private AtomicLongArray buckets;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong measured = new AtomicLong();
+
+    private final AtomicLong firstArrival = new AtomicLong();
+
+    private final AtomicLong lastArrival = new AtomicLong();
+
+    @PostConstruct
+    protected void init() {
+        // last bucket counts all the latencies above the max
+        buckets = new AtomicLongArray(maxLatency + 2);
+    }
+
+    /**
+     * Record the arrival of a context element
+     */
+    public void record(ContextElement contextElement) {
+        long now = System.currentTimeMillis();
+        firstArrival.compareAndSet(0, now);
+        lastArrival.accumulateAndGet(now, Math::max);
+        received.incrementAndGet();
+
+        Long sentAt = sentAt(contextElement);
+        if (sentAt != null) {
+            long latency = Math.max(0, now - sentAt);
+            buckets.incrementAndGet((int) Math.min(latency, maxLatency + 1));
+            measured.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forget all recorded arrivals
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        received.set(0);
+        measured.set(0);
+        firstArrival.set(0);
+        lastArrival.set(0);
+    }
+
+    /**
+     * @return the throughput and latency distribution of the arrivals recorded since the last reset
+     */
+    public Stats getStats() {
+        long[] counts = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long first = firstArrival.get();
+        long duration = first == 0 ? 0 : lastArrival.get() - first;
+        return new Stats(received.get(), total, duration,
+                percentile(counts, total, 0.5), percentile(counts, total, 0.99), percentile(counts, total, 0.999), percentile(counts, total, 1));
+    }
+
+    /**
+     * @return the latency (ms) under which the given ratio of the measures are, -1 when there is no measure
+     */
+    private long percentile(long[] counts, long total, double ratio) {
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * ratio));
+        long cumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulated += counts[i];
+            if (cumulated >= rank) {
+                return i;
+            }
+        }
+        return counts.length - 1;
+    }
+
+    private Long sentAt(ContextElement contextElement) {
+        if (contextElement.getContextAttributeList() == null) {
+            return null;
+        }
+        for (ContextAttribute contextAttribute : contextElement.getContextAttributeList()) {
+            if (SENT_AT.equals(contextAttribute.getName()) && contextAttribute.getValue() != null) {
+                Object value = contextAttribute.getValue();
+                try {
+                    return value instanceof Number ? ((Number) value).longValue() : (long) Double.parseDouble(value.toString());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Throughput and latency distribution of the recorded arrivals
+     */
+    public static class Stats {
+
+        private final long received;
+
+        private final long measured;
+
+        private final long duration;
+
+        private final long p50;
+
+        private final long p99;
+
+        private final long p999;
+
+        private final long max;
+
+        public Stats(long received, long measured, long duration, long p50, long p99, long p999, long max) {
+            this.received = received;
+            this.measured = measured;
+            this.duration = duration;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of received context elements
+         */
+        public long getReceived() {
+            return received;
+        }
+
+        /**
+         * @return the number of received context elements having a sentAt attribute
+         */
+        public long getMeasured() {
+            return measured;
+        }
+
+        /**
+         * @return the time (ms) between the first and the last arrival
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the sustained throughput (context elements per second)
+         */
+        public double getThroughput() {
+            return duration == 0 ? 0 : received * 1000.0 / duration;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
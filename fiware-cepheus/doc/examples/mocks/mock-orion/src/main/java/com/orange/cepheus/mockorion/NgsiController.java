@@ -12,6 +12,7 @@ import com.orange.ngsi.model.*;
 import com.orange.ngsi.server.NgsiBaseController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -32,22 +33,39 @@ public class NgsiController extends NgsiBaseController {
     @Value("${registrationId:999999}")
     String registrationId;
 
+    @Autowired
+    LatencyRecorder latencyRecorder;
+
     @Override
     public UpdateContextResponse updateContext(final UpdateContext update) {
 
-        logger.info("=> updateContext : {}", update.toString());
+        logger.debug("=> updateContext : {}", update);
 
         //send response with status 200 = OK
         UpdateContextResponse updateContextResponse = new UpdateContextResponse();
         List<ContextElementResponse> contextElementResponseList = new ArrayList<>();
         StatusCode statusCode = new StatusCode(CodeEnum.CODE_200);
         for (ContextElement c : update.getContextElements()) {
+            latencyRecorder.record(c);
             contextElementResponseList.add(new ContextElementResponse(c, statusCode));
         }
         updateContextResponse.setContextElementResponses(contextElementResponseList);
         return updateContextResponse;
     }
 
+    @Override
+    public NotifyContextResponse notifyContext(final NotifyContext notify) {
+
+        logger.debug("=> notifyContext : {}", notify);
+
+        for (ContextElementResponse contextElementResponse : notify.getContextElementResponseList()) {
+            latencyRecorder.record(contextElementResponse.getContextElement());
+        }
+        NotifyContextResponse notifyContextResponse = new NotifyContextResponse();
+        notifyContextResponse.setResponseCode(new StatusCode(CodeEnum.CODE_200));
+        return notifyContextResponse;
+    }
+
     @Override
     public RegisterContextResponse registerContext(final RegisterContext register) {
         logger.info("=> registerContext : {}", register.toString());